@@ -0,0 +1,406 @@
+/***
+
+  An archive-level catalog of story metadata: one record per story, read
+  from a single file in the root of the input folder, instead of (or as
+  well as) a storyinfo.txt and toc.txt in every story folder. Any field in a
+  story's own storyinfo.txt overrides the same field from the catalog, and a
+  toc.txt overrides the catalog's chapter titles.
+
+  Two formats are supported, both read in one sequential pass:
+
+  catalog.tsv - Tab-separated values. The first line names the columns. One
+    column must be "folder" (the story's folder name); "toc" holds chapter
+    titles, one per line. All other columns use the same names as
+    storyinfo.txt fields ("title", "fandom", "date updated", etc., with
+    underscores allowed in place of spaces.) Tabs, newlines and backslashes
+    inside values are written as \t, \n and \\, and \N means no value.
+
+  catalog.jsonl - JSON Lines. One JSON object per line, with the same keys
+    as above. Values can be strings, numbers, booleans or arrays; arrays
+    are joined with ", " like a storyinfo.txt list, except "toc", which is
+    a list of chapter titles.
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class ArchiveCatalog {
+  // Default file names looked for in the input folder, in order
+  public final static String[] DEFAULT_FILE_NAMES =
+    new String[] {"catalog.tsv", "catalog.jsonl"};
+
+  // Keys with special meaning that aren't story metadata fields
+  private final static String FOLDER_KEY = "folder";
+  private final static String TOC_KEY = "toc";
+
+  // A single story's entry in the catalog.
+  public static class Record {
+    // Metadata fields as [field name, value] pairs, in file order
+    private ArrayList<String[]> fields = new ArrayList<String[]>();
+    // Chapter titles, or null if the catalog didn't give any
+    private String[] chapterTitles;
+
+    // Gets the metadata fields as [field name, value] pairs.
+    public List<String[]> getFields() {
+      return fields;
+    }
+
+    // Gets the chapter titles, or null if there are none.
+    public String[] getChapterTitles() {
+      return chapterTitles;
+    }
+  }
+
+  // Records by story folder name
+  private HashMap<String, Record> records = new HashMap<String, Record>();
+  // Fields that appeared in the catalog but aren't valid metadata fields
+  private TreeSet<String> unknownFields = new TreeSet<String>();
+  private String fileName;
+
+  private ArchiveCatalog(String fileName) {
+    this.fileName = fileName;
+  }
+
+  // Looks for a catalog file with one of the default names in the input
+  // folder, and returns it, or null if there isn't one.
+  public static Path findIn(Path inputFolder) {
+    for (String name : DEFAULT_FILE_NAMES) {
+      Path catalogFile = inputFolder.resolve(name);
+      if (Files.isRegularFile(catalogFile)) {
+        return catalogFile;
+      }
+    }
+    return null;
+  }
+
+  // Reads a catalog file. The format is chosen by file extension: .jsonl
+  // (or .json) for JSON Lines, anything else for TSV.
+  public static ArchiveCatalog read(Path catalogFile,
+                                    Set<String> validFields)
+                                    throws IOException {
+    String name = catalogFile.getFileName().toString();
+    ArchiveCatalog catalog = new ArchiveCatalog(name);
+    try (BufferedReader reader =
+           Files.newBufferedReader(catalogFile, StandardCharsets.UTF_8)) {
+      if (name.toLowerCase().endsWith(".jsonl")
+          || name.toLowerCase().endsWith(".json")) {
+        catalog.readJsonLines(reader, validFields);
+      } else {
+        catalog.readTsv(reader, validFields);
+      }
+    }
+    return catalog;
+  }
+
+  // Gets the record for a story folder, or null if it isn't in the catalog.
+  public Record getRecord(String folderName) {
+    return records.get(folderName);
+  }
+
+  // Gets the number of stories in the catalog.
+  public int size() {
+    return records.size();
+  }
+
+  // Gets the folder names of every story in the catalog.
+  public Set<String> getFolderNames() {
+    return Collections.unmodifiableSet(records.keySet());
+  }
+
+  // Gets the names of any fields that were ignored because they aren't
+  // recognized storyinfo.txt fields.
+  public Set<String> getUnknownFields() {
+    return unknownFields;
+  }
+
+  // Gets the name of the file this catalog was read from.
+  public String getFileName() {
+    return fileName;
+  }
+
+  // Converts a column or key name to the form used in storyinfo.txt parsing
+  // (lowercase, with spaces instead of underscores).
+  private static String normalizeKey(String key) {
+    return key.trim().toLowerCase().replace('_', ' ');
+  }
+
+  // Adds a single field to a record, if it's one we know about.
+  private void addField(Record record, String key, String value,
+                        Set<String> validFields) {
+    if (key.equals(TOC_KEY)) {
+      record.chapterTitles = value.split("\n", -1);
+    } else if (validFields.contains(key)) {
+      record.fields.add(new String[] {key, value});
+    } else {
+      unknownFields.add(key);
+    }
+  }
+
+  // Adds a finished record, warning about missing or duplicate folders.
+  private void addRecord(String folder, Record record, int line) {
+    if (folder == null || folder.equals("")) {
+      System.out.println("Error: line " + line + " of " + fileName
+                         + " has no story folder. Skipping...");
+      return;
+    }
+    if (records.put(folder, record) != null) {
+      System.out.println("Warning: story folder '" + folder + "' is listed "
+                         + "more than once in " + fileName + ". Using the "
+                         + "last entry (line " + line + ").");
+    }
+  }
+
+
+  /*** TSV ***/
+
+  private void readTsv(BufferedReader reader, Set<String> validFields)
+                       throws IOException {
+    String headerLine = reader.readLine();
+    if (headerLine == null) {
+      return;
+    }
+    String[] columns = headerLine.split("\t", -1);
+    int folderColumn = -1;
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = normalizeKey(columns[i]);
+      if (columns[i].equals(FOLDER_KEY)) {
+        folderColumn = i;
+      }
+    }
+    if (folderColumn == -1) {
+      System.out.println("Error: " + fileName + " has no 'folder' column, so "
+                         + "its entries can't be matched to stories.");
+      return;
+    }
+    String line;
+    int lineNumber = 1;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] values = line.split("\t", -1);
+      Record record = new Record();
+      String folder = null;
+      for (int i = 0; i < columns.length && i < values.length; i++) {
+        if (values[i].equals("\\N")) {
+          continue;  // no value
+        }
+        String value = unescapeTsv(values[i]);
+        if (i == folderColumn) {
+          folder = value;
+        } else if (!value.equals("")) {
+          addField(record, columns[i], value, validFields);
+        }
+      }
+      addRecord(folder, record, lineNumber);
+    }
+  }
+
+  // Undoes the \t, \n, \r and \\ escapes used for values in TSV files.
+  private static String unescapeTsv(String value) {
+    if (value.indexOf('\\') == -1) {
+      return value;
+    }
+    StringBuilder unescaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        i++;
+        switch (value.charAt(i)) {
+          case 't':
+            unescaped.append('\t');
+            break;
+          case 'n':
+            unescaped.append('\n');
+            break;
+          case 'r':
+            unescaped.append('\r');
+            break;
+          default:
+            unescaped.append(value.charAt(i));
+        }
+      } else {
+        unescaped.append(c);
+      }
+    }
+    return unescaped.toString();
+  }
+
+
+  /*** JSON LINES ***/
+
+  private void readJsonLines(BufferedReader reader, Set<String> validFields)
+                             throws IOException {
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      Record record = new Record();
+      String folder = null;
+      try {
+        JsonCursor cursor = new JsonCursor(line);
+        cursor.expect('{');
+        if (!cursor.consume('}')) {
+          do {
+            String key = normalizeKey(cursor.readString());
+            cursor.expect(':');
+            String value = cursor.readStringList(key.equals(TOC_KEY) ? "\n"
+                                                                     : ", ");
+            if (value != null) {
+              if (key.equals(FOLDER_KEY)) {
+                folder = value;
+              } else if (!value.equals("")) {
+                addField(record, key, value, validFields);
+              }
+            }
+          } while (cursor.consume(','));
+          cursor.expect('}');
+        }
+      } catch (IllegalArgumentException e) {
+        System.out.println("Error: couldn't read line " + lineNumber + " of "
+                           + fileName + " (" + e.getMessage() + ")");
+        continue;
+      }
+      addRecord(folder, record, lineNumber);
+    }
+  }
+
+  // Just enough of a JSON reader for flat catalog records: an object of
+  // strings, numbers, booleans, nulls, and arrays of those.
+  private static class JsonCursor {
+    private String text;
+    private int position = 0;
+
+    JsonCursor(String text) {
+      this.text = text;
+    }
+
+    private void skipWhitespace() {
+      while (position < text.length()
+             && Character.isWhitespace(text.charAt(position))) {
+        position++;
+      }
+    }
+
+    // Consumes the given character if it's next, and returns true if it was.
+    boolean consume(char c) {
+      skipWhitespace();
+      if (position < text.length() && text.charAt(position) == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    void expect(char c) {
+      if (!consume(c)) {
+        throw new IllegalArgumentException("expected '" + c + "' at column "
+                                           + (position + 1));
+      }
+    }
+
+    // Reads a value as a string. Arrays are joined with the given divider.
+    // Returns null for JSON null.
+    String readStringList(String divider) {
+      skipWhitespace();
+      if (consume('[')) {
+        StringBuilder joined = new StringBuilder();
+        if (!consume(']')) {
+          do {
+            String item = readScalar();
+            if (item != null) {
+              if (joined.length() > 0) {
+                joined.append(divider);
+              }
+              joined.append(item);
+            }
+          } while (consume(','));
+          expect(']');
+        }
+        return joined.toString();
+      }
+      return readScalar();
+    }
+
+    // Reads a string, number, boolean or null.
+    String readScalar() {
+      skipWhitespace();
+      if (position >= text.length()) {
+        throw new IllegalArgumentException("unexpected end of line");
+      }
+      if (text.charAt(position) == '"') {
+        return readString();
+      }
+      int start = position;
+      while (position < text.length()
+             && ",]} \t".indexOf(text.charAt(position)) == -1) {
+        position++;
+      }
+      String literal = text.substring(start, position);
+      if (literal.equals("null")) {
+        return null;
+      }
+      if (literal.isEmpty()) {
+        throw new IllegalArgumentException("expected a value at column "
+                                           + (start + 1));
+      }
+      return literal;
+    }
+
+    // Reads a quoted string.
+    String readString() {
+      expect('"');
+      StringBuilder value = new StringBuilder();
+      while (position < text.length()) {
+        char c = text.charAt(position++);
+        if (c == '"') {
+          return value.toString();
+        }
+        if (c != '\\') {
+          value.append(c);
+          continue;
+        }
+        if (position >= text.length()) {
+          break;
+        }
+        char escaped = text.charAt(position++);
+        switch (escaped) {
+          case 'b':
+            value.append('\b');
+            break;
+          case 'f':
+            value.append('\f');
+            break;
+          case 'n':
+            value.append('\n');
+            break;
+          case 'r':
+            value.append('\r');
+            break;
+          case 't':
+            value.append('\t');
+            break;
+          case 'u':
+            if (position + 4 > text.length()) {
+              throw new IllegalArgumentException("bad \\u escape");
+            }
+            value.append((char)Integer.parseInt(text.substring(position,
+                                                               position + 4),
+                                                16));
+            position += 4;
+            break;
+          default:  // \" \\ \/
+            value.append(escaped);
+        }
+      }
+      throw new IllegalArgumentException("unterminated string");
+    }
+  }
+}
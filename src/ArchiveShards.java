@@ -0,0 +1,154 @@
+/***
+
+  Splits a build across several programs (--shard K/N), which can run on
+  one computer or several sharing a filesystem. Each story folder belongs
+  to exactly one of the N shards, picked by a CRC32 of its name, so every
+  shard build agrees on the split without talking to the others, and a
+  story stays in the same shard from one build to the next.
+
+  A shard build reads only its own story folders and writes only their
+  story pages. It then saves everything the index pages need from its
+  stories (their parsed state, the same as the archive snapshot keeps, with
+  each folder's change key) in a partial file, shard-K-of-N.dat, in the
+  shard folder. Once every shard is done, a merge build (--merge-shards)
+  sets up every story from the partials, and builds the title and latest
+  indexes, the fandom, author and tag pages and the home page from all of
+  them, the same as a whole build would. Story folders that changed since
+  their shard was built, or that aren't in any partial, are read and built
+  by the merge itself.
+
+  The shard folder is next to the output folder (OUTPUT-shards), unless
+  --shard-dir is given.
+
+***/
+
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class ArchiveShards {
+  // Gets the shard (1 to shardCount) a story folder belongs to.
+  public static int getShard(String folderName, int shardCount) {
+    CRC32 hash = new CRC32();
+    hash.update(folderName.getBytes(StandardCharsets.UTF_8));
+    return (int)(hash.getValue() % shardCount) + 1;
+  }
+
+  // Parses "K/N" into {K, N}. Returns null (having said why) if it isn't a
+  // shard number from 1 to N.
+  public static int[] parse(String shard) {
+    String[] parts = shard.split("/");
+    try {
+      if (parts.length == 2) {
+        int k = Integer.parseInt(parts[0].trim());
+        int n = Integer.parseInt(parts[1].trim());
+        if (n >= 1 && k >= 1 && k <= n) {
+          return new int[] {k, n};
+        }
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    System.out.println("Error: --shard needs a shard number and count, "
+                       + "e.g. 2/4, not '" + shard + "'.");
+    return null;
+  }
+
+  // Gets the name of a shard's partial file.
+  public static String getPartialName(int shard, int shardCount) {
+    return "shard-" + shard + "-of-" + shardCount + ".dat";
+  }
+
+  // Gets the settings a shard's partial is saved with. A merge only uses
+  // partials saved with the same settings it has.
+  public static String getSettings(FicArchiveBuilder config, int shard,
+                                   int shardCount) {
+    return config.getArchiveSnapshotSettings() + config.getPageModelSettings()
+           + "shard " + shard + "/" + shardCount + "\n";
+  }
+
+  // Keeps only the story folders in the given shard, in the same order.
+  public static StoryFolderSnapshot[] select(StoryFolderSnapshot[] folders,
+                                             int shard, int shardCount) {
+    ArrayList<StoryFolderSnapshot> selected =
+      new ArrayList<StoryFolderSnapshot>();
+    for (StoryFolderSnapshot folder : folders) {
+      if (getShard(folder.getName(), shardCount) == shard) {
+        selected.add(folder);
+      }
+    }
+    return selected.toArray(new StoryFolderSnapshot[0]);
+  }
+
+  // Saves a shard's partial: its stories (in input folder order, before any
+  // story filter) and their change keys, and its category lists.
+  public static void writePartial(FicArchiveBuilder config, Story[] stories,
+    long[] changeKeys, List<HashMap<String, ArrayList<Story>>> categoryMaps)
+    throws IOException {
+    Path folder = config.getShardFolder();
+    Files.createDirectories(folder);
+    int shard = config.getShard();
+    int shardCount = config.getShardCount();
+    ArchiveSnapshot.writeFile(folder.resolve(getPartialName(shard,
+                                                            shardCount)),
+                              getSettings(config, shard, shardCount), stories,
+                              changeKeys, categoryMaps, null, null);
+  }
+
+  // Opens every shard's partial for a merge, by shard number (the partial
+  // for shard K is at K - 1). Returns null (having said why) if there are
+  // none, they're from different splits, one is missing, or one was saved
+  // with different settings.
+  public static ArchiveSnapshot[] openPartials(FicArchiveBuilder config) {
+    Path folder = config.getShardFolder();
+    // Work out the number of shards from the partials there
+    TreeSet<Integer> counts = new TreeSet<Integer>();
+    try (DirectoryStream<Path> partials =
+           Files.newDirectoryStream(folder, "shard-*-of-*.dat")) {
+      for (Path partial : partials) {
+        String name = partial.getFileName().toString();
+        try {
+          counts.add(Integer.parseInt(
+            name.substring(name.indexOf("-of-") + 4, name.length() - 4)));
+        } catch (NumberFormatException e) {
+          // Not a partial
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Error: could not read shard folder " + folder
+                         + ". Build every shard before merging.");
+      return null;
+    }
+    if (counts.size() != 1) {
+      System.out.println("Error: " + (counts.isEmpty()
+                           ? "no shard partials found"
+                           : "partials from different numbers of shards "
+                             + counts + " found")
+                         + " in " + folder + ".");
+      return null;
+    }
+    int shardCount = counts.first();
+    ArchiveSnapshot[] snapshots = new ArchiveSnapshot[shardCount];
+    for (int shard = 1; shard <= shardCount; shard++) {
+      Path file = folder.resolve(getPartialName(shard, shardCount));
+      try {
+        snapshots[shard - 1] =
+          ArchiveSnapshot.openFile(file, getSettings(config, shard,
+                                                     shardCount));
+      } catch (IOException e) {
+        snapshots[shard - 1] = null;
+      }
+      if (snapshots[shard - 1] == null) {
+        System.out.println("Error: " + (Files.exists(file)
+                             ? file + " was built with different settings"
+                             : "shard " + shard + "/" + shardCount
+                               + " hasn't been built (no " + file + ")")
+                           + ". Build that shard before merging.");
+        return null;
+      }
+    }
+    return snapshots;
+  }
+}
@@ -0,0 +1,595 @@
+/***
+
+  A snapshot of the archive as it was read in the last build: every story's
+  metadata, chapter list and chapter titles, the tag, author and fandom
+  lists built from them, and the orders the stories were sorted into. It's
+  saved in the cache folder after each build and memory-mapped at the start
+  of the next one, so a story whose folder hasn't changed is set up straight
+  from the snapshot instead of reading its storyinfo.txt, toc.txt and
+  chapters again. If no story has changed, the category lists and sort
+  orders are reused too.
+
+  A story's folder counts as unchanged if every file in it has the same
+  name, size and modified time as before (taken from the folder listing,
+  so nothing in the folder is opened), and its catalog entry (if any) is the
+  same.
+
+  File layout (archive.dat), with all offsets from the start of the file:
+    8 byte magic string
+    int offset of the string table, story table, category lists and sort
+    orders
+    the settings the snapshot depends on
+    strings: every distinct string (titles, tags, etc) once, each as an int
+             byte length and UTF-8
+    string table: int count, then the offset of each string
+    stories: for each story, in the order the input folder listed them:
+             folder name, change key, flags, rating, wordcount, dates,
+             strings by number, and chapter offsets for story.html stories
+    story table: int count, then the offset of each story
+    category lists: tags, authors, fandoms, each as a count of entries and
+             then for each entry its name and the stories in it
+    sort orders: stories by title, then by date updated (count -1 if that
+             index wasn't built)
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+
+public class ArchiveSnapshot {
+  // File name inside the cache folder
+  public final static String FILE_NAME = "archive.dat";
+  // Identifies (and versions) the file format
+  private final static String MAGIC = "CHVSNAP1";
+
+  // Category lists, in the order they're saved
+  public final static int TAGS = 0;
+  public final static int AUTHORS = 1;
+  public final static int FANDOMS = 2;
+  // Sort orders, in the order they're saved
+  public final static int BY_TITLE = 0;
+  public final static int BY_LATEST = 1;
+
+  // Story flags
+  private final static int HAS_STORY_DATA_FILE = 1;
+  private final static int HAS_DATE_UPDATED = 1 << 1;
+  private final static int HAS_DATE_PUBLISHED = 1 << 2;
+  private final static int HAS_FANDOM = 1 << 3;
+  private final static int HAS_COMPLETION_STATUS = 1 << 4;
+  private final static int HAS_AUTHOR = 1 << 5;
+  private final static int HAS_TAGS = 1 << 6;
+  private final static int IS_COMPLETE = 1 << 7;
+  // Saved in place of a missing date
+  private final static long NO_DATE = Long.MIN_VALUE;
+
+  // Everything a Story is made of once its input has been read.
+  public static class StoryState {
+    public String title;
+    public String summary;
+    public String notes;
+    public String endNotes;
+    public String[] tags;
+    public String[] fandoms;
+    public String[] authors;
+    // Lowercase tags, fandoms and authors, for lookup
+    public String[] tagSet;
+    public String[] fandomSet;
+    public String[] authorSet;
+    public String[] chapterPageNames;
+    public String[] chapterTitles;
+    public LocalDate published;
+    public LocalDate updated;
+    public int wordcount;
+    public boolean isComplete;
+    public Rating rating;
+    public boolean hasStoryDataFile;
+    public boolean hasDateUpdated;
+    public boolean hasDatePublished;
+    public boolean hasFandom;
+    public boolean hasCompletionStatus;
+    public boolean hasAuthor;
+    public boolean hasTags;
+    // Chapter text offsets in story.html, or null if the story has chapter
+    // files
+    public long[][] htmlChapterRanges;
+  }
+
+  // The mapped snapshot file
+  private MappedByteBuffer data;
+  private int stringTable;
+  private int storyTable;
+  private int categoryLists;
+  private int sortOrders;
+  // Strings decoded so far, by number
+  private String[] strings;
+  // Saved stories by folder name
+  private HashMap<String, Integer> storiesByFolder =
+    new HashMap<String, Integer>();
+  // Which saved story each restored story came from
+  private IdentityHashMap<Story, Integer> restored =
+    new IdentityHashMap<Story, Integer>();
+  // The build's stories, in input folder order, if none of them changed
+  private Story[] unchangedStories;
+
+  private ArchiveSnapshot(MappedByteBuffer data) {
+    this.data = data;
+  }
+
+  // Opens the snapshot in the given folder, if there is one and it was
+  // saved with the same settings. Returns null otherwise.
+  public static ArchiveSnapshot open(Path folder, String settings)
+    throws IOException {
+    return openFile(folder.resolve(FILE_NAME), settings);
+  }
+
+  // Opens a snapshot saved in the given file (e.g. a shard's partial; see
+  // ArchiveShards), if it exists and was saved with the same settings.
+  // Returns null otherwise.
+  public static ArchiveSnapshot openFile(Path file, String settings)
+    throws IOException {
+    if (!Files.exists(file)) {
+      return null;
+    }
+    MappedByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file,
+                                                StandardOpenOption.READ)) {
+      if (channel.size() < MAGIC.length() + 16
+          || channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    byte[] magic = new byte[MAGIC.length()];
+    data.get(0, magic);
+    if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+      return null;
+    }
+    ArchiveSnapshot snapshot = new ArchiveSnapshot(data);
+    int position = MAGIC.length();
+    snapshot.stringTable = data.getInt(position);
+    snapshot.storyTable = data.getInt(position + 4);
+    snapshot.categoryLists = data.getInt(position + 8);
+    snapshot.sortOrders = data.getInt(position + 12);
+    if (!settings.equals(snapshot.readString(position + 16))) {
+      return null;
+    }
+    snapshot.strings = new String[data.getInt(snapshot.stringTable)];
+    int storyCount = data.getInt(snapshot.storyTable);
+    for (int i = 0; i < storyCount; i++) {
+      int story = snapshot.getStoryOffset(i);
+      snapshot.storiesByFolder.put(snapshot.getString(data.getInt(story)), i);
+    }
+    return snapshot;
+  }
+
+  // Gets the change key for a story folder: a hash of the name, size and
+  // modified time of everything in it, and of its catalog entry (if any.)
+  public static long getChangeKey(StoryFolderSnapshot folder,
+                                  ArchiveCatalog.Record catalogRecord) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    ByteBuffer numbers = ByteBuffer.allocate(17);
+    for (String name : folder.getFileNames()) {
+      BasicFileAttributes attributes = folder.getAttributes(name);
+      digest.update(name.getBytes(StandardCharsets.UTF_8));
+      numbers.clear();
+      numbers.put((byte)(attributes.isDirectory() ? 1 : 0))
+             .putLong(attributes.size())
+             .putLong(attributes.lastModifiedTime().toMillis());
+      digest.update(numbers.array());
+    }
+    if (catalogRecord != null) {
+      digest.update((byte)1);
+      for (String[] field : catalogRecord.getFields()) {
+        digest.update((field[0] + "\0" + field[1] + "\0")
+                        .getBytes(StandardCharsets.UTF_8));
+      }
+      if (catalogRecord.getChapterTitles() != null) {
+        digest.update((byte)2);
+        for (String title : catalogRecord.getChapterTitles()) {
+          digest.update((title + "\0").getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+    return ByteBuffer.wrap(digest.digest()).getLong();
+  }
+
+  // Returns true if the snapshot has a story from the given folder.
+  public boolean contains(String folderName) {
+    return storiesByFolder.containsKey(folderName);
+  }
+
+  // Sets up a story for a build from the snapshot, if its folder hasn't
+  // changed since it was saved. Returns null if it has (or it's a new story.)
+  public Story restore(BuildContext context, StoryFolderSnapshot folder,
+                       long changeKey, File storiesOutputFolder) {
+    Integer index = storiesByFolder.get(folder.getName());
+    if (index == null) {
+      return null;
+    }
+    int position = getStoryOffset(index) + 4;
+    if (data.getLong(position) != changeKey) {
+      return null;
+    }
+    Story story = new Story(context, folder, storiesOutputFolder,
+                            readStory(position + 8));
+    synchronized (this) {
+      restored.put(story, index);
+    }
+    return story;
+  }
+
+  // Gets the number of stories set up from the snapshot so far.
+  public synchronized int getRestoredCount() {
+    return restored.size();
+  }
+
+  // Checks whether every story in the build (in input folder order) came
+  // from the snapshot, in the same order as before, with no stories added
+  // or removed. If so, the saved category lists and sort orders can be used.
+  public synchronized boolean isUnchanged(Story[] stories) {
+    if (stories.length != data.getInt(storyTable)) {
+      return false;
+    }
+    for (int i = 0; i < stories.length; i++) {
+      Integer index = restored.get(stories[i]);
+      if (index == null || index != i) {
+        return false;
+      }
+    }
+    unchangedStories = stories.clone();
+    return true;
+  }
+
+  // Gets one of the saved category lists (TAGS, AUTHORS or FANDOMS), with
+  // the stories in each entry in their saved order. Only for use once
+  // isUnchanged() says the stories haven't changed.
+  public HashMap<String, ArrayList<Story>> getCategoryMap(int list) {
+    int position = categoryLists;
+    for (int i = 0; i < list; i++) {
+      position = skipCategoryList(position);
+    }
+    int entries = data.getInt(position);
+    position += 4;
+    HashMap<String, ArrayList<Story>> map =
+      new HashMap<String, ArrayList<Story>>(entries * 2);
+    for (int i = 0; i < entries; i++) {
+      String name = getString(data.getInt(position));
+      int count = data.getInt(position + 4);
+      position += 8;
+      ArrayList<Story> stories = new ArrayList<Story>(count);
+      for (int j = 0; j < count; j++) {
+        stories.add(unchangedStories[data.getInt(position)]);
+        position += 4;
+      }
+      map.put(name, stories);
+    }
+    return map;
+  }
+
+  // Gets a saved sort order (BY_TITLE or BY_LATEST), or null if that order
+  // wasn't saved. Only for use once isUnchanged() says the stories haven't
+  // changed.
+  public Story[] getSortOrder(int order) {
+    int position = sortOrders;
+    for (int i = 0; i < order; i++) {
+      int count = data.getInt(position);
+      position += 4 + 4 * Math.max(count, 0);
+    }
+    int count = data.getInt(position);
+    if (count < 0) {
+      return null;
+    }
+    Story[] sorted = new Story[count];
+    for (int i = 0; i < count; i++) {
+      sorted[i] = unchangedStories[data.getInt(position + 4 + 4 * i)];
+    }
+    return sorted;
+  }
+
+  // Gets the position after a category list.
+  private int skipCategoryList(int position) {
+    int entries = data.getInt(position);
+    position += 4;
+    for (int i = 0; i < entries; i++) {
+      position += 8 + 4 * data.getInt(position + 4);
+    }
+    return position;
+  }
+
+  private int getStoryOffset(int index) {
+    return data.getInt(storyTable + 4 + 4 * index);
+  }
+
+  // Reads a saved story, starting after its folder name and change key.
+  private StoryState readStory(int position) {
+    StoryState state = new StoryState();
+    int flags = data.get(position);
+    state.hasStoryDataFile = (flags & HAS_STORY_DATA_FILE) != 0;
+    state.hasDateUpdated = (flags & HAS_DATE_UPDATED) != 0;
+    state.hasDatePublished = (flags & HAS_DATE_PUBLISHED) != 0;
+    state.hasFandom = (flags & HAS_FANDOM) != 0;
+    state.hasCompletionStatus = (flags & HAS_COMPLETION_STATUS) != 0;
+    state.hasAuthor = (flags & HAS_AUTHOR) != 0;
+    state.hasTags = (flags & HAS_TAGS) != 0;
+    state.isComplete = (flags & IS_COMPLETE) != 0;
+    state.rating = Rating.values()[data.get(position + 1)];
+    state.wordcount = data.getInt(position + 2);
+    state.published = readDate(position + 6);
+    state.updated = readDate(position + 14);
+    position += 22;
+    state.title = getString(data.getInt(position));
+    state.summary = getString(data.getInt(position + 4));
+    state.notes = getString(data.getInt(position + 8));
+    state.endNotes = getString(data.getInt(position + 12));
+    position += 16;
+    String[][] lists = new String[8][];
+    for (int i = 0; i < lists.length; i++) {
+      int count = data.getInt(position);
+      position += 4;
+      lists[i] = new String[count];
+      for (int j = 0; j < count; j++) {
+        lists[i][j] = getString(data.getInt(position));
+        position += 4;
+      }
+    }
+    state.tags = lists[0];
+    state.fandoms = lists[1];
+    state.authors = lists[2];
+    state.tagSet = lists[3];
+    state.fandomSet = lists[4];
+    state.authorSet = lists[5];
+    state.chapterPageNames = lists[6];
+    state.chapterTitles = lists[7];
+    int htmlChapters = data.getInt(position);
+    position += 4;
+    if (htmlChapters >= 0) {
+      state.htmlChapterRanges = new long[htmlChapters][];
+      for (int i = 0; i < htmlChapters; i++) {
+        state.htmlChapterRanges[i] =
+          new long[] {data.getLong(position), data.getLong(position + 8)};
+        position += 16;
+      }
+    }
+    return state;
+  }
+
+  private LocalDate readDate(int position) {
+    long day = data.getLong(position);
+    if (day == NO_DATE) {
+      return null;
+    }
+    return LocalDate.ofEpochDay(day);
+  }
+
+  // Gets a string by number, decoding it the first time it's used.
+  private String getString(int number) {
+    String s = strings[number];
+    if (s == null) {
+      s = readString(data.getInt(stringTable + 4 + 4 * number));
+      strings[number] = s;
+    }
+    return s;
+  }
+
+  private String readString(int position) {
+    byte[] bytes = new byte[data.getInt(position)];
+    data.get(position + 4, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+
+  /*** SAVING ***/
+
+  // Saves a snapshot of the archive in the given folder. stories are in
+  // input folder order, with their change keys in changeKeys. Sort orders
+  // that weren't used this build can be null.
+  public static void write(Path folder, String settings, Story[] stories,
+                           long[] changeKeys,
+                           List<HashMap<String, ArrayList<Story>>> categoryMaps,
+                           Story[] byTitle, Story[] byLatest)
+                           throws IOException {
+    Files.createDirectories(folder);
+    writeFile(folder.resolve(FILE_NAME), settings, stories, changeKeys,
+              categoryMaps, byTitle, byLatest);
+  }
+
+  // Saves a snapshot the same way, in the given file (whose folder must
+  // already exist.)
+  public static void writeFile(Path file, String settings, Story[] stories,
+    long[] changeKeys, List<HashMap<String, ArrayList<Story>>> categoryMaps,
+    Story[] byTitle, Story[] byLatest) throws IOException {
+    Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    // Number every distinct string, and every story
+    LinkedHashMap<String, Integer> stringNumbers =
+      new LinkedHashMap<String, Integer>();
+    StoryState[] states = new StoryState[stories.length];
+    IdentityHashMap<Story, Integer> storyNumbers =
+      new IdentityHashMap<Story, Integer>();
+    for (int i = 0; i < stories.length; i++) {
+      states[i] = stories[i].getState();
+      storyNumbers.put(stories[i], i);
+      numberString(stringNumbers, stories[i].getFolderName());
+      numberStrings(stringNumbers, states[i]);
+    }
+    for (HashMap<String, ArrayList<Story>> map : categoryMaps) {
+      for (String name : map.keySet()) {
+        numberString(stringNumbers, name);
+      }
+    }
+    try (FileChannel channel = FileChannel.open(tempFile,
+           StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+           StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Channels.newOutputStream(channel), 1 << 16));
+      out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+      // Section offsets are filled in at the end
+      out.write(new byte[16]);
+      writeString(out, settings);
+      // Strings
+      int[] stringOffsets = new int[stringNumbers.size()];
+      int n = 0;
+      for (String s : stringNumbers.keySet()) {
+        stringOffsets[n++] = out.size();
+        writeString(out, s);
+      }
+      int stringTable = out.size();
+      writeInts(out, stringOffsets);
+      // Stories
+      int[] storyOffsets = new int[stories.length];
+      for (int i = 0; i < stories.length; i++) {
+        storyOffsets[i] = out.size();
+        out.writeInt(stringNumbers.get(stories[i].getFolderName()));
+        out.writeLong(changeKeys[i]);
+        writeStory(out, states[i], stringNumbers);
+      }
+      int storyTable = out.size();
+      writeInts(out, storyOffsets);
+      // Category lists
+      int categoryLists = out.size();
+      for (HashMap<String, ArrayList<Story>> map : categoryMaps) {
+        out.writeInt(map.size());
+        for (Map.Entry<String, ArrayList<Story>> entry : map.entrySet()) {
+          out.writeInt(stringNumbers.get(entry.getKey()));
+          out.writeInt(entry.getValue().size());
+          for (Story story : entry.getValue()) {
+            out.writeInt(storyNumbers.get(story));
+          }
+        }
+      }
+      // Sort orders
+      int sortOrders = out.size();
+      for (Story[] order : new Story[][] {byTitle, byLatest}) {
+        if (order == null) {
+          out.writeInt(-1);
+          continue;
+        }
+        out.writeInt(order.length);
+        for (Story story : order) {
+          out.writeInt(storyNumbers.get(story));
+        }
+      }
+      out.flush();
+      if (out.size() < 0) {
+        throw new IOException("archive snapshot is too large");
+      }
+      ByteBuffer offsets = ByteBuffer.allocate(16);
+      offsets.putInt(stringTable).putInt(storyTable).putInt(categoryLists)
+             .putInt(sortOrders).flip();
+      channel.write(offsets, MAGIC.length());
+    }
+    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeStory(DataOutputStream out, StoryState state,
+                                 HashMap<String, Integer> stringNumbers)
+                                 throws IOException {
+    int flags = 0;
+    if (state.hasStoryDataFile) {
+      flags |= HAS_STORY_DATA_FILE;
+    }
+    if (state.hasDateUpdated) {
+      flags |= HAS_DATE_UPDATED;
+    }
+    if (state.hasDatePublished) {
+      flags |= HAS_DATE_PUBLISHED;
+    }
+    if (state.hasFandom) {
+      flags |= HAS_FANDOM;
+    }
+    if (state.hasCompletionStatus) {
+      flags |= HAS_COMPLETION_STATUS;
+    }
+    if (state.hasAuthor) {
+      flags |= HAS_AUTHOR;
+    }
+    if (state.hasTags) {
+      flags |= HAS_TAGS;
+    }
+    if (state.isComplete) {
+      flags |= IS_COMPLETE;
+    }
+    out.writeByte(flags);
+    out.writeByte(state.rating.ordinal());
+    out.writeInt(state.wordcount);
+    out.writeLong(state.published == null ? NO_DATE
+                                          : state.published.toEpochDay());
+    out.writeLong(state.updated == null ? NO_DATE
+                                        : state.updated.toEpochDay());
+    out.writeInt(stringNumbers.get(state.title));
+    out.writeInt(stringNumbers.get(state.summary));
+    out.writeInt(stringNumbers.get(state.notes));
+    out.writeInt(stringNumbers.get(state.endNotes));
+    for (String[] list : getLists(state)) {
+      out.writeInt(list.length);
+      for (String s : list) {
+        out.writeInt(stringNumbers.get(s));
+      }
+    }
+    if (state.htmlChapterRanges == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(state.htmlChapterRanges.length);
+      for (long[] range : state.htmlChapterRanges) {
+        out.writeLong(range[0]);
+        out.writeLong(range[1]);
+      }
+    }
+  }
+
+  // Gets a story's string lists, in the order they're saved.
+  private static String[][] getLists(StoryState state) {
+    return new String[][] {state.tags, state.fandoms, state.authors,
+                           state.tagSet, state.fandomSet, state.authorSet,
+                           state.chapterPageNames, state.chapterTitles};
+  }
+
+  private static void numberStrings(HashMap<String, Integer> stringNumbers,
+                                    StoryState state) {
+    numberString(stringNumbers, state.title);
+    numberString(stringNumbers, state.summary);
+    numberString(stringNumbers, state.notes);
+    numberString(stringNumbers, state.endNotes);
+    for (String[] list : getLists(state)) {
+      for (String s : list) {
+        numberString(stringNumbers, s);
+      }
+    }
+  }
+
+  private static void numberString(HashMap<String, Integer> stringNumbers,
+                                   String s) {
+    if (!stringNumbers.containsKey(s)) {
+      stringNumbers.put(s, stringNumbers.size());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values)
+    throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/***
+
+  Copies static files (stylesheets, images, fonts, etc) from the input folder
+  to the output folder. Files are copied byte for byte with
+  FileChannel.transferTo (or streamed straight out of the archive, for input
+  in a zip or tar), so nothing is decoded or re-encoded and binary files
+  come through intact, and copies run on a small thread pool in the
+  background while the rest of the archive is being built.
+
+  Files that are already in the output folder with the same size and
+  modification time are skipped. If only the modification time differs, the
+  contents are compared by hash before deciding to copy.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32C;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+public class AssetCopier {
+  // Files to copy, the attributes read while finding them, and their output
+  // paths (relative to the output folder, with forward slashes)
+  private ArrayList<Path> sources = new ArrayList<Path>();
+  private ArrayList<BasicFileAttributes> sourceAttributes =
+    new ArrayList<BasicFileAttributes>();
+  private ArrayList<String> targets = new ArrayList<String>();
+
+  // Running copy jobs
+  private ExecutorService pool;
+  private ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+
+  // Stats
+  private AtomicInteger copied = new AtomicInteger();
+  private AtomicInteger skipped = new AtomicInteger();
+  private AtomicInteger failed = new AtomicInteger();
+  private AtomicLong bytesCopied = new AtomicLong();
+
+  // Adds a single file to be copied to the given output path.
+  public void addFile(Path source, String targetPath) throws IOException {
+    addFile(source, Files.readAttributes(source, BasicFileAttributes.class),
+            targetPath);
+  }
+
+  private void addFile(Path source, BasicFileAttributes attributes,
+                       String targetPath) {
+    sources.add(source);
+    sourceAttributes.add(attributes);
+    targets.add(SitePackWriter.normalizePath(targetPath));
+  }
+
+  // Adds every file in the given folder whose name ends with the given
+  // extension (not recursive), to be copied into the root of the output.
+  public void addFilesEndingWith(Path folder, String extension)
+                                 throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(extension)) {
+          BasicFileAttributes attributes =
+            Files.readAttributes(file, BasicFileAttributes.class);
+          if (attributes.isRegularFile()) {
+            addFile(file, attributes, name);
+          }
+        }
+      }
+    }
+  }
+
+  // Adds every file under the given folder, recursively, to be copied to
+  // the same relative path under targetFolder in the output.
+  public void addFolder(final Path folder, final String targetFolder)
+                        throws IOException {
+    Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile()) {
+          String relative = folder.relativize(file).toString();
+          addFile(file, attrs, targetFolder + "/" + relative);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  // Gets every output folder that assets will be copied into, relative to
+  // the output folder (not including the output folder itself).
+  public TreeSet<String> getTargetFolders() {
+    TreeSet<String> folders = new TreeSet<String>();
+    for (String target : targets) {
+      int lastSlash = target.lastIndexOf('/');
+      if (lastSlash != -1) {
+        folders.add(target.substring(0, lastSlash));
+      }
+    }
+    return folders;
+  }
+
+  // Gets the number of files found to copy.
+  public int size() {
+    return sources.size();
+  }
+
+  // Starts copying everything in the background. Output folders must
+  // already exist. If sitePack isn't null, files are added to the pack
+  // instead of being copied into the output folder.
+  public void start(File outputFolder, SitePackWriter sitePack, int threads) {
+    pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    final Path outputRoot = outputFolder.toPath();
+    for (int i = 0; i < sources.size(); i++) {
+      final Path source = sources.get(i);
+      final BasicFileAttributes attributes = sourceAttributes.get(i);
+      final String target = targets.get(i);
+      jobs.add(pool.submit(new Runnable() {
+        public void run() {
+          try {
+            if (sitePack != null) {
+              sitePack.addFile(target, source);
+              copied.incrementAndGet();
+              bytesCopied.addAndGet(attributes.size());
+            } else {
+              copy(source, attributes, outputRoot.resolve(target));
+            }
+          } catch (IOException e) {
+            failed.incrementAndGet();
+            System.out.println("Error: could not copy " + source + " to "
+                               + target + ".");
+            e.printStackTrace();
+          }
+        }
+      }));
+    }
+    pool.shutdown();
+  }
+
+  // Waits for all copies started by start() to finish.
+  public void finish() {
+    if (pool == null) {
+      return;
+    }
+    for (Future<?> job : jobs) {
+      try {
+        job.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        failed.incrementAndGet();
+        e.getCause().printStackTrace();
+      }
+    }
+    jobs.clear();
+    pool = null;
+  }
+
+  // Copies one file, unless an identical copy is already there.
+  private void copy(Path source, BasicFileAttributes attributes, Path target)
+                    throws IOException {
+    FileTime sourceTime = attributes.lastModifiedTime();
+    if (isUnchanged(source, attributes, target)) {
+      skipped.incrementAndGet();
+      return;
+    }
+    try (SeekableByteChannel in = Files.newByteChannel(source);
+         FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        long transferred;
+        if (in instanceof FileChannel) {
+          transferred = ((FileChannel)in).transferTo(position, size - position,
+                                                     out);
+        } else {
+          // Inside a zip or tar; let the output channel pull from it
+          transferred = out.transferFrom(in, position, size - position);
+        }
+        if (transferred <= 0) {
+          break;  // source got shorter while copying
+        }
+        position += transferred;
+      }
+      bytesCopied.addAndGet(position);
+    }
+    // Match the source's modification time so the next build can skip it
+    Files.setLastModifiedTime(target, sourceTime);
+    copied.incrementAndGet();
+  }
+
+  // Returns true if target already has the same contents as source.
+  // Size and modification time are checked first, and only if the sizes
+  // match but the times don't are the two files actually hashed.
+  private static boolean isUnchanged(Path source,
+                                     BasicFileAttributes sourceAttributes,
+                                     Path target) throws IOException {
+    BasicFileAttributes targetAttributes;
+    try {
+      targetAttributes = Files.readAttributes(target,
+                                              BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    if (!targetAttributes.isRegularFile()
+        || targetAttributes.size() != sourceAttributes.size()) {
+      return false;
+    }
+    if (targetAttributes.lastModifiedTime()
+        .equals(sourceAttributes.lastModifiedTime())) {
+      return true;
+    }
+    if (hash(source) == hash(target)) {
+      // Same contents; just bring the time in line for next time
+      Files.setLastModifiedTime(target, sourceAttributes.lastModifiedTime());
+      return true;
+    }
+    return false;
+  }
+
+  // Gets the CRC32C hash of a file's contents.
+  public static long hash(Path file) throws IOException {
+    CRC32C hash = new CRC32C();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    try (SeekableByteChannel in = Files.newByteChannel(file)) {
+      while (in.read(buffer) != -1) {
+        buffer.flip();
+        hash.update(buffer);
+        buffer.clear();
+      }
+    }
+    return hash.getValue();
+  }
+
+  // Gets the number of files copied.
+  public int getCopiedCount() {
+    return copied.get();
+  }
+
+  // Gets the number of files skipped because they were unchanged.
+  public int getSkippedCount() {
+    return skipped.get();
+  }
+
+  // Gets the number of files that could not be copied.
+  public int getFailedCount() {
+    return failed.get();
+  }
+
+  // Gets the total number of bytes copied.
+  public long getBytesCopied() {
+    return bytesCopied.get();
+  }
+}
@@ -0,0 +1,385 @@
+/***
+
+  Builds several archives in one run, from a manifest file with one job per
+  line. Each line is written like a chivegen command line (without the
+  "chivegen" at the start), e.g.
+
+    # Main archive, and a casual HTML test copy
+    -i archives/main -o /srv/www/main
+    -i archives/test.zip -o /srv/www/test -c --skip-tags
+
+  Blank lines and lines starting with # are skipped, and arguments with
+  spaces in them can be quoted. Options given on the command line along with
+  --batch apply to every job, before the job's own options, and an input
+  folder given there (-i) is used by every job that doesn't give its own.
+  That makes it easy to build several variants of one archive, e.g. a full
+  site and a mirror with only some ratings, with its own page template,
+  labels and site path:
+
+    # chivegen -i archives/main --batch variants.txt
+    -o /srv/www/main
+    -o /srv/www/sfw -t sfw.html --labels sfw_labels.txt -url /sfw/ --only-rating G,PG,T
+
+  Jobs with the same input folder share one SharedInput, so each story is
+  parsed and each chapter converted once for all of them.
+
+  Every job runs in the same JVM, one after the other or a few at a time, so
+  the later jobs don't pay for starting up and warming up again, and
+  templates with the same text are compiled once and shared, even between
+  archives (see ContentTemplate). A job that fails is reported and the rest still run.
+  When the batch is done, a summary shows how long each job took.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class BatchBuilder {
+  // One archive to build, from one line of the manifest, and how it went
+  private static class Job {
+    final int lineNumber;
+    String inputPath = "";
+    String outputPath = "";
+    String templatePath = "";
+    boolean useConfigFile;
+    ArrayList<String> options = new ArrayList<String>();
+    // Time spent reading the config and templates, and building
+    long setupTime;
+    long buildTime;
+    BuildReport report;
+    // Why the job failed, if it did
+    String error;
+    // Input shared with the other jobs for the same input folder, if any
+    InputGroup group;
+
+    Job(int lineNumber, boolean useConfigFile) {
+      this.lineNumber = lineNumber;
+      this.useConfigFile = useConfigFile;
+    }
+
+    String getName() {
+      return outputPath;
+    }
+  }
+
+  // Jobs that read the same input folder, and the input they share.
+  private static class InputGroup {
+    final String input;
+    SharedInput shared = new SharedInput();
+    // Jobs in the group still to finish
+    AtomicInteger remaining = new AtomicInteger();
+    // Copied out of shared once every job is done, so it can be let go
+    int sharedStories;
+    int sharedChapters;
+
+    InputGroup(String input) {
+      this.input = input;
+    }
+  }
+
+  private final ArrayList<Job> jobs;
+  private final ArrayList<InputGroup> groups = new ArrayList<InputGroup>();
+  // Number of jobs to run at once
+  private final int threads;
+  private final Verbosity verbosity;
+
+  private BatchBuilder(ArrayList<Job> jobs, int threads, Verbosity verbosity) {
+    this.jobs = jobs;
+    this.threads = Math.max(1, threads);
+    this.verbosity = verbosity;
+    groupJobsByInput();
+  }
+
+  // Gives every set of jobs with the same input folder a SharedInput.
+  private void groupJobsByInput() {
+    LinkedHashMap<String, ArrayList<Job>> byInput =
+      new LinkedHashMap<String, ArrayList<Job>>();
+    for (Job job : jobs) {
+      String input = Paths.get(job.inputPath).toAbsolutePath().normalize()
+                          .toString();
+      byInput.computeIfAbsent(input, key -> new ArrayList<Job>()).add(job);
+    }
+    for (Map.Entry<String, ArrayList<Job>> entry : byInput.entrySet()) {
+      if (entry.getValue().size() < 2) {
+        continue;
+      }
+      InputGroup group = new InputGroup(entry.getKey());
+      group.remaining.set(entry.getValue().size());
+      for (Job job : entry.getValue()) {
+        job.group = group;
+      }
+      groups.add(group);
+    }
+  }
+
+  // Reads a batch manifest. sharedOptions are added to every job ahead of
+  // its own options, and jobs without an input folder use defaultInput (if
+  // it isn't ""). Returns null (after printing why) if the manifest
+  // can't be read, or any line is missing its input or output folder, so
+  // that nothing is built from a manifest with mistakes in it.
+  public static BatchBuilder read(Path manifest, String defaultInput,
+                                  List<String> sharedOptions,
+                                  boolean useConfigFile, int threads,
+                                  Verbosity verbosity) {
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      System.out.println("Error: could not read batch manifest '" + manifest
+                         + "'.");
+      return null;
+    }
+    ArrayList<Job> jobs = new ArrayList<Job>();
+    boolean valid = true;
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      Job job = parseJob(i + 1, tokenize(line), defaultInput, sharedOptions,
+                         useConfigFile);
+      if (job == null) {
+        valid = false;
+      } else {
+        jobs.add(job);
+      }
+    }
+    if (!valid) {
+      return null;
+    }
+    if (jobs.isEmpty()) {
+      System.out.println("Error: batch manifest '" + manifest
+                         + "' has no jobs in it.");
+      return null;
+    }
+    return new BatchBuilder(jobs, threads, verbosity);
+  }
+
+  // Splits a manifest line into arguments at spaces, keeping anything in
+  // double or single quotes together.
+  private static ArrayList<String> tokenize(String line) {
+    ArrayList<String> tokens = new ArrayList<String>();
+    StringBuilder current = new StringBuilder();
+    boolean inToken = false;
+    char quote = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        } else {
+          current.append(c);
+        }
+      } else if (c == '"' || c == '\'') {
+        quote = c;
+        inToken = true;
+      } else if (Character.isWhitespace(c)) {
+        if (inToken) {
+          tokens.add(current.toString());
+          current.setLength(0);
+          inToken = false;
+        }
+      } else {
+        current.append(c);
+        inToken = true;
+      }
+    }
+    if (inToken) {
+      tokens.add(current.toString());
+    }
+    return tokens;
+  }
+
+  // Sorts a manifest line's arguments into folders and other options, the
+  // same way ChiveGenMain.parseFolderArgs() does. Returns null if the line
+  // doesn't give both an input and an output folder.
+  private static Job parseJob(int lineNumber, ArrayList<String> args,
+                              String defaultInput, List<String> sharedOptions,
+                              boolean useConfigFile) {
+    Job job = new Job(lineNumber, useConfigFile);
+    job.inputPath = defaultInput;
+    job.options.addAll(sharedOptions);
+    for (int i = 0; i < args.size(); i++) {
+      String arg = args.get(i);
+      boolean hasNext = i < args.size() - 1;
+      if ((arg.equals("-i") || arg.equals("--input")) && hasNext) {
+        job.inputPath = args.get(++i);
+      } else if ((arg.equals("-o") || arg.equals("--output")) && hasNext) {
+        job.outputPath = args.get(++i);
+      } else if ((arg.equals("-t") || arg.equals("--template")) && hasNext) {
+        job.templatePath = args.get(++i);
+      } else if (arg.equals("--no-config")) {
+        job.useConfigFile = false;
+      } else {
+        job.options.add(arg);
+      }
+    }
+    if (job.inputPath.isEmpty() || job.outputPath.isEmpty()) {
+      System.out.println("Error: batch manifest line " + lineNumber
+                         + " needs both an input (-i) and an output (-o) "
+                         + "folder.");
+      return null;
+    }
+    return job;
+  }
+
+  // Runs every job, then prints the summary. Returns true if every job
+  // built completely.
+  public boolean run() {
+    long startTime = System.currentTimeMillis();
+    int compiledBefore = ContentTemplate.getCompiledCount();
+    int sharedBefore = ContentTemplate.getSharedCount();
+    if (threads == 1) {
+      for (Job job : jobs) {
+        runJob(job);
+      }
+    } else {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      ArrayList<Future<?>> results = new ArrayList<Future<?>>();
+      for (Job job : jobs) {
+        results.add(pool.submit(() -> runJob(job)));
+      }
+      pool.shutdown();
+      for (Future<?> result : results) {
+        try {
+          GenUtils.getResult(result);
+        } catch (IOException e) {
+          // runJob() records its own failures
+        }
+      }
+    }
+    long totalTime = System.currentTimeMillis() - startTime;
+    printSummary(totalTime, ContentTemplate.getCompiledCount() - compiledBefore,
+                 ContentTemplate.getSharedCount() - sharedBefore);
+    for (Job job : jobs) {
+      if (job.report == null || !job.report.isComplete()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Builds one job's archive. Anything that goes wrong is recorded in the
+  // job, rather than stopping the rest of the batch.
+  private void runJob(Job job) {
+    ChiveGenMain.printStatus("Batch job " + job.getName() + " (line "
+                             + job.lineNumber + ")...", Verbosity.NORMAL);
+    long startTime = System.currentTimeMillis();
+    FileSystem archive = null;
+    try {
+      Path input = Paths.get(job.inputPath);
+      if (!Files.exists(input)) {
+        job.error = "input folder does not exist";
+        return;
+      } else if (!Files.isDirectory(input)) {
+        if (!ChiveGenMain.isArchiveName(job.inputPath)) {
+          job.error = "input folder is actually a file";
+          return;
+        }
+        archive = ChiveGenMain.openArchive(input);
+        input = ChiveGenMain.findArchiveInput(archive);
+      }
+      Path template = null;
+      if (!job.templatePath.isEmpty()) {
+        template = Paths.get(job.templatePath);
+        if (!job.templatePath.endsWith(".html")) {
+          job.error = "page template must be an .html file";
+          return;
+        }
+      } else if (!Files.exists(input.resolve("template.html"))) {
+        job.error = "couldn't find template.html in the input folder";
+        return;
+      }
+      if (template != null && (!Files.exists(template)
+                               || Files.isDirectory(template))) {
+        job.error = "template file does not exist";
+        return;
+      }
+      FicArchiveBuilder builder =
+        FicArchiveBuilder.configure(input, new File(job.outputPath), template,
+                                    job.useConfigFile,
+                                    job.options.toArray(new String[0]),
+                                    verbosity);
+      if (job.group != null) {
+        builder.setSharedInput(job.group.shared);
+      }
+      long setupEnd = System.currentTimeMillis();
+      job.setupTime = setupEnd - startTime;
+      job.report = builder.build();
+      job.buildTime = System.currentTimeMillis() - setupEnd;
+    } catch (IOException e) {
+      job.error = "could not open input archive (" + e.getMessage() + ")";
+    } catch (RuntimeException e) {
+      job.error = e.toString();
+      if (verbosity.ordinal() >= ChiveGenMain.VERBOSE) {
+        e.printStackTrace();
+      }
+    } finally {
+      if (job.group != null) {
+        finishGroupJob(job.group);
+      }
+      if (archive != null) {
+        try {
+          archive.close();
+        } catch (IOException e) {
+          // Nothing was written to it, so there's nothing to lose
+        }
+      }
+    }
+  }
+
+  // Notes that one of a group's jobs is done. Once they all are, the shared
+  // input is let go, since nothing else will use it.
+  private void finishGroupJob(InputGroup group) {
+    if (group.remaining.decrementAndGet() == 0) {
+      group.sharedStories = group.shared.getSharedStoryCount();
+      group.sharedChapters = group.shared.getSharedChapterCount();
+      group.shared = null;
+    }
+  }
+
+  // Prints how each job went, and the totals for the batch.
+  private void printSummary(long totalTime, int compiled, int shared) {
+    long jobTime = 0;
+    int failed = 0;
+    StringBuilder lines = new StringBuilder();
+    for (Job job : jobs) {
+      lines.append("\n  ").append(job.getName()).append(": ");
+      if (job.report == null) {
+        failed++;
+        lines.append("FAILED (").append(job.error == null ? "unknown error"
+                                                          : job.error)
+             .append(")");
+        continue;
+      }
+      jobTime += job.setupTime + job.buildTime;
+      lines.append(job.report.getStoryCount()).append(" story folder[s], ")
+           .append(job.report.getPageCount()).append(" page[s], setup ")
+           .append(job.setupTime).append(" ms, build ")
+           .append(job.buildTime).append(" ms");
+      if (!job.report.isComplete()) {
+        failed++;
+        lines.append(" (incomplete)");
+      }
+    }
+    ChiveGenMain.printStatus("\nBatch of " + jobs.size() + " job[s] done in "
+                             + totalTime + " ms, " + threads + " at a time ("
+                             + jobTime + " ms of job time"
+                             + (failed > 0 ? ", " + failed + " failed" : "")
+                             + "):" + lines, Verbosity.BRIEF);
+    ChiveGenMain.printStatus("Templates: " + compiled + " compiled, " + shared
+                             + " reused (same text as one already compiled.)",
+                             Verbosity.NORMAL);
+    for (InputGroup group : groups) {
+      ChiveGenMain.printStatus("Shared input " + group.input + ": "
+                               + group.sharedStories + " parsed stor[y/ies] "
+                               + "and " + group.sharedChapters
+                               + " chapter bod[y/ies] reused.",
+                               Verbosity.NORMAL);
+    }
+  }
+}
@@ -0,0 +1,300 @@
+/***
+
+  The progress of a build, saved in the cache folder as the build goes, so
+  that a build that was stopped part way (killed, out of memory, restarted
+  by a deploy) can be picked up again with --resume instead of starting
+  over.
+
+  Two kinds of work are recorded once they're finished:
+    - A story's pages (every chapter and its table of contents), with the
+      change key of its story folder (see ArchiveSnapshot.getChangeKey()).
+    - A paginated story index (by_title, latest, or one fandom, author or
+      tag), with a fingerprint of the stories it lists, in order, and
+      their change keys.
+  A page only counts once it has been written and closed, so a story is
+  recorded by the page pipeline's writer that writes its last page, not
+  when its pages are queued. A resumed build skips a story or index only if
+  its record matches what the build would write now (same change key, or
+  same fingerprint) and every one of its pages is still in the output
+  folder. Anything else is built again. A record from a story that changed
+  since is replaced by the new one when it's rebuilt.
+
+  File layout (checkpoint.txt, or checkpoint-shard-K-of-N.txt for a shard):
+    CHVCKPT1
+    SHA-256 of the build settings, templates and output folder
+    story<TAB>change key<TAB>story folder name
+    pages<TAB>fingerprint<TAB>index path (e.g. "tags/fluff")
+    ...
+  Keys are in hex. Each record is written out as soon as the work is done.
+  A line cut off by the program stopping mid-write is ignored.
+
+  The checkpoint is started over by every build that isn't resumed, and
+  deleted once a build completes.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class BuildCheckpoint {
+  // Identifies (and versions) the file format
+  private final static String MAGIC = "CHVCKPT1";
+  private final static String STORY = "story";
+  private final static String PAGES = "pages";
+
+  private Path file;
+  private Writer out;
+  // Finished work from the build being resumed, by record type and name
+  private HashMap<String, Long> done = new HashMap<String, Long>();
+  // Change keys of this build's stories, for fingerprinting indexes
+  private IdentityHashMap<Story, Long> changeKeys =
+    new IdentityHashMap<Story, Long>();
+  // For the summary at the end of the build
+  private AtomicInteger skippedStories = new AtomicInteger();
+  private AtomicInteger skippedIndexes = new AtomicInteger();
+  private boolean failed = false;
+
+  private BuildCheckpoint(Path file) {
+    this.file = file;
+  }
+
+  // Gets the name of the checkpoint file for a build: one per shard, so
+  // shards sharing a cache folder don't overwrite each other's progress.
+  public static String getFileName(int shard, int shardCount) {
+    if (shardCount > 0) {
+      return "checkpoint-shard-" + shard + "-of-" + shardCount + ".txt";
+    }
+    return "checkpoint.txt";
+  }
+
+  // Starts recording a build's progress in the given file. If resume is
+  // true, the finished work in the file is kept (and can be skipped) as
+  // long as it was saved with the same settings. Otherwise, or if the
+  // settings changed, the checkpoint is started over. Says what it did with
+  // the old checkpoint unless brief is true.
+  public static BuildCheckpoint open(Path file, String settings,
+                                     boolean resume, boolean brief)
+    throws IOException {
+    BuildCheckpoint checkpoint = new BuildCheckpoint(file);
+    String settingsHash = toHex(hash(settings));
+    boolean resumed = false;
+    if (resume) {
+      if (!Files.exists(file)) {
+        System.out.println("No checkpoint found at " + file
+                           + ". Building everything.");
+      }
+      else if (!checkpoint.read(settingsHash)) {
+        System.out.println("Settings or templates have changed since the "
+                           + "checkpoint was saved. Building everything.");
+      }
+      else {
+        resumed = true;
+        if (!brief) {
+          System.out.println("Resuming from " + file + " ("
+                             + checkpoint.done.size()
+                             + " story folder[s] and index[es] "
+                             + "finished.)");
+        }
+      }
+    }
+    Files.createDirectories(file.getParent());
+    if (resumed) {
+      checkpoint.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                               StandardOpenOption.APPEND);
+      // Start on a new line, in case the last one was cut off
+      checkpoint.out.write('\n');
+    }
+    else {
+      checkpoint.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+      checkpoint.out.write(MAGIC + "\n" + settingsHash + "\n");
+    }
+    checkpoint.out.flush();
+    return checkpoint;
+  }
+
+  // Reads the finished work from the checkpoint file. Returns false if it
+  // was saved with different settings, or isn't a checkpoint.
+  private boolean read(String settingsHash) throws IOException {
+    String text = new String(Files.readAllBytes(file),
+                             StandardCharsets.UTF_8);
+    // Anything after the last line break was cut off part way
+    String[] lines = text.substring(0, text.lastIndexOf('\n') + 1)
+                         .split("\n");
+    if (lines.length < 2 || !lines[0].equals(MAGIC)
+        || !lines[1].equals(settingsHash)) {
+      return false;
+    }
+    for (int i = 2; i < lines.length; i++) {
+      String[] fields = lines[i].split("\t", 3);
+      if (fields.length < 3
+          || !(fields[0].equals(STORY) || fields[0].equals(PAGES))) {
+        continue;
+      }
+      try {
+        done.put(fields[0] + "\t" + fields[2],
+                 Long.parseUnsignedLong(fields[1], 16));
+      } catch (NumberFormatException e) {
+        // Not a record
+      }
+    }
+    return true;
+  }
+
+  // Sets the change keys of this build's stories, in the same order as the
+  // stories.
+  public void setChangeKeys(Story[] stories, long[] keys) {
+    changeKeys.clear();
+    for (int i = 0; i < stories.length; i++) {
+      changeKeys.put(stories[i], keys[i]);
+    }
+  }
+
+  // Returns true if the resumed build already wrote every page of the story
+  // with this change key, and they're all still there.
+  public boolean isStoryDone(String folderName, long changeKey,
+                             List<PagePipeline.PageJob> pages) {
+    Long key = done.get(STORY + "\t" + folderName);
+    if (key == null || key != changeKey) {
+      return false;
+    }
+    for (PagePipeline.PageJob page : pages) {
+      if (!page.getOutputFile().exists()) {
+        return false;
+      }
+    }
+    skippedStories.incrementAndGet();
+    return true;
+  }
+
+  // Wraps a story's page jobs so the story is recorded once the last of
+  // its pages has been written. If any page isn't written, it isn't
+  // recorded.
+  public List<PagePipeline.PageJob> track(String folderName, long changeKey,
+                                          List<PagePipeline.PageJob> pages) {
+    AtomicInteger remaining = new AtomicInteger(pages.size());
+    ArrayList<PagePipeline.PageJob> tracked =
+      new ArrayList<PagePipeline.PageJob>(pages.size());
+    for (PagePipeline.PageJob page : pages) {
+      tracked.add(new PagePipeline.PageJob() {
+        public void read() {
+          page.read();
+        }
+
+        public String render() {
+          return page.render();
+        }
+
+        public File getOutputFile() {
+          return page.getOutputFile();
+        }
+
+        public void written() {
+          page.written();
+          if (remaining.decrementAndGet() == 0) {
+            record(STORY, folderName, changeKey);
+          }
+        }
+      });
+    }
+    return tracked;
+  }
+
+  // Gets the fingerprint of a paginated index: its label and the stories
+  // it lists, in order, with their change keys.
+  public long getFingerprint(String label, List<Story> stories) {
+    StringBuilder listing = new StringBuilder(label).append('\n');
+    for (Story story : stories) {
+      listing.append(story.getFolderName()).append('\t')
+             .append(Long.toHexString(changeKeys.getOrDefault(story, 0L)))
+             .append('\n');
+    }
+    byte[] digest = hash(listing.toString());
+    long fingerprint = 0;
+    for (int i = 0; i < 8; i++) {
+      fingerprint = (fingerprint << 8) | (digest[i] & 0xff);
+    }
+    return fingerprint;
+  }
+
+  // Returns true if the resumed build already wrote every page of the index
+  // at path with this fingerprint, and they're all still there.
+  public boolean areIndexPagesDone(String path, long fingerprint,
+                                   List<File> pages) {
+    Long key = done.get(PAGES + "\t" + path);
+    if (key == null || key != fingerprint) {
+      return false;
+    }
+    for (File page : pages) {
+      if (!page.exists()) {
+        return false;
+      }
+    }
+    skippedIndexes.incrementAndGet();
+    return true;
+  }
+
+  // Records that every page of the index at path has been written.
+  public void indexPagesDone(String path, long fingerprint) {
+    record(PAGES, path, fingerprint);
+  }
+
+  // Writes out a record straight away. If it can't be written, the build
+  // goes on, and a resumed build just does that work again.
+  private synchronized void record(String type, String name, long key) {
+    if (failed) {
+      return;
+    }
+    try {
+      out.write(type + "\t" + Long.toHexString(key) + "\t" + name + "\n");
+      out.flush();
+    } catch (IOException e) {
+      failed = true;
+      System.out.println("Warning: could not save the build's progress in "
+                         + file + ". It can't be resumed past this point.");
+    }
+  }
+
+  // Gets a summary of the work skipped, or null if nothing was.
+  public String getSummary() {
+    if (skippedStories.get() == 0 && skippedIndexes.get() == 0) {
+      return null;
+    }
+    return "Resumed build: skipped " + skippedStories.get()
+           + " story folder[s] and " + skippedIndexes.get() + " index[es] "
+           + "already built.";
+  }
+
+  // Stops recording. A completed build deletes the checkpoint, since
+  // there's nothing left to resume.
+  public synchronized void close(boolean complete) throws IOException {
+    try {
+      out.close();
+    } finally {
+      if (complete) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private static byte[] hash(String text) {
+    try {
+      return MessageDigest.getInstance("SHA-256")
+                          .digest(text.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
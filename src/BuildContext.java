@@ -0,0 +1,1743 @@
+/***
+
+  One build of an archive: everything that belongs to a single run rather
+  than to the archive's settings. The settings, labels and templates come
+  from a FicArchiveBuilder, which doesn't change once building starts;
+  the stories read, the category maps, the output layout, the site pack and
+  the caches opened for the run all live here, and are thrown away when the
+  build is done. Stories and pages are handed the context of the build
+  they're part of, so two builds in the same program never share any of it.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.file.*;
+
+public class BuildContext {
+  // The settings, labels and templates this build uses
+  private final FicArchiveBuilder config;
+  // Input folder (which may be inside a zip or tar) and output folder
+  private final Path input;
+  private final File output;
+  // Settings used all over the build, from the config
+  private final boolean verbose;
+  private final boolean brief;
+  private final String cacheDir;
+  private final String sitePath;
+  private final String paginationDivider;
+  private final int maxItemsPerPage;
+  private final String assetFolderName;
+
+  /***
+    Array of all stories in archive
+  ***/
+  private Story[] stories = new Story[0];
+
+  /***
+    Used to create pages for works by tags, fandom, and author.
+  ***/
+  private HashMap<String, ArrayList<Story>> archiveTagMap;
+  private HashMap<String, ArrayList<Story>> archiveFandomMap;
+  private HashMap<String, ArrayList<Story>> archiveAuthorMap;
+
+  // The pack being written to during a build, if the config writes one
+  private SitePackWriter sitePack;
+  // Decides where everything goes in the output folder (see OutputLayout)
+  private OutputLayout outputLayout;
+  // Tag links, which depend on the site path and output layout
+  private FragmentCache fragmentCache;
+  // The catalog read for this build, or null if there isn't one
+  private ArchiveCatalog archiveCatalog;
+  // The chapter body cache for this build, or null if there isn't one
+  private ChapterBodyCache chapterBodyCache;
+  // The page model being saved in the cache folder during this build (see
+  // PageModel), or null if there's no cache folder
+  private PageModel pageModel;
+  // The archive snapshot saved by the last build (see ArchiveSnapshot), or
+  // null if there isn't one that can be used
+  private ArchiveSnapshot archiveSnapshot;
+  // Change keys of the story folders read this build, in input folder order,
+  // for saving in the next archive snapshot
+  private long[] storyChangeKeys;
+  // The order to read and build stories in, as indexes into the stories
+  // array (before it's sorted): largest story folders first, so the biggest
+  // stories start early instead of being the last thing still running
+  private int[] storyBuildOrder;
+  // Number of pages written so far
+  private AtomicInteger pageCount = new AtomicInteger();
+  // Set once build() is called, since a context is only built once
+  private boolean started = false;
+  // Set once every page has been built, so an unfinished page model isn't
+  // kept
+  private boolean complete = false;
+  // Set if the pages were rebuilt from the saved page model
+  // (--templates-only) instead of reading the stories
+  private boolean rebuiltFromModel = false;
+  // Set for a preview (see preview()), where nothing is written: pages are
+  // kept in memory, and story pages aren't built until they're asked for
+  private boolean previewing = false;
+  // Set if this build is one shard of the story folders (see ArchiveShards)
+  private final boolean sharding;
+  // Set if this build merges the shards' partials
+  private final boolean merging;
+  // Every shard's partial, by shard number - 1, during a merge
+  private ArchiveSnapshot[] shardPartials;
+  // Stories set up from the shard partials during a merge, whose pages were
+  // already built by their shard
+  private Set<Story> mergedStories;
+  // The progress of this build, saved in the cache folder so it can be
+  // resumed (see BuildCheckpoint), or null if there's no cache folder
+  private BuildCheckpoint checkpoint;
+  // Pages built during a preview, by path in the output folder
+  private ConcurrentHashMap<String, String> previewPages;
+  // Story pages of a preview, by path in the output folder
+  private HashMap<String, PagePipeline.PageJob> previewJobs;
+  // Set by stories as they're read, from any of the reader threads
+  private volatile boolean archiveHasAuthors = false; // true only if at least one story has an author
+  private volatile boolean archiveHasTags = false; // true only if at least one story has tags
+
+  // Sets up a build with the given config. Nothing is read or written until
+  // build() is called.
+  public BuildContext(FicArchiveBuilder config) {
+    this.config = config;
+    input = config.getInput();
+    output = config.getOutput();
+    verbose = config.isVerbose();
+    brief = config.isBrief();
+    cacheDir = config.getCacheDir();
+    sitePath = config.getSitePath();
+    paginationDivider = config.getPaginationDivider();
+    maxItemsPerPage = config.getMaxItemsPerPage();
+    assetFolderName = config.getAssetFolderName();
+    sharding = config.getShardCount() > 0;
+    merging = config.isMergeShards();
+  }
+
+  // Gets the config this build uses
+  public FicArchiveBuilder getConfig() {
+    return config;
+  }
+
+  // Reads the archive catalog, if there is one. Returns null if there isn't
+  // one or it couldn't be read.
+  private ArchiveCatalog readCatalog() {
+    Path catalogFile;
+    if (config.getCatalogPath().equals("")) {
+      catalogFile = ArchiveCatalog.findIn(input);
+      if (catalogFile == null) {
+        return null;
+      }
+    }
+    else {
+      if (new File(config.getCatalogPath()).isAbsolute()) {
+        catalogFile = Paths.get(config.getCatalogPath());
+      }
+      else {
+        catalogFile = input.resolve(config.getCatalogPath());
+      }
+      if (!Files.isRegularFile(catalogFile)) {
+        System.out.println("Error: catalog file " + catalogFile
+                           + " not found. Using storyinfo.txt files only.");
+        return null;
+      }
+    }
+    try {
+      ArchiveCatalog catalog =
+        ArchiveCatalog.read(catalogFile,
+                            FicArchiveBuilder.getValidStoryMetadataSet());
+      if (!brief) {
+        System.out.println("Read " + catalog.size() + " stories from "
+                           + catalog.getFileName() + ".");
+      }
+      if (!catalog.getUnknownFields().isEmpty()) {
+        System.out.println("Warning: ignoring unknown fields in "
+                           + catalog.getFileName() + ": "
+                           + String.join(", ", catalog.getUnknownFields()));
+      }
+      return catalog;
+    } catch (IOException e) {
+      System.out.println("Error: could not read catalog file "
+                         + catalogFile);
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  // Warns about catalog entries that don't match any story folder, since
+  // they're most likely typos.
+  private void checkCatalogFolders(StoryFolderSnapshot[] storyFolders) {
+    HashSet<String> folderNames = new HashSet<String>();
+    for (StoryFolderSnapshot folder : storyFolders) {
+      folderNames.add(folder.getName());
+    }
+    for (String catalogFolder : new TreeSet<String>(archiveCatalog.getFolderNames())) {
+      if (!folderNames.contains(catalogFolder)) {
+        System.out.println("Warning: " + archiveCatalog.getFileName()
+                           + " lists story folder '" + catalogFolder
+                           + "', which doesn't exist.");
+      }
+    }
+  }
+
+
+  /*** ARCHIVE BUILD FUNCTION ***/
+
+  // Builds the archive, and reports how it went. A context can only be
+  // built once.
+  public BuildReport build() {
+    if (started) {
+      throw new IllegalStateException("this build has already been run");
+    }
+    started = true;
+    long startTime = System.currentTimeMillis();
+    long storyTime = buildArchive();
+    return new BuildReport(output, stories.length, pageCount.get(), storyTime,
+                           System.currentTimeMillis() - startTime, complete,
+                           rebuiltFromModel);
+  }
+
+  // Reads the archive for a preview. Index, category and home pages are
+  // built and kept in memory, and story pages are set up to be built when
+  // getPreviewPage() asks for them. Nothing is written. A context can only
+  // be built or previewed once.
+  public void preview() {
+    if (started) {
+      throw new IllegalStateException("this build has already been run");
+    }
+    started = true;
+    previewing = true;
+    previewPages = new ConcurrentHashMap<String, String>();
+    previewJobs = new HashMap<String, PagePipeline.PageJob>();
+    buildArchive();
+  }
+
+  // Gets a page of a preview by its path in the output folder (e.g.
+  // "stories/my-story/ch01.html"), building it first if it's a story page.
+  // Returns null if there's no such page.
+  public String getPreviewPage(String path) {
+    String page = previewPages.get(path);
+    if (page != null) {
+      return page;
+    }
+    PagePipeline.PageJob job = previewJobs.get(path);
+    if (job == null) {
+      return null;
+    }
+    // A job holds what it read until it's rendered, so only one request at
+    // a time can build the same page
+    synchronized (job) {
+      job.read();
+      return job.render();
+    }
+  }
+
+  // Gets the number of pages in a preview, built or not.
+  public int getPreviewPageCount() {
+    return previewPages.size() + previewJobs.size();
+  }
+
+  // Gets the number of stories read.
+  public int getStoryCount() {
+    return stories.length;
+  }
+
+  // Builds the archive and returns the time it took to generate stories.
+  private long buildArchive() {
+    // Keep track of the time taken to build stories, specifically.
+    long storyStartTime = 0;
+    long storyEndTime = 0;
+    // Copies stylesheets and other static files in the background
+    AssetCopier assetCopier = null;
+    // If the output directory doesn't exist, create it
+    if (!previewing && !output.exists()) {
+      output.mkdirs();
+    }
+    // Open the site pack, if we're writing one
+    if (config.usePackOutput() && (sharding || merging)) {
+      System.out.println("Warning: shard builds can't write a site pack. "
+                         + "Writing pages as files instead.");
+    }
+    else if (config.usePackOutput() && !previewing) {
+      try {
+        sitePack = new SitePackWriter(output);
+      } catch (IOException e) {
+        System.out.println("Error: could not create site pack in "
+                           + output.getPath() + ". Writing pages as files "
+                           + "instead.");
+        e.printStackTrace();
+        sitePack = null;
+      }
+    }
+    outputLayout = new OutputLayout(output, config.getStoryDirectoryName(),
+                                    config.getHashFanOutDigits(),
+                                    paginationDivider,
+                                    sitePack == null && !previewing);
+    // Tag links depend on the site path and layout
+    fragmentCache = new FragmentCache(sitePath, outputLayout,
+                                      config.getTagTemplate());
+    if (!previewing && !sharding && !merging && config.isTemplatesOnly()
+        && canRebuildTemplatesOnly()) {
+      rebuiltFromModel = true;
+      return rebuildTemplatesOnly();
+    }
+    if (!previewing) {
+      chapterBodyCache = openChapterBodyCache();
+      checkpoint = openCheckpoint();
+      // Shard builds each write only some of the pages, so none of them has
+      // the whole page model, and neither does a resumed build
+      if (!sharding && !merging && !config.isResume()) {
+        pageModel = openPageModel();
+      }
+    }
+    try {
+      // Check again that the template file exists, just in case.
+      if (!Files.exists(config.getTemplateFile())) {
+        throw new FileNotFoundException();
+      }
+      else {
+        if (verbose) {
+          System.out.println("Looking for folders in '" + input
+                             + "'...");
+        }
+        /***
+        ChiveGenMain.printStatus("Looking for folders in '" + input
+                                 + "'...", Verbosity.VERBOSE);
+                                 ***/
+        // A merge can't go ahead without every shard's partial
+        if (merging) {
+          shardPartials = ArchiveShards.openPartials(config);
+          if (shardPartials == null) {
+            return 0;
+          }
+          mergedStories = ConcurrentHashMap.newKeySet();
+        }
+        // Get all the direct subfolders of the input folder (other than the
+        // asset folder). These are our story folders. Each one is listed
+        // once up front, in parallel on the I/O executor, and the Story
+        // constructors use those listings instead of checking for files one
+        // by one.
+        archiveCatalog = readCatalog();
+        archiveSnapshot = openArchiveSnapshot();
+        ExecutorService inputReaders =
+          GenUtils.newIOExecutor(config.getIOThreads());
+        StoryFolderSnapshot[] storyFolders;
+        try {
+          storyFolders = StoryFolderSnapshot.takeAll(input,
+                                                     assetFolderName,
+                                                     inputReaders);
+        } catch (IOException e) {
+          System.out.println("Error: something went wrong looking for story "
+                             + "folders in " + input);
+          e.printStackTrace();
+          storyFolders = new StoryFolderSnapshot[0];
+        } finally {
+          inputReaders.shutdown();
+        }
+        if (storyFolders.length == 0) {
+          System.out.println("Warning: no story folders found.");
+        }
+        else {
+          if (!brief) {
+            System.out.print("Found " + storyFolders.length
+                               + " subfolders in input directory: ");
+            for (int i = 0; i < storyFolders.length - 1; ++i) {
+              System.out.print(storyFolders[i].getName() + ", ");
+            }
+            System.out.println(storyFolders[storyFolders.length - 1].getName());
+          }
+        }
+        if (archiveCatalog != null) {
+          checkCatalogFolders(storyFolders);
+        }
+        if (sharding) {
+          storyFolders = ArchiveShards.select(storyFolders, config.getShard(),
+                                              config.getShardCount());
+          if (!brief) {
+            System.out.println("Shard " + config.getShard() + "/"
+                               + config.getShardCount() + ": "
+                               + storyFolders.length + " story folder[s].");
+          }
+        }
+        // Initialize maps for tags, authors, fandoms
+        archiveTagMap = new HashMap<String, ArrayList<Story>>();
+        archiveAuthorMap = new HashMap<String, ArrayList<Story>>();
+        archiveFandomMap = new HashMap<String, ArrayList<Story>>();
+        // Create initial story array and output folder
+        stories = new Story[storyFolders.length];
+        File storiesOutputFolder =
+          new File(output, config.getStoryDirectoryName());
+        storyStartTime = System.currentTimeMillis();
+        storyBuildOrder = getLargestFirstOrder(storyFolders);
+        // Read in all the stories first, so we know every folder the build
+        // will need before writing anything. Parsing metadata and counting
+        // words is mostly CPU work, so it gets a thread per core rather than
+        // the I/O executor, which would run far more at once than there are
+        // cores to run them.
+        ExecutorService storyReaders = Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors());
+        readStories(storyFolders, storiesOutputFolder, storyReaders);
+        storyReaders.shutdown();
+        // A shard's partial has every story it read, since the merge applies
+        // the story filter itself
+        Story[] shardStories = null;
+        long[] shardChangeKeys = null;
+        if (sharding) {
+          shardStories = stories.clone();
+          shardChangeKeys = storyChangeKeys.clone();
+        }
+        else if (merging && !brief) {
+          System.out.println("Merge: " + mergedStories.size() + " of "
+                             + stories.length + " story folder[s] built by "
+                             + shardPartials.length + " shard[s].");
+        }
+        if (!config.getStoryFilter().isEmpty()) {
+          filterStories();
+        }
+        // Keep the stories in input folder order for the archive snapshot,
+        // since the stories array gets sorted
+        Story[] listedStories = stories.clone();
+        if (checkpoint != null) {
+          checkpoint.setChangeKeys(stories, storyChangeKeys);
+        }
+        // If no story has changed since the last build, its category lists
+        // and sort orders can be reused as well
+        boolean unchanged = archiveSnapshot != null
+                            && archiveSnapshot.isUnchanged(stories);
+        if (archiveSnapshot != null && !brief) {
+          int restored = archiveSnapshot.getRestoredCount();
+          System.out.println("Archive snapshot: " + restored
+                             + " story folder[s] unchanged, "
+                             + (stories.length - restored)
+                             + " read from their folders.");
+        }
+        if (unchanged) {
+          archiveTagMap = archiveSnapshot.getCategoryMap(ArchiveSnapshot.TAGS);
+          archiveAuthorMap =
+            archiveSnapshot.getCategoryMap(ArchiveSnapshot.AUTHORS);
+          archiveFandomMap =
+            archiveSnapshot.getCategoryMap(ArchiveSnapshot.FANDOMS);
+        }
+        else {
+          for (int i = 0; i < stories.length; i++) {
+            addToStoryMap(archiveTagMap, stories[i].getStoryTags(), stories[i]);
+            addToStoryMap(archiveAuthorMap, stories[i].getAuthors(), stories[i]);
+            addToStoryMap(archiveFandomMap, stories[i].getFandoms(), stories[i]);
+          }
+        }
+        if (previewing) {
+          // Story pages are only built when they're asked for
+          for (int i : storyBuildOrder) {
+            stories[i].buildInfoboxes();
+            for (PagePipeline.PageJob page : stories[i].getPageJobs()) {
+              previewJobs.put(getOutputPath(page.getOutputFile()), page);
+            }
+          }
+          storyEndTime = System.currentTimeMillis();
+        }
+        else {
+          planOutputFolders();
+          // Static files are copied by the merge, not each shard
+          if (!sharding) {
+            assetCopier = findAssets();
+            for (String folder : assetCopier.getTargetFolders()) {
+              outputLayout.planFolder(folder);
+            }
+          }
+          int foldersCreated = outputLayout.createPlannedFolders();
+          if (verbose) {
+            System.out.println("Created " + foldersCreated
+                               + " output folders.");
+          }
+          // Static files don't depend on anything else, so copy them while the
+          // pages are being built.
+          if (assetCopier != null) {
+            assetCopier.start(output, sitePack,
+                              Runtime.getRuntime().availableProcessors());
+          }
+          // Generate stories. Every story page goes through the page pipeline,
+          // so chapters are read, rendered and written at the same time.
+          System.out.println("Building stories...");
+          int[] pipelineThreads = config.getPipelineThreads();
+          PagePipeline pipeline = new PagePipeline(this, pipelineThreads[0],
+                                                   pipelineThreads[1],
+                                                   pipelineThreads[2]);
+          for (int i : storyBuildOrder) {
+            stories[i].buildInfoboxes();
+            if (!buildsStoryPages(stories[i])) {
+              continue;
+            }
+            List<PagePipeline.PageJob> pages = stories[i].getPageJobs();
+            if (checkpoint != null) {
+              String folderName = stories[i].getFolderName();
+              if (checkpoint.isStoryDone(folderName, storyChangeKeys[i],
+                                         pages)) {
+                continue;
+              }
+              pages = checkpoint.track(folderName, storyChangeKeys[i], pages);
+            }
+            if (verbose) {
+              System.out.println("Building story "
+                                 + stories[i].getStoryTitle() + "...");
+            }
+            for (PagePipeline.PageJob page : pages) {
+              pipeline.submit(page);
+            }
+          }
+          pipeline.finish();
+          storyEndTime = System.currentTimeMillis();
+          if (!brief) {
+            System.out.println(pipeline.getSummary());
+          }
+        }
+        // A shard is done once its story pages are built and its partial is
+        // saved; the merge builds everything else
+        if (sharding) {
+          complete = writeShardPartial(shardStories, shardChangeKeys);
+          return storyEndTime - storyStartTime;
+        }
+        // Build indexes of works by various orderings
+        // Create index by title
+        // Orders to save in the archive snapshot
+        Story[] titleOrder = null;
+        Story[] latestOrder = null;
+        if (!config.skipTitleIndex()) {
+          sortStories(new StoryTitleComparator(config.skipThe()),
+                      ArchiveSnapshot.BY_TITLE, unchanged);
+          titleOrder = stories.clone();
+          // Create pages
+          writeCategoryPages("", "by_title",
+                             new ArrayList<Story>(Arrays.asList(stories)),
+                             config.getTitleIndexLabel());
+        }
+        // Create index of all works in reverse chronological
+        // order, unless this is skipped.
+        if (!config.skipLatestIndex()) {
+          sortStories(new DateUpdatedComparator(), ArchiveSnapshot.BY_LATEST,
+                      unchanged);
+          latestOrder = stories.clone();
+          // Create pages
+          writeCategoryPages("", "latest",
+                             new ArrayList<Story>(Arrays.asList(stories)),
+                             config.getLatestIndexLabel());
+        }
+        // Create fandom index if we have at least one fandom
+        if (!config.skipFandomIndex()) {
+          // Generate fandom index page
+          writeAlphabeticalIndex(archiveFandomMap, "fandoms", "Fandoms",
+                                 "By Fandom", "by_fandom.html");
+          if (verbose) {
+            System.out.println("Fandom index page created.");
+          }
+          /***
+          ChiveGenMain.printStatus("Fandom index page created.",
+                                   Verbosity.VERBOSE);
+                                   ***/
+          // Build fandoms pages
+          File fandomFolder = new File(output, "fandoms");
+          System.out.println("Generating fandom pages...");
+          //ChiveGenMain.printStatus("Generating fandom pages...",
+          //                         Verbosity.SILENT);
+          buildArchiveCategory(archiveFandomMap, fandomFolder, "Fandoms",
+                               "Stories in ");
+        }
+        // Create authors index if we have at least one author
+        if (!config.skipAuthorIndex() && archiveHasAuthors) {
+          // Generate index page
+          writeAlphabeticalIndex(archiveAuthorMap, "authors", "Authors",
+                                 "By Author", "by_author.html");
+          if (verbose) {
+            System.out.println("Author index page created.");
+          }
+          /***
+          ChiveGenMain.printStatus("Author index page created.",
+                                   Verbosity.VERBOSE);
+                                   ***/
+          // Build authors pages
+          File authorFolder = new File(output, "authors");
+          System.out.println("Generating author pages...");
+          //ChiveGenMain.printStatus("Generating author pages...",
+          //                         Verbosity.SILENT);
+          buildArchiveCategory(archiveAuthorMap, authorFolder, "Authors",
+                               "Stories by ");
+        }
+        // Create tag pages, if any tags are used.
+        if (!config.skipTagPages() && archiveHasTags) {
+          System.out.println("Generating tag pages...");
+          //ChiveGenMain.printStatus("Generating tag pages...",
+          //                         Verbosity.SILENT);
+          // CREATE TAG FOLDER + PAGES
+          buildArchiveCategory(archiveTagMap, new File(output, "tags"), "Tags",
+                               "Stories tagged ");
+        }
+        // Create the site homepage.
+        String homePageContent = "";
+        if (!config.skipHomepage()) {
+          Path homePage = input.resolve("index.txt");
+          boolean hasHomePage = Files.exists(homePage);
+          if (hasHomePage) {
+            homePageContent = FileToStringUtils.readFileToString(homePage);
+          }
+          else {
+            homePageContent = config.buildDefaultHomePage();
+          }
+          // Puts some site stats on the homepage, if the option to do so is
+          // enabled.
+          if (hasHomePage && config.useStatsWidget()) {
+            // Locate insertion points and insert the stats widget data into the
+            // homepage body
+            ContentTemplate homePageTemplate =
+              new ContentTemplate(homePageContent,
+                                  FicArchiveBuilder.getStatsWidgetKeywords());
+            String[] stats =
+              new String[] {HtmlUtils.numberWithCommas(stories.length),
+                            HtmlUtils.numberWithCommas(getTotalWordcount(stories)),
+                            HtmlUtils.numberWithCommas(getTotalFandoms(stories)),
+                            HtmlUtils.numberWithCommas(getTotalAuthors(stories)),
+                            ChiveGenMain.versionString};
+            // Insert the stats into the homepage text body
+            homePageContent = homePageTemplate.assemble(stats);
+          }
+          // Build the home page at index.html
+          File homePageFile = new File(output, "index.html");
+          String homePageTitle = config.buildPageTitle("Home");
+          buildPage(config.buildStandardPageString(homePageContent,
+                                                   homePageTitle),
+                    homePageFile);
+          if (pageModel != null) {
+            pageModel.addPage(homePageFile, homePageTitle, homePageContent);
+          }
+        }
+        // Wait for CSS stylesheets and other static files to finish copying
+        if (assetCopier != null) {
+          assetCopier.finish();
+        }
+        if (assetCopier != null && !brief) {
+          System.out.println("Copied " + assetCopier.getCopiedCount()
+                             + " static file[s] ("
+                             + assetCopier.getSkippedCount()
+                             + " unchanged, " + assetCopier.getFailedCount()
+                             + " failed.)");
+        }
+        if (!previewing && !sharding) {
+          writeArchiveSnapshot(listedStories, titleOrder, latestOrder);
+        }
+        complete = true;
+      }
+    } catch (FileNotFoundException e) {
+      if (!Files.exists(config.getTemplateFile())) {
+        System.out.println("Error: required template file " +
+        config.getTemplateFile() + " does not exist.");
+      }
+      System.out.println();
+      e.printStackTrace();
+    } finally {
+      // Make sure nothing is still writing into the pack before closing it
+      if (assetCopier != null) {
+        assetCopier.finish();
+      }
+      closeSitePack();
+      closeChapterBodyCache();
+      closePageModel(complete);
+      closeCheckpoint(complete);
+      archiveSnapshot = null;
+    }
+    return storyEndTime - storyStartTime;
+  }
+
+  // Sorts the stories array, or puts it in the order saved in the archive
+  // snapshot if no story has changed since then.
+  private void sortStories(Comparator<Story> comparator, int savedOrder,
+                           boolean unchanged) {
+    if (unchanged) {
+      Story[] sorted = archiveSnapshot.getSortOrder(savedOrder);
+      if (sorted != null && sorted.length == stories.length) {
+        stories = sorted;
+        return;
+      }
+    }
+    Arrays.sort(stories, comparator);
+  }
+
+  // Opens the archive snapshot in the cache folder, if there is one and it
+  // was saved with the same settings.
+  private ArchiveSnapshot openArchiveSnapshot() {
+    if (cacheDir.equals("")) {
+      return null;
+    }
+    try {
+      ArchiveSnapshot snapshot =
+        ArchiveSnapshot.open(Paths.get(cacheDir).toAbsolutePath(),
+                             config.getArchiveSnapshotSettings());
+      if (snapshot == null && verbose) {
+        System.out.println("No usable archive snapshot found in " + cacheDir
+                           + ". Reading every story folder.");
+      }
+      return snapshot;
+    } catch (IOException e) {
+      System.out.println("Warning: could not read the archive snapshot in "
+                         + cacheDir + ". Reading every story folder.");
+      return null;
+    }
+  }
+
+  // Saves the archive snapshot in the cache folder, if there is one, for the
+  // next build. listedStories are in input folder order.
+  private void writeArchiveSnapshot(Story[] listedStories,
+                                    Story[] titleOrder,
+                                    Story[] latestOrder) {
+    if (cacheDir.equals("")) {
+      return;
+    }
+    List<HashMap<String, ArrayList<Story>>> categoryMaps =
+      Arrays.asList(archiveTagMap, archiveAuthorMap, archiveFandomMap);
+    try {
+      ArchiveSnapshot.write(Paths.get(cacheDir).toAbsolutePath(),
+                            config.getArchiveSnapshotSettings(), listedStories,
+                            storyChangeKeys, categoryMaps, titleOrder,
+                            latestOrder);
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong saving the archive "
+                         + "snapshot. The next build will read every story "
+                         + "folder.");
+      e.printStackTrace();
+    }
+  }
+
+  // Starts saving the page model in the cache folder, if there is one.
+  private PageModel openPageModel() {
+    if (cacheDir.equals("")) {
+      return null;
+    }
+    try {
+      return PageModel.create(this, Paths.get(cacheDir).toAbsolutePath(),
+                              config.getPageModelSettings());
+    } catch (IOException e) {
+      System.out.println("Error: could not save the page model in "
+                         + cacheDir + ". Template-only rebuilds won't be "
+                         + "possible until it's saved.");
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  // Finishes saving the page model, if one is being saved. It's only kept if
+  // the build completed.
+  private void closePageModel(boolean complete) {
+    if (pageModel == null) {
+      return;
+    }
+    try {
+      if (verbose && complete) {
+        System.out.println("Saved " + pageModel.size() + " pages to the "
+                           + "page model.");
+      }
+      pageModel.close(complete);
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong saving the page "
+                         + "model.");
+      e.printStackTrace();
+    }
+    pageModel = null;
+  }
+
+  // Gets the page model being saved during this build, or null if there
+  // isn't one.
+  public PageModel getPageModel() {
+    return pageModel;
+  }
+
+  // Checks that a template-only rebuild can be done: there has to be a page
+  // model from a complete build with the same settings. If not, says why,
+  // and a full build is done instead.
+  private boolean canRebuildTemplatesOnly() {
+    if (cacheDir.equals("")) {
+      System.out.println("Error: --templates-only needs the cache folder "
+                         + "(--cache-dir) from an earlier build. Doing a full "
+                         + "build instead.");
+      return false;
+    }
+    String settings =
+      PageModel.readSettings(Paths.get(cacheDir).toAbsolutePath());
+    if (settings == null) {
+      System.out.println("No saved page model found in " + cacheDir
+                         + ". Doing a full build instead.");
+      return false;
+    }
+    if (!settings.equals(config.getPageModelSettings())) {
+      System.out.println("Settings other than templates have changed since "
+                         + "the page model was saved. Doing a full build "
+                         + "instead.");
+      return false;
+    }
+    return true;
+  }
+
+  // Rebuilds every page from the saved page model with the current
+  // templates, and copies static files again (so stylesheet changes are
+  // picked up too.) Returns the time taken to rebuild the pages.
+  private long rebuildTemplatesOnly() {
+    AssetCopier assetCopier = findAssets();
+    for (String folder : assetCopier.getTargetFolders()) {
+      outputLayout.planFolder(folder);
+    }
+    outputLayout.createPlannedFolders();
+    long startTime = System.currentTimeMillis();
+    long endTime = startTime;
+    try {
+      assetCopier.start(output, sitePack,
+                        Runtime.getRuntime().availableProcessors());
+      System.out.println("Rebuilding pages from the saved page model...");
+      int pages = PageModel.rebuild(this,
+                                    Paths.get(cacheDir).toAbsolutePath());
+      endTime = System.currentTimeMillis();
+      complete = true;
+      if (!brief) {
+        System.out.println("Rebuilt " + pages + " page[s] with the current "
+                           + "templates.");
+      }
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong reading the page "
+                         + "model. Run a full build to save it again.");
+      e.printStackTrace();
+    } finally {
+      assetCopier.finish();
+      closeSitePack();
+    }
+    if (!brief) {
+      System.out.println("Copied " + assetCopier.getCopiedCount()
+                         + " static file[s] ("
+                         + assetCopier.getSkippedCount()
+                         + " unchanged, " + assetCopier.getFailedCount()
+                         + " failed.)");
+    }
+    return endTime - startTime;
+  }
+
+  // Opens the chapter body cache, if there is a cache folder. Returns null
+  // if there isn't one, or it can't be opened.
+  private ChapterBodyCache openChapterBodyCache() {
+    if (cacheDir.equals("")) {
+      return null;
+    }
+    try {
+      return ChapterBodyCache.open(Paths.get(cacheDir).toAbsolutePath());
+    } catch (IOException e) {
+      System.out.println("Error: could not open the chapter cache in "
+                         + cacheDir + ". Building without it.");
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  // Saves and closes the chapter body cache, if one is open.
+  private void closeChapterBodyCache() {
+    if (chapterBodyCache == null) {
+      return;
+    }
+    try {
+      if (!brief) {
+        System.out.println(chapterBodyCache.getSummary());
+      }
+      chapterBodyCache.close();
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong saving the chapter "
+                         + "cache.");
+      e.printStackTrace();
+    }
+    chapterBodyCache = null;
+  }
+
+  // Gets the chapter body cache for the current build, or null if chapter
+  // bodies aren't being cached.
+  public ChapterBodyCache getChapterBodyCache() {
+    return chapterBodyCache;
+  }
+
+  // Starts saving this build's progress in the cache folder, if there is
+  // one, picking up the saved progress if the build is resumed (--resume).
+  // Returns null if there's no cache folder, pages are going into a site
+  // pack (which is written again from the start every build), or the
+  // checkpoint can't be saved.
+  private BuildCheckpoint openCheckpoint() {
+    if (cacheDir.equals("") || sitePack != null) {
+      if (config.isResume()) {
+        System.out.println("Error: --resume needs " + (sitePack != null
+                             ? "pages written as files, not a site pack"
+                             : "the cache folder (--cache-dir) of the "
+                               + "stopped build")
+                           + ". Building everything.");
+      }
+      return null;
+    }
+    Path folder = Paths.get(cacheDir).toAbsolutePath();
+    String settings = config.getPageModelSettings() + config.getConfigStamp()
+                      + output.getAbsolutePath() + "\n"
+                      + java.nio.charset.Charset.defaultCharset() + "\n";
+    try {
+      if (config.isResume()) {
+        // The saved page model doesn't have the pages this build changes,
+        // and this build doesn't save a new one. The stopped build's
+        // unfinished model is no use either.
+        Files.deleteIfExists(folder.resolve(PageModel.FILE_NAME));
+        Files.deleteIfExists(folder.resolve(PageModel.TEMP_FILE_NAME));
+      }
+      return BuildCheckpoint.open(folder.resolve(BuildCheckpoint.getFileName(
+                                    config.getShard(),
+                                    config.getShardCount())),
+                                  settings, config.isResume(), brief);
+    } catch (IOException e) {
+      System.out.println("Error: could not save the build's progress in "
+                         + cacheDir + ". It can't be resumed if it stops.");
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  // Stops saving this build's progress. The checkpoint is only kept if the
+  // build didn't complete.
+  private void closeCheckpoint(boolean complete) {
+    if (checkpoint == null) {
+      return;
+    }
+    String summary = checkpoint.getSummary();
+    if (summary != null && !brief) {
+      System.out.println(summary);
+    }
+    try {
+      checkpoint.close(complete);
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong saving the build's "
+                         + "progress.");
+      e.printStackTrace();
+    }
+    checkpoint = null;
+  }
+
+  // Writes the site pack's index and closes it, if one is open.
+  private void closeSitePack() {
+    if (sitePack == null) {
+      return;
+    }
+    try {
+      if (!brief) {
+        System.out.println("Wrote " + sitePack.size() + " pages to site pack "
+                           + new File(output, SitePackWriter.PACK_FILE_NAME)
+                                 .getPath());
+      }
+      sitePack.close();
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong writing the site pack "
+                         + "index.");
+      e.printStackTrace();
+    }
+    sitePack = null;
+  }
+
+  // Reads in every story from its folder snapshot into the stories array,
+  // spread across the given executor. Stories stay in
+  // the same order as their folders, but the largest ones are started first
+  // (see storyBuildOrder.) If there's a cache folder, each
+  // folder's change key is worked out too, and stories whose folders haven't
+  // changed are set up from the archive snapshot instead. Stories already
+  // parsed by another build sharing this input are set up from that.
+  private void readStories(StoryFolderSnapshot[] storyFolders,
+                           final File storiesOutputFolder,
+                           ExecutorService executor) {
+    // Stories another build of this input already parsed
+    final SharedInput shared = config.getSharedInput();
+    final boolean useKeys = !cacheDir.equals("") || shared != null
+                            || sharding || merging;
+    final ArchiveSnapshot snapshot = archiveSnapshot;
+    final String stateSettings = config.getStoryStateSettings();
+    storyChangeKeys = new long[storyFolders.length];
+    ArrayList<Future<Story>> pending =
+      new ArrayList<Future<Story>>(Collections.nCopies(storyFolders.length,
+                                                       (Future<Story>)null));
+    for (int i : storyBuildOrder) {
+      final StoryFolderSnapshot storyFolder = storyFolders[i];
+      final int index = i;
+      pending.set(index, executor.submit(new Callable<Story>() {
+        public Story call() {
+          if (useKeys) {
+            ArchiveCatalog.Record catalogRecord = null;
+            if (archiveCatalog != null) {
+              catalogRecord = archiveCatalog.getRecord(storyFolder.getName());
+            }
+            storyChangeKeys[index] =
+              ArchiveSnapshot.getChangeKey(storyFolder, catalogRecord);
+            if (merging) {
+              Story story = restoreFromShard(storyFolder,
+                                             storyChangeKeys[index],
+                                             storiesOutputFolder);
+              if (story != null) {
+                return story;
+              }
+            }
+            if (snapshot != null) {
+              Story story = snapshot.restore(BuildContext.this, storyFolder,
+                                             storyChangeKeys[index],
+                                             storiesOutputFolder);
+              if (story != null) {
+                return story;
+              }
+            }
+          }
+          if (shared != null) {
+            ArchiveSnapshot.StoryState state =
+              shared.getStoryState(stateSettings, storyFolder.getName(),
+                                   storyChangeKeys[index]);
+            if (state != null) {
+              return new Story(BuildContext.this, storyFolder,
+                               storiesOutputFolder, state);
+            }
+          }
+          Story story = new Story(BuildContext.this, storyFolder,
+                                  storiesOutputFolder);
+          if (shared != null) {
+            shared.putStoryState(stateSettings, storyFolder.getName(),
+                                 storyChangeKeys[index], story.getState());
+          }
+          return story;
+        }
+      }));
+    }
+    for (int i = 0; i < stories.length; i++) {
+      try {
+        stories[i] = GenUtils.getResult(pending.get(i));
+      } catch (IOException e) {
+        // Story construction reports its own read errors instead of
+        // throwing, so this shouldn't happen.
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // Drops the stories that don't pass the story filter, keeping the rest
+  // (and their change keys and build order) as they were. Whether the
+  // archive has authors and tags is worked out again from what's left.
+  private void filterStories() {
+    StoryFilter filter = config.getStoryFilter();
+    int[] newIndex = new int[stories.length];
+    int kept = 0;
+    archiveHasAuthors = false;
+    archiveHasTags = false;
+    for (int i = 0; i < stories.length; i++) {
+      if (filter.accepts(stories[i])) {
+        newIndex[i] = kept;
+        stories[kept] = stories[i];
+        storyChangeKeys[kept] = storyChangeKeys[i];
+        archiveHasAuthors |= stories[i].hasAuthor();
+        archiveHasTags |= stories[i].hasTags();
+        kept++;
+      } else {
+        newIndex[i] = -1;
+      }
+    }
+    if (!brief) {
+      System.out.println("Story filter: " + kept + " of " + stories.length
+                         + " story folder[s] included.");
+    }
+    int[] newOrder = new int[kept];
+    int position = 0;
+    for (int i : storyBuildOrder) {
+      if (newIndex[i] != -1) {
+        newOrder[position++] = newIndex[i];
+      }
+    }
+    stories = Arrays.copyOf(stories, kept);
+    storyChangeKeys = Arrays.copyOf(storyChangeKeys, kept);
+    storyBuildOrder = newOrder;
+  }
+
+  // Gets the indexes of the story folders from largest to smallest (by the
+  // combined size of their files, which is roughly how much text there is to
+  // read and render.) Folders of the same size keep their listing order.
+  private int[] getLargestFirstOrder(StoryFolderSnapshot[] storyFolders) {
+    final long[] sizes = new long[storyFolders.length];
+    Integer[] order = new Integer[storyFolders.length];
+    for (int i = 0; i < storyFolders.length; i++) {
+      sizes[i] = storyFolders[i].getTotalSize();
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(sizes[b], sizes[a]);
+      }
+    });
+    int[] indexes = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      indexes[i] = order[i];
+    }
+    return indexes;
+  }
+
+  // Finds the static files to copy into the output: CSS stylesheets in the
+  // root of the input folder (unless skipped), and everything in the asset
+  // folder.
+  private AssetCopier findAssets() {
+    AssetCopier assetCopier = new AssetCopier();
+    try {
+      if (config.includeStyleSheets()) {
+        assetCopier.addFilesEndingWith(input, ".css");
+      }
+      if (!assetFolderName.equals("")
+          && Files.isDirectory(input.resolve(assetFolderName))) {
+        assetCopier.addFolder(input.resolve(assetFolderName), assetFolderName);
+      }
+    } catch (IOException e) {
+      System.out.println("Error: something went wrong looking for static "
+                         + "files in the input folder.");
+      e.printStackTrace();
+    }
+    if (verbose) {
+      System.out.println(assetCopier.size() + " static file[s] found.");
+    }
+    return assetCopier;
+  }
+
+  // Adds every folder this build will write pages into to the output
+  // layout's plan, so they can all be created in one go.
+  private void planOutputFolders() {
+    for (Story story : stories) {
+      if (story.getChapterCount() > 0 && buildsStoryPages(story)) {
+        outputLayout.planFolder(outputLayout.getStoryPath(story.getFolderName()));
+      }
+    }
+    // A shard only builds story pages
+    if (sharding) {
+      return;
+    }
+    if (!config.skipTitleIndex()) {
+      outputLayout.planFolder("by_title");
+    }
+    if (!config.skipLatestIndex()) {
+      outputLayout.planFolder("latest");
+    }
+    if (!config.skipFandomIndex()) {
+      planCategoryFolders(archiveFandomMap, "fandoms");
+    }
+    if (!config.skipAuthorIndex() && archiveHasAuthors) {
+      planCategoryFolders(archiveAuthorMap, "authors");
+    }
+    if (!config.skipTagPages() && archiveHasTags) {
+      planCategoryFolders(archiveTagMap, "tags");
+    }
+  }
+
+  // Returns true if this build writes the story's pages, i.e. unless a
+  // shard already built them (during a merge.)
+  private boolean buildsStoryPages(Story story) {
+    return mergedStories == null || !mergedStories.contains(story);
+  }
+
+  // Saves a shard's partial for the merge. Returns false if it couldn't be
+  // saved.
+  private boolean writeShardPartial(Story[] shardStories,
+                                    long[] shardChangeKeys) {
+    try {
+      ArchiveShards.writePartial(config, shardStories, shardChangeKeys,
+        Arrays.asList(archiveTagMap, archiveAuthorMap, archiveFandomMap));
+      if (!brief) {
+        System.out.println("Saved shard " + config.getShard() + "/"
+                           + config.getShardCount() + " partial in "
+                           + config.getShardFolder() + ".");
+      }
+      return true;
+    } catch (IOException e) {
+      System.out.println("Error: could not save the partial for shard "
+                         + config.getShard() + "/" + config.getShardCount()
+                         + " in " + config.getShardFolder()
+                         + ". The merge will read its stories itself.");
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  // Sets up a story from its shard's partial during a merge. Returns null
+  // (with a warning) if its folder changed after the shard was built or it
+  // isn't in the partial, so that the merge reads and builds it itself.
+  private Story restoreFromShard(StoryFolderSnapshot folder, long changeKey,
+                                 File storiesOutputFolder) {
+    int shard = ArchiveShards.getShard(folder.getName(),
+                                       shardPartials.length);
+    ArchiveSnapshot partial = shardPartials[shard - 1];
+    Story story = partial.restore(this, folder, changeKey,
+                                  storiesOutputFolder);
+    if (story != null) {
+      mergedStories.add(story);
+      return story;
+    }
+    String shardName = shard + "/" + shardPartials.length;
+    System.out.println("Warning: story folder " + folder.getName()
+                       + (partial.contains(folder.getName())
+                          ? " changed after shard " + shardName
+                            + " was built"
+                          : " isn't in shard " + shardName + "'s partial")
+                       + ". Building it in the merge.");
+    return null;
+  }
+
+  // Plans the folders for one kind of category (tags, fandoms, etc).
+  private void planCategoryFolders(HashMap<String, ArrayList<Story>> map,
+                                   String categoryFolderName) {
+    outputLayout.planFolder(categoryFolderName);
+    for (String category : map.keySet()) {
+      outputLayout.planCategoryFolder(categoryFolderName,
+                                      fragmentCache.safeUrl(category));
+    }
+  }
+
+  // Gets the path of an output file relative to the output folder, with
+  // forward slashes (i.e. its URL path without the site path.)
+  public String getOutputPath(File outputFile) {
+    Path outputRoot = output.toPath().toAbsolutePath().normalize();
+    Path page = outputFile.toPath().toAbsolutePath().normalize();
+    return SitePackWriter.normalizePath(outputRoot.relativize(page).toString());
+  }
+
+  // Creates an HTML file and writes the input String to it. Returns the
+  // file, or null if it couldn't be written. Only pages that were written
+  // are counted.
+  public File buildPage(String inputString, File outputFile) {
+    // A preview keeps its pages instead of writing them
+    if (previewPages != null) {
+      previewPages.put(getOutputPath(outputFile), inputString);
+      pageCount.incrementAndGet();
+      return outputFile;
+    }
+    // When packing, append the page to the pack instead of its own file
+    if (sitePack != null) {
+      if (verbose) {
+        System.out.println("Adding to site pack: " + outputFile.getPath());
+      }
+      try {
+        sitePack.addPage(getOutputPath(outputFile), inputString);
+      } catch (IOException e) {
+        System.out.println("Error: tried to add " + outputFile.getPath()
+                           + " to the site pack, but something went wrong "
+                           + "in I/O.");
+        e.printStackTrace();
+        return null;
+      }
+      pageCount.incrementAndGet();
+      return outputFile;
+    }
+    if (!outputFile.exists()) {
+      if (verbose) {
+        System.out.println("Creating '" + outputFile.getPath() + "', since it "
+                           + "does not already exist");
+      }
+      try {
+        outputFile.createNewFile();
+      } catch (IOException e) {
+        System.out.println("Error: something went wrong building a page in "
+                           + outputFile.getPath());
+        e.printStackTrace();
+        return null;
+      }
+    }
+    if (verbose) {
+      System.out.println("Writing to output file: " + outputFile.getPath());
+    }
+    try {
+      FileWriter pageBuilder = new FileWriter(outputFile);
+      pageBuilder.write(inputString);
+      // Close scanners and filewriter
+      pageBuilder.close();
+    } catch (FileNotFoundException e) {
+      System.out.println("Error: tried to write to output file "
+                         + outputFile.getPath()
+                         + " but the file was not found.");
+      e.printStackTrace();
+      return null;
+    } catch (IOException e) {
+      System.out.println("Error: tried to write to ouput file "
+                         + outputFile.getPath()
+                         + " but something went wrong in I/O.");
+      e.printStackTrace();
+      return null;
+    }
+    pageCount.incrementAndGet();
+    return outputFile;
+  }
+
+
+  /*** BUILDING INDICES FOR ARCHIVE ***/
+
+  // Returns an array of three strings - the listing nav, the category name
+  // and the string for the index of categories. Used to build the fandom
+  // and author indexes.
+  // Not currently paginated.
+  public String[] buildAlphabeticalIndexOf(HashMap<String, ArrayList<Story>> categories,
+                                           String categoryFolderURL,
+                                           String categoryName) {
+    String[] categoryArray = categories.keySet().toArray(new String[0]);
+    // Sort the stories array by the relevant comparator
+    Arrays.sort(categoryArray);
+    // Stringbuilder for story index
+    StringBuilder categoryIndex = new StringBuilder();
+    // Stringbuilder for quick links into index, if heading groups are used
+    StringBuilder listingNav = new StringBuilder();
+    // Headers for the values being compared
+    char b = ' ';
+    char a = ' ';
+    for (int i = 0; i < categoryArray.length; i++) {
+      // Get the grouping header of the current story
+      b = Character.toUpperCase(categoryArray[i].charAt(0));
+      // Only check the previous entry after at least one
+      if (i > 0) {
+        a = Character.toUpperCase(categoryArray[i-1].charAt(0));
+      }
+      if (verbose) {
+        System.out.println(i + ": Grouping for " + categoryArray[i] + ": "
+                           + Character.toString(b));
+      }
+      // Check if the current entry and the next's grouping match,
+      // Or if we are on the first story in the array.
+      if (i == 0 || a != b) {
+        // Close the previous unordered list if we're moving to a new one
+        if (i != 0) {
+          categoryIndex.append("</ul>\n");
+        }
+        // Create a header for the new grouping
+        categoryIndex.append("<h2 id=" + b + ">" + b + "</h2>\n<ul>");
+        // And link to it in the listing navigation
+        listingNav.append("<a href=#" + b + ">" + b + "</a>\n");
+      }
+      // Link to the first page of the category
+      categoryIndex.append("<li><a href=\"" + sitePath
+                           + outputLayout.getCategoryPagePath(categoryFolderURL,
+                             fragmentCache.safeUrl(categoryArray[i]), 1) + "\">" +
+      fragmentCache.titleCase(categoryArray[i]) + "</a> (" +
+                            categories.get(categoryArray[i]).size() + ")</li>");
+    }
+    // Close the last unordered list
+    if (categoryArray.length != 0) {
+      categoryIndex.append("</ul>\n");
+    }
+    String listingNavString = "";
+    if (!listingNav.equals("")) { // only create this if there's something to put in it
+      listingNavString =
+        config.getWorkIndexNavigationFormatter().format(listingNav.toString(),
+                                                        "Navigation");
+    }
+    return new String[] {listingNavString, categoryName, "",
+                         categoryIndex.toString(), ""};
+  }
+
+  // Builds and writes an alphabetical index page of a kind of category (e.g.
+  // by_fandom.html.)
+  private void writeAlphabeticalIndex(HashMap<String, ArrayList<Story>> categories,
+                                      String categoryFolderURL,
+                                      String categoryName,
+                                      String title, String fileName) {
+    String[] indexFields =
+      buildAlphabeticalIndexOf(categories, categoryFolderURL, categoryName);
+    String pageTitle = config.buildPageTitle(title);
+    File pageFile = new File(output, fileName);
+    buildPage(config.buildStandardPageString(
+                config.getWorkIndexTemplate().assemble(indexFields), pageTitle),
+              pageFile);
+    if (pageModel != null) {
+      pageModel.addIndexPage(pageFile, pageTitle, indexFields, null, null);
+    }
+  }
+
+  // Build all the pages for a category like tags/fandom/author/etc
+  public void buildArchiveCategory(HashMap<String, ArrayList<Story>> map,
+                                   File categoryFolder,
+                                   String categoryLabel,
+                                   String titleLabel) {
+    // Folders were already created by the output layout.
+    // For each tag/fandom/whatever, create the tag pages and write them
+    // to file with the default url schema of:
+    // [parent folder]/[URL-safe version of tag][pagination divider][page #].html
+    // (with a hash fan-out folder after the parent folder, if enabled)
+    String categoryFolderName = categoryFolder.getName();
+    for (String category : map.keySet()) {
+      String safeCategory = fragmentCache.safeUrl(category);
+      String titleCategory = fragmentCache.titleCase(category);
+      // Sort stories in the category by date updated
+      Collections.sort(map.get(category), new DateUpdatedComparator());
+      int pages = writeCategoryPages(categoryFolderName + "/",
+                                     outputLayout.getFanOutPath(safeCategory),
+                                     map.get(category),
+                                     (titleLabel + titleCategory));
+      if (verbose) {
+        System.out.println("Created " + pages + " page[s] for category "
+                           + category);
+      }
+    }
+    if (!brief) {
+      System.out.println("Created " + map.keySet().size()
+                         + " category folder[s] for " + categoryLabel);
+    }
+  }
+
+
+  /*** BUILDING CATEGORY PAGES ***/
+
+  // Builds and writes every page of a paginated story index (e.g. by_title,
+  // or the pages for one tag.) Pages go in [categoryFolderURL][category]
+  // [pagination divider][page #].html, and are titled "[label] (Page #)".
+  // The category must already be URL-safe. Returns the number of pages.
+  private int writeCategoryPages(String categoryFolderURL,
+                                 String category,
+                                 ArrayList<Story> relatedStories,
+                                 String categoryLabel) {
+    String pageURL = categoryFolderURL + category;
+    // Skip the pages if a resumed build already wrote them for the same
+    // stories
+    long fingerprint = 0;
+    if (checkpoint != null) {
+      fingerprint = checkpoint.getFingerprint(categoryLabel, relatedStories);
+      int pageTotal = (relatedStories.size() + maxItemsPerPage - 1)
+                      / maxItemsPerPage;
+      ArrayList<File> pageFiles = new ArrayList<File>(pageTotal);
+      for (int i = 0; i < pageTotal; i++) {
+        pageFiles.add(new File(output, pageURL + paginationDivider + (i+1)
+                                       + ".html"));
+      }
+      if (checkpoint.areIndexPagesDone(pageURL, fingerprint, pageFiles)) {
+        return pageTotal;
+      }
+    }
+    String[] pages = buildCategoryPages(categoryFolderURL, category,
+                                        relatedStories, categoryLabel, true);
+    String[] pageLinks = new String[pages.length + 1];
+    boolean written = true;
+    for (int i = 0; i < pages.length; i++) {
+      // page URLs start at 1
+      File pageFile =
+        new File(output, pageURL + paginationDivider + (i+1) + ".html");
+      String pageTitle = categoryLabel + " (Page " + (i+1) + ")";
+      if (buildPage(config.buildStandardPageString(pages[i], pageTitle),
+                    pageFile) == null) {
+        written = false;
+      }
+      if (pageModel != null) {
+        int first = i * maxItemsPerPage;
+        int last = Math.min(first + maxItemsPerPage, relatedStories.size());
+        pageModel.addIndexPage(pageFile, pageTitle,
+          new String[] {"", categoryLabel,
+                        getShowingLabel(first, last, relatedStories.size()),
+                        "", ""},
+          relatedStories.subList(first, last),
+          generatePagination(pageURL, (i + 1), pages.length, pageLinks));
+      }
+    }
+    if (checkpoint != null && written) {
+      checkpoint.indexPagesDone(pageURL, fingerprint);
+    }
+    return pages.length;
+  }
+
+  // Create a string array for all pages of all works with a particular tag
+  // or category, sorted in reverse chronological order, with pagination
+  public String[] buildCategoryPages(String categoryFolderURL,
+                                     String category,
+                                     ArrayList<Story> relatedStories,
+                                     String categoryLabel,
+                                     boolean URLIsSafe) {
+    // If we need a "safe" version of the category name for the URL
+    // convert that now.
+    if (!URLIsSafe) {
+      category = fragmentCache.safeUrl(category);
+    }
+    // Figure out how many pages we need to generate
+    int totalPages = relatedStories.size() / maxItemsPerPage;
+    if (relatedStories.size() % maxItemsPerPage != 0) {
+      totalPages++;
+    }
+    if (verbose) {
+      System.out.println("Total pages to generate for " + category + ": " + totalPages);
+    }
+    String[] pageStrings = new String[totalPages]; // array to store the page strings
+    ContentTemplate workIndexTemplate = config.getWorkIndexTemplate();
+    String[] indexPageElements = new String[5]; // for inserting into template
+    String pageURL = categoryFolderURL + category;
+    // Numbered page links, shared by all the pages' paginations
+    String[] pageLinks = new String[totalPages + 1];
+    // Every page is built in the same reused buffer
+    StringBuilder pageOutput = TextBuffers.acquire();
+    for (int i = 0; i < totalPages; i++) {
+      // For entries in relatedStories at ids
+      // i * maxPerPage + 0 to i * maxPerPage + maxPerPage - 1
+      // (i.e. 0th to maxPerPage-1th from an offset of maxPerPage * however
+      // many pages have been created already), build an index page. The
+      // last page might not be full length.
+      int first = i * maxItemsPerPage;
+      int last = Math.min(first + maxItemsPerPage, relatedStories.size());
+      indexPageElements[0] = "";
+      indexPageElements[1] = categoryLabel;
+      indexPageElements[2] = getShowingLabel(first, last,
+                                             relatedStories.size());
+      pageOutput.setLength(0);
+      for (int j = first; j < last; j++) {
+        // add the infobox for each story tagged on that page
+        pageOutput.append(relatedStories.get(j).getInfoboxForIndex());
+      }
+      indexPageElements[3] = pageOutput.toString();
+      indexPageElements[4] =
+        config.buildStandardPaginationString(generatePagination(pageURL,
+                                                                (i + 1),
+                                                                totalPages,
+                                                                pageLinks));
+      pageStrings[i] = workIndexTemplate.assemble(indexPageElements);
+    }
+    TextBuffers.release(pageOutput);
+    // Return the array
+    return pageStrings;
+  }
+
+  // Gets the "Showing 1-20 of 45" label for a page of a story index, from
+  // the (0-based) first and last+1 stories on the page.
+  private String getShowingLabel(int first, int last, int total) {
+    StringBuilder label = TextBuffers.acquire();
+    label.append("Showing ").append(first + 1).append('-').append(last)
+         .append(" of ").append(total);
+    return TextBuffers.finish(label);
+  }
+
+  //@override
+  public String[] buildCategoryPages(String categoryFolderURL,
+                                     String category,
+                                     ArrayList<Story> relatedStories,
+                                     String categoryLabel) {
+    // default to assuming category needs to be made URL-safe
+    return buildCategoryPages(categoryFolderURL, category, relatedStories,
+                              categoryLabel, false);
+  }
+
+  //@override
+  public String[] buildCategoryPages(String category,
+                                     ArrayList<Story> relatedStories) {
+    return buildCategoryPages((output.getName() + "/" + category), category,
+                              relatedStories, "Stories in ");
+  }
+
+  //@override
+  public String[] buildCategoryPages(String categoryFolderURL,
+                                     String category,
+                                     Story[] relatedStories,
+                                     String label) {
+    ArrayList<Story> storiesArrayList =
+      new ArrayList<Story>(relatedStories.length);
+    for (Story story : relatedStories) {
+      storiesArrayList.add(story);
+    }
+    return buildCategoryPages(categoryFolderURL, category,
+                              storiesArrayList, label, false);
+  }
+
+  //@override
+  public String[] buildCategoryPages(String categoryFolderURL,
+                                     String category,
+                                     Story[] relatedStories,
+                                     String label,
+                                     boolean URLIsSafe) {
+    ArrayList<Story> storiesArrayList =
+      new ArrayList<Story>(relatedStories.length);
+    for (Story story : relatedStories) {
+      storiesArrayList.add(story);
+    }
+    return buildCategoryPages(categoryFolderURL, category, storiesArrayList,
+                              label, URLIsSafe);
+  }
+
+  // Build pagination from a folder URL, current page, a maximum # of pages
+  public String[] generatePagination(String categoryFolderURL,
+                                     int currentPage, int totalPages) {
+    return generatePagination(categoryFolderURL, currentPage, totalPages,
+                              new String[totalPages + 1]);
+  }
+
+  // Builds pagination the same way, reusing (and filling in) an array of
+  // numbered page links indexed by page number, so that paginating every
+  // page of a category builds each numbered link only once.
+  private String[] generatePagination(String categoryFolderURL,
+                                      int currentPage, int totalPages,
+                                      String[] pageLinks) {
+    // Pagination template has 5 things, in order:
+    // Previous Button, Previous Jump Pages, Current, Next Jump Pages, and Next Button
+    String[] paginationContents = new String[] {"", "", "", "", ""};
+    // If there's no pagination, don't even bother.
+    if (totalPages == 1) {
+      return paginationContents;
+    }
+    StringBuilder link = TextBuffers.acquire();
+    // Page n-1 and n-2 go in the same section, if we have them
+    if (!config.skipJumpPagination() && currentPage > 1) {
+      if (currentPage > 2) {
+        link.append(getPageLink(pageLinks, categoryFolderURL, currentPage - 2));
+      }
+      link.append('\n');
+      link.append(getPageLink(pageLinks, categoryFolderURL, currentPage - 1));
+      paginationContents[1] = link.toString();
+    }
+    // Previous button
+    if (currentPage > 1) {
+      link.setLength(0);
+      appendPageLink(link, categoryFolderURL, currentPage - 1,
+                     config.getPrevPageLabel());
+      paginationContents[0] = link.toString();
+    }
+    // The current Page
+    if (!config.skipJumpPagination()) {
+      paginationContents[2] = Integer.toString(currentPage);
+    }
+    // Page n+1 and n+2 go in the same section, if we have them
+    if (!config.skipJumpPagination() && currentPage < totalPages) {
+      link.setLength(0);
+      link.append(getPageLink(pageLinks, categoryFolderURL, currentPage + 1));
+      if (currentPage < (totalPages - 1)) {
+        link.append('\n');
+        link.append(getPageLink(pageLinks, categoryFolderURL, currentPage + 2));
+      }
+      paginationContents[3] = link.toString();
+    }
+    // Next button
+    if (currentPage < totalPages) {
+      link.setLength(0);
+      appendPageLink(link, categoryFolderURL, currentPage + 1,
+                     config.getNextPageLabel());
+      paginationContents[4] = link.toString();
+    }
+    TextBuffers.release(link);
+    return paginationContents;
+  }
+
+  // Gets the numbered link to one page of a paginated category, building it
+  // if it isn't in pageLinks yet.
+  private String getPageLink(String[] pageLinks,
+                             String categoryFolderURL, int page) {
+    if (pageLinks[page] == null) {
+      StringBuilder link = TextBuffers.acquire();
+      appendPageLink(link, categoryFolderURL, page, null);
+      pageLinks[page] = TextBuffers.finish(link);
+    }
+    return pageLinks[page];
+  }
+
+  // Appends a link to one page of a paginated category. The link text is
+  // the label, or the page number if the label is null.
+  private void appendPageLink(StringBuilder out,
+                              String categoryFolderURL, int page,
+                              String label) {
+    out.append("<a href=\"").append(sitePath).append(categoryFolderURL)
+       .append(paginationDivider).append(page).append(".html\">");
+    if (label == null) {
+      out.append(page);
+    } else {
+      out.append(label);
+    }
+    out.append("</a>");
+  }
+
+
+  /*** MISCELLANOUS ARCHIVE-BUILDING HELPER FUNCTIONS ***/
+
+  // Gets the total wordcount of the entire archive
+  public int getTotalWordcount(Story[] stories) {
+    int total = 0;
+    for (Story s : stories) {
+      total+= s.getWordCount();
+    }
+    return total;
+  }
+
+  // Gets the total number of fandoms in the archive
+  public int getTotalFandoms(Story[] stories) {
+    int total = 0;
+    // Store strings in a hashset for fast lookup
+    HashSet<String> allFandoms = new HashSet<String>();
+    for (Story s : stories) {
+      // if the fandom isn't in the set, add it, and increment total
+      for (String fandom : s.getFandoms()) {
+        if (!allFandoms.contains(fandom)) {
+          allFandoms.add(fandom);
+          total++;
+        }
+      }
+    }
+    return total;
+  }
+
+  // Gets the total number of authors in the archive
+  // May be deprecated at some point if a more general function is added to
+  // combine the behavior of this, getTotalFandoms, etc.
+  public int getTotalAuthors(Story[] stories) {
+    int total = 0;
+    // Store strings in a hashset for fast lookup
+    HashSet<String> allAuthors = new HashSet<String>();
+    for (Story s : stories) {
+      // if the author isn't in the set, add it, and increment total
+      for (String author : s.getAuthors()) {
+        if (!allAuthors.contains(author)) {
+          allAuthors.add(author);
+          total++;
+        }
+      }
+    }
+    return total;
+  }
+
+  // Add tags/hashset data and associated story to an archive category hashmap
+  public void addToStoryMap(HashMap<String, ArrayList<Story>> map,
+                            String[] newTags, Story story) {
+    for (String tag : newTags) {
+      addToStoryMap(map, tag, story);
+    }
+  }
+
+  // General 'add to story map' method for individual tags
+  public void addToStoryMap(HashMap<String, ArrayList<Story>> map,
+                            String tag, Story story) {
+    tag = tag.toLowerCase(); // ignore case
+    if (map.containsKey(tag)) {
+      // add this story to the arraylist of associated stories
+      map.get(tag).add(story);
+    }
+    else {
+      ArrayList<Story> temp = new ArrayList<Story>();
+      temp.add(story);
+      map.put(tag, temp);
+    }
+  }
+
+  /*** EXTERNALLY CALLABLE HELPER FUNCTIONS - GETTERS  ***/
+
+  // Returns the archive catalog for the current build, or null if there
+  // isn't one
+  public ArchiveCatalog getArchiveCatalog() {
+    return archiveCatalog;
+  }
+
+  // Gets the output layout for the current build
+  public OutputLayout getOutputLayout() {
+    return outputLayout;
+  }
+
+  // Gets the tag link cache for the current build
+  public FragmentCache getFragmentCache() {
+    return fragmentCache;
+  }
+
+
+  /*** EXTERNALLY CALLABLE HELPER FUNCTIONS - SETTERS ***/
+
+  // Called (true) each time a story reads an author name in storyinfo.txt
+  // If never called, we know there are no authors to sort by.
+  public void setHasAuthors(boolean b) {
+    archiveHasAuthors = b;
+  }
+
+  // Called each time a story reads in a tagset.
+  // If this is never called, we know there are no tags to generate pages for.
+  public void setHasTags(boolean b) {
+    archiveHasTags = b;
+  }
+}
@@ -0,0 +1,380 @@
+/***
+
+  Keeps ChiveGen running in the background (chivegen --daemon SOCKET) and
+  builds archives on request, so a build doesn't pay for starting Java,
+  reading config and templates, or re-reading stories that haven't changed.
+  Requests come in over a Unix domain socket from chivegen --client SOCKET
+  (which the chivegen script uses when CHIVEGEN_SOCKET is set), with the
+  same arguments a normal build takes. Everything the build prints is sent
+  back to the client as it happens, and the client exits with 0 if the
+  build completed or 1 if it didn't.
+
+  For each distinct request (input, output, template and options, but not
+  verbosity), the daemon keeps the configured FicArchiveBuilder and a
+  SharedInput with every story and chapter body it read. Before each build,
+  the config, label and template files are checked (size and modified
+  time), and the builder is set up again if any of them changed, or the
+  request asks for a different verbosity. Stories and chapters are checked
+  the same way (see SharedInput), so only what was edited is read again.
+  Only the MAX_WARM_BUILDS most recently used requests are kept; older ones
+  are dropped, along with everything they read.
+
+  Requests are handled one at a time, in the order they arrive.
+
+  Protocol (all numbers big-endian, strings as in DataOutputStream.writeUTF):
+    request:  int argument count, then each argument. "--stop" on its own
+              stops the daemon.
+    response: any number of output frames ('o', int length, that many bytes
+              of UTF-8 text), then an exit frame ('x', int status).
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class BuildDaemon {
+  // Frame types
+  private final static byte OUTPUT_FRAME = 'o';
+  private final static byte EXIT_FRAME = 'x';
+  // Largest output frame, in bytes
+  private final static int MAX_FRAME_SIZE = 16 * 1024;
+  // Most arguments a request can have
+  private final static int MAX_ARGS = 4096;
+  // Most builders (and their stories) kept at once
+  private final static int MAX_WARM_BUILDS = 8;
+  // Request to stop the daemon
+  public final static String STOP_REQUEST = "--stop";
+  // Options that take a path, which the client makes absolute since the
+  // daemon runs in a different folder
+  private final static Set<String> PATH_OPTIONS =
+    GenUtils.hashSetFromArray(new String[] {"-i", "--input", "-o", "--output",
+                                            "-t", "--template", "--cache-dir",
+                                            "--catalog", "--labels",
+                                            "--shard-dir"});
+
+  // A builder kept from an earlier request, and what it's kept with
+  private static class WarmBuild {
+    FicArchiveBuilder builder;
+    // Sizes and modified times of the builder's config files when it was set
+    // up (see FicArchiveBuilder.getConfigStamp())
+    String stamp;
+    // Verbosity the builder was set up with
+    Verbosity verbosity;
+    SharedInput shared = new SharedInput();
+    int buildCount = 0;
+  }
+
+  private final Path socketPath;
+  // Builders by request (see runRequest()), least recently used first
+  private final LinkedHashMap<String, WarmBuild> builds =
+    new LinkedHashMap<String, WarmBuild>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, WarmBuild> eldest) {
+        return size() > MAX_WARM_BUILDS;
+      }
+    };
+  private boolean running = true;
+
+  public BuildDaemon(Path socketPath) {
+    this.socketPath = socketPath.toAbsolutePath();
+  }
+
+  // Listens on the socket and handles requests until a stop request comes
+  // in. Returns false if the daemon couldn't start.
+  public boolean run() {
+    if (Files.exists(socketPath)) {
+      // A socket file left behind by a daemon that didn't stop cleanly is
+      // removed, but one with a daemon still behind it isn't.
+      try {
+        SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+        System.out.println("Error: a build daemon is already running on "
+                           + socketPath + ".");
+        return false;
+      } catch (IOException e) {
+        try {
+          Files.delete(socketPath);
+        } catch (IOException deleteFailed) {
+          System.out.println("Error: could not remove old socket file "
+                             + socketPath + ".");
+          return false;
+        }
+      }
+    }
+    try (ServerSocketChannel server =
+           ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socketPath));
+      ChiveGenMain.printStatus("Build daemon listening on " + socketPath,
+                               Verbosity.BRIEF);
+      while (running) {
+        try (SocketChannel client = server.accept()) {
+          handle(client);
+        } catch (IOException e) {
+          ChiveGenMain.printStatus("Warning: lost a client connection ("
+                                   + e.getMessage() + ")", Verbosity.NORMAL);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Error: could not listen on " + socketPath + ".");
+      e.printStackTrace();
+      return false;
+    } finally {
+      try {
+        Files.deleteIfExists(socketPath);
+      } catch (IOException e) {
+        // Nothing else to do; the next daemon will clear it
+      }
+    }
+    ChiveGenMain.printStatus("Build daemon stopped.", Verbosity.BRIEF);
+    return true;
+  }
+
+  // Reads one request, runs it with everything printed sent back to the
+  // client, and sends the exit status.
+  private void handle(SocketChannel channel) throws IOException {
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(Channels.newInputStream(channel)));
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(Channels.newOutputStream(channel)));
+    int count = in.readInt();
+    if (count < 0 || count > MAX_ARGS) {
+      throw new IOException("bad request");
+    }
+    String[] args = new String[count];
+    for (int i = 0; i < count; i++) {
+      args[i] = in.readUTF();
+    }
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    PrintStream clientOut =
+      new PrintStream(new FrameOutputStream(out), true, StandardCharsets.UTF_8);
+    int status = 1;
+    System.setOut(clientOut);
+    System.setErr(clientOut);
+    try {
+      status = runRequest(args);
+    } catch (RuntimeException e) {
+      System.out.println("Error: the build failed.");
+      e.printStackTrace();
+    } finally {
+      clientOut.flush();
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+    out.writeByte(EXIT_FRAME);
+    out.writeInt(status);
+    out.flush();
+  }
+
+  // Runs a request and returns its exit status.
+  private int runRequest(String[] args) {
+    if (args.length == 1 && args[0].equals(STOP_REQUEST)) {
+      running = false;
+      System.out.println("Build daemon stopping.");
+      return 0;
+    }
+    long startTime = System.currentTimeMillis();
+    String inputPath = "";
+    String outputPath = "";
+    String templatePath = "";
+    boolean useConfigFile = true;
+    Verbosity verbosity = Verbosity.NORMAL;
+    ArrayList<String> options = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      boolean hasNext = i < args.length - 1;
+      if ((args[i].equals("-i") || args[i].equals("--input")) && hasNext) {
+        inputPath = args[++i];
+      } else if ((args[i].equals("-o") || args[i].equals("--output"))
+                 && hasNext) {
+        outputPath = args[++i];
+      } else if ((args[i].equals("-t") || args[i].equals("--template"))
+                 && hasNext) {
+        templatePath = args[++i];
+      } else if (args[i].equals("--no-config")) {
+        useConfigFile = false;
+      } else if (args[i].equals("-d") || args[i].equals("--debug")) {
+        verbosity = Verbosity.DEBUG;
+      } else if (args[i].equals("-b") || args[i].equals("--brief")) {
+        verbosity = Verbosity.BRIEF;
+      } else if (args[i].equals("-v") || args[i].equals("--verbose")) {
+        verbosity = Verbosity.VERBOSE;
+      } else if (args[i].equals("-s") || args[i].equals("--silent")) {
+        verbosity = Verbosity.SILENT;
+      } else {
+        options.add(args[i]);
+      }
+    }
+    if (inputPath.equals("") || outputPath.equals("")) {
+      System.out.println("Error: a build request needs an input (-i) and an "
+                         + "output (-o) folder.");
+      return 1;
+    }
+    ChiveGenMain.setVerbosity(verbosity);
+    Path input = Paths.get(inputPath);
+    Path template = templatePath.equals("") ? null : Paths.get(templatePath);
+    if (!Files.isDirectory(input)) {
+      // Archives are opened for each request, so nothing is kept from them
+      return runArchiveRequest(input, outputPath, template, useConfigFile,
+                               options, verbosity);
+    }
+    String key = inputPath + "\0" + outputPath + "\0" + templatePath + "\0"
+                 + useConfigFile + "\0" + String.join("\0", options);
+    WarmBuild warm = builds.get(key);
+    String reason = "Reading config and templates";
+    if (warm != null) {
+      reason = "Config or templates changed, reading them again";
+      if (warm.builder.getConfigStamp().equals(warm.stamp)) {
+        // A builder's verbosity is fixed once it has built, so a different
+        // verbosity needs a new one (the stories read are still kept)
+        reason = warm.verbosity == verbosity
+                 ? null : "Verbosity changed, reading config and templates";
+      }
+    } else {
+      warm = new WarmBuild();
+      builds.put(key, warm);
+    }
+    if (reason != null) {
+      ChiveGenMain.printStatus(reason + "...", Verbosity.NORMAL);
+      warm.builder =
+        FicArchiveBuilder.configure(input, new File(outputPath), template,
+                                    useConfigFile,
+                                    options.toArray(new String[0]), verbosity);
+      warm.builder.setSharedInput(warm.shared);
+      warm.stamp = warm.builder.getConfigStamp();
+      warm.verbosity = verbosity;
+    }
+    BuildReport report = warm.builder.build();
+    // Old copies of edited stories and chapters aren't needed any more
+    warm.shared.dropUnused();
+    warm.buildCount++;
+    ChiveGenMain.printStatus("Daemon build " + warm.buildCount + " of "
+                             + outputPath + ": " + report.getStoryCount()
+                             + " story folder[s], " + report.getPageCount()
+                             + " page[s], "
+                             + (reason == null ? "config and templates kept"
+                                               : "config and templates read")
+                             + ", " + (System.currentTimeMillis() - startTime)
+                             + " ms.", Verbosity.BRIEF);
+    return report.isComplete() ? 0 : 1;
+  }
+
+  // Builds from a zip or tar input, without keeping anything.
+  private int runArchiveRequest(Path input, String outputPath, Path template,
+                                boolean useConfigFile, List<String> options,
+                                Verbosity verbosity) {
+    if (!Files.exists(input)) {
+      System.out.println("Error: input folder " + input + " does not exist.");
+      return 1;
+    } else if (!ChiveGenMain.isArchiveName(input.toString())) {
+      System.out.println("Error: input folder " + input + " is actually a "
+                         + "file.");
+      return 1;
+    }
+    try (FileSystem archive = ChiveGenMain.openArchive(input)) {
+      FicArchiveBuilder builder =
+        FicArchiveBuilder.configure(ChiveGenMain.findArchiveInput(archive),
+                                    new File(outputPath), template,
+                                    useConfigFile,
+                                    options.toArray(new String[0]), verbosity);
+      return builder.build().isComplete() ? 0 : 1;
+    } catch (IOException e) {
+      System.out.println("Error: could not open input archive " + input);
+      return 1;
+    }
+  }
+
+  // Sends everything written to it to the client as output frames.
+  private static class FrameOutputStream extends OutputStream {
+    private DataOutputStream out;
+    private byte[] buffer = new byte[MAX_FRAME_SIZE];
+    private int count = 0;
+
+    FrameOutputStream(DataOutputStream out) {
+      this.out = out;
+    }
+
+    public synchronized void write(int b) throws IOException {
+      if (count == buffer.length) {
+        writeFrame();
+      }
+      buffer[count++] = (byte)b;
+    }
+
+    public synchronized void write(byte[] bytes, int offset, int length)
+      throws IOException {
+      while (length > 0) {
+        if (count == buffer.length) {
+          writeFrame();
+        }
+        int chunk = Math.min(length, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, chunk);
+        count += chunk;
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    public synchronized void flush() throws IOException {
+      writeFrame();
+      out.flush();
+    }
+
+    private void writeFrame() throws IOException {
+      if (count > 0) {
+        out.writeByte(OUTPUT_FRAME);
+        out.writeInt(count);
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+  }
+
+
+  /*** CLIENT ***/
+
+  // Sends a request to the daemon on socketPath, printing its output as it
+  // comes. Paths in the request are made absolute first. Returns the build's
+  // exit status, or 2 if the daemon couldn't be reached.
+  public static int sendRequest(Path socketPath, String[] args) {
+    String[] request = args.clone();
+    for (int i = 0; i < request.length - 1; i++) {
+      if (PATH_OPTIONS.contains(request[i])) {
+        request[i+1] = Paths.get(request[i+1]).toAbsolutePath().toString();
+        i++;
+      }
+    }
+    try (SocketChannel channel =
+           SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeInt(request.length);
+      for (String arg : request) {
+        out.writeUTF(arg);
+      }
+      out.flush();
+      DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel)));
+      byte[] buffer = new byte[MAX_FRAME_SIZE];
+      while (true) {
+        byte type = in.readByte();
+        int value = in.readInt();
+        if (type == EXIT_FRAME) {
+          return value;
+        } else if (type != OUTPUT_FRAME || value < 0
+                   || value > MAX_FRAME_SIZE) {
+          throw new IOException("bad response");
+        }
+        in.readFully(buffer, 0, value);
+        System.out.write(buffer, 0, value);
+        System.out.flush();
+      }
+    } catch (IOException e) {
+      System.out.println("Error: could not reach the build daemon on "
+                         + socketPath + " (" + e.getMessage() + ").");
+      return 2;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/***
+
+  What happened in one build of an archive (see FicArchiveBuilder.build()):
+  how many stories and pages were built, how long it took, and whether the
+  build got all the way through. Returned to whatever started the build, so
+  a program building archives doesn't have to read the printed output.
+
+***/
+
+import java.io.File;
+
+public class BuildReport {
+  private final File output;
+  private final int storyCount;
+  private final int pageCount;
+  private final long storyTime;
+  private final long totalTime;
+  private final boolean complete;
+  private final boolean templatesOnly;
+
+  public BuildReport(File output, int storyCount, int pageCount,
+                     long storyTime, long totalTime, boolean complete,
+                     boolean templatesOnly) {
+    this.output = output;
+    this.storyCount = storyCount;
+    this.pageCount = pageCount;
+    this.storyTime = storyTime;
+    this.totalTime = totalTime;
+    this.complete = complete;
+    this.templatesOnly = templatesOnly;
+  }
+
+  // Gets the folder the archive was built in
+  public File getOutput() {
+    return output;
+  }
+
+  // Gets the number of stories in the archive (0 for a template-only
+  // rebuild, which doesn't read them)
+  public int getStoryCount() {
+    return storyCount;
+  }
+
+  // Gets the number of pages written
+  public int getPageCount() {
+    return pageCount;
+  }
+
+  // Gets the time taken to build the story pages (or every page, for a
+  // template-only rebuild) in ms
+  public long getStoryTime() {
+    return storyTime;
+  }
+
+  // Gets the time the whole build took in ms, not counting reading the
+  // config and templates
+  public long getTotalTime() {
+    return totalTime;
+  }
+
+  // Returns true if every page was built. If not, errors were printed.
+  public boolean isComplete() {
+    return complete;
+  }
+
+  // Returns true if the pages were rebuilt from the saved page model
+  // (--templates-only) instead of reading the stories
+  public boolean isTemplatesOnly() {
+    return templatesOnly;
+  }
+
+  public String toString() {
+    return output.getPath() + ": " + storyCount + " story folder[s], "
+           + pageCount + " page[s] in " + totalTime + " ms"
+           + (complete ? "" : " (incomplete)");
+  }
+}
@@ -0,0 +1,439 @@
+/***
+
+  A cache of chapter bodies (chapter text after casual HTML conversion, if
+  it's on), kept between builds in a cache folder. A build where only the
+  templates, labels or config changed can then put the cached bodies into
+  the new pages without re-reading or re-converting any chapter files.
+
+  Each chapter is looked up in two steps:
+    1. By the chapter file's path (story folder and file name), size and
+       last modified time, plus the conversion settings. If they all match
+       the last build, the cached body is used without reading the file.
+    2. Otherwise the file is read and hashed (SHA-256), and looked up by
+       content hash and settings. A match (e.g. a file that was only
+       touched or moved) skips the conversion.
+  Only if both miss is the chapter converted, and the result added.
+
+  Cache layout (in the cache folder):
+    chapters.dat  Bodies as UTF-8, back to back, with no separators.
+    chapters.idx  Index. An 8 byte magic string, the long length of
+                  chapters.dat when the index was written, and an int entry
+                  count, followed by one entry per chapter:
+                    UTF source, UTF settings, long size, long modified
+                    time, UTF content key (hash and settings), long offset,
+                    int length
+
+  Only chapters used in the latest build are kept in the index, along with
+  their bodies for other settings (e.g. with casual HTML off) as long as
+  the chapter file hasn't changed. Space left behind by old bodies is
+  reclaimed once it outgrows the live bodies. If
+  chapters.dat isn't the length the index expects (e.g. a build was
+  interrupted), the whole cache is started over.
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ChapterBodyCache {
+  public final static String DATA_FILE_NAME = "chapters.dat";
+  public final static String INDEX_FILE_NAME = "chapters.idx";
+  // Identifies (and versions) the index format
+  public final static String INDEX_MAGIC = "CHVBODY1";
+  // Don't bother compacting until there's at least this much dead space
+  private final static long MIN_COMPACT_BYTES = 1 << 20;
+
+  // A cached body, and the chapter file it last came from.
+  private static class Entry {
+    String source;
+    String settings;
+    long size;
+    long modified;
+    // Content hash and conversion settings
+    String contentKey;
+    long offset;
+    int length;
+  }
+
+  private Path folder;
+  private FileChannel data;
+  // Current end of the data file
+  private long dataLength;
+  // Entries from the last build, by source and settings (see getKey()), and
+  // by content key
+  private HashMap<String, Entry> bySource = new HashMap<String, Entry>();
+  private HashMap<String, Entry> byContent = new HashMap<String, Entry>();
+  // Entries used in this build, by source and settings
+  private HashMap<String, Entry> used = new HashMap<String, Entry>();
+  // Size and modified time of every chapter file used in this build
+  private HashMap<String, long[]> usedFiles = new HashMap<String, long[]>();
+  // For the summary at the end of the build
+  private int reused = 0;
+  private int rehashed = 0;
+  private int converted = 0;
+
+  private ChapterBodyCache(Path folder) {
+    this.folder = folder;
+  }
+
+  // Opens the cache in the given folder, creating it if need be. A missing
+  // or unreadable index just means starting with an empty cache.
+  public static ChapterBodyCache open(Path folder) throws IOException {
+    Files.createDirectories(folder);
+    ChapterBodyCache cache = new ChapterBodyCache(folder);
+    boolean indexRead = false;
+    Path indexFile = folder.resolve(INDEX_FILE_NAME);
+    Path dataFile = folder.resolve(DATA_FILE_NAME);
+    if (Files.isRegularFile(indexFile)) {
+      try {
+        long expectedLength = cache.readIndex(indexFile);
+        if (Files.isRegularFile(dataFile)
+            && Files.size(dataFile) == expectedLength) {
+          indexRead = true;
+        } else {
+          System.out.println("Warning: chapter cache in " + folder + " is "
+                             + "out of date. Starting a new cache.");
+        }
+      } catch (IOException e) {
+        System.out.println("Warning: couldn't read chapter cache index "
+                           + indexFile + ". Starting a new cache.");
+      }
+      if (!indexRead) {
+        cache.bySource.clear();
+        cache.byContent.clear();
+      }
+    }
+    if (indexRead) {
+      cache.data = FileChannel.open(dataFile,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    } else {
+      cache.data = FileChannel.open(dataFile,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    cache.dataLength = cache.data.size();
+    return cache;
+  }
+
+  // Reads the index into bySource and byContent, and returns the data file
+  // length it was written for.
+  private long readIndex(Path indexFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+           Files.newInputStream(indexFile)))) {
+      byte[] magic = new byte[INDEX_MAGIC.length()];
+      in.readFully(magic);
+      if (!INDEX_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+        throw new IOException("not a chapter cache index");
+      }
+      long expectedLength = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry();
+        entry.source = in.readUTF();
+        entry.settings = in.readUTF();
+        entry.size = in.readLong();
+        entry.modified = in.readLong();
+        entry.contentKey = in.readUTF();
+        entry.offset = in.readLong();
+        entry.length = in.readInt();
+        bySource.put(getKey(entry.source, entry.settings), entry);
+        byContent.put(entry.contentKey, entry);
+      }
+      return expectedLength;
+    }
+  }
+
+  // Gets a chapter's body, the same as
+  // FileToStringUtils.readFileToString(chapterFile, leftTabs, useCasualHTML)
+  // would. source identifies the chapter within the archive (e.g.
+  // "storyfolder/ch001.txt").
+  public String getBody(String source, Path chapterFile, int leftTabs,
+                        boolean useCasualHTML) {
+    String settings = getSettings(leftTabs, useCasualHTML);
+    long size = -1;
+    long modified = -1;
+    try {
+      BasicFileAttributes attributes =
+        Files.readAttributes(chapterFile, BasicFileAttributes.class);
+      size = attributes.size();
+      modified = attributes.lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      // Fall through to reading the file, which will report the problem
+    }
+    synchronized (this) {
+      usedFiles.put(source, new long[] {size, modified});
+    }
+    // 1. Unchanged file
+    Entry entry;
+    synchronized (this) {
+      entry = bySource.get(getKey(source, settings));
+    }
+    if (entry != null && entry.size == size && entry.modified == modified) {
+      String body = readBody(entry);
+      if (body != null) {
+        markUsed(entry, true);
+        return body;
+      }
+    }
+    // 2. Same content as something we've seen before
+    String text = FileToStringUtils.readFileToString(chapterFile, leftTabs,
+                                                     false);
+    String contentKey = hash(text) + "|" + settings;
+    synchronized (this) {
+      entry = byContent.get(contentKey);
+    }
+    if (entry != null) {
+      String body = readBody(entry);
+      if (body != null) {
+        markUsed(copyFor(entry, source, settings, size, modified), false);
+        return body;
+      }
+    }
+    // 3. New content
+    String body = text;
+    if (useCasualHTML) {
+      body = HtmlUtils.convertToHtml(text);
+    }
+    Entry added = new Entry();
+    added.source = source;
+    added.settings = settings;
+    added.size = size;
+    added.modified = modified;
+    added.contentKey = contentKey;
+    try {
+      append(added, body.getBytes(StandardCharsets.UTF_8));
+      synchronized (this) {
+        byContent.put(contentKey, added);
+        used.put(getKey(source, settings), added);
+        converted++;
+      }
+    } catch (IOException e) {
+      System.out.println("Warning: couldn't add chapter " + source
+                         + " to the chapter cache.");
+    }
+    return body;
+  }
+
+  // Gets the conversion settings a body is cached under.
+  private static String getSettings(int leftTabs, boolean useCasualHTML) {
+    // Chapter files are read with the default charset, so that's a setting
+    return (useCasualHTML ? "casual" : "plain") + "," + leftTabs + ","
+           + Charset.defaultCharset().name();
+  }
+
+  // Gets the key a chapter's body will be saved under when this build's
+  // cache is closed, or null if this build hasn't cached it (so it won't be
+  // kept.) The page model saves this instead of the body.
+  public synchronized String getSavedKey(String source, int leftTabs,
+                                         boolean useCasualHTML) {
+    String key = getKey(source, getSettings(leftTabs, useCasualHTML));
+    return used.containsKey(key) ? key : null;
+  }
+
+  // Gets the key for a chapter file and settings in bySource and used.
+  private static String getKey(String source, String settings) {
+    return source + "\n" + settings;
+  }
+
+  // Makes a new entry for a source that shares an existing entry's body.
+  private static Entry copyFor(Entry entry, String source, String settings,
+                               long size, long modified) {
+    Entry copy = new Entry();
+    copy.source = source;
+    copy.settings = settings;
+    copy.size = size;
+    copy.modified = modified;
+    copy.contentKey = entry.contentKey;
+    copy.offset = entry.offset;
+    copy.length = entry.length;
+    return copy;
+  }
+
+  private synchronized void markUsed(Entry entry, boolean unchanged) {
+    used.put(getKey(entry.source, entry.settings), entry);
+    if (unchanged) {
+      reused++;
+    } else {
+      rehashed++;
+    }
+  }
+
+  // Reads a cached body, or returns null if it can't be read.
+  private String readBody(Entry entry) {
+    ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+    try {
+      long position = entry.offset;
+      while (buffer.hasRemaining()) {
+        int read = data.read(buffer, position);
+        if (read < 0) {
+          return null;
+        }
+        position += read;
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    return new String(buffer.array(), StandardCharsets.UTF_8);
+  }
+
+  // Appends a body to the end of the data file.
+  private void append(Entry entry, byte[] body) throws IOException {
+    long offset;
+    synchronized (this) {
+      offset = dataLength;
+      dataLength += body.length;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(body);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      position += data.write(buffer, position);
+    }
+    entry.offset = offset;
+    entry.length = body.length;
+  }
+
+  // Gets the SHA-256 hash of some text, as hex. (A 32-bit hash like the
+  // CRC32C used elsewhere would collide far too often across a big archive
+  // for a cache where a collision means showing the wrong chapter.)
+  private static String hash(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+        hex.append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to have SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Opens the cache saved in the given folder just to read bodies back by
+  // saved key (see getSavedKey() and getSavedBody()), leaving it as it is.
+  // Close it with closeSaved().
+  public static ChapterBodyCache openSaved(Path folder) throws IOException {
+    ChapterBodyCache cache = new ChapterBodyCache(folder);
+    long expectedLength = cache.readIndex(folder.resolve(INDEX_FILE_NAME));
+    cache.data = FileChannel.open(folder.resolve(DATA_FILE_NAME),
+                                  StandardOpenOption.READ);
+    if (cache.data.size() != expectedLength) {
+      cache.data.close();
+      throw new IOException("chapter cache in " + folder + " is out of date");
+    }
+    return cache;
+  }
+
+  // Gets a saved body by the key getSavedKey() gave for it, or null if it's
+  // no longer in the cache.
+  public String getSavedBody(String key) {
+    Entry entry;
+    synchronized (this) {
+      entry = bySource.get(key);
+    }
+    return entry != null ? readBody(entry) : null;
+  }
+
+  // Closes a cache opened with openSaved().
+  public synchronized void closeSaved() throws IOException {
+    data.close();
+  }
+
+  // Gets a one-line summary of how the cache did this build.
+  public synchronized String getSummary() {
+    return "Chapter cache: " + reused + " unchanged, " + rehashed
+           + " re-read but not re-converted, " + converted + " new or changed.";
+  }
+
+  // Saves the index of every chapter used in this build (compacting the
+  // data file first if it's mostly dead space) and closes the cache.
+  public synchronized void close() throws IOException {
+    // Keep bodies for other settings of chapter files that haven't changed
+    for (Map.Entry<String, Entry> old : bySource.entrySet()) {
+      Entry entry = old.getValue();
+      long[] file = usedFiles.get(entry.source);
+      if (file != null && file[0] == entry.size && file[1] == entry.modified
+          && !used.containsKey(old.getKey())) {
+        used.put(old.getKey(), entry);
+      }
+    }
+    long liveBytes = 0;
+    HashSet<Long> counted = new HashSet<Long>();
+    for (Entry entry : used.values()) {
+      if (counted.add(entry.offset)) {
+        liveBytes += entry.length;
+      }
+    }
+    if (dataLength - liveBytes > Math.max(liveBytes, MIN_COMPACT_BYTES)) {
+      compact();
+    }
+    data.force(false);
+    data.close();
+    Path indexFile = folder.resolve(INDEX_FILE_NAME);
+    Path tempFile = folder.resolve(INDEX_FILE_NAME + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+           Files.newOutputStream(tempFile)))) {
+      out.write(INDEX_MAGIC.getBytes(StandardCharsets.US_ASCII));
+      out.writeLong(dataLength);
+      out.writeInt(used.size());
+      for (Entry entry : used.values()) {
+        out.writeUTF(entry.source);
+        out.writeUTF(entry.settings);
+        out.writeLong(entry.size);
+        out.writeLong(entry.modified);
+        out.writeUTF(entry.contentKey);
+        out.writeLong(entry.offset);
+        out.writeInt(entry.length);
+      }
+    }
+    Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  // Rewrites the data file with only the bodies used in this build.
+  private void compact() throws IOException {
+    Path tempFile = folder.resolve(DATA_FILE_NAME + ".tmp");
+    // Bodies shared by several chapters are only copied once
+    HashMap<Long, Long> moved = new HashMap<Long, Long>();
+    try (FileChannel compacted = FileChannel.open(tempFile,
+           StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+           StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (Entry entry : used.values()) {
+        Long newOffset = moved.get(entry.offset);
+        if (newOffset == null) {
+          newOffset = compacted.position();
+          long copied = 0;
+          while (copied < entry.length) {
+            long count = data.transferTo(entry.offset + copied,
+                                         entry.length - copied, compacted);
+            if (count <= 0) {
+              throw new IOException("chapter cache data ended early");
+            }
+            copied += count;
+          }
+          moved.put(entry.offset, newOffset);
+        }
+        entry.offset = newOffset;
+      }
+    }
+    data.close();
+    Files.move(tempFile, folder.resolve(DATA_FILE_NAME),
+               StandardCopyOption.REPLACE_EXISTING);
+    data = FileChannel.open(folder.resolve(DATA_FILE_NAME),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    dataLength = data.size();
+  }
+}
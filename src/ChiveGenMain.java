@@ -6,12 +6,14 @@
 
   Usage: chivegen -i INPUT_DIR -o OUTPUT_DIR [additional options]
  	or,  java ChiveGenMain -i INPUT_DIR -o OUTPUT_DIR [additional options]
+  INPUT_DIR can also be a .zip or .tar file, which is read in place.
 
 ***/
 
 import java.util.*;
 import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.time.format.*;
 import java.lang.Math;
@@ -22,15 +24,25 @@ public class ChiveGenMain {
   public final static String versionString = "v0.2.14";
 
   // GLOBAL FOLDER/DIRECTORY VARIABLES
-  // Files for input folder, template and output folder
-  private static File templateFile;
-  private static File input;
+  // Paths for input folder and template (which may be inside a zip or tar),
+  // and File for output folder
+  private static Path templateFile;
+  private static Path input;
   private static File output;
+  // Open zip or tar filesystem, if the input is an archive
+  private static FileSystem inputArchive;
   // Holds the paths for input/output/template as parsed from args
   // (so we don't put them into a File object right away)
   private static String inputPath = "";
   private static String templatePath = "";
   private static String outputPath = "";
+  // Batch manifest to build from instead (see BatchBuilder), and how many of
+  // its jobs to run at once
+  private static String batchPath = "";
+  private static int batchJobs = 1;
+  // Port to serve a preview of the archive on (see PreviewServer), or -1 to
+  // build it
+  private static int servePort = -1;
 
   /***
   // Show extra print statements for various functions
@@ -75,6 +87,12 @@ public class ChiveGenMain {
     if (!building) {
       return;
     }
+    // Nothing is written in a preview, but page paths are still worked out
+    // from an output folder
+    if (servePort != -1 && outputPath.equals("")) {
+      outputPath = new File(System.getProperty("java.io.tmpdir"),
+                            "chivegen-preview").getPath();
+    }
     boolean ready = building && getFolders(inputPath, outputPath, templatePath);
     // If we can't proceed, exit without further output.
     if (!ready) {
@@ -91,32 +109,38 @@ public class ChiveGenMain {
       printStatus("Additional args: " + options.toString(), Verbosity.NORMAL);
     }
 
-    // Create FicArchiveBuilder, pass it the folder arguments, and tell it to
-    // read in the config and any additional command line arguments.
-    FicArchiveBuilder archiveBuilder = new FicArchiveBuilder();
-    archiveBuilder.setFilePaths(input, output, templateFile);
-    // Pass additional arguments AFTER any config file has been read and parsed.
-    if (useConfigFile) {
-      archiveBuilder.readConfig();
+    // Serve the archive instead of building it, if asked to
+    if (servePort != -1) {
+      if (inputArchive != null) {
+        System.out.println("Error: --serve needs an input folder, not a zip "
+                           + "or tar file.");
+        closeInputArchive();
+        return;
+      }
+      new PreviewServer(input, output, templateFile, useConfigFile,
+                        options.toArray(new String[0]), verbosity,
+                        servePort).run();
+      return;
     }
-    archiveBuilder.parseArgs(options.toArray(new String[0]));
-    // Check in the input folder for any custom labels to set
-    archiveBuilder.getCustomLabels();
-    // Build the standard content templates
-    archiveBuilder.buildTemplates();
-    // Set verbosity - stopgap measure until verbosity overhaul is properly
+
+    // Create FicArchiveBuilder with the folder arguments, and have it read
+    // in the config and any additional command line arguments. Verbosity is
+    // passed along as a stopgap until the verbosity overhaul is properly
     // implemented.
-    archiveBuilder.setVerbosity(verbosity);
+    FicArchiveBuilder archiveBuilder =
+      FicArchiveBuilder.configure(input, output, templateFile, useConfigFile,
+                                  options.toArray(new String[0]), verbosity);
 
     // Build the archive.
-    long storyTime = FicArchiveBuilder.build();
+    BuildReport report = archiveBuilder.build();
+    closeInputArchive();
 
     // Report how long it took to build the site, if it was built.
     long finalTime = System.currentTimeMillis() - startTime;
     if (ready) {
       printStatus("Time taken: " + finalTime + " ms.", Verbosity.BRIEF);
-      printStatus("Time for story generation: " + storyTime + " ms.",
-             Verbosity.VERBOSE);
+      printStatus("Time for story generation: " + report.getStoryTime()
+                  + " ms.", Verbosity.VERBOSE);
     }
   }
 
@@ -178,6 +202,84 @@ public class ChiveGenMain {
       } else if (args[i].equals("--credits") || args[i].equals("--about")) {
         printCredits();
         return false;
+      } else if (args[i].equals("--unpack")) {
+        if (i + 2 > args.length - 1) {
+          printMissingArgError(args[i], "pack folder and output folder");
+        } else {
+          unpackSite(args[i+1], args[i+2]);
+        }
+        return false;
+      } else if (args[i].equals("--serve-site")) {
+        if (i + 2 > args.length - 1) {
+          printMissingArgError(args[i], "output folder and port");
+        } else {
+          SiteServer.serve(Paths.get(args[i+1]), args[i+2]);
+        }
+        return false;
+      } else if (args[i].equals("--bench-site")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "output folder");
+        } else {
+          benchmarkSite(Arrays.copyOfRange(args, i + 1, args.length));
+        }
+        return false;
+      } else if (args[i].equals("--daemon")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "socket path");
+        } else {
+          new BuildDaemon(Paths.get(args[i+1])).run();
+        }
+        return false;
+      } else if (args[i].equals("--client")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "socket path");
+        } else {
+          // Everything after the socket path is the request
+          int status = BuildDaemon.sendRequest(Paths.get(args[i+1]),
+                                               Arrays.copyOfRange(args, i + 2,
+                                                                  args.length));
+          if (status != 0) {
+            System.exit(status);
+          }
+        }
+        return false;
+      } else if (args[i].equals("--batch")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "batch manifest");
+          return false;
+        } else {
+          batchPath = args[i+1];
+          i++;
+        }
+      } else if (args[i].equals("--batch-jobs")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "number of jobs");
+          return false;
+        }
+        try {
+          batchJobs = Math.max(1, Integer.parseInt(args[i+1]));
+        } catch (NumberFormatException e) {
+          System.out.println("Error: --batch-jobs needs a number, not '"
+                             + args[i+1] + "'.");
+          return false;
+        }
+        i++;
+      } else if (args[i].equals("--serve")) {
+        if (i == args.length - 1) {
+          printMissingArgError(args[i], "port number");
+          return false;
+        }
+        try {
+          servePort = Integer.parseInt(args[i+1]);
+        } catch (NumberFormatException e) {
+          servePort = -2;
+        }
+        if (servePort < 0 || servePort > 65535) {
+          System.out.println("Error: --serve needs a port number, not '"
+                             + args[i+1] + "'.");
+          return false;
+        }
+        i++;
       } else if (args[i].equals("-d") || args[i].equals("--debug")) {
         verbosity = Verbosity.DEBUG;
       } else if (args[i].equals("-b") || args[i].equals("--brief")) {
@@ -190,9 +292,52 @@ public class ChiveGenMain {
         opts.add(args[i]);  // add to the list of non-folder arguments
       }
     }
+    // A batch builds the jobs in its manifest, not a single archive
+    if (!batchPath.equals("")) {
+      if (!outputPath.equals("")) {
+        System.out.println("Error: --batch takes its output folders from the"
+                           + " manifest, not -o.");
+      } else {
+        runBatch(opts);
+      }
+      return false;
+    }
     return true;
   }
 
+  // Builds every job in the batch manifest, with opts added to each job and
+  // the input folder (if given) used for jobs without their own.
+  private static void runBatch(ArrayList<String> opts) {
+    BatchBuilder batch = BatchBuilder.read(Paths.get(batchPath), inputPath,
+                                           opts, useConfigFile, batchJobs,
+                                           verbosity);
+    if (batch != null) {
+      batch.run();
+    }
+  }
+
+  // Runs the site server benchmark with the arguments after --bench-site:
+  // the folder, then optionally the number of connections, the number of
+  // seconds, and a HOST:PORT to send requests to instead.
+  private static void benchmarkSite(String[] args) {
+    int connections = 16;
+    int seconds = 10;
+    try {
+      if (args.length > 1) {
+        connections = Math.max(1, Integer.parseInt(args[1]));
+      }
+      if (args.length > 2) {
+        seconds = Math.max(1, Integer.parseInt(args[2]));
+      }
+    } catch (NumberFormatException e) {
+      System.out.println("Error: --bench-site needs numbers of connections "
+                         + "and seconds.");
+      return;
+    }
+    SiteServer.benchmark(Paths.get(args[0]), connections, seconds,
+                         args.length > 3 ? args[3] : null);
+  }
+
   // Creates global Files for input, output, and page template. Returns false
   // if input or output is blank, or if the input directory or the template file
   // cannot be opened or are of the wrong type (e.g. a template that is actually
@@ -206,37 +351,48 @@ public class ChiveGenMain {
     }
     // Create the input, output, and template files and check their validity
     // before proceeding to anything else
-    input = new File(inputPath);
-    if (!input.exists()) {
+    Path inputFile = Paths.get(inputPath);
+    if (!Files.exists(inputFile)) {
       System.out.println("Error: input folder does not exist.");
       return false;
-    } else if (input.isFile()) {
+    } else if (Files.isDirectory(inputFile)) {
+      input = inputFile;
+    } else if (isArchiveName(inputPath)) {
+      input = openInputArchive(inputFile);
+      if (input == null) {
+        return false;
+      }
+    } else {
       System.out.println("Error: input folder is actually a file.");
       return false;
     }
     // If no template is included in arguments, look for template.html in the
     // root of the input directory.
     if (templatePath.equals("")) {
-      templateFile = new File(inputPath, "template.html");
-      if (!templateFile.exists()) {
+      templateFile = input.resolve("template.html");
+      if (!Files.exists(templateFile)) {
         System.out.println("Error: couldn't find template.html in folder '"
                            + inputPath + "'.");
         System.out.println("(Make sure it's in the root of the input directory,"
                            + " and the filename is all lowercase!)");
+        closeInputArchive();
         return false;
       }
     } else if (!templatePath.endsWith(".html")) {
       System.out.println("Error: page template must be an .html file.");
+      closeInputArchive();
       return false;
     } else {  // Otherwise, attempt to use the given path
-      templateFile = new File(templatePath);
+      templateFile = Paths.get(templatePath);
     }
     // Check the template file exists
-    if (!templateFile.exists()) {
+    if (!Files.exists(templateFile)) {
       System.out.println("Error: template file does not exist.");
+      closeInputArchive();
       return false;
-    } else if (templateFile.isDirectory()) {
+    } else if (Files.isDirectory(templateFile)) {
       System.out.println("Error: template file is actually a directory.");
+      closeInputArchive();
       return false;
     }
     // Check the output path is valid and doesn't have anything already there
@@ -253,6 +409,7 @@ public class ChiveGenMain {
       if (!parent.canWrite()) {
         System.out.println("Error: cannot write to directory"
                            + parent.getPath());
+        closeInputArchive();
         return false;
       }
     }
@@ -261,6 +418,73 @@ public class ChiveGenMain {
     return true;
   }
 
+  // Returns true if the input path names an archive we can read in place.
+  static boolean isArchiveName(String path) {
+    String lowerCase = path.toLowerCase();
+    return lowerCase.endsWith(".zip") || lowerCase.endsWith(".jar")
+           || TarFileSystem.isTarName(lowerCase);
+  }
+
+  // Opens the input archive and returns the folder inside it to use as
+  // input, or null if it couldn't be opened.
+  private static Path openInputArchive(Path archiveFile) {
+    try {
+      inputArchive = openArchive(archiveFile);
+    } catch (IOException e) {
+      System.out.println("Error: could not open input archive " + archiveFile);
+      e.printStackTrace();
+      return null;
+    }
+    return findArchiveInput(inputArchive);
+  }
+
+  // Opens a zip (with the JDK's zip filesystem) or tar (with TarFileSystem).
+  // The caller closes it once the build is done.
+  static FileSystem openArchive(Path archiveFile) throws IOException {
+    FileSystem archive;
+    if (TarFileSystem.isTarName(archiveFile.getFileName().toString())) {
+      archive = TarFileSystem.open(archiveFile);
+    } else {
+      archive = FileSystems.newFileSystem(archiveFile, (ClassLoader)null);
+    }
+    printStatus("Reading input from archive " + archiveFile + "...",
+                Verbosity.NORMAL);
+    return archive;
+  }
+
+  // Gets the folder inside an open archive to use as input. If the archive
+  // just holds one folder with everything in it, as zips often do, that
+  // folder is used.
+  static Path findArchiveInput(FileSystem archive) {
+    Path root = archive.getRootDirectories().iterator().next();
+    if (!Files.exists(root.resolve("template.html"))) {
+      ArrayList<Path> contents = new ArrayList<Path>();
+      try (DirectoryStream<Path> rootContents = Files.newDirectoryStream(root)) {
+        for (Path entry : rootContents) {
+          contents.add(entry);
+        }
+      } catch (IOException e) {
+        // Fall through and use the root
+      }
+      if (contents.size() == 1 && Files.isDirectory(contents.get(0))) {
+        return contents.get(0);
+      }
+    }
+    return root;
+  }
+
+  // Closes the input archive, if one was opened.
+  private static void closeInputArchive() {
+    if (inputArchive != null) {
+      try {
+        inputArchive.close();
+      } catch (IOException e) {
+        // Nothing was written to it, so there's nothing to lose
+      }
+      inputArchive = null;
+    }
+  }
+
   // Prints a general 'usage' error message. Technically redundant since the
   // bash helper script already does this if we don't have valid input and
   // output paths, but just in case...
@@ -279,7 +503,8 @@ public class ChiveGenMain {
     System.out.println("chivegen -i INPUT_DIR -o OUTPUT_DIR"
                + " [... OTHER OPTIONS ...]");
     System.out.println("\nREQUIRED PARAMETERS");
-    System.out.println("-i, --input\t\tSpecify input folder.");
+    System.out.println("-i, --input\t\tSpecify input folder (or a .zip or "
+               + ".tar file to read\n\t\t\tin place.)");
     System.out.println("-o, --output\t\tSpecify output folder.");
     System.out.println("\nGENERAL ARCHIVE FORMATTING OPTIONS");
     System.out.println("-s, --site-name\t\tSpecify website name for use in "
@@ -296,6 +521,8 @@ public class ChiveGenMain {
     System.out.println("-ff, --footer\t\tGive a footer template for "
                + "automatic footers. \n\t\t\tDefault is \""
                + footerTemplate + "\".");
+    System.out.println("--labels FILE\t\tRead field labels from FILE instead"
+               + " of labels.txt.");
     System.out.println("\nSTORY INFOBOX OPTIONS");
     System.out.println("--skip-empty-fields\tDon't show placeholder data in"
                + " story infoboxes.");
@@ -323,10 +550,21 @@ public class ChiveGenMain {
                + "stats for the homepage.");
     System.out.println("-sc, --skip-css\t\tDon't copy CSS stylesheets from "
                + "input folder.");
+    System.out.println("-af, --asset-folder\tName of the input folder with "
+               + "static files to copy.\n\t\t\tDefault is \"assets\".");
     System.out.println("--skip-jump\t\tGenerate simple pagination, no jump "
                + "pagination links.");
+    System.out.println("--hash-fanout N\t\tSpread stories and category pages "
+               + "across folders\n\t\t\tnamed by the first N hex digits "
+               + "of a hash.");
     System.out.println("--ignore-leading-the\tIgnore a starting \"The\" "
                + "when sorting by title,\n\t\t\tfandom, etc.");
+    System.out.println("--only-rating LIST\tOnly include stories with these "
+               + "ratings (e.g. G,PG,T.)");
+    System.out.println("--only-status STATUS\tOnly include \"complete\" or "
+               + "\"incomplete\" stories.");
+    System.out.println("--only-fandom LIST\tOnly include stories in one of "
+               + "these fandoms.");
     System.out.println("\nOTHER OPTIONS");
     System.out.println("-v, --verbose\t\tVerbose mode. Shows extra print "
                + "statements.\n\t\t\t(WARNING! May show a LOT of "
@@ -334,16 +572,91 @@ public class ChiveGenMain {
                + " comment out.)");
     System.out.println("-b, --brief\t\tBrief mode. Show fewer print "
                + "statements.");
+    System.out.println("--io-threads N\t\tList up to N story folders at once "
+               + "(Java 21+ uses\n\t\t\tvirtual threads instead.) Default"
+               + " is 32.");
+    System.out.println("--pipeline-threads R,C,W\n\t\t\tUse R chapter "
+               + "readers, C page renderers and W\n\t\t\tpage writers "
+               + "when building stories.");
+    System.out.println("--catalog FILE\t\tRead story info from an archive "
+               + "catalog file\n\t\t\t(.tsv or .jsonl) instead of the "
+               + "default.");
+    System.out.println("--cache-dir DIR\t\tKeep converted chapter text and "
+               + "story info in folder\n\t\t\tDIR between builds, so "
+               + "unchanged stories and\n\t\t\tchapters aren't re-read.");
+    System.out.println("--templates-only\tRebuild every page with the current "
+               + "templates from the\n\t\t\tpage model saved in the cache "
+               + "folder, without\n\t\t\treading the stories again.");
+    System.out.println("--resume\t\tSkip the stories and indexes a stopped "
+               + "build with the\n\t\t\tsame cache folder already wrote, "
+               + "if they haven't\n\t\t\tchanged.");
+    System.out.println("--pack\t\t\tWrite all pages into a single site pack"
+               + " (site.pack and\n\t\t\tsite.idx) instead of separate "
+               + "files.");
+    System.out.println("--shard K/N\t\tBuild only shard K of N: its story "
+               + "folders' pages\n\t\t\tand a partial for --merge-shards."
+               + " Shards can run\n\t\t\ton different computers.");
+    System.out.println("--merge-shards\t\tBuild the index pages from every "
+               + "shard's partial.");
+    System.out.println("--shard-dir DIR\t\tKeep shard partials in folder DIR."
+               + " Default is\n\t\t\tOUTPUT-shards, next to the output "
+               + "folder.");
     System.out.println("\nOTHER COMMANDS");
     System.out.println("--man, --help\t\tPrints the manual. (You probably "
                + "know this one.)");
     System.out.println("--about, --credits\tPrints the credits.");
+    System.out.println("--unpack PACK OUT\tExtracts a site pack in folder PACK"
+               + " into folder OUT.");
+    System.out.println("--batch FILE\t\tBuilds every archive listed in manifest "
+               + "FILE, one\n\t\t\tjob per line (e.g. \"-i IN -o OUT -c\"), "
+               + "in one run.\n\t\t\tJobs with no -i use the input "
+               + "folder given with\n\t\t\t--batch. Jobs on the same input "
+               + "share its parsed\n\t\t\tstories and chapters.");
+    System.out.println("--batch-jobs N\t\tBuild up to N batch jobs at once. "
+               + "Default is 1.");
+    System.out.println("--daemon SOCKET\t\tRuns in the background, building "
+               + "archives on request\n\t\t\tfrom --client over the Unix "
+               + "socket SOCKET.");
+    System.out.println("--client SOCKET ...\tAsks the daemon on SOCKET to "
+               + "build with the rest\n\t\t\tof the arguments (or "
+               + BuildDaemon.STOP_REQUEST + " to stop it.)");
+    System.out.println("--serve PORT\t\tServes a preview of the input "
+               + "folder on localhost:PORT\n\t\t\tinstead of building it. "
+               + "Pages are built as they're\n\t\t\tasked for, and edits "
+               + "show up on the next request.\n\t\t\t(No -o needed.)");
+    System.out.println("--serve-site DIR PORT\tServes the built site in DIR "
+               + "(files or site pack)\n\t\t\ton PORT, or HOST:PORT to "
+               + "listen on one address.");
+    System.out.println("--bench-site DIR [N [S [HOST:PORT]]]\n\t\t\t"
+               + "Benchmarks --serve-site on DIR with N\n\t\t\tconnections"
+               + " for S seconds (default 16 and\n\t\t\t10), or the server"
+               + " on HOST:PORT instead.");
     System.out.println("--license\t\tPrints the license. (Not properly "
                + "implemented yet.)");
     System.out.println("\nThere are no public docs at the moment, but when "
                + "there are I'll link them.\n");
   }
 
+  // Extracts every page in the site pack in packPath out into normal files
+  // under outputPath.
+  private static void unpackSite(String packPath, String outputPath) {
+    File packFolder = new File(packPath);
+    if (!new File(packFolder, SitePackWriter.INDEX_FILE_NAME).exists()) {
+      System.out.println("Error: no site pack index found in '" + packPath
+                         + "'.");
+      return;
+    }
+    try (SitePackReader pack = new SitePackReader(packFolder)) {
+      pack.extractAll(new File(outputPath));
+      printStatus("Extracted " + pack.size() + " pages to " + outputPath,
+                  Verbosity.BRIEF);
+    } catch (IOException e) {
+      System.out.println("Error: could not read the site pack in '" + packPath
+                         + "'.");
+      e.printStackTrace();
+    }
+  }
+
   // Prints the license.
   // TODO: decide on a license, if any!
   private static void printLicense() {
@@ -378,6 +691,11 @@ public class ChiveGenMain {
     return false;
   }
 
+  // Sets the verbosity level, e.g. for each request the daemon handles.
+  static void setVerbosity(Verbosity v) {
+    verbosity = v;
+  }
+
   public static int verbosityInt() {
     return verbosity.ordinal();
   }
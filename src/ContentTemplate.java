@@ -1,43 +1,106 @@
 /***
 
-  A class for string/page templates.
+  A class for string/page templates. Templates are parsed once and compiled
+  to a flat list of text and insertion operations, which is cached by
+  template text so every template with the same text shares one copy, even
+  across archives. Only the most recently used copies are kept, so a
+  long-running program (e.g. BuildDaemon) doesn't keep every old version
+  of an edited template.
 
 ***/
 
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
+import java.nio.file.*;
 
 public class ContentTemplate {
-  // Strings that make up the template
-  private String[] templateStrings;
-  // Order in which content should be inserted.
-  private int[] insertionPoints;
+  // The parsed and compiled template
+  private Compiled compiled;
 
-  // For template scanning - matches {{ or }} only
-  private static Pattern templateDelimiters = Pattern.compile("\\{\\{|\\}\\}");
+  // Most compiled templates kept at once
+  private final static int MAX_COMPILED_TEMPLATES = 256;
+  // Compiled templates, by keywords and template text, least recently used
+  // first
+  private static Map<String, Compiled> compiledTemplates =
+    Collections.synchronizedMap(
+      new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(
+          Map.Entry<String, Compiled> eldest) {
+          return size() > MAX_COMPILED_TEMPLATES;
+        }
+      });
+  // How many templates were compiled, and how many used an already compiled
+  // copy instead, since the program started
+  private static AtomicInteger compiledCount = new AtomicInteger();
+  private static AtomicInteger sharedCount = new AtomicInteger();
+
+  // A template compiled down to one flat list of operations, so that
+  // assemble() is a single tight loop: ops[i] >= 0 appends the content at
+  // that index, and ops[i] < 0 appends literals[-ops[i] - 1]. Empty text
+  // sections are left out.
+  private static class Compiled {
+    // Strings that make up the template
+    final String[] templateStrings;
+    // Order in which content should be inserted.
+    final int[] insertionPoints;
+    final int[] ops;
+    final String[] literals;
+    // Total length of all the literals, for sizing the output
+    final int literalLength;
+    // The template strings all in one string
+    final String fullText;
+    // Keywords that never appear in the template
+    final String[] missingKeywords;
+
+    Compiled(List<String> strings, List<Integer> inserts,
+             List<String> missing) {
+      templateStrings = strings.toArray(new String[0]);
+      insertionPoints = new int[inserts.size()];
+      // Since we can't convert automatically from ArrayList<Integer> to
+      // int[], we have to do this manually.
+      for (int i = 0; i < insertionPoints.length; i++) {
+        insertionPoints[i] = inserts.get(i);
+      }
+      missingKeywords = missing.toArray(new String[0]);
+      ArrayList<String> literalList = new ArrayList<String>();
+      int[] opList = new int[templateStrings.length * 2];
+      int opCount = 0;
+      int textLength = 0;
+      for (int i = 0; i < templateStrings.length; i++) {
+        if (!templateStrings[i].isEmpty()) {
+          literalList.add(templateStrings[i]);
+          opList[opCount++] = -literalList.size();
+          textLength += templateStrings[i].length();
+        }
+        // If i is in range, and the value isn't -1 (not found), insert the
+        // input string here
+        if (i < insertionPoints.length && insertionPoints[i] != -1) {
+          opList[opCount++] = insertionPoints[i];
+        }
+      }
+      ops = Arrays.copyOf(opList, opCount);
+      literals = literalList.toArray(new String[0]);
+      literalLength = textLength;
+      fullText = String.join("", templateStrings);
+    }
+  }
 
   // Old constructor. Deprecated. TODO check for use and replace.
   public ContentTemplate(ArrayList<String> strings, ArrayList<Integer> inserts) {
-    templateStrings = strings.toArray(new String[0]);
-    insertionPoints = new int[inserts.size()];
-    // Since we can't convert directly from ArrayList<Integer> to int[], we
-    // have to do this manually.
-    for (int i = 0; i < insertionPoints.length; i++) {
-      insertionPoints[i] = inserts.get(i);
-    }
+    compiled = new Compiled(strings, inserts, new ArrayList<String>());
   }
 
   // Constructor. Reads a template string from the input file if possible, and
   // constructs the template from the string and keywords. If the file is not
   // valid (i.e. doesn't exist), uses the fallback string as the template
   // string instead.
-  public ContentTemplate(File file, String[] keywords, String fallback) {
+  public ContentTemplate(Path file, String[] keywords, String fallback) {
     // If the file exists and can be read, read it in and use it for our
     // template. Otherwise, use the fallback string.
-    if (file.exists()) {
+    if (Files.exists(file)) {
     //  if (FicArchiveBuilder.isVerbose()) {  // TODO replace verbosity check
-        System.out.println("'" + file.getName() + "' found in input directory."
+        System.out.println("'" + file.getFileName() + "' found in input directory."
                            + " Reading to string...");
     //  }
       this.parseTemplateString(FileToStringUtils.readFileToString(file), keywords);
@@ -53,139 +116,194 @@ public class ContentTemplate {
   }
 
   // Accepts a string and array of keyword strings, and parses and
-  // sets up the internal contents of the template object using them.
+  // sets up the internal contents of the template object using them. The
+  // compiled form is shared by every template with the same text and
+  // keywords, so each distinct template is only parsed once while it's in
+  // use.
   private void parseTemplateString(String templateInput, String[] keywords) {
+    String cacheKey = String.join("\0", keywords) + "\1" + templateInput;
+    Compiled cached = compiledTemplates.get(cacheKey);
+    if (cached == null) {
+      cached = compile(templateInput, keywords);
+      Compiled raced = compiledTemplates.putIfAbsent(cacheKey, cached);
+      if (raced != null) {
+        cached = raced;
+        sharedCount.incrementAndGet();
+      } else {
+        compiledCount.incrementAndGet();
+      }
+    } else {
+      sharedCount.incrementAndGet();
+    }
+    compiled = cached;
+    // Optionally warn for any missing keywords.
+    if (ChiveGenMain.verbosityInt() >= ChiveGenMain.VERBOSE) {
+      for (String keyword : compiled.missingKeywords) {
+        System.out.println("Warning: keyword " + keyword
+                           + " was not found in the file.");
+      }
+      System.out.println("Insertion points: "
+                         + Arrays.toString(compiled.insertionPoints));
+    }
+  }
+
+  // Splits a template string into text sections and keywords. Sections are
+  // split at every {{ or }}; the chunks between them alternate between text
+  // and possible keywords. A chunk that isn't a keyword (after stripping
+  // whitespace) is kept as text, minus its braces.
+  private static Compiled compile(String templateInput, String[] keywords) {
     // For quicker string -> index lookup
     HashMap<String, Integer> keywordMap = GenUtils.hashMapStringToIndex(keywords);
-    // For the ContentTemplate constructor
     ArrayList<String> strings = new ArrayList<String>();
     ArrayList<Integer> inserts = new ArrayList<Integer>();
     // To track in case some keywords aren't found
     boolean[] foundKeywords = new boolean[keywords.length];
-    Arrays.fill(foundKeywords, false);
-    // Scanner to read the input string in chunks
-    Scanner templateReader = new Scanner(templateInput);
     // Build a string of current content until keyword is reached
     StringBuilder currentSection = new StringBuilder();
-    // For keyword comparisons
-    String possibleKeyword;
-    // For the current chunk of text
-    String current;
-    // Use {} delimiters
-    templateReader.useDelimiter(templateDelimiters);
-    // Whether or not we're checking the current chunk for a keyword
-    boolean inKeyword = false;
-    // In case we start with a keyword
-    if (templateInput.startsWith("{{")) {
-      inKeyword = true;
+    // Whether or not we're checking the current chunk for a keyword. A
+    // leading {{ starts us in a keyword (and a leading }} is just skipped)
+    boolean inKeyword = templateInput.startsWith("{{");
+    int length = templateInput.length();
+    int chunkStart = 0;
+    if (templateInput.startsWith("{{") || templateInput.startsWith("}}")) {
+      chunkStart = 2;
     }
-    while (templateReader.hasNext()) {
-      current = templateReader.next();
+    while (chunkStart < length) {
+      int chunkEnd = findDelimiter(templateInput, chunkStart);
       if (inKeyword) {
-        possibleKeyword = current.replaceAll("\\s", ""); // strip spaces
-        //System.out.println("Checking: " + possibleKeyword);
-        // Check if keyset contains the keyword
-        if (keywordMap.keySet().contains(possibleKeyword)) {
-          // Note the insertion point from the hashmap
-          inserts.add(keywordMap.get(possibleKeyword));
-          // Note that we have found this keyword
-          foundKeywords[keywordMap.get(possibleKeyword)] = true;
-          // Add the accumulated string to the template
+        Integer keywordIndex = keywordMap.get(stripWhitespace(templateInput,
+                                                              chunkStart,
+                                                              chunkEnd));
+        if (keywordIndex != null) {
+          // Note the insertion point, and that we have found this keyword
+          inserts.add(keywordIndex);
+          foundKeywords[keywordIndex] = true;
+          // Add the accumulated string to the template, and start over
           strings.add(currentSection.toString());
-          // Reset the string builder
-          currentSection = new StringBuilder();
+          currentSection.setLength(0);
         } else {
-          // If it's not a template keyword,
-          // Add to the template as normal
-          currentSection.append(current);
+          // If it's not a template keyword, add to the template as normal
+          currentSection.append(templateInput, chunkStart, chunkEnd);
         }
-        // Go back to looking for the next keyword
-        inKeyword = false;
       } else {
-        // Add this section to the current stringbuilder
-        currentSection.append(current);
-        inKeyword = true;
+        currentSection.append(templateInput, chunkStart, chunkEnd);
+      }
+      inKeyword = !inKeyword;
+      if (chunkEnd == length) {
+        break;
       }
-      //System.out.println("Currently reading: " + currentSection.toString());
+      chunkStart = chunkEnd + 2;
     }
     // If there's still content in the template string, append it
     if (currentSection.length() != 0) {
       strings.add(currentSection.toString());
     }
-    // Cleanup
-    templateReader.close();
-    // Optionally warn for any missing keywords.
-    // TODO - change this to ChiveGenMain once ready
-    if (FicArchiveBuilder.isVerbose()) {
-      for (int i = 0; i < foundKeywords.length; i++) {
-        if (foundKeywords[i] == false) {
-          System.out.println("Warning: keyword " + keywords[i]
-                             + " was not found in the file.");
-        }
+    ArrayList<String> missing = new ArrayList<String>();
+    for (int i = 0; i < foundKeywords.length; i++) {
+      if (!foundKeywords[i]) {
+        missing.add(keywords[i]);
       }
-      System.out.println("Insertion points: " + inserts);
     }
-    // Set internal variables
-    templateStrings = strings.toArray(new String[0]);
-    insertionPoints = new int[inserts.size()];
-    // Since we can't convert automatically from ArrayList<Integer> to int[], we
-    // have to do this manually.
-    for (int i = 0; i < insertionPoints.length; i++) {
-      insertionPoints[i] = inserts.get(i);
+    return new Compiled(strings, inserts, missing);
+  }
+
+  // Finds the next {{ or }} at or after start, or the end of the string.
+  private static int findDelimiter(String text, int start) {
+    for (int i = start; i < text.length() - 1; i++) {
+      char c = text.charAt(i);
+      if ((c == '{' || c == '}') && text.charAt(i + 1) == c) {
+        return i;
+      }
+    }
+    return text.length();
+  }
+
+  // Gets part of a string with all whitespace (as in the regex \s) removed.
+  private static String stripWhitespace(String text, int start, int end) {
+    StringBuilder stripped = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f'
+          && c != '\r') {
+        stripped.append(c);
+      }
     }
+    return stripped.toString();
   }
 
   // Write the given array of Strings into this template, and return the
   // interleaved result.
   public String assemble(String[] contentToInsert) {
-    if (this.getTemplateStrings().length < 1) {
-      // don't bother for blank template
-      return "";
-    }
-    StringBuilder content = new StringBuilder();
     // if there's nothing to insert, return the full text of the template
     if (contentToInsert.length < 1) {
-      for (int i = 0; i < this.templateStrings.length; i++) {
-        content.append(this.templateStrings[i]);
-      }
-      return content.toString();
+      return compiled.fullText;
     }
-    // Interleave the template strings and content to insert
-    for (int i = 0; i < this.templateStrings.length; i++) {
-      /**
-      if (FicArchiveBuilder.isVerbose()) {  // TODO: ->ChiveGenMain when ready
-        System.out.println("Template line: " + this.templateStrings[i]);
-        if (i < this.insertionPoints.length) {
-          System.out.println("Input line index: " + this.insertionPoints[i]);
-        }
+    int[] ops = compiled.ops;
+    // Work out the exact length first, so the buffer only grows once
+    int size = compiled.literalLength;
+    for (int i = 0; i < ops.length; i++) {
+      if (ops[i] >= 0 && contentToInsert[ops[i]] != null) {
+        size += contentToInsert[ops[i]].length();
       }
-      **/
-      content.append(this.templateStrings[i]);
-      // If i is in range, and the value isn't -1 (not found)
-      // insert the input string
-      if (i < this.insertionPoints.length && this.insertionPoints[i] != -1) {
-        content.append(contentToInsert[this.insertionPoints[i]]);
+    }
+    StringBuilder content = TextBuffers.acquire();
+    content.ensureCapacity(size);
+    return TextBuffers.finish(appendTo(content, contentToInsert));
+  }
+
+  // Write the given array of Strings into this template, appending the
+  // result straight onto the end of the given buffer.
+  public StringBuilder appendTo(StringBuilder out, String[] contentToInsert) {
+    if (contentToInsert.length < 1) {
+      return out.append(compiled.fullText);
+    }
+    int[] ops = compiled.ops;
+    String[] literals = compiled.literals;
+    for (int i = 0; i < ops.length; i++) {
+      int op = ops[i];
+      if (op >= 0) {
+        out.append(contentToInsert[op]);
+      } else {
+        out.append(literals[-op - 1]);
       }
     }
-    return content.toString();
+    return out;
   }
 
   // Get the template strings
   public String[] getTemplateStrings() {
-    return templateStrings;
+    return compiled.templateStrings;
+  }
+
+  // Returns whether the template inserts the content at the given keyword
+  // index anywhere, i.e. whether that content needs building at all.
+  public boolean usesKeyword(int keywordIndex) {
+    int[] ops = compiled.ops;
+    for (int i = 0; i < ops.length; i++) {
+      if (ops[i] == keywordIndex) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // Get the template strings all in one string
   public String toString() {
-    StringBuilder builder = new StringBuilder();
-    for (int i = 0; i < templateStrings.length; ++i) {
-      builder.append(templateStrings[i]);
-    }
-    return builder.toString();
+    return compiled.fullText;
   }
 
   // Get the array of indexes of content to be inserted.
   public int[] getInsertionPoints() {
-    return insertionPoints;
+    return compiled.insertionPoints;
+  }
+
+  // Get the number of distinct templates compiled so far.
+  public static int getCompiledCount() {
+    return compiledCount.get();
+  }
+
+  // Get the number of templates that used an already compiled copy.
+  public static int getSharedCount() {
+    return sharedCount.get();
   }
 }
@@ -4,11 +4,27 @@
   Accepts an input directory and output directory, and builds an archive from
   the input files to the output directory.
 
+  A FicArchiveBuilder holds one archive's settings: the input and output
+  folders, config options, labels and templates. Once it's set up, build()
+  runs a build with a new BuildContext and reports how it went, so the same
+  settings can be built again (or another archive built alongside it) in the
+  same program. Settings can't be changed once a build has started.
+
+  To build an archive from another program:
+
+    FicArchiveBuilder builder =
+      FicArchiveBuilder.configure(input, output, null, true, options,
+                                  Verbosity.BRIEF);
+    BuildReport report = builder.build();
+
 ***/
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.*;
 import java.time.format.*;
 import java.lang.Math;
@@ -17,56 +33,55 @@ public class FicArchiveBuilder {
   /***
     For input and output folders.
   ***/
-  // Files for input folder, template and output folder
-  private static File templateFile;
-  private static File input;
-  private static File output;
+  // Paths for input folder and template (which may be inside a zip or tar),
+  // and File for output folder
+  private Path templateFile;
+  private Path input;
+  private File output;
   // Holds the paths for input/output/template as parsed from args
   // (so we don't put them into a File object right away)
-  private static String inputPath = "";
-  private static String templatePath = "";
-  private static String outputPath = "";
-  // Scanner for template
-  private static Scanner templateReader;
-
-  /***
-    Array of all stories in archive
-  ***/
-  private static Story[] stories;
+  private String inputPath = "";
+  private String templatePath = "";
+  private String outputPath = "";
 
   /***
     The standard sets of fields for each template
   ***/
-  private static String[] standardKeywords =
+  private final static String[] standardKeywords =
     new String[] {"Title", "Main", "Footer"};
 
-  private static String[] storyInfoKeywords =
+  private final static String[] storyInfoKeywords =
     new String[] {"StoryTitle", "Fandom", "Wordcount", "Chapters", "Published",
                   "Updated", "Summary", "IsComplete", "Author", "Tags",
                   "Rating"};
 
-  private static String[] chapterKeywords =
+  private final static String[] chapterKeywords =
     new String[] {"StoryInfo", "ChapterTitle", "StoryNotes", "ChapterNotes",
                   "ChapterBody", "ChapterEndNotes", "EndNotes",
                   "ChapterPagination"};
+  // Fields of chapterKeywords that are filled in separately from the rest
+  // (e.g. by the page model)
+  public final static int CHAPTER_STORY_INFO = 0;
+  public final static int CHAPTER_BODY = 4;
+  public final static int CHAPTER_PAGINATION = 7;
 
-  private static String[] paginationKeywords =
+  private final static String[] paginationKeywords =
     new String[] {"Previous", "JumpPrev", "JumpCurrent", "JumpNext", "Next"};
 
-  private static String[] chapterPaginationKeywords =
+  private final static String[] chapterPaginationKeywords =
     new String[] {"Previous", "Next"};
 
-  private static String[] workIndexKeywords =
+  private final static String[] workIndexKeywords =
     new String[] {"Navigation", "ListingTitle", "CurrentlyShowing", "Listings",
                   "Pagination"};
 
-  private static String[] statsWidgetKeywords =
+  private final static String[] statsWidgetKeywords =
     new String[] {"StoryNumber", "TotalWordcount", "FandomNumber",
                   "AuthorNumber", "VersionNumber"};
 
-  private static String[] fieldKeywords = new String[] {"L", "C"};
+  private final static String[] fieldKeywords = new String[] {"L", "C"};
 
-  private static String[] allKeywords =
+  private final static String[] allKeywords =
     new String[] {"Title", "Main", "Footer", "StoryTitle", "Fandom",
                   "Wordcount", "Chapters", "Published", "Updated", "Summary",
                   "IsComplete", "Author", "Tags", "Rating", "StoryInfo",
@@ -80,222 +95,314 @@ public class FicArchiveBuilder {
   /***
     The template objects used to build pages, fields, etc
   ***/
-  private static ContentTemplate pageContentTemplate;
-  private static ContentTemplate infoBoxContentTemplate;
-  private static ContentTemplate indexInfoBoxContentTemplate;
-  private static ContentTemplate chapterContentTemplate;
-  private static ContentTemplate workIndexContentTemplate;
-  private static ContentTemplate paginationContentTemplate;
-  private static ContentTemplate chapterPaginationContentTemplate;
-  private static ContentTemplate fieldContentTemplate;
-  private static ContentTemplate summaryContentTemplate;
-  private static ContentTemplate byLineContentTemplate;
-  private static ContentTemplate tagContentTemplate;
+  private ContentTemplate pageContentTemplate;
+  private ContentTemplate infoBoxContentTemplate;
+  private ContentTemplate indexInfoBoxContentTemplate;
+  private ContentTemplate chapterContentTemplate;
+  private ContentTemplate workIndexContentTemplate;
+  private ContentTemplate paginationContentTemplate;
+  private ContentTemplate chapterPaginationContentTemplate;
+  private ContentTemplate fieldContentTemplate;
+  private ContentTemplate summaryContentTemplate;
+  private ContentTemplate byLineContentTemplate;
+  private ContentTemplate tagContentTemplate;
 
 
   // To use for config
-  private static HashSet<String> validConfigSettingSet;
-  private static String[] validConfigSettingNames =
+  private HashSet<String> validConfigSettingSet;
+  private final static String[] validConfigSettingNames =
     new String[] {"title", "sitename", "footer", "sitepath", "maxitemsperpage",
                   "includestylesheets", "showchapternumbers", "casualhtml",
                   "usebylines", "generatefieldlabels", "ignoreleadingthe",
                   "skipjumppagination", "skipemptyfields", "ignoretabs",
-                  "skippage", "statswidget", "paginationdivider"};
+                  "skippage", "statswidget", "paginationdivider",
+                  "outputformat", "hashfanout", "assetfolder",
+                  "iothreads", "catalog", "cachedir", "pipelinethreads"};
 
   // Used to check for a valid metadata field
-  private static HashSet<String> validStoryMetadataSet;
-  private static String[] validStoryMetadataTypes =
+  private final static String[] validStoryMetadataTypes =
     new String[] {"title", "fandom", "fandoms", "author", "creator", "summary",
                   "notes", "end notes", "tags", "characters", "words", "length",
                   "wordcount", "rating", "rated", "complete", "date updated",
                   "updated", "date published", "published", "date posted",
                   "posted"};
+  private final static HashSet<String> validStoryMetadataSet =
+    GenUtils.hashSetFromArray(validStoryMetadataTypes);
 
 
   /***
     Strings for various bits and bobs used to create the site.
   ***/
   // Used when building chapter pages
-  private static String nextChapterButton = "Next Chapter";
-  private static String prevChapterButton = "Previous Chapter";
-  private static String tocButton = "Table of Contents";
+  private String nextChapterButton = "Next Chapter";
+  private String prevChapterButton = "Previous Chapter";
+  private String tocButton = "Table of Contents";
   // Used when building infoboxes
-  private static String fandomLabel = "Fandom";
-  private static String updatedLabel = "Updated";
-  private static String publishedLabel = "Published";
-  private static String wordcountLabel = "Words";
-  private static String chapterCountLabel = "Chapters";
-  private static String completionLabel = "Complete";
-  private static String summaryLabel = "Summary";
-  private static String notesLabel = "Notes";
-  private static String endNotesLabel = "End Notes";
-  private static String authorLabel = "Author";
-  private static String tagsLabel = "Tags";
-  private static String ratingLabel = "Rating";
-  private static String nextPageLabel = "Next Page";
-  private static String prevPageLabel = "Previous Page";
+  private String fandomLabel = "Fandom";
+  private String updatedLabel = "Updated";
+  private String publishedLabel = "Published";
+  private String wordcountLabel = "Words";
+  private String chapterCountLabel = "Chapters";
+  private String completionLabel = "Complete";
+  private String summaryLabel = "Summary";
+  private String notesLabel = "Notes";
+  private String endNotesLabel = "End Notes";
+  private String authorLabel = "Author";
+  private String tagsLabel = "Tags";
+  private String ratingLabel = "Rating";
+  private String nextPageLabel = "Next Page";
+  private String prevPageLabel = "Previous Page";
   // Used for archive ratings system
-  private static String ratingLevelG = "G";
-  private static String ratingLevelPG = "PG";
-  private static String ratingLevelT = "T";
-  private static String ratingLevelM = "MA";
-  private static String ratingLevelE = "E";
-  private static String ratingLevelNR = "Not Rated";
+  private String ratingLevelG = "G";
+  private String ratingLevelPG = "PG";
+  private String ratingLevelT = "T";
+  private String ratingLevelM = "MA";
+  private String ratingLevelE = "E";
+  private String ratingLevelNR = "Not Rated";
   // Used for completion statuses
-  private static String[] completionStatuses = new String[] {"Yes", "No"};
+  private String[] completionStatuses = new String[] {"Yes", "No"};
   // Used on certain pages titles
-  private static String titleIndexLabel = "Stories by Title";
-  private static String latestIndexLabel = "Stories by Date Updated";
+  private String titleIndexLabel = "Stories by Title";
+  private String latestIndexLabel = "Stories by Date Updated";
   // Name of website. Used in various places.
-  private static String siteName = "Archive";
+  private String siteName = "Archive";
   // Regex template for page titles.
-  private static String titleTemplate = "{T} - {S}";
-  private static String titleBase; // the version with the site name in it
+  private String titleTemplate = "{T} - {S}";
+  private String titleBase; // the version with the site name in it
+  // Compiled versions of the above, built once the config has been read
+  private TextFormatter titleFormatter;
+  private TextFormatter titleBaseFormatter;
   // Regex template for footers.
-  private static String footerTemplate = "{{SiteName}} | Powered by ChiveGen "
+  private String footerTemplate = "{{SiteName}} | Powered by ChiveGen "
                                          + ChiveGenMain.versionString;
   // Built with buildPageFooter()
-  private static String standardFooter;
+  private String standardFooter;
   // What we should prefix links with when linking from
   // an arbitrary page to the index
-  private static String sitePath = "/";
+  private String sitePath = "/";
   // Possible future feature - URL customization for category folders
-  private static String storyDirectoryName = "stories";
-  private static String fandomDirectoryName = "fandom";
-  private static String authorDirectoryName = "author";
-  private static String tagsDirectoryname = "tag";
+  private String storyDirectoryName = "stories";
+  private String fandomDirectoryName = "fandom";
+  private String authorDirectoryName = "author";
+  private String tagsDirectoryname = "tag";
 
   /***
     Default templates for other page elements. These are overridden if an
     appropriate file exists.
   ***/
-  private static String pageTemplate = "<!DOCTYPE html>\n<html>\n<head>"
+  private String pageTemplate = "<!DOCTYPE html>\n<html>\n<head>"
     + "{{Title}}</head>\n<body>\n{{Main}}\n<footer>{{Footer}}</footer>\n</body>"
     + "\n</html>";
-  private static String storyInfoTemplate =
+  private String storyInfoTemplate =
     "<div class=storyinfo>\n<h2>\n{{StoryTitle}}\n</h2>\n{{Author}}\n"
     + "{{Fandom}}\n{{Rating}}\n{{Wordcount}}\n{{Chapters}}\n{{Published}}\n"
     + "{{Updated}}\n{{Summary}}\n</div>";
-  private static String indexStoryInfoTemplate = storyInfoTemplate;
-  private static String chapterTemplate = "{{StoryInfo}}\n"
+  private String indexStoryInfoTemplate = storyInfoTemplate;
+  private String chapterTemplate = "{{StoryInfo}}\n"
     + "<div class=\"chapter-nav top-nav\"><a href=\"toc.html\">"
     + "Table of Contents</a>\n{{ChapterPagination}}\n</div>\n"
     + "<h3>\n{{ChapterTitle}}\n</h3>\n<div class=notes>\n{{StoryNotes}}\n"
     + "</div>\n{{ChapterBody}}\n<div class=notes>\n{{EndNotes}}\n</div>"
     + "<div class=\"chapter-nav bottom-nav\">\n{{ChapterPagination}}\n</div>";
-  private static String chapterPaginationTemplate =
+  private String chapterPaginationTemplate =
    "<div class=chapter-pagination>\n{{Previous}}\n{{Next}}\n</div>";
-  private static String paginationTemplate =
+  private String paginationTemplate =
     "<div class=pagination>\n{{Previous}}\n{{JumpPrev}}\n<span>{{JumpCurrent}}"
     + "</span>\n{{JumpNext}}\n{{Next}}\n</div>";
-  private static String workIndexTemplate =
+  private String workIndexTemplate =
     "{{Navigation}}\n<h1>{{ListingTitle}}</h1>\n<h2>{{CurrentlyShowing}}</h2>"
     + "\n{{Pagination}}<div class=listings>{{Listings}}</div>{{Pagination}}";
-  private static String fieldTemplate = "{{L}}: {{C}}";
-  private static String summaryTemplate = fieldTemplate + "DEGBU!!!";
-  private static String byLineTemplate = " by {{C}}";
-  private static String workIndexNavigationTemplate =
+  private String fieldTemplate = "{{L}}: {{C}}";
+  private String summaryTemplate = fieldTemplate + "DEGBU!!!";
+  private String byLineTemplate = " by {{C}}";
+  private String workIndexNavigationTemplate =
     "<div class=listingnav>{C}</div>";
-  private static String tagTemplate =
+  private String tagTemplate =
     "<div class=tag><a href=\"{{C}}\">{{L}}</a></div>";
-  private static String chapterTitleTemplate = "Chapter {{L}}: {{C}}";
+  private String chapterTitleTemplate = "Chapter {{L}}: {{C}}";
+  // Compiled versions of the one-line templates above
+  private TextFormatter summaryFormatter;
+  private TextFormatter chapterTitleFormatter;
+  private TextFormatter workIndexNavigationFormatter =
+    new TextFormatter(workIndexNavigationTemplate, "{C}", "{L}");
 
   /***
     Scanner patterns for template and file reading.
   ***/
   // Match {{ or }} only
-  private static Pattern templateDelimiters = Pattern.compile("\\{\\{|\\}\\}");
+  private final static Pattern templateDelimiters = Pattern.compile("\\{\\{|\\}\\}");
   // Stupid hack that should probably be replaced with something more normal -
   // Use the 0 (end) character as a delimiter for scanning a whole file in as
   // few loops as possible.
-  private static Pattern fastScanningPattern =
+  private final static Pattern fastScanningPattern =
     Pattern.compile(Character.toString((char)0));
 
   /***
     To provide formatting for dates such as date updated/date published.
     Currently unused.
   ***/
-  private static DateTimeFormatter dateFormat;
-
-  /***
-    Used to create pages for works by tags, fandom, and author.
-  ***/
-  private static HashMap<String, ArrayList<Story>> archiveTagMap;
-  private static HashMap<String, ArrayList<Story>> archiveFandomMap;
-  private static HashMap<String, ArrayList<Story>> archiveAuthorMap;
+  private DateTimeFormatter dateFormat;
 
   /***
     Various other configuration options.
   ***/
   // Maximum number of items per page
-  private static int maxItemsPerPage = 20;
+  private int maxItemsPerPage = 20;
   // False if we choose to skip CSS files
-  private static boolean includeStyleSheets = true;
+  private boolean includeStyleSheets = true;
   // Add chapter numbers in chapter title (i.e. "Chapter N: Chapter Title")
-  private static boolean showChapterNumbers = false;
+  private boolean showChapterNumbers = false;
   // Generate built-in labels for infobox fields
   // (If false, assume they already exist in the page template)
-  private static boolean generateInfoBoxTemplateFields = true;
+  private boolean generateInfoBoxTemplateFields = true;
   // Format author data as "by AUTHOR" rather than "Author: AUTHOR"
-  private static boolean useByLine = false;
+  private boolean useByLine = false;
   // Automatically insert paragraph tags if not present
-  private static boolean casualHTML = false;
+  private boolean casualHTML = false;
   // Skip empty metadata fields instead of autopopulating
-  private static boolean skipEmptyFields = false;
+  private boolean skipEmptyFields = false;
   // Ignore a leading "The" when sorting by title, fandom, etc
   // E.g. if true, sorting by title puts "The Cask of Amontillado" before "Romeo and Juliet"
-  private static boolean ignoreLeadingThe = false;
+  private boolean ignoreLeadingThe = false;
   // Don't generate jump pagination (i.e. links to specific pages)
-  private static boolean skipJumpPagination;
+  private boolean skipJumpPagination;
   // Don't bother trying to make the tab level match when adding output text to file
-  private static boolean ignoreTabs = false;
+  private boolean ignoreTabs = false;
   // Don't create pages for the following:
-  private static boolean skipHomepage = false;
-  private static boolean skipWorkIndices = false;
-  private static boolean skipTitleIndex = false;
-  private static boolean skipFandomIndex = false;
-  private static boolean skipLatestIndex = false;
-  private static boolean skipAuthorIndex = false;
-  private static boolean skipTagPages = false;
+  private boolean skipHomepage = false;
+  private boolean skipWorkIndices = false;
+  private boolean skipTitleIndex = false;
+  private boolean skipFandomIndex = false;
+  private boolean skipLatestIndex = false;
+  private boolean skipAuthorIndex = false;
+  private boolean skipTagPages = false;
   // Put some stats about the archive on the homepage?
-  private static boolean homePageStatsWidget = true;
+  private boolean homePageStatsWidget = true;
   // Format dates?
-  private static boolean autoFormatDates = false;
+  private boolean autoFormatDates = false;
   // If true, put EPOCH (1970-01-01) for missing pub/update dates for sorting
   // Otherwise, try getting creation and last modified dates from the story
   // input folder.
-  private static boolean defaultToEpochDate = true;
+  private boolean defaultToEpochDate = true;
   // If true, show the actual placeholder/default fallback dates. Otherwise,
   // just put "undated".
-  private static boolean showDefaultDates = false;
+  private boolean showDefaultDates = false;
 
   // EXPERIMENTAL - URL divider between name and page # for paginated
   // archive categories.
   // Defaults to '/', creating subfolders for pages of a category, but could
   // be changed to allow for easier non-recursive page uploading.
-  private static String paginationDivider = "/";
+  private String paginationDivider = "/";
+
+  // If true, write every page into a single site pack (see SitePackWriter)
+  // instead of creating a file for each page.
+  private boolean packOutput = false;
+  // Number of hex digits in the hash prefix folders that stories and
+  // category pages are fanned out into. 0 means no fan-out.
+  private int hashFanOutDigits = 0;
+  // Name of the folder in the input directory holding static files (images,
+  // fonts, etc) to copy as-is. Not treated as a story folder.
+  private String assetFolderName = "assets";
+  // How many threads to use for reading input when virtual threads aren't
+  // available. Input reads mostly wait on the disk (or network), so this can
+  // be much higher than the number of cores.
+  private int ioThreads = 32;
+  // How many threads to use in each stage of the page pipeline (see
+  // PagePipeline): chapter readers, renderers and page writers
+  private int[] pipelineThreads =
+    new int[] {4, Runtime.getRuntime().availableProcessors(), 2};
+  // Archive-wide story metadata file (see ArchiveCatalog). Relative paths
+  // are inside the input folder. If empty, the default names are looked for.
+  private String catalogPath = "";
+  // Folder to keep the chapter body cache in between builds (see
+  // ChapterBodyCache). Relative paths are from the current folder. If
+  // empty, chapter bodies aren't cached.
+  private String cacheDir = "";
+  // If true, rebuild every page from the saved page model with the current
+  // templates, instead of reading the stories again
+  private boolean templatesOnly = false;
+  // If true, skip the work a stopped build with the same settings already
+  // finished, as saved in its checkpoint (see BuildCheckpoint)
+  private boolean resume = false;
+  // Which stories to put in the archive (see StoryFilter)
+  private StoryFilter storyFilter = new StoryFilter();
+  // Field labels file to use instead of labels.txt in the input folder, if
+  // any
+  private String labelsPath = "";
+  // Parsed stories and chapter bodies shared with other builds of the same
+  // input (see SharedInput), or null to read everything for this build
+  private SharedInput sharedInput;
+  // Which shard of the story folders to build (1 to shardCount) and how many
+  // shards there are, or 0 to build every story (see ArchiveShards)
+  private int shard = 0;
+  private int shardCount = 0;
+  // If true, build the index pages from every shard's partial instead
+  private boolean mergeShards = false;
+  // Folder shard partials are kept in. If empty, OUTPUT-shards next to the
+  // output folder.
+  private String shardDir = "";
 
   /***
      VERBOSITY - under overhaul/refactor. Current/old settings as follows.
   ***/
   // Show extra print statements for various functions
-  private static boolean verbose = false;
+  private boolean verbose = false;
   // Skip some print statements that print by default
-  private static boolean brief = false;
+  private boolean brief = false;
 
   // Variables for main to decide if certain things should actually be executed.
-  private static boolean readyToBuild = true; // true if we're ready to build the site, false otherwise
-  private static boolean useConfigFile = true; // true if config is detected and not disabled
-  private static boolean building = true; // false if the command is something else like --man or --license
-  private static boolean archiveHasFandoms = false; // true only if at least one story has a fandom in the metadata
-  private static boolean archiveHasAuthors = false; // true only if at least one story has an author in the metadata
-  private static boolean archiveHasTags = false; // true only if at least one story has tags
+  private boolean readyToBuild = true; // true if we're ready to build the site, false otherwise
+  private boolean useConfigFile = true; // true if config is detected and not disabled
+  private boolean building = true; // false if the command is something else like --man or --license
+  // Set once a build has started, after which settings can't be changed
+  private boolean locked = false;
+  // Set if an option's value couldn't be used (e.g. an --only-rating that
+  // isn't a rating), so the archive isn't built without it
+  private boolean invalidOptions = false;
 
 
   /*** PRE-BUILD CONFIGURATION FUNCTIONS ***/
 
+  // Sets up a builder the same way the command line does: reads config.txt
+  // from the input folder (if useConfigFile), then the options (anything
+  // parseArgs() accepts), then any custom label files, and builds the
+  // templates. If template is null, template.html in the input folder is
+  // used.
+  public static FicArchiveBuilder configure(Path input, File output,
+                                            Path template,
+                                            boolean useConfigFile,
+                                            String[] options,
+                                            Verbosity verbosity) {
+    FicArchiveBuilder builder = new FicArchiveBuilder();
+    if (template == null) {
+      template = input.resolve("template.html");
+    }
+    builder.setFilePaths(input, output, template);
+    // Pass additional arguments AFTER any config file has been read and parsed.
+    if (useConfigFile) {
+      builder.readConfig();
+    }
+    builder.parseArgs(options);
+    // Check in the input folder for any custom labels to set
+    builder.getCustomLabels();
+    // Build the standard content templates
+    builder.buildTemplates();
+    builder.setVerbosity(verbosity);
+    return builder;
+  }
+
+  // Stops settings from being changed once a build has started, since the
+  // build (and any other build of this archive) is using them.
+  private void checkNotLocked() {
+    if (locked) {
+      throw new IllegalStateException("archive settings can't be changed "
+                                      + "once a build has started");
+    }
+  }
+
   // Sets the input, output, and template paths.
-  public static void setFilePaths(File in, File out, File template) {
+  public void setFilePaths(Path in, File out, Path template) {
+    checkNotLocked();
     input = in;
     output = out;
     templateFile = template;
@@ -304,7 +411,8 @@ public class FicArchiveBuilder {
   // Temporary function to set verbosity from ChiveGenMain. Will be replaced
   // along with all current use of 'verbose' and 'brief' once verbosity overhaul
   // is complete.
-  public static void setVerbosity(Verbosity v) {
+  public void setVerbosity(Verbosity v) {
+    checkNotLocked();
     if (v.ordinal() <= ChiveGenMain.BRIEF) {
       brief = true;
       verbose = false;
@@ -317,25 +425,33 @@ public class FicArchiveBuilder {
   // Checks in the input folder for any custom label files (field labels,
   // ratings, completion codes, etc.), reads in the files and sets them in
   // the global archive settings.
-  public static void getCustomLabels() {
+  public void getCustomLabels() {
+    checkNotLocked();
     // Check for files with labels, ratings, etc, and use them to
     // override defaults if so.
-    File fieldLabels = new File(input, "labels.txt");
-    if (fieldLabels.exists()) {
+    Path fieldLabels = input.resolve("labels.txt");
+    if (!labelsPath.equals("")) {
+      fieldLabels = Paths.get(labelsPath);
+      if (!Files.exists(fieldLabels)) {
+        System.out.println("Error: field labels file " + labelsPath
+                           + " does not exist. Using the default labels.");
+      }
+    }
+    if (Files.exists(fieldLabels)) {
       if (verbose) {
         System.out.println("Field labels file found in input directory.");
       }
       setFieldLabels(fieldLabels);
     }
-    File customRatings = new File(input, "ratings.txt");
-    if (customRatings.exists()) {
+    Path customRatings = input.resolve("ratings.txt");
+    if (Files.exists(customRatings)) {
       if (verbose) {
         System.out.println("Custom ratings file found in input directory.");
       }
       setRatings(customRatings);
     }
-    File customCompletionCodes = new File(input, "completion.txt");
-    if (customCompletionCodes.exists()) {
+    Path customCompletionCodes = input.resolve("completion.txt");
+    if (Files.exists(customCompletionCodes)) {
       if (verbose) {
         System.out.println("Custom completion statuses file found in input "
                            + "directory.");
@@ -346,9 +462,10 @@ public class FicArchiveBuilder {
 
   // Reads a set of field labels from file.
   // File must have ALL labels included, even non-custom ones!
-  public static void setFieldLabels(File labelsFile) {
+  public void setFieldLabels(Path labelsFile) {
+    checkNotLocked();
     try {
-      Scanner labelReader = new Scanner(labelsFile);
+      Scanner labelReader = FileToStringUtils.openScanner(labelsFile);
       // Used when building chapter pages
       try {
         nextPageLabel = labelReader.nextLine();
@@ -375,7 +492,7 @@ public class FicArchiveBuilder {
         return; // stop trying to read the file
       }
       labelReader.close();
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       System.out.println("Error: tried to read the field labels file, but it "
                          + "could not be found.");
       e.printStackTrace();
@@ -384,9 +501,10 @@ public class FicArchiveBuilder {
 
   // Reads a set of ratings from file as the archive ratings.
   // File must have ALL labels included, even non-custom ones!
-  public static void setRatings(File ratingsList) {
+  public void setRatings(Path ratingsList) {
+    checkNotLocked();
     try {
-      Scanner ratingsReader = new Scanner(ratingsList);
+      Scanner ratingsReader = FileToStringUtils.openScanner(ratingsList);
       // Used when building chapter pages
       try {
         ratingLevelG = ratingsReader.nextLine();
@@ -403,7 +521,7 @@ public class FicArchiveBuilder {
         return; // stop trying to read the file
       }
       ratingsReader.close();
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       System.out.println("Error: tried to read the ratings file, but it could "
                          + "not be found.");
       e.printStackTrace();
@@ -411,9 +529,10 @@ public class FicArchiveBuilder {
   }
 
   // Reads a set of strings from file as the completion statuses.
-  public static void setCompletionStatuses(File statuses) {
+  public void setCompletionStatuses(Path statuses) {
+    checkNotLocked();
     try {
-      Scanner statusReader = new Scanner(statuses);
+      Scanner statusReader = FileToStringUtils.openScanner(statuses);
       // Used when building chapter pages
       try {
         completionStatuses[0] = statusReader.nextLine();
@@ -426,7 +545,7 @@ public class FicArchiveBuilder {
         return; // stop trying to read the file
       }
       statusReader.close();
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       System.out.println("Error: tried to read the completion statuses file, "
                          + "but it could not be found.");
       e.printStackTrace();
@@ -435,16 +554,21 @@ public class FicArchiveBuilder {
 
 
   // Builds all of the various ContentTemplates use to generate site HTML
-  public static void buildTemplates() {
+  public void buildTemplates() {
+    checkNotLocked();
     // Generate the content templates from the various input files.
     System.out.println("Building content templates...");
     pageTemplate = getTemplateFromFile(templateFile, pageTemplate);
     chapterTitleTemplate =
-      getTemplateFromFile(new File(input, "chaptertitles.txt"),
+      getTemplateFromFile(input.resolve("chaptertitles.txt"),
                           chapterTitleTemplate);
     summaryTemplate =
-      getTemplateFromFile(new File(input, "summaries.txt"),
+      getTemplateFromFile(input.resolve("summaries.txt"),
                           summaryTemplate);
+    // Chained String.replace() order was {{C}} then {{L}}
+    chapterTitleFormatter =
+      new TextFormatter(chapterTitleTemplate, "{{C}}", "{{L}}");
+    summaryFormatter = new TextFormatter(summaryTemplate, "{{C}}", "{{L}}");
     if (verbose) {
       System.out.println("Constructing standard page template...");
     }
@@ -453,14 +577,14 @@ public class FicArchiveBuilder {
     if (verbose) {
       System.out.println("Constructing story infobox templates...");
     }
-    infoBoxContentTemplate = new ContentTemplate(new File(input, "infobox.txt"),
+    infoBoxContentTemplate = new ContentTemplate(input.resolve("infobox.txt"),
                                                  storyInfoKeywords,
                                                  storyInfoTemplate);
     // If we have a specific index infobox style, build that template;
     // otherwise, use the default infobox that we've already established
-    if ((new File(input, "infobox_index.txt").exists())) {
+    if (Files.exists(input.resolve("infobox_index.txt"))) {
       indexInfoBoxContentTemplate =
-        new ContentTemplate(new File(input, "infobox_index.txt"),
+        new ContentTemplate(input.resolve("infobox_index.txt"),
                             storyInfoKeywords, storyInfoTemplate);
     } else {
       indexInfoBoxContentTemplate = infoBoxContentTemplate;
@@ -468,38 +592,38 @@ public class FicArchiveBuilder {
     if (verbose) {
       System.out.println("Constructing chapter page template...");
     }
-    chapterContentTemplate = new ContentTemplate(new File(input, "chapter.txt"),
+    chapterContentTemplate = new ContentTemplate(input.resolve("chapter.txt"),
                                                  chapterKeywords,
                                                  chapterTemplate);
     if (verbose) {
       System.out.println("Constructing work index page template...");
     }
     workIndexContentTemplate =
-      new ContentTemplate(new File(input, "stories_by.txt"), workIndexKeywords,
+      new ContentTemplate(input.resolve("stories_by.txt"), workIndexKeywords,
                                    workIndexTemplate);
     if (verbose) {
       System.out.println("Constructing pagination template...");
     }
     paginationContentTemplate =
-      new ContentTemplate(new File(input, "pagination.txt"), paginationKeywords,
+      new ContentTemplate(input.resolve("pagination.txt"), paginationKeywords,
                           paginationTemplate);
     if (verbose) {
       System.out.println("Constructing chapter pagination template...");
     }
     chapterPaginationContentTemplate =
-      new ContentTemplate(new File(input, "chapterpagination.txt"),
+      new ContentTemplate(input.resolve("chapterpagination.txt"),
                           chapterPaginationKeywords,
                           chapterPaginationTemplate);
     if (verbose) {
       System.out.println("Constructing field template...");
     }
-    fieldContentTemplate = new ContentTemplate(new File(input, "fields.txt"),
+    fieldContentTemplate = new ContentTemplate(input.resolve("fields.txt"),
                                                fieldKeywords, fieldTemplate);
     if (verbose) {
       System.out.println("Constructing summary template...");
     }
     summaryContentTemplate =
-      new ContentTemplate(new File(input, "summaries.txt"), fieldKeywords,
+      new ContentTemplate(input.resolve("summaries.txt"), fieldKeywords,
                           summaryTemplate);
     // Dont bother with this one unless we're actually using the byline
     if (useByLine) {
@@ -512,18 +636,23 @@ public class FicArchiveBuilder {
       System.out.println("Reading tag template...");
     }
     tagContentTemplate = new ContentTemplate(tagTemplate, fieldKeywords);
+    // Create a standard page footer and title (template)
+    titleFormatter = new TextFormatter(titleTemplate, "{S}", "{T}");
+    standardFooter = buildPageFooter();
+    titleBase = buildPageTitleBase(siteName);
+    titleBaseFormatter = new TextFormatter(titleBase, "{T}");
   }
 
-  // Returns either the string contents of the File argument, or the original
-  // String argument if no such File exists.
-  public static String getTemplateFromFile(File f, String s) {
-    if (f.exists()) {
+  // Returns either the string contents of the Path argument, or the original
+  // String argument if no such file exists.
+  public String getTemplateFromFile(Path f, String s) {
+    if (Files.exists(f)) {
       if (!brief) {
-        System.out.println("'" + f.getName() + "' found in input directory." +
+        System.out.println("'" + f.getFileName() + "' found in input directory." +
         " Reading to string...");
       }
       /***
-      ChiveGenMain.printStatus("'" + f.getName() + "' found in input directory."
+      ChiveGenMain.printStatus("'" + f.getFileName() + "' found in input directory."
                                + " Reading to string...",
                                Verbosity.NORMAL);
                                ***/
@@ -537,7 +666,7 @@ public class FicArchiveBuilder {
   // with 't' or false if it starts with 'f'.
   // If the string begins with neither character (meaning it was invalid),
   // the function returns the original boolean.
-  public static boolean quickParseTrueFalse(String s, boolean b) {
+  public boolean quickParseTrueFalse(String s, boolean b) {
     s = s.toLowerCase();
     if (s.charAt(0) == 't') {
       return true;
@@ -559,22 +688,23 @@ public class FicArchiveBuilder {
 
   // Reads the config.txt file from the established input folder and parses
   // settings appropriately.
-  public static void readConfig() {
-    if (!input.exists()) {
+  public void readConfig() {
+    checkNotLocked();
+    if (!Files.exists(input)) {
       System.out.println("Error: tried to read config, but no input file "
                          + "exists.");
       return;
     }
-    File siteConfigFile = new File(input, "config.txt");
+    Path siteConfigFile = input.resolve("config.txt");
     validConfigSettingSet = GenUtils.hashSetFromArray(validConfigSettingNames);
-    if (siteConfigFile.exists()) {
+    if (Files.exists(siteConfigFile)) {
       System.out.println("Config file detected. Config settings will be used "
         + "unless contradicted by command line arguments.");
       //read config file
       // for each line: use a hashset to check that the label is valid,
       // then switch statement using 1st char and disambig from there
       try {
-        Scanner configReader = new Scanner(siteConfigFile);
+        Scanner configReader = FileToStringUtils.openScanner(siteConfigFile);
         int i = 0; // to track current line number
         while (configReader.hasNextLine()) {
           // break input into 2 strings: metadata name, and content
@@ -589,8 +719,19 @@ public class FicArchiveBuilder {
               // comparison. This is a little imprecise, but faster
               // than checking the full string.
               switch (currentLineData[0].charAt(0)) {
+                case 'a':
+                  assetFolderName = currentLineData[1].trim();
+                  break;
                 case 'c':
-                  casualHTML = quickParseTrueFalse(currentLineData[1], casualHTML);
+                  if (currentLineData[0].charAt(2) == 't') {
+                    catalogPath = currentLineData[1].trim();
+                  }
+                  else if (currentLineData[0].charAt(2) == 'c') {
+                    cacheDir = currentLineData[1].trim();
+                  }
+                  else {
+                    casualHTML = quickParseTrueFalse(currentLineData[1], casualHTML);
+                  }
                   break;
                 case 'f':
                   footerTemplate = currentLineData[1];
@@ -599,8 +740,15 @@ public class FicArchiveBuilder {
                   generateInfoBoxTemplateFields = quickParseTrueFalse(currentLineData[1],
                   generateInfoBoxTemplateFields);
                   break;
+                case 'h':
+                  hashFanOutDigits = parseFanOutDigits(currentLineData[1]);
+                  break;
                 case 'i':
-                  if (currentLineData[0].charAt(1) == 'n') {
+                  if (currentLineData[0].charAt(1) == 'o') {
+                    ioThreads = parsePositiveInt(currentLineData[1], ioThreads,
+                                                 "iothreads");
+                  }
+                  else if (currentLineData[0].charAt(1) == 'n') {
                     includeStyleSheets = quickParseTrueFalse(currentLineData[1],
                     includeStyleSheets);
                   }
@@ -621,7 +769,14 @@ public class FicArchiveBuilder {
                     currentLineData[1] + "'. Leaving as default (20).");
                   }
                   break;
+                case 'o':
+                  packOutput = currentLineData[1].trim().equalsIgnoreCase("pack");
+                  break;
                 case 'p':
+                  if (currentLineData[0].charAt(1) == 'i') {
+                    pipelineThreads = parsePipelineThreads(currentLineData[1]);
+                    break;
+                  }
                   paginationDivider = currentLineData[1];
                 case 's':
                   // si...
@@ -695,7 +850,7 @@ public class FicArchiveBuilder {
             }
           }
         }
-      } catch (FileNotFoundException e) {
+      } catch (IOException e) {
         System.out.println("Error: config file was detected, but found missing.");
       }
     }
@@ -707,7 +862,7 @@ public class FicArchiveBuilder {
   // Looks at args to get input and output folders
   // DEPRECATED - these controls are being moved to ChiveGenMain.
   /***
-  public static void parseFolderArgs(String[] args) {
+  public void parseFolderArgs(String[] args) {
     // Print a warning if there are no arguments given
     if (args.length == 0) {
       building = false;
@@ -768,7 +923,8 @@ public class FicArchiveBuilder {
 
   // Parses the argument list for main, and sets relevant internal variables
   // based on this input.
-  public static void parseArgs(String[] args) {
+  public void parseArgs(String[] args) {
+    checkNotLocked();
     /***
     // Print a warning if there are no arguments given
     if (args.length == 0) {
@@ -897,312 +1053,354 @@ public class FicArchiveBuilder {
       else if (args[i].equals("--show-auto-dates")) {
         showDefaultDates = true;
       }
-    }
-  }
-
-  // Helper function for printing certain argument parsing error messages.
-  private static void printArgsError(String arg, String argType) {
-    if (!brief) {
-      System.out.println("Error: argument " + arg + " was given, but no "
-                         + argType + " was supplied.");
-    }
-    /***
-    ChiveGenMain.printStatus("Error: argument " + arg + " was given, but no "
-                             + argType + " was supplied.", Verbosity.BRIEF);
-                             ***/
-  }
-
-
-  /*** ARCHIVE BUILD FUNCTION ***/
-
-  // Builds the archive and returns the time it took to generate stories.
-  public static long build() {
-    if (skipWorkIndices) {
-      skipFandomIndex = skipTitleIndex = skipAuthorIndex = true;
-    }
-    // Keep track of the time taken to build stories, specifically.
-    long storyStartTime = 0;
-    long storyEndTime = 0;
-    // If the output directory doesn't exist, create it
-    if (!output.exists()) {
-      output.mkdirs();
-    }
-    // Create a standard page footer and title (template)
-    standardFooter = buildPageFooter();
-    titleBase = buildPageTitleBase(siteName);
-    try {
-      // Check again that the template file exists, just in case.
-      if (!templateFile.exists()) {
-        throw new FileNotFoundException();
+      else if (args[i].equals("-af") || args[i].equals("--asset-folder")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "folder name");
+        }
+        else {
+          assetFolderName = args[i+1];
+          i++;
+        }
       }
-      else {
-        if (verbose) {
-          System.out.println("Looking for folders in '" + input.getPath()
-                             + "'...");
+      else if (args[i].equals("--io-threads")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "number");
         }
-        /***
-        ChiveGenMain.printStatus("Looking for folders in '" + input.getPath()
-                                 + "'...", Verbosity.VERBOSE);
-                                 ***/
-        // Get all the direct subfolders of the input folder
-        // These are our story folders.
-        File[] storyFolders = input.listFiles(new FilenameFilter() {
-        public boolean accept(File dir, String name) {
-          // Get only the directories
-          return (new File(dir, name).isDirectory());
+        else {
+          ioThreads = parsePositiveInt(args[i+1], ioThreads, "I/O threads");
+          i++;
         }
-        });
-        if (storyFolders.length == 0) {
-          System.out.println("Warning: no story folders found.");
+      }
+      else if (args[i].equals("--pipeline-threads")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "thread counts");
         }
         else {
-          validStoryMetadataSet =
-            GenUtils.hashSetFromArray(validStoryMetadataTypes);
-          if (!brief) {
-            System.out.print("Found " + storyFolders.length
-                               + " subfolders in input directory: ");
-            for (int i = 0; i < storyFolders.length - 1; ++i) {
-              System.out.print(storyFolders[i].getName() + ", ");
-            }
-            System.out.println(storyFolders[storyFolders.length - 1].getName());
-          }
+          pipelineThreads = parsePipelineThreads(args[i+1]);
+          i++;
         }
-        // Initialize maps for tags, authors, fandoms
-        archiveTagMap = new HashMap<String, ArrayList<Story>>();
-        archiveAuthorMap = new HashMap<String, ArrayList<Story>>();
-        archiveFandomMap = new HashMap<String, ArrayList<Story>>();
-        // Create initial story array and output folder
-        stories = new Story[storyFolders.length];
-        File storiesOutputFolder = new File(output, "stories");
-        storyStartTime = System.currentTimeMillis();
-        // Generate stories
-        System.out.println("Building stories...");
-        for (int i = 0; i < stories.length; i++) {
-          stories[i] = new Story(storyFolders[i], storiesOutputFolder);
-          stories[i].buildInfoboxes();
-          if (verbose) {
-            System.out.println("Building story " + stories[i].getStoryTitle()
-                               + "...");
-          }
-          stories[i].buildStory();
-          addToStoryMap(archiveTagMap, stories[i].getStoryTags(), stories[i]);
-          addToStoryMap(archiveAuthorMap, stories[i].getAuthors(), stories[i]);
-          addToStoryMap(archiveFandomMap, stories[i].getFandoms(), stories[i]);
+      }
+      else if (args[i].equals("--pack")) {
+        packOutput = true;
+      }
+      else if (args[i].equals("--catalog")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "file");
         }
-        storyEndTime = System.currentTimeMillis();
-        // Build indexes of works by various orderings
-        String currentIndex;
-        // Create index by title
-        if (!skipTitleIndex) {
-          File allByTitleFolder = new File(output, "by_title");
-          if (!allByTitleFolder.exists()) {
-            allByTitleFolder.mkdirs();
-          }
-          Arrays.sort(stories, new StoryTitleComparator());
-          // Create pages
-          String[] allByTitle = buildCategoryPages("", "by_title", stories,
-                                                   titleIndexLabel, true);
-          for (int i = 0; i < allByTitle.length; i++) {
-            buildPage(buildStandardPageString(allByTitle[i], titleIndexLabel
-                                                             + " (Page " + (i+1)
-                                                              + ")"),
-            new File(allByTitleFolder + paginationDivider + (i+1) + ".html"));
-          }
+        else {
+          catalogPath = new File(args[i+1]).getAbsolutePath();
+          i++;
         }
-        // Create index of all works in reverse chronological
-        // order, unless this is skipped.
-        if (!skipLatestIndex) {
-          File allByLatestFolder = new File(output, "latest");
-          if (!allByLatestFolder.exists()) {
-            allByLatestFolder.mkdirs();
-          }
-          Arrays.sort(stories, new DateUpdatedComparator());
-          // Create pages
-          String[] allByLatest = buildCategoryPages("", "latest", stories,
-                                                    latestIndexLabel);
-          for (int i = 0; i < allByLatest.length; i++) {
-            buildPage(buildStandardPageString(allByLatest[i], latestIndexLabel
-                                                              + " (Page "
-                                                              + (i+1) + ")"),
-            new File(allByLatestFolder + paginationDivider + (i+1) + ".html"));
-          }
+      }
+      else if (args[i].equals("--templates-only")) {
+        templatesOnly = true;
+      }
+      else if (args[i].equals("--resume")) {
+        resume = true;
+      }
+      else if (args[i].equals("--labels")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "file");
         }
-        // Create fandom index if we have at least one fandom
-        if (!skipFandomIndex) {
-          // Generate fandom index page
-          currentIndex =
-            workIndexContentTemplate.assemble(buildAlphabeticalIndexOf(archiveFandomMap, "fandoms", "Fandoms"));
-          // BUILD INDEX PAGE
-          buildPage(buildStandardPageString(currentIndex,
-                                            buildPageTitle("By Fandom")),
-                    new File(output, "by_fandom.html"));
-          if (verbose) {
-            System.out.println("Fandom index page created.");
-          }
-          /***
-          ChiveGenMain.printStatus("Fandom index page created.",
-                                   Verbosity.VERBOSE);
-                                   ***/
-          // Build fandoms pages
-          File fandomFolder = new File(output, "fandoms");
-          if (!fandomFolder.exists()) {
-            fandomFolder.mkdirs();
-          }
-          System.out.println("Generating fandom pages...");
-          //ChiveGenMain.printStatus("Generating fandom pages...",
-          //                         Verbosity.SILENT);
-          buildArchiveCategory(archiveFandomMap, fandomFolder, "Fandoms",
-                               "Stories in ");
+        else {
+          labelsPath = args[i+1];
+          i++;
         }
-        // Create authors index if we have at least one author
-        if (!skipAuthorIndex && archiveHasAuthors) {
-          // Generate index page
-          currentIndex =
-            workIndexContentTemplate.assemble(buildAlphabeticalIndexOf(archiveAuthorMap,
-                                                                       "authors",
-                                                                       "Authors"));
-          // BUILD INDEX PAGE
-          buildPage(buildStandardPageString(currentIndex,
-                                            buildPageTitle("By Author")),
-                    new File(output, "by_author.html"));
-          if (verbose) {
-            System.out.println("Author index page created.");
-          }
-          /***
-          ChiveGenMain.printStatus("Author index page created.",
-                                   Verbosity.VERBOSE);
-                                   ***/
-          // Build authors pages
-          File authorFolder = new File(output, "authors");
-          if (!authorFolder.exists()) {
-            authorFolder.mkdirs();
+      }
+      else if (args[i].equals("--only-rating")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "list of ratings");
+        }
+        else {
+          if (!storyFilter.setRatings(args[i+1])) {
+            invalidOptions = true;
           }
-          System.out.println("Generating author pages...");
-          //ChiveGenMain.printStatus("Generating author pages...",
-          //                         Verbosity.SILENT);
-          buildArchiveCategory(archiveAuthorMap, authorFolder, "Authors",
-                               "Stories by ");
+          i++;
         }
-        // Create tag pages, if any tags are used.
-        if (!skipTagPages && archiveHasTags) {
-          System.out.println("Generating tag pages...");
-          //ChiveGenMain.printStatus("Generating tag pages...",
-          //                         Verbosity.SILENT);
-          // CREATE TAG FOLDER + PAGES
-          buildArchiveCategory(archiveTagMap, new File(output, "tags"), "Tags",
-                               "Stories tagged ");
+      }
+      else if (args[i].equals("--only-status")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "status");
         }
-        // Create the site homepage.
-        String homePageContent = "";
-        if (!skipHomepage) {
-          File homePage = new File(input, "index.txt");
-          if (homePage.exists()) {
-            homePageContent = FileToStringUtils.readFileToString(homePage);
-          }
-          else {
-            homePageContent = buildDefaultHomePage();
-          }
-          // Puts some site stats on the homepage, if the option to do so is
-          // enabled.
-          if (homePage.exists() && homePageStatsWidget) {
-            // Locate insertion points and insert the stats widget data into the
-            // homepage body
-            ContentTemplate homePageTemplate =
-              new ContentTemplate(homePageContent, statsWidgetKeywords);
-            String[] stats =
-              new String[] {HtmlUtils.numberWithCommas(stories.length),
-                            HtmlUtils.numberWithCommas(getTotalWordcount(stories)),
-                            HtmlUtils.numberWithCommas(getTotalFandoms(stories)),
-                            HtmlUtils.numberWithCommas(getTotalAuthors(stories)),
-                            ChiveGenMain.versionString};
-            // Insert the stats into the homepage text body
-            homePageContent = homePageTemplate.assemble(stats);
+        else {
+          if (!storyFilter.setStatus(args[i+1])) {
+            invalidOptions = true;
           }
-          // Build the home page at index.html
-          buildPage(buildStandardPageString(homePageContent,
-                                            buildPageTitle("Home")),
-                                            new File(output, "index.html"));
+          i++;
         }
-        // Check for CSS files in input directory, and copy them over to the
-        // output directory
-        if (includeStyleSheets) {
-          // Get an array of CSS files
-          File[] styleSheets = input.listFiles(new FilenameFilter() {
-          public boolean accept(File dir, String name) {
-            // Get only the directories
-            return (name.endsWith(".css"));
-          }
-          });
-          if (!brief) {
-            System.out.println("Checking for CSS stylesheets...");
-            System.out.println(styleSheets.length + " stylesheets found: "
-                               + Arrays.toString(styleSheets));
+      }
+      else if (args[i].equals("--only-fandom")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "list of fandoms");
+        }
+        else {
+          storyFilter.setFandoms(args[i+1]);
+          i++;
+        }
+      }
+      else if (args[i].equals("--cache-dir")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "folder");
+        }
+        else {
+          cacheDir = args[i+1];
+          i++;
+        }
+      }
+      else if (args[i].equals("--shard")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "shard number and count");
+        }
+        else {
+          int[] parsed = ArchiveShards.parse(args[i+1]);
+          if (parsed != null && mergeShards) {
+            System.out.println("Error: --shard can't be used with "
+                               + "--merge-shards. Ignoring --shard.");
           }
-          // Copy all stylesheets to the output folder
-          String styleSheetSource = "";
-          for (File styleSheet : styleSheets) {
-            styleSheetSource = FileToStringUtils.readFileToString(styleSheet);
-            buildPage(styleSheetSource, new File(output, styleSheet.getName()));
+          else if (parsed != null) {
+            shard = parsed[0];
+            shardCount = parsed[1];
           }
+          i++;
+        }
+      }
+      else if (args[i].equals("--merge-shards")) {
+        if (shardCount > 0) {
+          System.out.println("Error: --merge-shards can't be used with "
+                             + "--shard. Ignoring --merge-shards.");
+        }
+        else {
+          mergeShards = true;
         }
       }
-    } catch (FileNotFoundException e) {
-      if (!templateFile.exists()) {
-        System.out.println("Error: required template file " +
-        templateFile.getPath() + " does not exist.");
+      else if (args[i].equals("--shard-dir")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "folder");
+        }
+        else {
+          shardDir = new File(args[i+1]).getAbsolutePath();
+          i++;
+        }
+      }
+      else if (args[i].equals("--hash-fanout")) {
+        if (i == args.length - 1) {
+          printArgsError(args[i], "number of digits");
+        }
+        else {
+          hashFanOutDigits = parseFanOutDigits(args[i+1]);
+          i++;
+        }
       }
-      System.out.println();
-      e.printStackTrace();
     }
-    return storyEndTime - storyStartTime;
   }
 
-  // Creates an HTML file and writes the input String to it
-  public static File buildPage(String inputString, File outputFile) {
-    if (!outputFile.exists()) {
-      if (verbose) {
-        System.out.println("Creating '" + outputFile.getPath() + "', since it "
-                           + "does not already exist");
+
+  // Parses a setting that must be a positive integer, printing an error and
+  // returning the given default if it isn't one.
+  private int parsePositiveInt(String s, int defaultValue,
+                               String settingName) {
+    try {
+      int n = Integer.parseInt(s.trim());
+      if (n > 0) {
+        return n;
+      }
+    } catch (NumberFormatException e) {
+      // fall through to the error below
+    }
+    System.out.println("Error: " + settingName + " must be a positive number,"
+                       + " not '" + s + "'. Leaving as default ("
+                       + defaultValue + ").");
+    return defaultValue;
+  }
+
+  // Parses the page pipeline's thread counts, given as "readers,renderers,
+  // writers" (e.g. "4,8,2"). Invalid values leave the current counts.
+  private int[] parsePipelineThreads(String s) {
+    String[] counts = s.split(",");
+    if (counts.length != 3) {
+      System.out.println("Error: pipeline threads must be given as readers,"
+                         + "renderers,writers (e.g. 4,8,2), not '" + s
+                         + "'. Leaving as default.");
+      return pipelineThreads;
+    }
+    return new int[] {parsePositiveInt(counts[0], pipelineThreads[0],
+                                       "pipeline reader threads"),
+                      parsePositiveInt(counts[1], pipelineThreads[1],
+                                       "pipeline renderer threads"),
+                      parsePositiveInt(counts[2], pipelineThreads[2],
+                                       "pipeline writer threads")};
+  }
+
+  // Parses the number of hex digits to use for hash fan-out folders.
+  // Invalid or out of range values turn fan-out off.
+  private int parseFanOutDigits(String s) {
+    try {
+      int digits = Integer.parseInt(s.trim());
+      if (digits >= 0 && digits <= OutputLayout.MAX_FANOUT_DIGITS) {
+        return digits;
       }
+    } catch (NumberFormatException e) {
+      // fall through to the error below
+    }
+    System.out.println("Error: hash fan-out must be a number of digits from 0"
+                       + " to " + OutputLayout.MAX_FANOUT_DIGITS + ", not '"
+                       + s + "'. Fan-out will not be used.");
+    return 0;
+  }
+
+  // Helper function for printing certain argument parsing error messages.
+  private void printArgsError(String arg, String argType) {
+    if (!brief) {
+      System.out.println("Error: argument " + arg + " was given, but no "
+                         + argType + " was supplied.");
+    }
+    /***
+    ChiveGenMain.printStatus("Error: argument " + arg + " was given, but no "
+                             + argType + " was supplied.", Verbosity.BRIEF);
+                             ***/
+  }
+
+
+  /*** ARCHIVE BUILD FUNCTION ***/
+
+  // Builds the archive with a new BuildContext, and reports how it went.
+  // Settings are locked from here on, so the same builder can be built
+  // again, but not changed. If an option couldn't be used, nothing is built
+  // and the report is incomplete.
+  public BuildReport build() {
+    if (invalidOptions) {
+      System.out.println("Error: not building " + output.getPath() + ", "
+                         + "since some options couldn't be used.");
+      return new BuildReport(output, 0, 0, 0, 0, false, false);
+    }
+    if (pageContentTemplate == null) {
+      buildTemplates();
+    }
+    locked = true;
+    return new BuildContext(this).build();
+  }
+
+  // Reads the archive and sets up every page without writing any of them,
+  // for serving pages as they're asked for (see PreviewServer). Settings are
+  // locked the same as for build(). Throws IllegalStateException if an
+  // option couldn't be used.
+  public BuildContext preview() {
+    if (invalidOptions) {
+      throw new IllegalStateException("some options couldn't be used");
+    }
+    if (pageContentTemplate == null) {
+      buildTemplates();
+    }
+    locked = true;
+    BuildContext context = new BuildContext(this);
+    context.preview();
+    return context;
+  }
+
+  // Gets the settings that the stories read from their folders depend on
+  // (other than the folders themselves.) An archive snapshot is only reused
+  // if these all match.
+  public String getArchiveSnapshotSettings() {
+    StringBuilder settings = new StringBuilder();
+    Object[] values = new Object[] {input.toAbsolutePath(), defaultToEpochDate,
+      ignoreLeadingThe, skipTitleIndex(),
+      java.nio.charset.Charset.defaultCharset()};
+    for (Object value : values) {
+      settings.append(value).append('\n');
+    }
+    // The snapshot's category lists and sort orders only have the stories
+    // that passed the filter
+    if (!storyFilter.isEmpty()) {
+      settings.append(storyFilter).append('\n');
+    }
+    return settings.toString();
+  }
+
+  // Gets every file configure() reads settings, labels or templates from
+  // (whether or not it exists), so a program keeping a builder around can
+  // tell when it needs setting up again.
+  public List<Path> getConfigFiles() {
+    ArrayList<Path> files = new ArrayList<Path>();
+    files.add(templateFile);
+    files.add(input.resolve("config.txt"));
+    files.add(labelsPath.equals("") ? input.resolve("labels.txt")
+                                    : Paths.get(labelsPath));
+    for (String name : new String[] {"ratings.txt", "completion.txt",
+                                     "chaptertitles.txt", "summaries.txt",
+                                     "infobox.txt", "infobox_index.txt",
+                                     "chapter.txt", "stories_by.txt",
+                                     "pagination.txt", "chapterpagination.txt",
+                                     "fields.txt"}) {
+      files.add(input.resolve(name));
+    }
+    return files;
+  }
+
+  // Gets the size and modified time of every config file (see
+  // getConfigFiles()), or that it doesn't exist, as one string to compare.
+  public String getConfigStamp() {
+    StringBuilder stamp = new StringBuilder();
+    for (Path file : getConfigFiles()) {
       try {
-        outputFile.createNewFile();
+        BasicFileAttributes attributes =
+          Files.readAttributes(file, BasicFileAttributes.class);
+        stamp.append(attributes.size()).append(':')
+             .append(attributes.lastModifiedTime().toMillis());
       } catch (IOException e) {
-        System.out.println("Error: something went wrong building a page in "
-                           + outputFile.getPath());
-        e.printStackTrace();
+        stamp.append('-');
       }
+      stamp.append('\n');
     }
-    if (verbose) {
-      System.out.println("Writing to output file: " + outputFile.getPath());
+    return stamp.toString();
+  }
+
+  // Gets the settings a single story's parsed state depends on. Builds
+  // sharing input (see SharedInput) only share stories if these match.
+  public String getStoryStateSettings() {
+    return input.toAbsolutePath() + "\n" + defaultToEpochDate + "\n"
+           + catalogPath + "\n";
+  }
+
+  // Gets the settings that saved page content depends on: anything that
+  // changes a story's fields, links or page titles, but not the templates
+  // they're put into. A page model is only reused if these all match.
+  public String getPageModelSettings() {
+    StringBuilder settings = new StringBuilder();
+    Object[] values = new Object[] {input.toAbsolutePath(), sitePath, siteName,
+      titleTemplate, maxItemsPerPage, paginationDivider, hashFanOutDigits,
+      casualHTML, ignoreTabs, showChapterNumbers,
+      generateInfoBoxTemplateFields, useByLine, skipEmptyFields,
+      ignoreLeadingThe, skipJumpPagination, skipHomepage, skipTitleIndex(),
+      skipLatestIndex, skipFandomIndex(), skipAuthorIndex(), skipTagPages,
+      homePageStatsWidget, autoFormatDates, defaultToEpochDate,
+      showDefaultDates, catalogPath, assetFolderName, nextChapterButton,
+      prevChapterButton, tocButton, fandomLabel, updatedLabel, publishedLabel,
+      wordcountLabel, chapterCountLabel, completionLabel, summaryLabel,
+      notesLabel, endNotesLabel, authorLabel, tagsLabel, ratingLabel,
+      nextPageLabel, prevPageLabel, ratingLevelG, ratingLevelPG, ratingLevelT,
+      ratingLevelM, ratingLevelE, ratingLevelNR, completionStatuses[0],
+      completionStatuses[1], titleIndexLabel, latestIndexLabel,
+      chapterTitleTemplate, summaryTemplate, fieldTemplate, byLineTemplate,
+      tagTemplate, workIndexNavigationTemplate};
+    for (Object value : values) {
+      settings.append(value).append('\n');
     }
-    try {
-      FileWriter pageBuilder = new FileWriter(outputFile);
-      pageBuilder.write(inputString);
-      // Close scanners and filewriter
-      pageBuilder.close();
-    } catch (FileNotFoundException e) {
-      System.out.println("Error: tried to write to output file "
-                         + outputFile.getPath()
-                         + " but the file was not found.");
-      e.printStackTrace();
-    } catch (IOException e) {
-      System.out.println("Error: tried to write to ouput file "
-                         + outputFile.getPath()
-                         + " but something went wrong in I/O.");
-      e.printStackTrace();
+    if (!storyFilter.isEmpty()) {
+      settings.append(storyFilter).append('\n');
     }
-    return outputFile;
+    return settings.toString();
   }
 
+
   // Used to build a standard page string
-  public static String buildStandardPageString(String inputString,
-                                               String pageTitle) {
+  public String buildStandardPageString(String inputString,
+                                        String pageTitle) {
     return pageContentTemplate.assemble(new String[] {pageTitle, inputString,
                                                       standardFooter});
   }
 
   // Builds a page title using regex and a template.
-  public static String buildPageTitle(String title, String subtitle) {
+  public String buildPageTitle(String title, String subtitle) {
     if (siteName.equals("") && subtitle.equals("")) {
       return title;
     }
@@ -1219,394 +1417,56 @@ public class FicArchiveBuilder {
       return buildPageTitle(subtitle);
     }
     if (siteName.equals("")) {
-      return buildPageTitleBase(subtitle).replace("{T}", title);
+      return titleFormatter.format(subtitle, title);
     }
-    return titleBase.replace("{T}", buildPageTitleBase(subtitle).replace("{T}", title));
+    return titleBaseFormatter.format(titleFormatter.format(subtitle, title));
   }
 
   // Used recursively to build page titles
-  public static String buildPageTitle(String title) {
+  public String buildPageTitle(String title) {
     if (title.equals("")) {
       return siteName;
     }
-    return titleBase.replace("{T}", title);
+    return titleBaseFormatter.format(title);
   }
 
   // Build page title base
-  public static String buildPageTitleBase(String title) {
+  public String buildPageTitleBase(String title) {
     if (title.equals("")) {
       return "";
     }
-    return titleTemplate.replace("{S}", title);
+    return new TextFormatter(titleTemplate, "{S}").format(title);
   }
 
   // Footer can have site name and version number
-  public static String buildPageFooter() {
-    return footerTemplate.replace("{{SiteName}}", siteName).replace("{{VersionNumber}}", ChiveGenMain.versionString);
+  public String buildPageFooter() {
+    return new TextFormatter(footerTemplate, "{{SiteName}}", "{{VersionNumber}}")
+      .format(siteName, ChiveGenMain.versionString);
   }
 
-  public static String buildDefaultHomePage() {
+  public String buildDefaultHomePage() {
     return "<p>Welcome to " + siteName + "!</p>";
   }
 
 
   /*** BUILDING INDICES FOR ARCHIVE ***/
 
-  // Returns an array of three strings - the listing nav, the category name
-  // and the string for the index of categories. Used to build the fandom
-  // and author indexes.
-  // Not currently paginated.
-  public static String[] buildAlphabeticalIndexOf(HashMap<String, ArrayList<Story>> categories,
-                                                  String categoryFolderURL,
-                                                  String categoryName) {
-    String[] categoryArray = categories.keySet().toArray(new String[0]);
-    // Sort the stories array by the relevant comparator
-    Arrays.sort(categoryArray);
-    // Stringbuilder for story index
-    StringBuilder categoryIndex = new StringBuilder();
-    // Stringbuilder for quick links into index, if heading groups are used
-    StringBuilder listingNav = new StringBuilder();
-    // Headers for the values being compared
-    char b = ' ';
-    char a = ' ';
-    for (int i = 0; i < categoryArray.length; i++) {
-      // Get the grouping header of the current story
-      b = Character.toUpperCase(categoryArray[i].charAt(0));
-      // Only check the previous entry after at least one
-      if (i > 0) {
-        a = Character.toUpperCase(categoryArray[i-1].charAt(0));
-      }
-      if (verbose) {
-        System.out.println(i + ": Grouping for " + categoryArray[i] + ": "
-                           + Character.toString(b));
-      }
-      // Check if the current entry and the next's grouping match,
-      // Or if we are on the first story in the array.
-      if (i == 0 || a != b) {
-        // Close the previous unordered list if we're moving to a new one
-        if (i != 0) {
-          categoryIndex.append("</ul>\n");
-        }
-        // Create a header for the new grouping
-        categoryIndex.append("<h2 id=" + b + ">" + b + "</h2>\n<ul>");
-        // And link to it in the listing navigation
-        listingNav.append("<a href=#" + b + ">" + b + "</a>\n");
-      }
-      // Link to the first page of the category
-      categoryIndex.append("<li><a href=\"" + sitePath + categoryFolderURL + "/"
-                           + HtmlUtils.toSafeUrl(categoryArray[i]) +
-      paginationDivider + "1.html\">" +
-      HtmlUtils.toTitleCase(categoryArray[i]) + "</a> (" +
-                            categories.get(categoryArray[i]).size() + ")</li>");
-    }
-    // Close the last unordered list
-    if (categoryArray.length != 0) {
-      categoryIndex.append("</ul>\n");
-    }
-    String listingNavString = "";
-    if (!listingNav.equals("")) { // only create this if there's something to put in it
-      listingNavString =
-        workIndexNavigationTemplate.replace("{C}", listingNav.toString()).replace("{L}", "Navigation");;
-    }
-    return new String[] {listingNavString, categoryName, "",
-                         categoryIndex.toString(), ""};
-  }
-
-  // Build all the pages for a category like tags/fandom/author/etc
-  public static void buildArchiveCategory(HashMap<String, ArrayList<Story>> map,
-                                          File categoryFolder,
-                                          String categoryLabel,
-                                          String titleLabel) {
-    // Create the tag folder if it doesn't already exist
-    if (!categoryFolder.exists()) {
-      categoryFolder.mkdirs();
-    }
-    // For each tag/fandom/whatever, create the tag pages and write them
-    // to file with the default url schema of:
-    // [parent folder]/[URL-safe version of tag][pagination divider][page #].html
-    File categorySubfolder;
-    for (String category : map.keySet()) {
-      categorySubfolder = new File(categoryFolder, HtmlUtils.toSafeUrl(category));
-      // Only make the subfolders if they're actually being used
-      if (paginationDivider.equals("/")) {
-        categorySubfolder.mkdirs();
-      }
-      // Sort stories in the category by date updated
-      Collections.sort(map.get(category), new DateUpdatedComparator());
-      String[] pages = buildCategoryPages(categoryFolder.getName() + "/",
-      category, map.get(category), (titleLabel + HtmlUtils.toTitleCase(category)));
-      if (verbose) {
-        System.out.println("Created " + pages.length + " page[s] for category "
-                           + category);
-      }
-      for (int i = 0; i < pages.length; i++) {
-        if (paginationDivider.equals("/")) {
-          buildPage(buildStandardPageString(pages[i],
-                    (titleLabel + HtmlUtils.toTitleCase(category) + " (Page " + (i+1) + ")")),
-          new File(categorySubfolder, (i+1) + ".html")); // page URLs start at 1
-        }
-        else {
-          buildPage(buildStandardPageString(pages[i],
-                    (titleLabel + HtmlUtils.toTitleCase(category) + " (Page " + (i+1) + ")")),
-          new File(categorySubfolder + paginationDivider + (i+1) + ".html"));
-        }
-      }
-    }
-    if (!brief) {
-      System.out.println("Created " + map.keySet().size()
-                         + " category folder[s] for " + categoryLabel);
-    }
-  }
-
 
   /*** BUILDING CATEGORY PAGES ***/
 
-  // Create a string array for all pages of all works with a particular tag
-  // or category, sorted in reverse chronological order, with pagination
-  public static String[] buildCategoryPages(String categoryFolderURL,
-                                            String category,
-                                            ArrayList<Story> relatedStories,
-                                            String categoryLabel,
-                                            boolean URLIsSafe) {
-    // If we need a "safe" version of the category name for the URL
-    // convert that now.
-    if (!URLIsSafe) {
-      category = HtmlUtils.toSafeUrl(category);
-    }
-    // Figure out how many pages we need to generate
-    int totalPages = relatedStories.size() / maxItemsPerPage;
-    if (relatedStories.size() % maxItemsPerPage != 0) {
-      totalPages++;
-    }
-    if (verbose) {
-      System.out.println("Total pages to generate for " + category + ": " + totalPages);
-    }
-    String[] pageStrings = new String[totalPages]; // array to store the page strings
-    StringBuilder pageOutput; // for building each page
-    String[] indexPageElements; // for inserting into template
-    // Build all pages under the category except for the final page
-    for (int i = 0; i < totalPages - 1; i++) {
-      pageOutput = new StringBuilder(); // for building the main page content
-      // For entries in relatedStories at ids
-      // i * maxPerPage + 0 to i * maxPerPage + maxPerPage - 1
-      // (i.e. 0th to maxPerPage-1th from an offset of maxPerPage * however
-      // many pages have been created already), build an index page.
-      for (int j = 0; j < maxItemsPerPage; j++) {
-        // add the infobox for each story tagged on that page
-        pageOutput.append(relatedStories.get((i * maxItemsPerPage) + j).getInfoboxForIndex());
-      }
-      // Create page elements array
-      indexPageElements =
-        new String[] {"", categoryLabel,
-                      ("Showing " + ((i * maxItemsPerPage) + 1) + "-"
-                      + ((i + 1) * maxItemsPerPage) + " of "
-                      + relatedStories.size()),
-      pageOutput.toString(),
-      buildStandardPaginationString(generatePagination(categoryFolderURL + category,
-                                                       (i + 1), totalPages))};
-      pageStrings[i] = workIndexContentTemplate.assemble(indexPageElements);
-    }
-    // Generate the last page, which might not be full length.
-    pageOutput = new StringBuilder();
-    for (int i = (maxItemsPerPage * (totalPages - 1)); i < relatedStories.size(); i++) {
-      pageOutput.append(relatedStories.get(i).getInfoboxForIndex());
-    }
-    // Create page elements array for the final page
-    indexPageElements =
-      new String[] {"", categoryLabel,
-                    ("Showing " + ((maxItemsPerPage * (totalPages - 1)) + 1)
-                    + "-" + relatedStories.size() + " of "
-                    + relatedStories.size()),
-    pageOutput.toString(),
-    buildStandardPaginationString(generatePagination(categoryFolderURL + category,
-                                                     totalPages, totalPages))};
-    // Insert the resulting page into the last entry of pageStrings
-    pageStrings[totalPages - 1] = workIndexContentTemplate.assemble(indexPageElements);
-    // Return the array
-    return pageStrings;
-  }
-
-  //@override
-  public static String[] buildCategoryPages(String categoryFolderURL,
-                                            String category,
-                                            ArrayList<Story> relatedStories,
-                                            String categoryLabel) {
-    // default to assuming category needs to be made URL-safe
-    return buildCategoryPages(categoryFolderURL, category, relatedStories,
-                              categoryLabel, false);
-  }
-
-  //@override
-  public static String[] buildCategoryPages(String category,
-                                            ArrayList<Story> relatedStories) {
-    return buildCategoryPages((output.getName() + "/" + category), category,
-                              relatedStories, "Stories in ");
-  }
-
-  //@override
-  public static String[] buildCategoryPages(String categoryFolderURL,
-                                            String category,
-                                            Story[] relatedStories,
-                                            String label) {
-    ArrayList<Story> storiesArrayList =
-      new ArrayList<Story>(relatedStories.length);
-    for (Story story : relatedStories) {
-      storiesArrayList.add(story);
-    }
-    return buildCategoryPages(categoryFolderURL, category,
-                              storiesArrayList, label, false);
-  }
-
-  //@override
-  public static String[] buildCategoryPages(String categoryFolderURL,
-                                            String category,
-                                            Story[] relatedStories,
-                                            String label,
-                                            boolean URLIsSafe) {
-    ArrayList<Story> storiesArrayList =
-      new ArrayList<Story>(relatedStories.length);
-    for (Story story : relatedStories) {
-      storiesArrayList.add(story);
-    }
-    return buildCategoryPages(categoryFolderURL, category, storiesArrayList,
-                              label, URLIsSafe);
-  }
-
-  // Build pagination from a folder URL, current page, a maximum # of pages
-  public static String[] generatePagination(String categoryFolderURL,
-                                            int currentPage, int totalPages) {
-    // Pagination template has 5 things, in order:
-    // Previous Button, Previous Jump Pages, Current, Next Jump Pages, and Next Button
-    String[] paginationContents = new String[] {"", "", "", "", ""};
-    // If there's no pagination, don't even bother.
-    if (totalPages == 1) {
-      return paginationContents;
-    }
-    // If we have a page 2 pages back, link it
-    if (!skipJumpPagination && currentPage > 2) {
-      paginationContents[1] = "<a href=\"" + sitePath + categoryFolderURL
-        + paginationDivider + (currentPage - 2) + ".html\">" + (currentPage - 2)
-        + "</a>";
-    }
-    // If we have a previous page
-    if (currentPage > 1) {
-      if (!skipJumpPagination) {
-        // Page n-1 and n-2 go in the same section
-        paginationContents[1] = paginationContents[1] + "\n<a href=\""
-          + sitePath + categoryFolderURL + paginationDivider
-          + (currentPage - 1) + ".html\">" + (currentPage - 1) + "</a>";
-      }
-      // Previous button
-      paginationContents[0] = "<a href=\"" + sitePath + categoryFolderURL
-        + paginationDivider + (currentPage - 1) + ".html\">" + prevPageLabel
-        + "</a>";
-    }
-    // The current Page
-    if (!skipJumpPagination) {
-      paginationContents[2] = Integer.toString(currentPage);
-    }
-    // If there's a next page
-    if (currentPage < totalPages) {
-      if (!skipJumpPagination) {
-        paginationContents[3] = "<a href=\"" + sitePath + categoryFolderURL
-          + paginationDivider + (currentPage + 1) + ".html\">"
-          + (currentPage + 1) + "</a>";
-      }
-      // Next button
-      paginationContents[4] = "<a href=\"" + sitePath + categoryFolderURL
-        + paginationDivider + (currentPage + 1) + ".html\">" + nextPageLabel
-        + "</a>";
-    }
-    // If there's a page after the next, link that
-    if (!skipJumpPagination && currentPage < (totalPages - 1)) {
-      // Page n+1 and n+2 go in the same section
-      paginationContents[3] = paginationContents[3] + "\n<a href=\"" + sitePath
-        + categoryFolderURL + paginationDivider + (currentPage + 2) + ".html\">"
-        + (currentPage + 2) + "</a>";
-    }
-    return paginationContents;
-  }
-
 
   /*** MISCELLANOUS ARCHIVE-BUILDING HELPER FUNCTIONS ***/
 
   // Used to build a standard pagination string
-  public static String buildStandardPaginationString(String[] inputStrings) {
+  public String buildStandardPaginationString(String[] inputStrings) {
     return paginationContentTemplate.assemble(inputStrings);
   }
 
-  // Gets the total wordcount of the entire archive
-  public static int getTotalWordcount(Story[] stories) {
-    int total = 0;
-    for (Story s : stories) {
-      total+= s.getWordCount();
-    }
-    return total;
-  }
-
-  // Gets the total number of fandoms in the archive
-  public static int getTotalFandoms(Story[] stories) {
-    int total = 0;
-    // Store strings in a hashset for fast lookup
-    HashSet<String> allFandoms = new HashSet<String>();
-    for (Story s : stories) {
-      // if the fandom isn't in the set, add it, and increment total
-      for (String fandom : s.getFandoms()) {
-        if (!allFandoms.contains(fandom)) {
-          allFandoms.add(fandom);
-          total++;
-        }
-      }
-    }
-    return total;
-  }
-
-  // Gets the total number of authors in the archive
-  // May be deprecated at some point if a more general function is added to
-  // combine the behavior of this, getTotalFandoms, etc.
-  public static int getTotalAuthors(Story[] stories) {
-    int total = 0;
-    // Store strings in a hashset for fast lookup
-    HashSet<String> allAuthors = new HashSet<String>();
-    for (Story s : stories) {
-      // if the author isn't in the set, add it, and increment total
-      for (String author : s.getAuthors()) {
-        if (!allAuthors.contains(author)) {
-          allAuthors.add(author);
-          total++;
-        }
-      }
-    }
-    return total;
-  }
-
-  // Add tags/hashset data and associated story to an archive category hashmap
-  public static void addToStoryMap(HashMap<String, ArrayList<Story>> map,
-                                   String[] newTags, Story story) {
-    for (String tag : newTags) {
-      addToStoryMap(map, tag, story);
-    }
-  }
-
-  // General 'add to story map' method for individual tags
-  public static void addToStoryMap(HashMap<String, ArrayList<Story>> map,
-                                   String tag, Story story) {
-    tag = tag.toLowerCase(); // ignore case
-    if (map.containsKey(tag)) {
-      // add this story to the arraylist of associated stories
-      map.get(tag).add(story);
-    }
-    else {
-      ArrayList<Story> temp = new ArrayList<Story>();
-      temp.add(story);
-      map.put(tag, temp);
-    }
-  }
 
   /*** EXTERNALLY CALLABLE HELPER FUNCTIONS - GETTERS  ***/
 
   // Get verbosity setting
-  public static boolean isVerbose() {
+  public boolean isVerbose() {
     return verbose;
   }
 
@@ -1615,48 +1475,53 @@ public class FicArchiveBuilder {
     return validStoryMetadataSet;
   }
 
+
   // Returns the story infobox template
-  public static ContentTemplate getInfoBoxTemplate() {
+  public ContentTemplate getInfoBoxTemplate() {
     return infoBoxContentTemplate;
   }
 
   // Returns the story infobox template
-  public static ContentTemplate getIndexInfoBoxTemplate() {
+  public ContentTemplate getIndexInfoBoxTemplate() {
     return indexInfoBoxContentTemplate;
   }
 
   // Returns page template
-  public static ContentTemplate getPageTemplate() {
+  public ContentTemplate getPageTemplate() {
     return pageContentTemplate;
   }
 
   // Returns chapter template
-  public static ContentTemplate getChapterTemplate() {
+  public ContentTemplate getChapterTemplate() {
     return chapterContentTemplate;
   }
 
   // Returns the generic jump pagination template.
-  public static ContentTemplate getPaginationTemplate() {
+  public ContentTemplate getWorkIndexTemplate() {
+    return workIndexContentTemplate;
+  }
+
+  public ContentTemplate getPaginationTemplate() {
     return paginationContentTemplate;
   }
 
   // Returns the chapter pagination template.
-  public static ContentTemplate getChapterPaginationContentTemplate() {
+  public ContentTemplate getChapterPaginationContentTemplate() {
     return chapterPaginationContentTemplate;
   }
 
   // Returns the field template
-  public static ContentTemplate getFieldContentTemplate() {
+  public ContentTemplate getFieldContentTemplate() {
     return fieldContentTemplate;
   }
 
   // Returns the summary template
-  public static ContentTemplate getSummaryContentTemplate() {
+  public ContentTemplate getSummaryContentTemplate() {
     return summaryContentTemplate;
   }
 
   // Used for the byline
-  public static ContentTemplate getByLineTemplate() {
+  public ContentTemplate getByLineTemplate() {
     if (useByLine) {
       return byLineContentTemplate;
     }
@@ -1665,108 +1530,118 @@ public class FicArchiveBuilder {
 
   // Returns the story summary template
   // This is also used for story and chapter notes
-  public static String getSummaryTemplate() {
+  public String getSummaryTemplate() {
     return summaryTemplate;
   }
 
+  // Returns the compiled story summary template
+  public TextFormatter getSummaryFormatter() {
+    return summaryFormatter;
+  }
+
   // Returns the standard infobox field template.
-  public static String getFieldTemplate() {
+  public String getFieldTemplate() {
     return fieldTemplate;
   }
 
   // Returns the chapter pagination template.
-  public static String getChapterPaginationTemplate() {
+  public String getChapterPaginationTemplate() {
     return chapterPaginationTemplate;
   }
 
 
   // Returns the tag template.
-  public static ContentTemplate getTagTemplate() {
+  public ContentTemplate getTagTemplate() {
     return tagContentTemplate;
   }
 
   // Returns the chapter title template.
-  public static String getChapterTitleTemplate() {
+  public String getChapterTitleTemplate() {
     return chapterTitleTemplate;
   }
 
+  // Returns the compiled chapter title template.
+  public TextFormatter getChapterTitleFormatter() {
+    return chapterTitleFormatter;
+  }
+
   // Gets the previous chapter button label
-  public static String getPrevChapterLabel() {
+  public String getPrevChapterLabel() {
     return prevChapterButton;
   }
 
   // Gets the next chapter button label
-  public static String getNextChapterLabel() {
+  public String getNextChapterLabel() {
     return nextChapterButton;
   }
 
   // Gets the table of contents button label
-  public static String getTOCLabel() {
+  public String getTOCLabel() {
     return tocButton;
   }
 
   // Gets the label for the 'fandom' field
-  public static String getFandomLabel() {
+  public String getFandomLabel() {
     return fandomLabel;
   }
 
   // Gets the label for the 'date updated' field
-  public static String getDateUpdatedLabel() {
+  public String getDateUpdatedLabel() {
     return updatedLabel;
   }
 
   // Gets the label for the 'date published' field
-  public static String getDatePublishedLabel() {
+  public String getDatePublishedLabel() {
     return publishedLabel;
   }
 
   // Gets the label for the wordcount field
-  public static String getWordcountLabel() {
+  public String getWordcountLabel() {
     return wordcountLabel;
   }
 
   // Gets the label for the 'number of chapters' field
-  public static String getChapterCountLabel() {
+  public String getChapterCountLabel() {
     return chapterCountLabel;
   }
 
   // Gets the label for the 'is complete' field
-  public static String getCompletionLabel() {
+  public String getCompletionLabel() {
     return completionLabel;
   }
 
   // Gets the label for the notes field
-  public static String getNotesLabel() {
+  public String getNotesLabel() {
     return notesLabel;
   }
 
   // Gets the label for the end notes field
-  public static String getEndNotesLabel() {
+  public String getEndNotesLabel() {
     return endNotesLabel;
   }
 
   // Gets the label for the summary field
-  public static String getSummaryLabel() {
+  public String getSummaryLabel() {
     return summaryLabel;
   }
 
   // Gets the label for the author field
-  public static String getAuthorLabel() {
+  public String getAuthorLabel() {
     return authorLabel;
   }
 
   // Gets the label for the tags field
-  public static String getTagsLabel() {
+  public String getTagsLabel() {
     return tagsLabel;
   }
 
   // Gets the label for the tags field
-  public static String getRatingLabel() {
+  public String getRatingLabel() {
     return ratingLabel;
   }
 
   // Gets a string for the give Rating
-  public static String getRatingString(Rating r) {
+  public String getRatingString(Rating r) {
     switch (r) {
       case G:
         return ratingLevelG;
@@ -1784,7 +1659,7 @@ public class FicArchiveBuilder {
   }
 
   // Returns the appropriate string for completion statuses
-  public static String getCompletionStatusString(boolean complete) {
+  public String getCompletionStatusString(boolean complete) {
     if (complete) {
       return completionStatuses[0];
     }
@@ -1792,7 +1667,7 @@ public class FicArchiveBuilder {
   }
 
   // Returns the site folder path for the website this archive will be placed in
-  public static String getSitePath() {
+  public String getSitePath() {
     return sitePath;
   }
 
@@ -1817,75 +1692,241 @@ public class FicArchiveBuilder {
   }
 
   // Get whether or not chapter numbers should be show in chapter titles
-  public static boolean showChapterNumbers() {
+  public boolean showChapterNumbers() {
     return showChapterNumbers;
   }
 
   // Get whether or not to use casual HTML
-  public static boolean useCasualHTML() {
+  public boolean useCasualHTML() {
     return casualHTML;
   }
 
   // Get whether or not to skip empty metadata fields
-  public static boolean skipEmptyFields() {
+  public boolean skipEmptyFields() {
     return skipEmptyFields;
   }
 
   // Gets whether or not to build fields from template.
   // If false, the infobox template should already have them built in.
-  public static boolean generateInfoBoxTemplateFields() {
+  public boolean generateInfoBoxTemplateFields() {
     return generateInfoBoxTemplateFields;
   }
 
   // Gets whether or not to skip leading "The" in string comparisons
-  public static boolean skipThe() {
+  public boolean skipThe() {
     return ignoreLeadingThe;
   }
 
   // Returns true if no tag pages will be generated
-  public static boolean skipTagPages() {
+  public boolean skipTagPages() {
     return skipTagPages;
   }
 
   // Returns true if no author pages will be generated
-  public static boolean skipAuthorIndex() {
-    return skipAuthorIndex;
+  public boolean skipAuthorIndex() {
+    return skipAuthorIndex || skipWorkIndices;
   }
 
   // Returns true if no fandom pages will be generated
-  public static boolean skipFandomIndex() {
-    return skipFandomIndex;
+  public boolean skipFandomIndex() {
+    return skipFandomIndex || skipWorkIndices;
+  }
+
+  // Returns true if the by_title pages won't be generated
+  public boolean skipTitleIndex() {
+    return skipTitleIndex || skipWorkIndices;
+  }
+
+  // Returns true if the latest pages won't be generated
+  public boolean skipLatestIndex() {
+    return skipLatestIndex;
+  }
+
+  // Returns true if the homepage won't be generated
+  public boolean skipHomepage() {
+    return skipHomepage;
+  }
+
+  // Returns true if jump pagination (links to specific pages) is skipped
+  public boolean skipJumpPagination() {
+    return skipJumpPagination;
+  }
+
+  // Returns true if the homepage should have the stats widget filled in
+  public boolean useStatsWidget() {
+    return homePageStatsWidget;
+  }
+
+  // Returns true if CSS files in the input folder should be copied
+  public boolean includeStyleSheets() {
+    return includeStyleSheets;
   }
 
-  public static boolean autoFormatDates() {
+  public boolean autoFormatDates() {
     return autoFormatDates;
   }
 
-  public static boolean defaultToEpochDate() {
+  public boolean defaultToEpochDate() {
     return defaultToEpochDate;
   }
 
-  public static boolean showDefaultDates() {
+  public boolean showDefaultDates() {
     return showDefaultDates;
   }
 
-  public static String getPaginationDivider() {
+  public String getPaginationDivider() {
     return paginationDivider;
   }
 
+  // Gets the name of the folder stories are written into
+  public String getStoryDirectoryName() {
+    return storyDirectoryName;
+  }
+
+  // Gets the maximum number of stories on each page of an index
+  public int getMaxItemsPerPage() {
+    return maxItemsPerPage;
+  }
+
+  // Gets the label for links to the next page of an index
+  public String getNextPageLabel() {
+    return nextPageLabel;
+  }
+
+  // Gets the label for links to the previous page of an index
+  public String getPrevPageLabel() {
+    return prevPageLabel;
+  }
+
+  // Gets the title of the by_title pages
+  public String getTitleIndexLabel() {
+    return titleIndexLabel;
+  }
+
+  // Gets the title of the latest pages
+  public String getLatestIndexLabel() {
+    return latestIndexLabel;
+  }
+
+  // Returns the compiled listing navigation template
+  public TextFormatter getWorkIndexNavigationFormatter() {
+    return workIndexNavigationFormatter;
+  }
+
+  // Gets the keywords for the homepage stats widget
+  public static String[] getStatsWidgetKeywords() {
+    return statsWidgetKeywords;
+  }
+
+  // Gets the input folder
+  public Path getInput() {
+    return input;
+  }
+
+  // Gets the output folder
+  public File getOutput() {
+    return output;
+  }
+
+  // Gets the standard page template file
+  public Path getTemplateFile() {
+    return templateFile;
+  }
+
+  // Get brief setting
+  public boolean isBrief() {
+    return brief;
+  }
+
+  // Returns true if pages go into a site pack instead of their own files
+  public boolean usePackOutput() {
+    return packOutput;
+  }
+
+  // Gets the number of hex digits in hash fan-out folders (0 if none)
+  public int getHashFanOutDigits() {
+    return hashFanOutDigits;
+  }
+
+  // Gets the name of the static file folder in the input folder
+  public String getAssetFolderName() {
+    return assetFolderName;
+  }
+
+  // Gets the number of threads to read input with
+  public int getIOThreads() {
+    return ioThreads;
+  }
+
+  // Gets the number of reader, renderer and writer threads for the page
+  // pipeline
+  public int[] getPipelineThreads() {
+    return pipelineThreads.clone();
+  }
+
+  // Gets the archive catalog path, or "" to look for the default names
+  public String getCatalogPath() {
+    return catalogPath;
+  }
+
+  // Gets the cache folder, or "" if nothing is cached between builds
+  public String getCacheDir() {
+    return cacheDir;
+  }
+
+  // Returns true if this is a template-only rebuild (--templates-only)
+  public boolean isTemplatesOnly() {
+    return templatesOnly;
+  }
+
+  // Returns true if this build picks up where a stopped build left off
+  // (--resume)
+  public boolean isResume() {
+    return resume;
+  }
+
+  // Gets the filter deciding which stories go into the archive
+  public StoryFilter getStoryFilter() {
+    return storyFilter;
+  }
+
+  // Gets the shard of the story folders this build is for (1 to
+  // getShardCount()), or 0 if it's for every story folder
+  public int getShard() {
+    return shard;
+  }
+
+  // Gets the number of shards the story folders are split into, or 0 if
+  // this build isn't a shard
+  public int getShardCount() {
+    return shardCount;
+  }
 
-  /*** EXTERNALLY CALLABLE HELPER FUNCTIONS - SETTERS ***/
+  // Returns true if this build merges the shards' partials
+  public boolean isMergeShards() {
+    return mergeShards;
+  }
+
+  // Gets the folder shard partials are kept in
+  public Path getShardFolder() {
+    if (!shardDir.equals("")) {
+      return Paths.get(shardDir);
+    }
+    File absoluteOutput = output.getAbsoluteFile();
+    return new File(absoluteOutput.getParentFile(),
+                    absoluteOutput.getName() + "-shards").toPath();
+  }
 
-  // Called (true) each time a story reads an author name in storyinfo.txt
-  // If never called, we know there are no authors to sort by.
-  public static void setHasAuthors(boolean b) {
-    archiveHasAuthors = b;
+  // Gets the input shared with other builds, or null if there isn't any
+  public SharedInput getSharedInput() {
+    return sharedInput;
   }
 
-  // Called each time a story reads in a tagset.
-  // If this is never called, we know there are no tags to generate pages for.
-  public static void setHasTags(boolean b) {
-    archiveHasTags = b;
+  // Shares parsed stories and chapter bodies with other builds of the same
+  // input (see SharedInput), instead of reading them all for this build.
+  public void setSharedInput(SharedInput sharedInput) {
+    checkNotLocked();
+    this.sharedInput = sharedInput;
   }
 
 }
@@ -1,12 +1,14 @@
 /***
 
-  Utility functions for reading files to strings.
+  Utility functions for reading files to strings. Files are given as Paths,
+  so they can come from a folder or from inside a zip or tar.
 
 ***/
 
 import java.util.*;
 import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.file.*;
 
 public class FileToStringUtils {
 
@@ -17,13 +19,13 @@ public class FileToStringUtils {
 
 
  // Reads a string into a file, with optional casual HTML and tab depth.
-  public static String readFileToString(File inputFile, int leftTabs,
+  public static String readFileToString(Path inputFile, int leftTabs,
                                         boolean useCasualHTML) {
     //long start = System.currentTimeMillis();
     StringBuilder fileContents = new StringBuilder();
     int lines = 0;
     try {
-      Scanner inputReader = new Scanner(inputFile);
+      Scanner inputReader = openScanner(inputFile);
       if (leftTabs > 0) {
         while (inputReader.hasNextLine()) {
           lines++;
@@ -44,14 +46,13 @@ public class FileToStringUtils {
       }
       // Close the scanner once we're done
       inputReader.close();
-    } catch (FileNotFoundException e) {
-      System.out.println("Error: file " + inputFile.getPath()
+    } catch (IOException e) {
+      System.out.println("Error: file " + inputFile
                          + " does not exist.");
       e.printStackTrace();
     }
-    // replace with ChiveGenMain once ready
-    if (FicArchiveBuilder.isVerbose()) {
-      System.out.println("Read " + lines + " lines from " + inputFile.getPath()
+    if (ChiveGenMain.verbosityInt() >= ChiveGenMain.VERBOSE) {
+      System.out.println("Read " + lines + " lines from " + inputFile
                          + " to string:");
     }
     // If using casual HTML, just run it through the converter
@@ -62,18 +63,25 @@ public class FileToStringUtils {
   }
 
   //@override
-  public static String readFileToString(File inputFile, int leftTabs) {
+  public static String readFileToString(Path inputFile, int leftTabs) {
     // default to no casual html
     return readFileToString(inputFile, leftTabs, false);
   }
 
   //@override
-  public static String readFileToString(File inputFile, boolean useCasualHTML) {
+  public static String readFileToString(Path inputFile, boolean useCasualHTML) {
     return readFileToString(inputFile, 0, useCasualHTML);
   }
 
   //@override
-  public static String readFileToString(File inputFile) {
+  public static String readFileToString(Path inputFile) {
     return readFileToString(inputFile, 0, false);
   }
+
+  // Opens a Scanner on a file, read with the default charset. Like
+  // new Scanner(File) (and unlike new Scanner(Path), which replaces them),
+  // the Scanner stops at the first bytes that aren't valid in that charset.
+  public static Scanner openScanner(Path file) throws IOException {
+    return new Scanner(Files.newByteChannel(file));
+  }
 }
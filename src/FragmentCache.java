@@ -0,0 +1,99 @@
+/***
+
+  A cache of small HTML fragments that get rebuilt for the same terms over
+  and over: the URL-safe and Title Case forms of tags, fandoms and authors,
+  and the rendered tag link for each term in each category. Popular tags
+  show up on thousands of stories, so each of these is worked out once per
+  term and shared (safely, across threads) for the rest of the build.
+
+  Each build (see BuildContext) has its own FragmentCache, since links
+  depend on the site path, output layout and tag template, and so that a
+  program running many builds (e.g. BuildDaemon or PreviewServer) lets go
+  of every term once the build that used it is done.
+
+***/
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FragmentCache {
+  // URL-safe versions of terms (see HtmlUtils.toSafeUrl)
+  private ConcurrentHashMap<String, String> safeUrls =
+    new ConcurrentHashMap<String, String>();
+  // Title Case versions of terms (see HtmlUtils.toTitleCase)
+  private ConcurrentHashMap<String, String> titleCases =
+    new ConcurrentHashMap<String, String>();
+  // Rendered tag links, by category folder and then by term. Links for
+  // categories without pages (which all go to "#") are kept under "#".
+  private ConcurrentHashMap<String, ConcurrentHashMap<String, String>>
+    tagLinks = new ConcurrentHashMap<String, ConcurrentHashMap<String, String>>();
+  // What the links are built with
+  private String sitePath;
+  private OutputLayout outputLayout;
+  private ContentTemplate tagTemplate;
+
+  // Starts an empty cache for a build.
+  public FragmentCache(String sitePath, OutputLayout outputLayout,
+                       ContentTemplate tagTemplate) {
+    this.sitePath = sitePath;
+    this.outputLayout = outputLayout;
+    this.tagTemplate = tagTemplate;
+  }
+
+  // Gets the URL-safe version of a term.
+  public String safeUrl(String term) {
+    String safe = safeUrls.get(term);
+    if (safe == null) {
+      safe = HtmlUtils.toSafeUrl(term);
+      safeUrls.putIfAbsent(term, safe);
+    }
+    return safe;
+  }
+
+  // Gets the Title Case version of a term.
+  public String titleCase(String term) {
+    String titled = titleCases.get(term);
+    if (titled == null) {
+      titled = HtmlUtils.toTitleCase(term);
+      titleCases.putIfAbsent(term, titled);
+    }
+    return titled;
+  }
+
+  // Gets a term's tag link into the first page of its category, rendered
+  // with the tag template (or "#" for the link, if the category has no
+  // pages.)
+  public String tagLink(String categoryFolder, String term,
+                        boolean skipCategoryPages) {
+    String cacheKey = categoryFolder;
+    if (skipCategoryPages) {
+      cacheKey = "#";
+    }
+    ConcurrentHashMap<String, String> links = tagLinks.get(cacheKey);
+    if (links == null) {
+      tagLinks.putIfAbsent(cacheKey, new ConcurrentHashMap<String, String>());
+      links = tagLinks.get(cacheKey);
+    }
+    String link = links.get(term);
+    if (link == null) {
+      link = buildTagLink(categoryFolder, term, skipCategoryPages);
+      links.putIfAbsent(term, link);
+    }
+    return link;
+  }
+
+  // Renders a single tag link (the same as Story.buildField() with the tag
+  // template.)
+  private String buildTagLink(String categoryFolder, String term,
+                              boolean skipCategoryPages) {
+    String linkURL = "#";
+    if (!skipCategoryPages) {
+      linkURL = sitePath +
+        outputLayout.getCategoryPagePath(categoryFolder,
+          safeUrl(term.toLowerCase()), 1);
+    }
+    if (term.equals("")) {
+      return linkURL;
+    }
+    return tagTemplate.assemble(new String[] {term, linkURL});
+  }
+}
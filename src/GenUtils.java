@@ -1,9 +1,12 @@
 /***
-  *  General utility functions. May be deleted, since there's only one thing
-  *  here and it's potentially deprecated/obsolete.
+  *  General utility functions: quick collection conversions, plus a couple
+  *  of helpers for running I/O work on other threads.
  ***/
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.lang.reflect.Method;
 
 public class GenUtils {
 
@@ -26,4 +29,39 @@ public class GenUtils {
     return map;
   }
 
+  // Creates an executor for blocking I/O work, like reading lots of small
+  // files from a network filesystem. Uses a virtual thread per task when the
+  // JVM has them (Java 21+), and otherwise a fixed pool of the given size.
+  public static ExecutorService newIOExecutor(int fallbackThreads) {
+    try {
+      Method virtualExecutor =
+        Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)virtualExecutor.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(Math.max(1, fallbackThreads));
+    }
+  }
+
+  // Waits for a Future and returns its result. If the task threw an
+  // IOException, it's rethrown as-is; other exceptions are rethrown
+  // unchecked.
+  public static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for I/O.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
 }
@@ -0,0 +1,582 @@
+/***
+
+  Reads a whole story from a single downloaded HTML file (story.html), in the
+  format AO3 uses for its HTML downloads:
+
+    <div id="preface">       Rating, fandoms, tags, stats, title, byline,
+                             summary and notes
+    <div id="chapters">      For each chapter, a <div class="meta"> with an
+                             <h2 class="heading">, then the chapter text in a
+                             <div class="userstuff">
+    <div id="afterword">     End notes
+
+  The file is read once, front to back, with a small tag scanner instead of a
+  DOM. Metadata is collected as storyinfo.txt-style [field, value] pairs, so
+  Story can apply it the same way as storyinfo.txt, and for each chapter only
+  the byte offsets of its text are kept. Chapter text is read back from those
+  offsets when the chapter page is built, so the whole story is never held in
+  memory at once.
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.regex.*;
+
+public class HtmlStoryFile {
+  // File name looked for in story folders
+  public final static String FILE_NAME = "story.html";
+
+  private final static int READ_BUFFER_SIZE = 64 * 1024;
+  // Longest tag we bother keeping the text of (attributes and all)
+  private final static int MAX_TAG_LENGTH = 4096;
+
+  private final static Pattern ID_PATTERN =
+    Pattern.compile("\\sid\\s*=\\s*[\"']([^\"']*)[\"']", Pattern.CASE_INSENSITIVE);
+  private final static Pattern CLASS_PATTERN =
+    Pattern.compile("\\sclass\\s*=\\s*[\"']([^\"']*)[\"']", Pattern.CASE_INSENSITIVE);
+  private final static Pattern CHAPTER_HEADING_PATTERN =
+    Pattern.compile("^Chapter\\s+\\d+\\s*:\\s*(.+)$", Pattern.CASE_INSENSITIVE);
+  private final static Pattern STATS_PATTERN =
+    Pattern.compile("(Published|Updated|Completed|Words|Chapters):\\s*(\\S+)");
+
+  // Roles of the divs we care about
+  private final static int DIV_OTHER = 0;
+  private final static int DIV_PREFACE = 1;
+  private final static int DIV_CHAPTERS = 2;
+  private final static int DIV_CHAPTER_META = 3;
+  private final static int DIV_CHAPTER_TEXT = 4;
+  private final static int DIV_AFTERWORD = 5;
+  private final static int DIV_BYLINE = 6;
+
+  // Which word count text is going towards
+  private final static int COUNT_NONE = 0;
+  private final static int COUNT_CHAPTER = 1;
+  private final static int COUNT_LOOSE = 2;
+
+  // What's currently being captured
+  private final static int CAPTURE_NONE = 0;
+  private final static int CAPTURE_TEXT = 1;  // text only, tags left out
+  private final static int CAPTURE_HTML = 2;  // inner HTML, tags and all
+
+  private Path file;
+  // Metadata as [field name, value] pairs, using storyinfo.txt field names
+  private ArrayList<String[]> fields = new ArrayList<String[]>();
+  // Chapter titles (null where the file didn't give one), and the start and
+  // end byte offsets of each chapter's text
+  private ArrayList<String> chapterTitles = new ArrayList<String>();
+  private ArrayList<long[]> chapterRanges = new ArrayList<long[]>();
+  private int wordCount = 0;
+
+  // Parser state
+  private ArrayDeque<Integer> divRoles = new ArrayDeque<Integer>();
+  private long chaptersStart = -1;
+  private String pendingChapterTitle;
+  private String pendingDefinition;
+  private String pendingBlockField;
+  private int captureMode = CAPTURE_NONE;
+  private String captureTag;
+  private int captureDepth;
+  private String captureField;
+  private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+  private int capturedBeforeTag;
+  // Words are counted separately inside chapter text divs and loose in the
+  // chapters div, in case the file turns out not to have chapter divs
+  private int looseWordCount = 0;
+  private int wordCounter = COUNT_NONE;
+  private boolean inWord = false;
+
+  private HtmlStoryFile(Path file) {
+    this.file = file;
+  }
+
+  // Reads a story.html file. Only the metadata and chapter offsets are kept.
+  public static HtmlStoryFile read(Path file) throws IOException {
+    HtmlStoryFile story = new HtmlStoryFile(file);
+    story.parse();
+    return story;
+  }
+
+  // Recreates a story.html that was already read, from the byte offsets of
+  // its chapters' text (see getChapterRange()). Metadata, chapter titles and
+  // the word count aren't kept.
+  public static HtmlStoryFile fromChapterRanges(Path file, long[][] ranges) {
+    HtmlStoryFile story = new HtmlStoryFile(file);
+    for (long[] range : ranges) {
+      story.chapterRanges.add(range);
+      story.chapterTitles.add(null);
+    }
+    return story;
+  }
+
+  // Gets the story.html file this was read from.
+  public Path getFile() {
+    return file;
+  }
+
+  // Gets the start and end byte offsets of a chapter's text in the file.
+  public long[] getChapterRange(int chapter) {
+    return chapterRanges.get(chapter).clone();
+  }
+
+  // Gets the story metadata as [field name, value] pairs, using the same
+  // field names as storyinfo.txt.
+  public List<String[]> getFields() {
+    return fields;
+  }
+
+  // Gets the number of chapters found.
+  public int getChapterCount() {
+    return chapterRanges.size();
+  }
+
+  // Gets the title of a chapter, or null if the file didn't give one.
+  public String getChapterTitle(int chapter) {
+    return chapterTitles.get(chapter);
+  }
+
+  // Gets the number of words in the text of every chapter.
+  public int getWordCount() {
+    return wordCount;
+  }
+
+  // Reads the HTML of one chapter's text straight from its place in the file.
+  public String readChapterText(int chapter) throws IOException {
+    long[] range = chapterRanges.get(chapter);
+    ByteBuffer text = ByteBuffer.allocate((int)(range[1] - range[0]));
+    try (SeekableByteChannel in = Files.newByteChannel(file)) {
+      in.position(range[0]);
+      while (text.hasRemaining()) {
+        if (in.read(text) < 0) {
+          break;
+        }
+      }
+    }
+    return new String(text.array(), 0, text.position(), StandardCharsets.UTF_8);
+  }
+
+  /*** PARSING ***/
+
+  // Goes through the file once, front to back, handing each tag and each
+  // byte of text to the handlers below.
+  private void parse() throws IOException {
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    ByteArrayOutputStream tag = new ByteArrayOutputStream();
+    boolean inTag = false;
+    boolean inComment = false;
+    int dashes = 0;
+    byte quote = 0;
+    long tagStart = 0;
+    long offset = 0;
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        for (int i = 0; i < read; i++, offset++) {
+          byte b = buffer[i];
+          if (captureMode == CAPTURE_HTML || (captureMode == CAPTURE_TEXT && !inTag && b != '<')) {
+            captured.write(b);
+          }
+          if (!inTag) {
+            if (b == '<') {
+              inTag = true;
+              inComment = false;
+              quote = 0;
+              tagStart = offset;
+              tag.reset();
+              capturedBeforeTag = captured.size() - (captureMode == CAPTURE_HTML ? 1 : 0);
+            } else if (wordCounter != COUNT_NONE) {
+              countWord(b);
+            }
+            continue;
+          }
+          // Inside a tag (or comment)
+          if (tag.size() < MAX_TAG_LENGTH) {
+            tag.write(b);
+          }
+          if (tag.size() == 3 && tag.toString(StandardCharsets.ISO_8859_1).equals("!--")) {
+            inComment = true;
+            dashes = 0;
+            continue;
+          }
+          if (inComment) {
+            // Comments end at the first "-->", however long they are
+            if (b == '>' && dashes >= 2) {
+              inTag = false;
+            }
+            dashes = b == '-' ? dashes + 1 : 0;
+          } else if (quote != 0) {
+            if (b == quote) {
+              quote = 0;
+            }
+          } else if (b == '"' || b == '\'') {
+            // Only attribute values are quoted, never the tag name
+            if (tag.size() > 1) {
+              quote = b;
+            }
+          } else if (b == '>') {
+            inTag = false;
+            handleTag(tag.toString(StandardCharsets.UTF_8), tagStart, offset + 1);
+          }
+        }
+      }
+    }
+    if (chapterRanges.isEmpty() && chaptersStart != -1) {
+      System.out.println("Warning: couldn't find separate chapters in " + file
+                         + ". Treating it as a oneshot.");
+    }
+  }
+
+  // Counts words in chapter text, one byte at a time. Tags don't split words.
+  private void countWord(byte b) {
+    boolean isSpace = b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    if (!isSpace && !inWord) {
+      if (wordCounter == COUNT_CHAPTER) {
+        wordCount++;
+      } else {
+        looseWordCount++;
+      }
+    }
+    inWord = !isSpace;
+  }
+
+  // Handles one complete tag. tagText is everything between < and >.
+  // start is the offset of the '<', and end the offset just past the '>'.
+  private void handleTag(String tagText, long start, long end) {
+    if (tagText.length() == 0 || tagText.charAt(0) == '!' || tagText.charAt(0) == '?') {
+      return;
+    }
+    boolean closing = tagText.charAt(0) == '/';
+    String body = closing ? tagText.substring(1) : tagText;
+    int nameEnd = 0;
+    while (nameEnd < body.length() && !Character.isWhitespace(body.charAt(nameEnd))
+           && body.charAt(nameEnd) != '/' && body.charAt(nameEnd) != '>') {
+      nameEnd++;
+    }
+    String name = body.substring(0, nameEnd).toLowerCase();
+    // Finish a capture when its tag closes
+    if (captureMode != CAPTURE_NONE && name.equals(captureTag)) {
+      if (closing) {
+        captureDepth--;
+        if (captureDepth == 0) {
+          finishCapture();
+        }
+      } else {
+        captureDepth++;
+      }
+    }
+    if (name.equals("div")) {
+      if (closing) {
+        closeDiv(start);
+      } else {
+        openDiv(" " + body, end);
+      }
+      return;
+    }
+    if (closing || captureMode != CAPTURE_NONE) {
+      return;
+    }
+    int context = divRoles.isEmpty() ? DIV_OTHER : divRoles.peek();
+    boolean inPreface = divRoles.contains(DIV_PREFACE);
+    boolean inAfterword = divRoles.contains(DIV_AFTERWORD);
+    if (inPreface && (name.equals("dt") || name.equals("dd") || name.equals("h1")
+                      || name.equals("p"))) {
+      startCapture(name, CAPTURE_TEXT, name);
+    } else if ((inPreface || inAfterword) && name.equals("blockquote")
+               && pendingBlockField != null) {
+      startCapture(name, CAPTURE_HTML, pendingBlockField);
+      pendingBlockField = null;
+    } else if (inAfterword && name.equals("p")) {
+      startCapture(name, CAPTURE_TEXT, name);
+    } else if (context == DIV_CHAPTER_META && name.equals("h2")) {
+      startCapture(name, CAPTURE_TEXT, "h2");
+    }
+  }
+
+  private void openDiv(String attributes, long contentStart) {
+    String id = getAttribute(ID_PATTERN, attributes);
+    String classes = " " + getAttribute(CLASS_PATTERN, attributes) + " ";
+    int parent = divRoles.isEmpty() ? DIV_OTHER : divRoles.peek();
+    int role = DIV_OTHER;
+    if (id.equals("preface")) {
+      role = DIV_PREFACE;
+    } else if (id.equals("chapters")) {
+      role = DIV_CHAPTERS;
+      chaptersStart = contentStart;
+    } else if (id.equals("afterword")) {
+      role = DIV_AFTERWORD;
+    } else if (parent == DIV_CHAPTERS && classes.contains(" meta ")) {
+      role = DIV_CHAPTER_META;
+    } else if (parent == DIV_CHAPTERS && classes.contains(" userstuff ")) {
+      role = DIV_CHAPTER_TEXT;
+      chapterRanges.add(new long[] {contentStart, -1});
+      chapterTitles.add(pendingChapterTitle);
+      pendingChapterTitle = null;
+    } else if (divRoles.contains(DIV_PREFACE) && classes.contains(" byline ")
+               && captureMode == CAPTURE_NONE) {
+      role = DIV_BYLINE;
+      startCapture("div", CAPTURE_TEXT, "byline");
+    }
+    divRoles.push(role);
+    updateWordCounter();
+  }
+
+  private void closeDiv(long contentEnd) {
+    if (divRoles.isEmpty()) {
+      return;
+    }
+    int role = divRoles.pop();
+    if (role == DIV_CHAPTER_TEXT) {
+      chapterRanges.get(chapterRanges.size() - 1)[1] = contentEnd;
+    } else if (role == DIV_CHAPTERS && chapterRanges.isEmpty()) {
+      // No separate chapter divs; the whole thing is one chapter
+      chapterRanges.add(new long[] {chaptersStart, contentEnd});
+      chapterTitles.add(null);
+      wordCount = looseWordCount;
+    }
+    updateWordCounter();
+  }
+
+  // Works out which word count (if any) text inside the current div goes to.
+  private void updateWordCounter() {
+    int counter = COUNT_NONE;
+    if (divRoles.contains(DIV_CHAPTER_TEXT)) {
+      counter = COUNT_CHAPTER;
+    } else if (!divRoles.isEmpty() && divRoles.peek() == DIV_CHAPTERS) {
+      counter = COUNT_LOOSE;
+    }
+    if (counter != wordCounter) {
+      wordCounter = counter;
+      inWord = false;
+    }
+  }
+
+  private static String getAttribute(Pattern pattern, String attributes) {
+    Matcher matcher = pattern.matcher(attributes);
+    return matcher.find() ? matcher.group(1).trim() : "";
+  }
+
+  private void startCapture(String tagName, int mode, String field) {
+    captureMode = mode;
+    captureTag = tagName;
+    captureDepth = 1;
+    captureField = field;
+    captured.reset();
+  }
+
+  // Called when the captured tag closes. Decides what the captured text was.
+  private void finishCapture() {
+    byte[] bytes = captured.toByteArray();
+    int length = captureMode == CAPTURE_HTML ? capturedBeforeTag : bytes.length;
+    String value = new String(bytes, 0, Math.max(0, length), StandardCharsets.UTF_8);
+    String field = captureField;
+    captureMode = CAPTURE_NONE;
+    captureTag = null;
+    captured.reset();
+    if (!field.equals("summary") && !field.equals("notes")
+        && !field.equals("end notes")) {
+      value = collapseWhitespace(decodeEntities(value));
+    } else {
+      value = value.trim();
+    }
+    switch (field) {
+      case "dt":
+        pendingDefinition = value.endsWith(":")
+                            ? value.substring(0, value.length() - 1).trim()
+                            : value;
+        break;
+      case "dd":
+        addDefinition(pendingDefinition, value);
+        pendingDefinition = null;
+        break;
+      case "h1":
+        addField("title", value);
+        break;
+      case "byline":
+        if (value.toLowerCase().startsWith("by ")) {
+          value = value.substring(3).trim();
+        }
+        addField("author", value);
+        break;
+      case "p":
+        // "Summary", "Notes" and "End Notes" label the blockquote after them
+        String label = value.toLowerCase();
+        if (label.equals("summary") || label.equals("notes")
+            || label.equals("end notes")) {
+          pendingBlockField = label;
+        }
+        break;
+      case "h2":
+        Matcher heading = CHAPTER_HEADING_PATTERN.matcher(value);
+        if (heading.matches()) {
+          pendingChapterTitle = heading.group(1).trim();
+        } else if (!value.isEmpty()) {
+          pendingChapterTitle = value;
+        }
+        break;
+      default:  // summary, notes, end notes
+        addField(field, value);
+    }
+  }
+
+  // Turns one row of the preface's tag list into storyinfo.txt fields.
+  private void addDefinition(String term, String value) {
+    if (term == null) {
+      return;
+    }
+    switch (term.toLowerCase()) {
+      case "rating":
+        addField("rating", toRatingCode(value));
+        break;
+      case "fandom":
+      case "fandoms":
+        addField("fandom", value);
+        break;
+      case "relationship":
+      case "relationships":
+      case "character":
+      case "characters":
+      case "additional tags":
+      case "freeform":
+        // All of these become tags, in the order AO3 lists them
+        addTags(value);
+        break;
+      case "stats":
+        addStats(value);
+        break;
+      default:
+        // Warnings, categories, series, etc aren't used
+    }
+  }
+
+  private void addTags(String value) {
+    for (String[] field : fields) {
+      if (field[0].equals("tags")) {
+        field[1] = field[1] + ", " + value;
+        return;
+      }
+    }
+    addField("tags", value);
+  }
+
+  // Parses the "Published: ... Updated: ... Words: ... Chapters: ..." stats.
+  private void addStats(String stats) {
+    Matcher matcher = STATS_PATTERN.matcher(stats);
+    boolean completed = false;
+    String chapters = null;
+    while (matcher.find()) {
+      String value = matcher.group(2);
+      switch (matcher.group(1)) {
+        case "Published":
+          addField("published", value);
+          break;
+        case "Updated":
+          addField("updated", value);
+          break;
+        case "Completed":
+          addField("updated", value);
+          completed = true;
+          break;
+        case "Words":
+          addField("words", value);
+          break;
+        default:  // Chapters
+          chapters = value;
+      }
+    }
+    if (chapters != null && chapters.contains("/")) {
+      String[] counts = chapters.split("/", 2);
+      completed = completed || counts[0].equals(counts[1]);
+    }
+    if (completed || chapters != null) {
+      addField("complete", completed ? "yes" : "no");
+    }
+  }
+
+  private void addField(String field, String value) {
+    if (!value.isEmpty()) {
+      fields.add(new String[] {field, value});
+    }
+  }
+
+  // Converts AO3's rating names to the short codes parseAsRating() knows.
+  private static String toRatingCode(String rating) {
+    switch (rating.toLowerCase()) {
+      case "general audiences":
+        return "g";
+      case "teen and up audiences":
+        return "t";
+      case "mature":
+        return "m";
+      case "explicit":
+        return "e";
+      default:  // Not Rated
+        return rating;
+    }
+  }
+
+  private static String collapseWhitespace(String text) {
+    return text.replaceAll("\\s+", " ").trim();
+  }
+
+  // Decodes the handful of HTML entities that show up in titles and tags.
+  private static String decodeEntities(String text) {
+    if (text.indexOf('&') == -1) {
+      return text;
+    }
+    StringBuilder decoded = new StringBuilder(text.length());
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      int semicolon = c == '&' ? text.indexOf(';', i) : -1;
+      if (semicolon == -1 || semicolon - i > 10) {
+        decoded.append(c);
+        i++;
+        continue;
+      }
+      String entity = text.substring(i + 1, semicolon);
+      String replacement = null;
+      switch (entity) {
+        case "amp":
+          replacement = "&";
+          break;
+        case "lt":
+          replacement = "<";
+          break;
+        case "gt":
+          replacement = ">";
+          break;
+        case "quot":
+          replacement = "\"";
+          break;
+        case "apos":
+          replacement = "'";
+          break;
+        case "nbsp":
+          replacement = " ";
+          break;
+        default:
+          try {
+            if (entity.startsWith("#x") || entity.startsWith("#X")) {
+              replacement = new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+            } else if (entity.startsWith("#")) {
+              replacement = new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+            }
+          } catch (IllegalArgumentException e) {
+            replacement = null;
+          }
+      }
+      if (replacement == null) {
+        decoded.append(c);
+        i++;
+      } else {
+        decoded.append(replacement);
+        i = semicolon + 1;
+      }
+    }
+    return decoded.toString();
+  }
+}
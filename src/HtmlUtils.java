@@ -20,13 +20,6 @@ public class HtmlUtils {
   private static String[] acceptedOpeningHTMLTags = new String[] {"<br",
   "<hr", "<h", "</", "<di", "<im", "<li", "<ul", "<ol",
   "<if", "<bl", "<ta", "<tr", "<td", "<th", "<no"};
-  // To reduce magic numbers
-  private static final int LONGEST_OPENING_TAG_LENGTH = 3;
-  private static final int SHORTEST_OPENING_TAG_LENGTH = 2;
-
-  // Contains all recognized non-paragraph HTML opening tag starts
-  private static HashSet<String> nonParagraphHTMLTags =
-    new HashSet<String>(Arrays.asList(acceptedOpeningHTMLTags));
 
 
   // Wraps each line of a string in HTML paragraph tags, unless it appears to
@@ -37,37 +30,56 @@ public class HtmlUtils {
     if (text.equals("")) { // if it's blank, don't even bother
       return text;
     }
-    StringBuilder formatted = new StringBuilder();
-    Scanner lineReader = new Scanner(text);
-    String current;
-    String currentClean;
+    StringBuilder formatted = TextBuffers.acquire();
+    formatted.ensureCapacity(text.length() + text.length() / 8);
     boolean inParagraph = false;
-    while (lineReader.hasNextLine()) {
-      current = lineReader.nextLine();
-      currentClean = current.trim();
+    // Lines are read in place, as [lineStart, lineEnd) of the text, and
+    // [cleanStart, cleanEnd) is the line with whitespace trimmed. Lines end
+    // where Scanner.nextLine() would end them.
+    int lineStart = 0;
+    int length = text.length();
+    while (lineStart < length) {
+      int lineEnd = lineStart;
+      while (lineEnd < length && !isLineSeparator(text.charAt(lineEnd))) {
+        lineEnd++;
+      }
+      int nextLine = lineEnd + 1;
+      if (lineEnd + 1 < length && text.charAt(lineEnd) == '\r'
+          && text.charAt(lineEnd + 1) == '\n') {
+        nextLine++;
+      }
+      int cleanStart = lineStart;
+      int cleanEnd = lineEnd;
+      while (cleanStart < cleanEnd && text.charAt(cleanStart) <= ' ') {
+        cleanStart++;
+      }
+      while (cleanEnd > cleanStart && text.charAt(cleanEnd - 1) <= ' ') {
+        cleanEnd--;
+      }
+      boolean blank = cleanStart == cleanEnd;
       // If this is clearly not part of a paragraph, just append as-is
-      if (detectNonParagraphHtmlTags(currentClean)) {
+      if (detectNonParagraphHtmlTags(text, cleanStart, cleanEnd)) {
         //System.out.println("Non-paragraph content: " + current);
-        formatted.append("\n" + current);
+        formatted.append('\n').append(text, lineStart, lineEnd);
       } else if (inParagraph) {
         //System.out.println("Paragraph content: " + current);
         // If we're already in a paragraph, break lines with <br> unless we
         // reach an entirely blank line, in which case the paragraph ends.
-        if (currentClean.equals("")) {
+        if (blank) {
           formatted.append("</p>");
           inParagraph = false;
-        } else if (paragraphEnds(currentClean)) {
+        } else if (paragraphEnds(text, cleanStart, cleanEnd)) {
           inParagraph = false;
         } else {
-          formatted.append("\n<br>" + current);
+          formatted.append("\n<br>").append(text, lineStart, lineEnd);
         }
-      } else if (!currentClean.equals("")) {
+      } else if (!blank) {
         // If we have content on this line, we are entering a new paragraph.
         //System.out.println("Paragraph ENTERED, line 1: " + current);
-        formatted.append("\n<p>" + current);
+        formatted.append("\n<p>").append(text, lineStart, lineEnd);
         // If this paragraph doesn't end itself with a </p> tag, mark that we
         // are scanning inside a paragraph right now
-        if (!paragraphEnds(currentClean)) {
+        if (!paragraphEnds(text, cleanStart, cleanEnd)) {
           inParagraph = true;
         }
       } else {
@@ -75,43 +87,35 @@ public class HtmlUtils {
         //System.out.println("Blank line. Adding <br>");
         formatted.append("\n<br>\n");
       }
+      lineStart = nextLine;
     }
     //System.out.println("RESULTS: ");
     //System.out.println(formatted.toString());
-    lineReader.close();
-    return formatted.toString();
+    return TextBuffers.finish(formatted);
   }
 
-  // Returns whether or not the given string ends with "</p>".
-  private static boolean paragraphEnds(String s) {
-    return s.length() > 3 && s.substring(s.length() - 4).equals("</p>");
+  // Returns whether a character ends a line (as far as Scanner is concerned)
+  private static boolean isLineSeparator(char c) {
+    return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029'
+           || c == '\u0085';
   }
 
-  // Returns true if the string starts with a recognized non-paragraph HTML
-  // opening tag.
-  private static boolean detectNonParagraphHtmlTags(String s) {
-    if (s.equals("")) {
+  // Returns whether or not the given part of a string ends with "</p>".
+  private static boolean paragraphEnds(String s, int start, int end) {
+    return end - start > 3 && s.startsWith("</p>", end - 4);
+  }
+
+  // Returns true if the given (already trimmed) part of a string starts with
+  // a recognized non-paragraph HTML opening tag.
+  private static boolean detectNonParagraphHtmlTags(String s, int start,
+                                                    int end) {
+    // Only check for HTML tags if we clearly start with one
+    if (start == end || s.charAt(start) != '<') {
       return false;
     }
-    // Strip leading whitespace, and get a substring of only the first
-    // maxTagLength+1 characters
-    String comparisonSubstring = s.trim();
-    if (comparisonSubstring.charAt(0) == '<') {
-      // Only check for HTML tags if we clearly start with one
-      if (comparisonSubstring.length() > LONGEST_OPENING_TAG_LENGTH) {
-        // only get the substring if it's longer than our max tag length
-        comparisonSubstring = comparisonSubstring.substring(0, LONGEST_OPENING_TAG_LENGTH);
-      }
-      //System.out.println("Is this a tag we know?: " + comparisonSubstring);
-      // Check progressively shorter versions of the string against the set
-      // of non-paragraph HTML tags
-      int j = comparisonSubstring.length();
-      for (int i = j; i >= SHORTEST_OPENING_TAG_LENGTH; i--) {
-        comparisonSubstring = comparisonSubstring.substring(0, i);
-        //System.out.println("Is this a tag we know?: " + comparisonSubstring);
-        if (nonParagraphHTMLTags.contains(comparisonSubstring)) {
-          return true;
-        }
+    for (String tag : acceptedOpeningHTMLTags) {
+      if (end - start >= tag.length() && s.startsWith(tag, start)) {
+        return true;
       }
     }
     return false;
@@ -0,0 +1,48 @@
+/***
+
+  A piece of a page (a story infobox, a formatted list of tags, etc) that
+  isn't built until some page actually uses it, and is then remembered so
+  it's only ever built once. Safe to share between threads.
+
+***/
+
+import java.util.function.Supplier;
+
+public class LazyFragment {
+  // Builds the fragment. Dropped once it's been used.
+  private Supplier<String> builder;
+  private volatile String value;
+
+  // Creates a fragment that will be built by the given function.
+  public LazyFragment(Supplier<String> builder) {
+    this.builder = builder;
+  }
+
+  // Creates a fragment that's already built.
+  public static LazyFragment of(String value) {
+    LazyFragment fragment = new LazyFragment(null);
+    fragment.value = value;
+    return fragment;
+  }
+
+  // Gets the fragment, building it first if this is the first time.
+  public String get() {
+    String built = value;
+    if (built == null) {
+      synchronized (this) {
+        built = value;
+        if (built == null) {
+          built = builder.get();
+          value = built;
+          builder = null;
+        }
+      }
+    }
+    return built;
+  }
+
+  // Returns whether the fragment has been built yet.
+  public boolean isBuilt() {
+    return value != null;
+  }
+}
@@ -0,0 +1,153 @@
+/***
+
+  Plans where everything in the output folder goes. Works out the full
+  folder tree for a build up front so each folder is created exactly once,
+  and (optionally) fans large flat collections like stories and tags out
+  into subfolders named by a short hash prefix, e.g. stories/3f/my-story/
+  instead of stories/my-story/, so no single folder ends up with hundreds of
+  thousands of entries.
+
+  Every link to a story or category page should be built through here, so
+  links always match where the pages were actually written.
+
+***/
+
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class OutputLayout {
+  // Most hex digits a fan-out prefix can have (a full 32-bit hash)
+  public final static int MAX_FANOUT_DIGITS = 8;
+
+  // Root of the output
+  private File outputFolder;
+  // Name of the folder stories go in
+  private String storyDirectoryName;
+  // Number of hex digits in fan-out folder names. 0 means no fan-out.
+  private int fanOutDigits;
+  // URL divider between a category name and its page number
+  private String paginationDivider;
+  // False if nothing should actually be created on disk (i.e. site packs)
+  private boolean createFolders;
+  // Folders to create, relative to the output folder. Sorted, so that a
+  // parent folder always comes before its children.
+  private TreeSet<String> plannedFolders = new TreeSet<String>();
+
+  public OutputLayout(File outputFolder, String storyDirectoryName,
+                      int fanOutDigits, String paginationDivider,
+                      boolean createFolders) {
+    this.outputFolder = outputFolder;
+    this.storyDirectoryName = storyDirectoryName;
+    this.fanOutDigits = Math.max(0, Math.min(fanOutDigits, MAX_FANOUT_DIGITS));
+    this.paginationDivider = paginationDivider;
+    this.createFolders = createFolders;
+  }
+
+  // Gets the fan-out folder name for an entry, e.g. "3f", or "" if fan-out
+  // is off. Based on a CRC32 of the name, so it's the same on every build.
+  public String getFanOutPrefix(String name) {
+    if (fanOutDigits == 0) {
+      return "";
+    }
+    CRC32 hash = new CRC32();
+    hash.update(name.getBytes(StandardCharsets.UTF_8));
+    String hex = String.format("%08x", hash.getValue());
+    return hex.substring(0, fanOutDigits);
+  }
+
+  // Gets the path of an entry inside its collection folder, with the
+  // fan-out folder in front if there is one, e.g. "3f/my-story".
+  public String getFanOutPath(String name) {
+    if (fanOutDigits == 0) {
+      return name;
+    }
+    return getFanOutPrefix(name) + "/" + name;
+  }
+
+  // Gets the output-relative path of a story's folder, e.g.
+  // "stories/3f/my-story".
+  public String getStoryPath(String storyFolderName) {
+    return storyDirectoryName + "/"
+           + getFanOutPath(storyFolderName);
+  }
+
+  // Gets the output-relative path of a category (tag, fandom, etc) from
+  // the category's folder name and the URL-safe name of the entry, e.g.
+  // "tags/a0/slow-burn". Page numbers are added after this with the
+  // pagination divider.
+  public String getCategoryPath(String categoryFolderName, String safeName) {
+    return categoryFolderName + "/" + getFanOutPath(safeName);
+  }
+
+  // Gets the output-relative path of the given page of a category.
+  public String getCategoryPagePath(String categoryFolderName, String safeName,
+                                    int page) {
+    return getCategoryPath(categoryFolderName, safeName) + paginationDivider
+           + page + ".html";
+  }
+
+  // Adds a folder (relative to the output folder) to the plan.
+  public void planFolder(String relativePath) {
+    plannedFolders.add(relativePath);
+  }
+
+  // Adds the folder a category's pages will be written into to the plan.
+  public void planCategoryFolder(String categoryFolderName, String safeName) {
+    if (paginationDivider.equals("/")) {
+      planFolder(getCategoryPath(categoryFolderName, safeName));
+    } else if (fanOutDigits > 0) {
+      // Pages sit directly in the fan-out folder
+      planFolder(categoryFolderName + "/" + getFanOutPrefix(safeName));
+    } else {
+      planFolder(categoryFolderName);
+    }
+  }
+
+  // Creates every planned folder that doesn't exist yet. Each folder
+  // (including parents) is looked at once, parents first, and the plan is
+  // cleared afterwards. Returns the number of folders created.
+  public int createPlannedFolders() {
+    int created = 0;
+    if (!createFolders) {
+      plannedFolders.clear();
+      return created;
+    }
+    // Expand the plan to include every parent, so mkdir() never needs to
+    // create more than one level at a time.
+    TreeSet<String> allFolders = new TreeSet<String>();
+    for (String folder : plannedFolders) {
+      String current = folder;
+      while (allFolders.add(current)) {
+        int lastSlash = current.lastIndexOf('/');
+        if (lastSlash == -1) {
+          break;
+        }
+        current = current.substring(0, lastSlash);
+      }
+    }
+    // Sorted order puts "a" before "a/b", so parents are always made first
+    for (String folder : allFolders) {
+      File f = new File(outputFolder, folder);
+      if (f.mkdir()) {
+        created++;
+      } else if (!f.isDirectory()) {
+        System.out.println("Error: could not create output folder "
+                           + f.getPath());
+      }
+    }
+    plannedFolders.clear();
+    return created;
+  }
+
+  // Gets the number of hex digits used for fan-out folders.
+  public int getFanOutDigits() {
+    return fanOutDigits;
+  }
+
+  // Gets the output folder this layout is for.
+  public File getOutputFolder() {
+    return outputFolder;
+  }
+}
@@ -0,0 +1,412 @@
+/***
+
+  The page model: what went into each page of the last build, saved in the
+  cache folder so that a template-only rebuild (--templates-only) can put
+  every page back together with new templates without reading or sorting
+  any stories.
+
+  For each page, the model keeps the content that fills the presentation
+  templates (page template, infoboxes, chapter template, pagination and
+  stories_by.txt) rather than the finished page. Story infobox fields are
+  saved once per story and shared by every page that shows that story.
+  Chapter bodies that are in the chapter cache (see ChapterBodyCache) are
+  saved as their key in the cache, and read back from there.
+  Everything else (story text, metadata, labels, links and page titles) is
+  saved as it was built, so changing any of those needs a full build.
+
+  File layout (pages.dat):
+    8 byte magic string, then the build settings the content depends on,
+    then one record per story or page:
+      STORY         infobox fields (plus the linked title for listings)
+      PAGE          path, title, main content
+      CHAPTER_PAGE  path, title, story, chapter cache key of the body ("" if
+                    the body is saved in the fields instead), chapter
+                    template fields, chapter pagination fields (if any)
+      INDEX_PAGE    path, title, stories_by.txt fields, stories listed,
+                    pagination fields (if any)
+    and an END record, so a model from an interrupted build is never used.
+  Stories always come before the first page that uses them. Strings are
+  written as an int byte length and UTF-8, since chapters can be longer
+  than writeUTF() allows.
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class PageModel {
+  // File name inside the cache folder
+  public final static String FILE_NAME = "pages.dat";
+  // Where a model is written until it's complete
+  public final static String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+  // Identifies (and versions) the file format
+  private final static String MAGIC = "CHVPAGE2";
+
+  // Record kinds
+  private final static int END = 0;
+  private final static int STORY = 1;
+  private final static int PAGE = 2;
+  private final static int CHAPTER_PAGE = 3;
+  private final static int INDEX_PAGE = 4;
+
+  // The build the model is being saved from
+  private BuildContext context;
+  // Where the model is being written, and where it goes once it's complete
+  private Path tempFile;
+  private Path modelFile;
+  private DataOutputStream out;
+  // Ids of the stories saved so far
+  private IdentityHashMap<Story, Integer> storyIds =
+    new IdentityHashMap<Story, Integer>();
+  private int pageCount = 0;
+  // Set if anything couldn't be written, so the model isn't kept
+  private boolean failed = false;
+
+  private PageModel(BuildContext context, Path folder) throws IOException {
+    this.context = context;
+    modelFile = folder.resolve(FILE_NAME);
+    tempFile = folder.resolve(TEMP_FILE_NAME);
+    out = new DataOutputStream(new BufferedOutputStream(
+      Files.newOutputStream(tempFile), 1 << 16));
+  }
+
+  // Starts saving a new page model in the given folder for a build with the
+  // given settings (see FicArchiveBuilder.getPageModelSettings().) The last
+  // model stays in place until this one is finished.
+  public static PageModel create(BuildContext context, Path folder,
+                                 String settings) throws IOException {
+    Files.createDirectories(folder);
+    PageModel model = new PageModel(context, folder);
+    model.out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+    writeString(model.out, settings);
+    return model;
+  }
+
+  // Saves a standard page (e.g. the homepage or a table of contents.)
+  public synchronized void addPage(File outputFile, String title,
+                                   String main) {
+    try {
+      out.writeByte(PAGE);
+      writeString(out, context.getOutputPath(outputFile));
+      writeString(out, title);
+      writeString(out, main);
+      pageCount++;
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  // Saves a chapter page. The story infobox and chapter pagination fields of
+  // chapterFields aren't saved, since they're put back together from the
+  // story and paginationFields (null if the chapter has no pagination.)
+  // Neither is the chapter body if bodyKey (its key in the chapter cache,
+  // see ChapterBodyCache.getSavedKey()) isn't null.
+  public synchronized void addChapterPage(File outputFile, String title,
+                                          Story story, String[] chapterFields,
+                                          String[] paginationFields,
+                                          String bodyKey) {
+    try {
+      int storyId = getStoryId(story);
+      String[] savedFields = chapterFields.clone();
+      savedFields[FicArchiveBuilder.CHAPTER_STORY_INFO] = "";
+      savedFields[FicArchiveBuilder.CHAPTER_PAGINATION] = "";
+      if (bodyKey != null) {
+        savedFields[FicArchiveBuilder.CHAPTER_BODY] = "";
+      }
+      out.writeByte(CHAPTER_PAGE);
+      writeString(out, context.getOutputPath(outputFile));
+      writeString(out, title);
+      out.writeInt(storyId);
+      writeString(out, bodyKey != null ? bodyKey : "");
+      writeStrings(out, savedFields);
+      writeStrings(out, paginationFields);
+      pageCount++;
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  // Saves a page built with the stories_by.txt template. If listedStories
+  // isn't null, the listings field is made from those stories' index
+  // infoboxes. If paginationFields isn't null, the pagination field is made
+  // from them with the pagination template.
+  public synchronized void addIndexPage(File outputFile, String title,
+                                        String[] indexFields,
+                                        List<Story> listedStories,
+                                        String[] paginationFields) {
+    try {
+      int[] listed = null;
+      if (listedStories != null) {
+        listed = new int[listedStories.size()];
+        for (int i = 0; i < listed.length; i++) {
+          listed[i] = getStoryId(listedStories.get(i));
+        }
+      }
+      out.writeByte(INDEX_PAGE);
+      writeString(out, context.getOutputPath(outputFile));
+      writeString(out, title);
+      writeStrings(out, indexFields);
+      if (listed == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(listed.length);
+        for (int id : listed) {
+          out.writeInt(id);
+        }
+      }
+      writeStrings(out, paginationFields);
+      pageCount++;
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  // Gets a story's id, saving its infobox fields first if this is the first
+  // page it's on.
+  private int getStoryId(Story story) throws IOException {
+    Integer id = storyIds.get(story);
+    if (id == null) {
+      id = storyIds.size();
+      out.writeByte(STORY);
+      writeStrings(out, story.getPageModelFields());
+      storyIds.put(story, id);
+    }
+    return id;
+  }
+
+  private void fail(IOException e) {
+    if (!failed) {
+      System.out.println("Error: something went wrong saving the page model. "
+                         + "It won't be used for template-only rebuilds.");
+      e.printStackTrace();
+    }
+    failed = true;
+  }
+
+  // Gets the number of pages saved so far.
+  public synchronized int size() {
+    return pageCount;
+  }
+
+  // Finishes the model and puts it in place of the last one, if the build
+  // completed. Otherwise, throws it away and keeps the last one.
+  public synchronized void close(boolean complete) throws IOException {
+    try {
+      if (!failed) {
+        out.writeByte(END);
+      }
+      out.close();
+    } catch (IOException e) {
+      failed = true;
+      throw e;
+    } finally {
+      if (complete && !failed) {
+        Files.move(tempFile, modelFile, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Files.deleteIfExists(tempFile);
+      }
+    }
+  }
+
+
+  /*** REBUILDING FROM A SAVED MODEL ***/
+
+  // Returns the settings a saved model was built with, or null if there's
+  // no complete model in the folder.
+  public static String readSettings(Path folder) {
+    Path file = folder.resolve(FILE_NAME);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    try (DataInputStream in = openModel(file)) {
+      return readString(in);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  // Builds every page in the saved model with the build's templates, and
+  // writes it with BuildContext.buildPage(). Returns the number of pages
+  // written.
+  public static int rebuild(BuildContext context, Path folder)
+    throws IOException {
+    FicArchiveBuilder config = context.getConfig();
+    File output = config.getOutput();
+    OutputLayout outputLayout = context.getOutputLayout();
+    // Infobox fields, by story id, and the infoboxes once they're built
+    ArrayList<String[]> storyFields = new ArrayList<String[]>();
+    ArrayList<String> storyInfoBoxes = new ArrayList<String>();
+    ArrayList<String> indexInfoBoxes = new ArrayList<String>();
+    // Folders already created for pages
+    HashSet<String> folders = new HashSet<String>();
+    // Opened for the first chapter body saved in it
+    ChapterBodyCache chapterCache = null;
+    int pages = 0;
+    try (DataInputStream in = openModel(folder.resolve(FILE_NAME))) {
+      readString(in); // settings were already checked
+      while (true) {
+        int kind = in.readByte();
+        if (kind == END) {
+          break;
+        }
+        if (kind == STORY) {
+          storyFields.add(readStrings(in));
+          storyInfoBoxes.add(null);
+          indexInfoBoxes.add(null);
+          continue;
+        }
+        String path = readString(in);
+        String title = readString(in);
+        String main;
+        if (kind == PAGE) {
+          main = readString(in);
+        } else if (kind == CHAPTER_PAGE) {
+          int story = in.readInt();
+          String bodyKey = readString(in);
+          String[] chapterFields = readStrings(in);
+          String[] paginationFields = readStrings(in);
+          ContentTemplate template = config.getChapterTemplate();
+          if (!bodyKey.isEmpty()) {
+            if (chapterCache == null) {
+              chapterCache = ChapterBodyCache.openSaved(folder);
+            }
+            chapterFields[FicArchiveBuilder.CHAPTER_BODY] =
+              chapterCache.getSavedBody(bodyKey);
+            if (chapterFields[FicArchiveBuilder.CHAPTER_BODY] == null) {
+              throw new IOException("chapter cache no longer has the body "
+                                    + "of " + path);
+            }
+          }
+          if (template.usesKeyword(FicArchiveBuilder.CHAPTER_STORY_INFO)) {
+            if (storyInfoBoxes.get(story) == null) {
+              storyInfoBoxes.set(story,
+                buildInfoBox(config, storyFields.get(story), false));
+            }
+            chapterFields[FicArchiveBuilder.CHAPTER_STORY_INFO] =
+              storyInfoBoxes.get(story);
+          }
+          chapterFields[FicArchiveBuilder.CHAPTER_PAGINATION] = "";
+          if (paginationFields != null) {
+            chapterFields[FicArchiveBuilder.CHAPTER_PAGINATION] =
+              config.getChapterPaginationContentTemplate()
+                    .assemble(paginationFields);
+          }
+          main = template.assemble(chapterFields);
+        } else if (kind == INDEX_PAGE) {
+          String[] indexFields = readStrings(in);
+          int listedCount = in.readInt();
+          if (listedCount >= 0) {
+            StringBuilder listings = TextBuffers.acquire();
+            for (int i = 0; i < listedCount; i++) {
+              int story = in.readInt();
+              if (indexInfoBoxes.get(story) == null) {
+                indexInfoBoxes.set(story,
+                  buildInfoBox(config, storyFields.get(story), true));
+              }
+              listings.append(indexInfoBoxes.get(story));
+            }
+            indexFields[3] = TextBuffers.finish(listings);
+          }
+          String[] paginationFields = readStrings(in);
+          if (paginationFields != null) {
+            indexFields[4] =
+              config.buildStandardPaginationString(paginationFields);
+          }
+          main = config.getWorkIndexTemplate().assemble(indexFields);
+        } else {
+          throw new IOException("unknown record in page model");
+        }
+        // Make sure the page's folder exists
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash > 0 && folders.add(path.substring(0, lastSlash))) {
+          outputLayout.planFolder(path.substring(0, lastSlash));
+          outputLayout.createPlannedFolders();
+        }
+        if (context.buildPage(config.buildStandardPageString(main, title),
+                              new File(output, path)) != null) {
+          pages++;
+        }
+      }
+    } catch (EOFException e) {
+      throw new IOException("page model ended early", e);
+    } finally {
+      if (chapterCache != null) {
+        chapterCache.closeSaved();
+      }
+    }
+    return pages;
+  }
+
+  // Builds a story infobox from its saved fields, with the index infobox
+  // template (and linked title) if forIndex is set.
+  private static String buildInfoBox(FicArchiveBuilder config,
+                                     String[] fields, boolean forIndex) {
+    String[] content = Arrays.copyOf(fields, fields.length - 1);
+    if (forIndex) {
+      content[0] = fields[fields.length - 1];
+      return config.getIndexInfoBoxTemplate().assemble(content);
+    }
+    return config.getInfoBoxTemplate().assemble(content);
+  }
+
+  // Opens a model file and checks its magic string.
+  private static DataInputStream openModel(Path file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+      Files.newInputStream(file), 1 << 16));
+    byte[] magic = new byte[MAGIC.length()];
+    try {
+      in.readFully(magic);
+    } catch (EOFException e) {
+      in.close();
+      throw new IOException("page model is empty");
+    }
+    if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+      in.close();
+      throw new IOException("not a page model");
+    }
+    return in;
+  }
+
+
+  /*** STRING ENCODING ***/
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Arrays are written as a count (-1 for null) and then each string
+  private static void writeStrings(DataOutputStream out, String[] strings)
+    throws IOException {
+    if (strings == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(strings.length);
+    for (String s : strings) {
+      writeString(out, s);
+    }
+  }
+
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      return null;
+    }
+    String[] strings = new String[count];
+    for (int i = 0; i < count; i++) {
+      strings[i] = readString(in);
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,259 @@
+/***
+
+  Builds pages in three stages, each with its own threads: readers (chapter
+  files and other input), renderers (casual HTML and template assembly) and
+  writers (page files, or the site pack). Stages are joined by bounded
+  queues, so a fast stage can only get a little way ahead of a slow one
+  before it waits, and the number of pages in memory at once stays small no
+  matter how big the archive is. Reading, rendering and writing all overlap,
+  instead of each page going through them one after the other.
+
+  Each stage keeps stats on the pages it handled, how long its threads were
+  busy, how long they waited on the next stage, and how full its queue got,
+  so a slow stage shows up in the build summary.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+public class PagePipeline {
+  // A page on its way through the pipeline. read() does any input the page
+  // needs, render() builds the finished page from it, and the page is then
+  // written to getOutputFile() with BuildContext.buildPage(). written() is
+  // called once it has been written (not if writing it failed.)
+  public interface PageJob {
+    void read();
+    String render();
+    File getOutputFile();
+
+    default void written() {
+    }
+  }
+
+  // How many pages can wait in a stage's queue for each of its threads
+  private final static int QUEUE_PER_THREAD = 16;
+
+  // A page between stages: its job, and once rendered, its contents
+  private static class Item {
+    PageJob job;
+    String page;
+
+    Item(PageJob job) {
+      this.job = job;
+    }
+  }
+  // Put in a stage's queue once per thread, when there's nothing more to do
+  private final static Item END = new Item(null);
+
+  // One stage of the pipeline, and its stats.
+  private class Stage {
+    String name;
+    int threadCount;
+    BlockingQueue<Item> queue;
+    Stage next;
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    // Threads still running, so the last one out can end the next stage
+    AtomicInteger running;
+    AtomicInteger handled = new AtomicInteger();
+    AtomicLong busyNanos = new AtomicLong();
+    // Time spent waiting for room in the next stage's queue
+    AtomicLong blockedNanos = new AtomicLong();
+    AtomicInteger maxDepth = new AtomicInteger();
+    // For the average queue depth, sampled every time a page is queued
+    AtomicLong depthTotal = new AtomicLong();
+    AtomicLong depthSamples = new AtomicLong();
+    long startTime;
+    volatile long endTime;
+
+    Stage(String name, int threadCount) {
+      this.name = name;
+      this.threadCount = Math.max(1, threadCount);
+      queue = new ArrayBlockingQueue<Item>(this.threadCount * QUEUE_PER_THREAD);
+      running = new AtomicInteger(this.threadCount);
+    }
+
+    void start() {
+      startTime = System.nanoTime();
+      for (int i = 0; i < threadCount; i++) {
+        Thread thread = new Thread(this::work, "chivegen-" + name + "-" + (i + 1));
+        // Don't keep the program running if the build fails part way
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      }
+    }
+
+    // Adds a page to this stage's queue, waiting for room if it's full.
+    void put(Item item) throws InterruptedException {
+      queue.put(item);
+      if (item != END) {
+        int depth = queue.size();
+        maxDepth.accumulateAndGet(depth, Math::max);
+        depthTotal.addAndGet(depth);
+        depthSamples.incrementAndGet();
+      }
+    }
+
+    void work() {
+      try {
+        while (true) {
+          Item item = queue.take();
+          if (item == END) {
+            break;
+          }
+          long start = System.nanoTime();
+          try {
+            process(item);
+          } catch (RuntimeException | Error e) {
+            fail(e);
+            item = null;
+          }
+          busyNanos.addAndGet(System.nanoTime() - start);
+          if (item != null) {
+            handled.incrementAndGet();
+            if (next != null) {
+              long waitStart = System.nanoTime();
+              next.put(item);
+              blockedNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (running.decrementAndGet() == 0) {
+          endTime = System.nanoTime();
+          if (next != null) {
+            next.end();
+          }
+        }
+      }
+    }
+
+    void process(Item item) {
+      if (this == readers) {
+        item.job.read();
+      } else if (this == renderers) {
+        item.page = item.job.render();
+      } else {
+        if (context.buildPage(item.page, item.job.getOutputFile()) != null) {
+          item.job.written();
+        }
+        item.page = null;
+      }
+    }
+
+    // Tells every thread in this stage to stop once the queue is empty.
+    void end() {
+      try {
+        for (int i = 0; i < threadCount; i++) {
+          queue.put(END);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    String getSummary() {
+      long wall = Math.max(1, endTime - startTime);
+      long samples = Math.max(1, depthSamples.get());
+      return String.format("  %-6s %d thread[s], %d page[s], %.0f pages/s, "
+                           + "%d%% busy, %d ms waiting on the next stage, "
+                           + "queue %.1f avg / %d max of %d",
+                           name + ":", threadCount, handled.get(),
+                           handled.get() * 1e9 / wall,
+                           busyNanos.get() * 100 / (wall * threadCount),
+                           blockedNanos.get() / 1000000,
+                           (double)depthTotal.get() / samples, maxDepth.get(),
+                           threadCount * QUEUE_PER_THREAD);
+    }
+  }
+
+  // The build the pages are written for
+  private BuildContext context;
+  private Stage readers;
+  private Stage renderers;
+  private Stage writers;
+  // Time the build thread spent waiting for room in the readers' queue
+  private long submitBlockedNanos = 0;
+  // The first thing that went wrong on a pipeline thread, if anything
+  private volatile Throwable failure;
+
+  // Starts a pipeline for a build, with the given number of threads in each
+  // stage.
+  public PagePipeline(BuildContext context, int readerThreads,
+                      int rendererThreads, int writerThreads) {
+    this.context = context;
+    readers = new Stage("read", readerThreads);
+    renderers = new Stage("render", rendererThreads);
+    writers = new Stage("write", writerThreads);
+    readers.next = renderers;
+    renderers.next = writers;
+    writers.start();
+    renderers.start();
+    readers.start();
+  }
+
+  // Adds a page to the pipeline, waiting for room if the readers are behind.
+  public void submit(PageJob job) {
+    long start = System.nanoTime();
+    try {
+      readers.put(new Item(job));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while queueing a page", e);
+    }
+    submitBlockedNanos += System.nanoTime() - start;
+  }
+
+  // Waits for every submitted page to be written. If any page failed, the
+  // first failure is rethrown here.
+  public void finish() {
+    readers.end();
+    for (Stage stage : new Stage[] {readers, renderers, writers}) {
+      for (Thread thread : stage.threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("interrupted while building pages", e);
+        }
+      }
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException)failure;
+    } else if (failure instanceof Error) {
+      throw (Error)failure;
+    }
+  }
+
+  private synchronized void fail(Throwable e) {
+    if (failure == null) {
+      failure = e;
+    }
+  }
+
+  // Gets the number of pages written so far.
+  public int getPageCount() {
+    return writers.handled.get();
+  }
+
+  // Gets a summary of each stage's stats, one line per stage.
+  public String getSummary() {
+    return "Page pipeline (" + (submitBlockedNanos / 1000000)
+           + " ms waiting to queue pages):\n"
+           + readers.getSummary() + "\n" + renderers.getSummary() + "\n"
+           + writers.getSummary();
+  }
+
+  // Runs a page straight through on the current thread, without a pipeline.
+  public static void buildNow(BuildContext context, PageJob job) {
+    job.read();
+    if (context.buildPage(job.render(), job.getOutputFile()) != null) {
+      job.written();
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/***
+
+  Serves an archive over HTTP while it's being written (chivegen -i INPUT
+  --serve PORT), without building it first. Stories are read and the index,
+  category and home pages are built in memory, which is quick; chapter and
+  table of contents pages are only built when a browser asks for them, so
+  the first preview of even a large archive is ready about as soon as its
+  metadata has been read. Stylesheets and files in the asset folder are
+  served straight from the input folder.
+
+  Built pages are kept in a small cache, least recently used first out.
+  The input folder is watched for changes, and after any change the next
+  request reads the archive again: config, labels and templates only if
+  one of them changed (see FicArchiveBuilder.getConfigStamp()), and
+  stories and chapters only if they were edited (see SharedInput). The
+  cache is cleared, since any page might have changed.
+
+  Nothing is written to the output folder. The server only listens on the
+  loopback address, and runs until it's stopped (e.g. with Ctrl-C.)
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class PreviewServer {
+  // Most built pages to keep at once
+  private final static int CACHE_SIZE = 512;
+
+  // What to build the archive from (as for FicArchiveBuilder.configure())
+  private final Path input;
+  private final File output;
+  private final Path templateFile;
+  private final boolean useConfigFile;
+  private final String[] options;
+  private final Verbosity verbosity;
+  private final int port;
+
+  // The builder, and the stamp of its config files when it was set up
+  private FicArchiveBuilder builder;
+  private String stamp;
+  // Stories and chapters read so far, so a reload only reads what changed
+  private final SharedInput shared = new SharedInput();
+  // The archive as last read
+  private BuildContext preview;
+  // Set when something in the input changes, so the next request reloads
+  private volatile boolean stale = true;
+  // Built pages, by path in the output folder, least recently used first
+  private final LinkedHashMap<String, String> pageCache =
+    new LinkedHashMap<String, String>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+  // Folders being watched, by their watch keys. Only used by the thread
+  // watching them once it's started.
+  private final HashMap<WatchKey, Path> watchedFolders =
+    new HashMap<WatchKey, Path>();
+
+  public PreviewServer(Path input, File output, Path templateFile,
+                       boolean useConfigFile, String[] options,
+                       Verbosity verbosity, int port) {
+    this.input = input.toAbsolutePath().normalize();
+    this.output = output;
+    this.templateFile = templateFile;
+    this.useConfigFile = useConfigFile;
+    this.options = options;
+    this.verbosity = verbosity;
+    this.port = port;
+  }
+
+  // Reads the archive and starts serving it. Returns false if the server
+  // couldn't start; otherwise it keeps running after this returns.
+  public boolean run() {
+    long startTime = System.currentTimeMillis();
+    HttpServer server;
+    try {
+      server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    } catch (IOException e) {
+      System.out.println("Error: could not listen on port " + port + " ("
+                         + e.getMessage() + ").");
+      return false;
+    }
+    BuildContext first;
+    try {
+      first = getPreview();
+    } catch (IllegalStateException e) {
+      System.out.println("Error: not serving " + input + ", since "
+                         + e.getMessage() + ".");
+      server.stop(0);
+      return false;
+    }
+    if (!watchInput()) {
+      System.out.println("Warning: could not watch " + input + " for "
+                         + "changes. Restart the preview to see edits.");
+    }
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors())));
+    server.start();
+    ChiveGenMain.printStatus("Preview of " + first.getStoryCount()
+                             + " story folder[s] ("
+                             + first.getPreviewPageCount()
+                             + " page[s]) ready in "
+                             + (System.currentTimeMillis() - startTime)
+                             + " ms at http://localhost:"
+                             + server.getAddress().getPort()
+                             + getSiteRoot(first.getConfig()),
+                             Verbosity.BRIEF);
+    return true;
+  }
+
+  // Gets the archive as it is now, reading it again first if anything
+  // changed since it was last read.
+  private synchronized BuildContext getPreview() {
+    if (!stale) {
+      return preview;
+    }
+    // Cleared first, so a change made while reading is picked up next time
+    stale = false;
+    long startTime = System.currentTimeMillis();
+    boolean reconfigure = builder == null
+                          || !builder.getConfigStamp().equals(stamp);
+    if (reconfigure) {
+      builder = FicArchiveBuilder.configure(input, output, templateFile,
+                                            useConfigFile, options, verbosity);
+      builder.setSharedInput(shared);
+      stamp = builder.getConfigStamp();
+    }
+    boolean reload = preview != null;
+    preview = builder.preview();
+    // Old copies of edited stories and chapters aren't needed any more
+    shared.dropUnused();
+    synchronized (pageCache) {
+      pageCache.clear();
+    }
+    if (reload) {
+      ChiveGenMain.printStatus("Preview reloaded ("
+                               + (reconfigure ? "config and templates read"
+                                              : "config and templates kept")
+                               + ") in "
+                               + (System.currentTimeMillis() - startTime)
+                               + " ms.", Verbosity.NORMAL);
+    }
+    return preview;
+  }
+
+  // Gets the path of the site root on the server, from the site path.
+  private static String getSiteRoot(FicArchiveBuilder config) {
+    String root = "/";
+    try {
+      String path = URI.create(config.getSitePath()).getPath();
+      if (path != null && path.startsWith("/")) {
+        root = path.endsWith("/") ? path : path + "/";
+      }
+    } catch (IllegalArgumentException e) {
+      // Not a URL, so pages are served from the root
+    }
+    return root;
+  }
+
+  // Answers one request with a page, a static file or a 404.
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        send(exchange, 405, "text/plain", "Method not allowed\n");
+        return;
+      }
+      BuildContext context = getPreview();
+      String root = getSiteRoot(context.getConfig());
+      String path = exchange.getRequestURI().getPath();
+      if (!path.startsWith(root)) {
+        if ((path + "/").equals(root)) {
+          exchange.getResponseHeaders().set("Location", root);
+          send(exchange, 301, "text/plain", "");
+        } else {
+          send(exchange, 404, "text/plain", "Not found\n");
+        }
+        return;
+      }
+      String page = path.substring(root.length());
+      if (page.equals("") || page.endsWith("/")) {
+        page += "index.html";
+      }
+      String content = getPage(context, page);
+      if (content != null) {
+        send(exchange, 200, "text/html; charset=UTF-8", content);
+        return;
+      }
+      Path file = getStaticFile(context.getConfig(), page);
+      if (file != null) {
+        sendFile(exchange, file);
+        return;
+      }
+      if (verbosity.ordinal() >= ChiveGenMain.VERBOSE) {
+        System.out.println("Preview: no page or file for " + path);
+      }
+      send(exchange, 404, "text/plain", "Not found\n");
+    } catch (RuntimeException e) {
+      System.out.println("Error: something went wrong building "
+                         + exchange.getRequestURI() + " for the preview.");
+      e.printStackTrace();
+      send(exchange, 500, "text/plain", "Error building page\n");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  // Gets a page from the cache, or builds it. Returns null if there's no
+  // such page.
+  private String getPage(BuildContext context, String page) {
+    synchronized (pageCache) {
+      String content = pageCache.get(page);
+      if (content != null) {
+        return content;
+      }
+    }
+    String content = context.getPreviewPage(page);
+    if (content != null) {
+      synchronized (pageCache) {
+        // Only kept if the archive wasn't read again while it was building
+        if (context == preview) {
+          pageCache.put(page, content);
+        }
+      }
+    }
+    return content;
+  }
+
+  // Gets a static file that a build would copy to the same place in the
+  // output folder (a stylesheet in the root of the input folder, or
+  // anything in the asset folder), or null if there isn't one.
+  private Path getStaticFile(FicArchiveBuilder config, String page) {
+    Path file = input.resolve(page).normalize();
+    if (!file.startsWith(input) || !Files.isRegularFile(file)) {
+      return null;
+    }
+    Path relative = input.relativize(file);
+    String assetFolderName = config.getAssetFolderName();
+    if (relative.getNameCount() == 1) {
+      if (config.includeStyleSheets() && page.endsWith(".css")) {
+        return file;
+      }
+    } else if (!assetFolderName.equals("")
+               && relative.getName(0).toString().equals(assetFolderName)) {
+      return file;
+    }
+    return null;
+  }
+
+  // Sends a text response.
+  private static void send(HttpExchange exchange, int status,
+                           String contentType, String body)
+    throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    boolean head = exchange.getRequestMethod().equals("HEAD");
+    exchange.sendResponseHeaders(status, head || bytes.length == 0
+                                         ? -1 : bytes.length);
+    if (!head && bytes.length > 0) {
+      exchange.getResponseBody().write(bytes);
+    }
+  }
+
+  // Sends a file as it is.
+  private static void sendFile(HttpExchange exchange, Path file)
+    throws IOException {
+    String contentType = Files.probeContentType(file);
+    if (file.toString().endsWith(".css")) {
+      contentType = "text/css; charset=UTF-8";
+    } else if (contentType == null) {
+      contentType = "application/octet-stream";
+    }
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("Cache-Control", "no-store");
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, Files.size(file));
+    Files.copy(file, exchange.getResponseBody());
+  }
+
+
+  /*** WATCHING FOR CHANGES ***/
+
+  // Starts watching the input folder (and every folder in it), and the
+  // folders of any config files outside it, marking the preview stale when
+  // anything changes. Returns false if the folders can't be watched.
+  private boolean watchInput() {
+    final WatchService watcher;
+    try {
+      watcher = input.getFileSystem().newWatchService();
+      watchTree(watcher, input);
+      for (Path file : builder.getConfigFiles()) {
+        Path folder = file.toAbsolutePath().getParent();
+        if (folder != null && !folder.startsWith(input)
+            && Files.isDirectory(folder)) {
+          watchFolder(watcher, folder);
+        }
+      }
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    }
+    Thread thread = new Thread(() -> watch(watcher), "chivegen-preview-watch");
+    // Don't keep the program running once the server has stopped
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  // Waits for changes until the program ends.
+  private void watch(WatchService watcher) {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path folder = watchedFolders.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        stale = true;
+        // New folders (e.g. a new story) need watching too
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+            && folder != null) {
+          Path created = folder.resolve((Path)event.context());
+          if (Files.isDirectory(created)) {
+            try {
+              watchTree(watcher, created);
+            } catch (IOException e) {
+              System.out.println("Warning: could not watch " + created
+                                 + " for changes.");
+            }
+          }
+        }
+      }
+      if (verbosity.ordinal() >= ChiveGenMain.VERBOSE) {
+        System.out.println("Preview: change seen in " + folder);
+      }
+      if (!key.reset()) {
+        watchedFolders.remove(key);
+      }
+    }
+  }
+
+  // Watches a folder and every folder inside it.
+  private void watchTree(WatchService watcher, Path root) throws IOException {
+    ArrayList<Path> folders = new ArrayList<Path>();
+    try (java.util.stream.Stream<Path> paths = Files.walk(root)) {
+      paths.filter(Files::isDirectory).forEach(folders::add);
+    }
+    for (Path folder : folders) {
+      watchFolder(watcher, folder);
+    }
+  }
+
+  // Watches a single folder.
+  private void watchFolder(WatchService watcher, Path folder)
+    throws IOException {
+    WatchKey key = folder.register(watcher,
+                                   StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY);
+    watchedFolders.put(key, folder);
+  }
+}
@@ -0,0 +1,119 @@
+/***
+
+  Input shared by several builds of the same archive in one run (e.g. a full
+  site and a filtered mirror, built as variants in a batch; see
+  BatchBuilder). Holds each story as it was parsed (the same state the
+  archive snapshot saves) and each chapter body after casual HTML. The first
+  build to need a story or chapter reads it, and the rest use that copy, so
+  building another variant of an archive only renders and writes pages.
+
+  Parsed stories depend on a few settings (see
+  FicArchiveBuilder.getStoryStateSettings()), and chapter bodies on
+  whether casual HTML is on, so both are kept by those settings too. Builds
+  with different settings share whatever they can and read the rest.
+
+  Stories are also kept with their folder's change key (see
+  ArchiveSnapshot.getChangeKey()), and chapters with their file's size and
+  modified time, so the same SharedInput can be kept for later builds
+  (as BuildDaemon does) and anything edited in the meantime is read again.
+  dropUnused() lets go of whatever the builds since the last call didn't
+  use, e.g. old copies of edited stories.
+
+  Everything is kept in memory until the last build using it is done.
+
+***/
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedInput {
+  // A parsed story, and the change key of the folder it was parsed from
+  private static class SharedStory {
+    final ArchiveSnapshot.StoryState state;
+    final long changeKey;
+
+    SharedStory(ArchiveSnapshot.StoryState state, long changeKey) {
+      this.state = state;
+      this.changeKey = changeKey;
+    }
+  }
+
+  // Parsed stories, by settings and story folder name
+  private ConcurrentHashMap<String, SharedStory> storyStates =
+    new ConcurrentHashMap<String, SharedStory>();
+  // Chapter bodies, by casual HTML setting and source (see
+  // Story.getChapterSourceName())
+  private ConcurrentHashMap<String, String> chapterBodies =
+    new ConcurrentHashMap<String, String>();
+  // Keys of the stories and chapters used since the last dropUnused()
+  private Set<String> used = ConcurrentHashMap.newKeySet();
+  // How many stories and chapters were used from here instead of being read
+  private AtomicInteger storiesShared = new AtomicInteger();
+  private AtomicInteger chaptersShared = new AtomicInteger();
+
+  // Gets a story as another build parsed it, or null if no build with the
+  // same settings has read it yet, or its folder has changed since.
+  public ArchiveSnapshot.StoryState getStoryState(String settings,
+                                                  String folderName,
+                                                  long changeKey) {
+    String key = settings + "\0" + folderName;
+    SharedStory story = storyStates.get(key);
+    if (story == null || story.changeKey != changeKey) {
+      return null;
+    }
+    used.add(key);
+    storiesShared.incrementAndGet();
+    return story.state;
+  }
+
+  // Keeps a parsed story for other builds with the same settings, in place
+  // of any older copy.
+  public void putStoryState(String settings, String folderName,
+                            long changeKey, ArchiveSnapshot.StoryState state) {
+    String key = settings + "\0" + folderName;
+    used.add(key);
+    storyStates.put(key, new SharedStory(state, changeKey));
+  }
+
+  // Gets a chapter body another build converted, or null if there isn't one.
+  public String getChapterBody(String source, boolean casualHTML) {
+    String key = (casualHTML ? "1" : "0") + source;
+    String body = chapterBodies.get(key);
+    if (body != null) {
+      used.add(key);
+      chaptersShared.incrementAndGet();
+    }
+    return body;
+  }
+
+  // Keeps a chapter body for other builds.
+  public void putChapterBody(String source, boolean casualHTML, String body) {
+    String key = (casualHTML ? "1" : "0") + source;
+    used.add(key);
+    chapterBodies.putIfAbsent(key, body);
+  }
+
+  // Lets go of every story and chapter that wasn't used since the last
+  // call. Only call this between builds.
+  public void dropUnused() {
+    storyStates.keySet().retainAll(used);
+    chapterBodies.keySet().retainAll(used);
+    used.clear();
+  }
+
+  // Gets the number of stories and chapter bodies kept.
+  public int size() {
+    return storyStates.size() + chapterBodies.size();
+  }
+
+  // Gets the number of times a build used a parsed story from here.
+  public int getSharedStoryCount() {
+    return storiesShared.get();
+  }
+
+  // Gets the number of times a build used a chapter body from here.
+  public int getSharedChapterCount() {
+    return chaptersShared.get();
+  }
+}
@@ -0,0 +1,237 @@
+/***
+
+  Reads pages back out of a site pack written by SitePackWriter. The pack is
+  memory-mapped, so looking up a page is just an index lookup and a slice of
+  the mapped file. Can be used to serve pages directly from the pack, or to
+  extract the whole site back out into a normal folder tree.
+
+***/
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+public class SitePackReader implements Closeable {
+  // A single mapping can't be larger than 2GB, so the pack is mapped in
+  // overlapping windows: window i starts at i * SEGMENT_SIZE and is twice as
+  // long, so any page no longer than SEGMENT_SIZE fits entirely inside the
+  // window its first byte falls in.
+  private final static long SEGMENT_SIZE = 1L << 29;
+
+  private FileChannel packChannel;
+  private long packSize;
+  // Lazily created windows into the pack
+  private MappedByteBuffer[] segments;
+  // Offset, length and hash of each page, by path
+  private HashMap<String, long[]> entries = new HashMap<String, long[]>();
+
+  // Opens the pack and index in the given folder.
+  public SitePackReader(File folder) throws IOException {
+    this(new File(folder, SitePackWriter.PACK_FILE_NAME),
+         new File(folder, SitePackWriter.INDEX_FILE_NAME));
+  }
+
+  // Opens the given pack and index files.
+  public SitePackReader(File packFile, File indexFile) throws IOException {
+    readIndex(indexFile);
+    packChannel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+    packSize = packChannel.size();
+    segments = new MappedByteBuffer[(int)(packSize / SEGMENT_SIZE) + 1];
+  }
+
+  // Reads the whole index into memory.
+  private void readIndex(File indexFile) throws IOException {
+    DataInputStream indexReader =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      byte[] magic = new byte[SitePackWriter.INDEX_MAGIC.length()];
+      indexReader.readFully(magic);
+      if (!new String(magic, "US-ASCII").equals(SitePackWriter.INDEX_MAGIC)) {
+        throw new IOException(indexFile.getPath() + " is not a site pack "
+                              + "index.");
+      }
+      int count = indexReader.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = indexReader.readUTF();
+        long offset = indexReader.readLong();
+        long length = indexReader.readInt() & 0xffffffffL;
+        long hash = indexReader.readInt();
+        entries.put(path, new long[] {offset, length, hash});
+      }
+    } finally {
+      indexReader.close();
+    }
+  }
+
+  // Converts a request URL path into an index key. Paths ending in '/' (or
+  // the empty root path) map to that folder's index.html.
+  public static String toIndexPath(String urlPath) {
+    int queryStart = urlPath.indexOf('?');
+    if (queryStart != -1) {
+      urlPath = urlPath.substring(0, queryStart);
+    }
+    if (urlPath.equals("") || urlPath.endsWith("/")) {
+      urlPath = urlPath + "index.html";
+    }
+    return SitePackWriter.normalizePath(urlPath);
+  }
+
+  // Returns true if the pack contains a page at the given path.
+  public boolean contains(String path) {
+    return entries.containsKey(toIndexPath(path));
+  }
+
+  // Gets the length of a page in bytes, or -1 if it isn't in the pack.
+  public long getLength(String path) {
+    long[] entry = entries.get(toIndexPath(path));
+    return entry == null ? -1 : entry[1];
+  }
+
+  // Gets a page's CRC32C content hash, or 0 if it isn't in the pack.
+  public int getHash(String path) {
+    long[] entry = entries.get(toIndexPath(path));
+    return entry == null ? 0 : (int)entry[2];
+  }
+
+  // Gets all page paths in the pack, sorted.
+  public String[] getPaths() {
+    String[] paths = entries.keySet().toArray(new String[0]);
+    Arrays.sort(paths);
+    return paths;
+  }
+
+  // Gets the number of pages in the pack.
+  public int size() {
+    return entries.size();
+  }
+
+  // Returns a read-only buffer holding the given page, or null if there is
+  // no such page. The buffer shares memory with the mapped pack, so nothing
+  // is copied.
+  public ByteBuffer getPage(String path) throws IOException {
+    long[] entry = entries.get(toIndexPath(path));
+    if (entry == null) {
+      return null;
+    }
+    long offset = entry[0];
+    int length = (int)entry[1];
+    if (entry[1] > SEGMENT_SIZE) {
+      // Too big for a mapping window; read it into the heap instead.
+      ByteBuffer page = ByteBuffer.allocate(length);
+      while (page.hasRemaining()) {
+        if (packChannel.read(page, offset + page.position()) < 0) {
+          throw new EOFException("Site pack ends in the middle of " + path);
+        }
+      }
+      page.flip();
+      return page.asReadOnlyBuffer();
+    }
+    int segment = (int)(offset / SEGMENT_SIZE);
+    MappedByteBuffer window = getSegment(segment);
+    return window.slice((int)(offset - (segment * SEGMENT_SIZE)), length)
+                 .asReadOnlyBuffer();
+  }
+
+  // Gets a page decoded as a String, or null if there is no such page.
+  public String getPageString(String path) throws IOException {
+    ByteBuffer page = getPage(path);
+    if (page == null) {
+      return null;
+    }
+    return Charset.defaultCharset().decode(page).toString();
+  }
+
+  // Sends a page straight from the pack file to the given channel (e.g. a
+  // socket) using transferTo, so the page never passes through the heap.
+  // Returns the number of bytes sent, or -1 if there is no such page. A
+  // non-blocking target is waited on whenever it's full.
+  public long transferPage(String path, WritableByteChannel target)
+                           throws IOException {
+    long[] entry = entries.get(toIndexPath(path));
+    if (entry == null) {
+      return -1;
+    }
+    long sent = 0;
+    while (sent < entry[1]) {
+      long count = packChannel.transferTo(entry[0] + sent, entry[1] - sent,
+                                          target);
+      if (count > 0) {
+        sent += count;
+      }
+      else if (entry[0] + sent >= packChannel.size()) {
+        throw new EOFException("Site pack ends in the middle of " + path);
+      }
+      else {
+        awaitWritable(target, path);
+      }
+    }
+    return sent;
+  }
+
+  // Waits until a non-blocking channel has room to write to. A blocking
+  // channel that took nothing isn't going to take any more, so that's an
+  // error.
+  private static void awaitWritable(WritableByteChannel target, String path)
+                                    throws IOException {
+    if (!(target instanceof SelectableChannel)
+        || ((SelectableChannel)target).isBlocking()) {
+      throw new IOException("Could not send " + path + " from the site pack");
+    }
+    try (Selector selector = Selector.open()) {
+      ((SelectableChannel)target).register(selector, SelectionKey.OP_WRITE);
+      selector.select();
+    }
+  }
+
+  // Writes every page in the pack out as a normal file under the given
+  // folder, recreating the original folder structure. Fails on any page
+  // whose path would put it outside the folder.
+  public void extractAll(File destination) throws IOException {
+    Path root = destination.toPath().toAbsolutePath().normalize();
+    HashSet<File> createdFolders = new HashSet<File>();
+    for (String path : getPaths()) {
+      Path page = root.resolve(path).normalize();
+      if (!page.startsWith(root) || page.equals(root)) {
+        throw new IOException("Site pack page " + path + " is outside the "
+                              + "folder it's being extracted to");
+      }
+      File outputFile = page.toFile();
+      File parent = outputFile.getParentFile();
+      if (createdFolders.add(parent)) {
+        parent.mkdirs();
+      }
+      try (FileChannel out = FileChannel.open(outputFile.toPath(),
+                                              StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING)) {
+        transferPage(path, out);
+      }
+    }
+  }
+
+  // Maps the given window of the pack, if it isn't already.
+  private synchronized MappedByteBuffer getSegment(int segment)
+                                                   throws IOException {
+    if (segments[segment] == null) {
+      long start = segment * SEGMENT_SIZE;
+      long length = Math.min(2 * SEGMENT_SIZE, packSize - start);
+      segments[segment] = packChannel.map(FileChannel.MapMode.READ_ONLY,
+                                          start, length);
+    }
+    return segments[segment];
+  }
+
+  // Closes the pack. Buffers returned by getPage() should not be used after
+  // this.
+  public void close() throws IOException {
+    packChannel.close();
+  }
+}
@@ -0,0 +1,155 @@
+/***
+
+  Writes a "site pack": every generated page appended to a single large pack
+  file, plus a compact index mapping each page's URL path to its offset,
+  length, and content hash within the pack. Used in place of writing
+  thousands of tiny files when the archive is built with --pack.
+
+  Pack layout:
+    site.pack   Raw page contents, back to back, with no separators.
+    site.idx    Index. An 8 byte magic string and an int entry count,
+                followed by one entry per page, sorted by path:
+                  UTF path, long offset, int length, int CRC32C hash
+
+***/
+
+import java.util.*;
+import java.util.zip.CRC32C;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+public class SitePackWriter {
+  // Default file names inside the output folder
+  public final static String PACK_FILE_NAME = "site.pack";
+  public final static String INDEX_FILE_NAME = "site.idx";
+  // Identifies (and versions) the index format
+  public final static String INDEX_MAGIC = "CHVPACK1";
+
+  // Channel that pages are appended to
+  private FileChannel packChannel;
+  // Where the index is written on close()
+  private File indexFile;
+  // Offset, length and hash of each page, by path. Sorted so the index is
+  // written out in a stable order.
+  private TreeMap<String, long[]> entries = new TreeMap<String, long[]>();
+  // Current end of the pack file
+  private long packLength = 0;
+
+  // Creates (or overwrites) the pack and index files in the given folder.
+  public SitePackWriter(File outputFolder) throws IOException {
+    this(new File(outputFolder, PACK_FILE_NAME),
+         new File(outputFolder, INDEX_FILE_NAME));
+  }
+
+  // Creates (or overwrites) the given pack and index files.
+  public SitePackWriter(File packFile, File indexFile) throws IOException {
+    this.indexFile = indexFile;
+    packChannel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  // Appends a page to the pack, encoded the same way buildPage() would write
+  // it to disk. If a page with this path was already added, the new copy
+  // replaces it in the index.
+  public void addPage(String path, String contents) throws IOException {
+    addPage(path, contents.getBytes(Charset.defaultCharset()));
+  }
+
+  // Appends raw bytes to the pack under the given path.
+  public synchronized void addPage(String path, byte[] contents)
+                                   throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(contents);
+    long offset = packLength;
+    while (buffer.hasRemaining()) {
+      packLength += packChannel.write(buffer, packLength);
+    }
+    CRC32C hash = new CRC32C();
+    hash.update(contents);
+    entries.put(normalizePath(path),
+                new long[] {offset, contents.length, (int)hash.getValue()});
+  }
+
+  // Appends an existing file to the pack by copying it straight across
+  // channels, without decoding it. Safe for binary files like images.
+  public synchronized void addFile(String path, Path source)
+                                   throws IOException {
+    try (SeekableByteChannel sourceChannel = Files.newByteChannel(source)) {
+      long size = sourceChannel.size();
+      long offset = packLength;
+      long copied = 0;
+      while (copied < size) {
+        long transferred = packChannel.transferFrom(sourceChannel,
+                                                    offset + copied,
+                                                    size - copied);
+        if (transferred <= 0) {
+          break;  // source got shorter while copying
+        }
+        copied += transferred;
+      }
+      size = copied;
+      packLength += size;
+      // Hash from the pack's own copy, in case the source changed mid-copy
+      CRC32C hash = new CRC32C();
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      long position = offset;
+      while (position < packLength) {
+        buffer.clear();
+        int read = packChannel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        buffer.flip();
+        hash.update(buffer);
+        position += read;
+      }
+      entries.put(normalizePath(path),
+                  new long[] {offset, size, (int)hash.getValue()});
+    }
+  }
+
+  // Returns true if a page with the given path has been added.
+  public synchronized boolean contains(String path) {
+    return entries.containsKey(normalizePath(path));
+  }
+
+  // Gets the number of pages added so far.
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  // Writes the index and closes the pack.
+  public synchronized void close() throws IOException {
+    packChannel.force(false);
+    packChannel.close();
+    DataOutputStream indexWriter =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+    try {
+      indexWriter.writeBytes(INDEX_MAGIC);
+      indexWriter.writeInt(entries.size());
+      for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+        long[] location = entry.getValue();
+        indexWriter.writeUTF(entry.getKey());
+        indexWriter.writeLong(location[0]);
+        indexWriter.writeInt((int)location[1]);
+        indexWriter.writeInt((int)location[2]);
+      }
+    } finally {
+      indexWriter.close();
+    }
+  }
+
+  // Converts a path to the form stored in the index: forward slashes, no
+  // leading slash.
+  public static String normalizePath(String path) {
+    path = path.replace(File.separatorChar, '/');
+    while (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    return path;
+  }
+}
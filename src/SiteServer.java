@@ -0,0 +1,909 @@
+/***
+
+  Serves a built archive over HTTP (chivegen --serve-site FOLDER PORT), for
+  small sites that would rather not run a separate web server. Serves
+  exactly what a build wrote to FOLDER: its files, or its pages straight
+  out of the site pack if it was built with --pack.
+
+  Each connection is handled by its own thread (a virtual thread on Java
+  21+), with keep-alive, and closed after it's been idle for a while.
+  Small files are kept in memory (least recently used first out, checked
+  against the file's size and modified time on every request) and sent
+  with the response headers in one write; larger files, and every page in
+  a site pack, are sent with FileChannel.transferTo, so they go from the
+  file to the socket without passing through the heap.
+
+  Every response has an ETag (from the file's size and modified time, or
+  the page's hash in a site pack), and a request with a matching
+  If-None-Match gets a 304 with no body. If a client accepts gzip and
+  there's an up to date FILE.gz next to a file (e.g. from gzip -k), the
+  compressed copy is sent instead.
+
+  The benchmark (chivegen --bench-site FOLDER) starts a server on the
+  loopback address and requests every page and file in FOLDER over and
+  over from a number of keep-alive connections at once, then reports
+  requests and bytes per second and response times.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public class SiteServer {
+  // Files up to this size are kept in memory
+  private final static int SMALL_FILE_SIZE = 64 * 1024;
+  // Most bytes of files to keep in memory at once
+  private final static long CACHE_BYTES = 64L * 1024 * 1024;
+  // Connections idle for this long are closed
+  private final static long IDLE_TIMEOUT_MS = 10000;
+  // Longest request line and headers allowed
+  private final static int MAX_HEADER_SIZE = 16 * 1024;
+  // Most connections handled at once, if virtual threads aren't available
+  private final static int CONNECTION_THREADS = 64;
+
+  // A small file kept in memory, and the size and modified time it had
+  private static class CachedFile {
+    final ByteBuffer body;
+    final long size;
+    final long modified;
+
+    CachedFile(ByteBuffer body, long size, long modified) {
+      this.body = body;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+
+  // An open connection, and when it last finished a response (or 0 while
+  // it's in the middle of one)
+  private static class Connection {
+    final SocketChannel channel;
+    volatile long idleSince = System.currentTimeMillis();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  // A parsed request
+  private static class Request {
+    String method;
+    boolean head;
+    String target;
+    boolean keepAlive;
+    boolean acceptsGzip;
+    String ifNoneMatch;
+  }
+
+  private final Path root;
+  // The site pack pages are served from, or null to serve files
+  private final SitePackReader pack;
+  // Charset the build wrote pages in
+  private final String charset = Charset.defaultCharset().name();
+  // Small files in memory, by path, least recently used first
+  private final LinkedHashMap<String, CachedFile> cache =
+    new LinkedHashMap<String, CachedFile>(64, 0.75f, true);
+  private long cachedBytes = 0;
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private ServerSocketChannel server;
+  private volatile boolean running = true;
+  // Stats
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong notModifiedCount = new AtomicLong();
+
+  // Sets up a server for the output folder, opening its site pack if there
+  // is one.
+  public SiteServer(Path root) throws IOException {
+    this.root = root.toAbsolutePath().normalize();
+    Path indexFile = this.root.resolve(SitePackWriter.INDEX_FILE_NAME);
+    Path packFile = this.root.resolve(SitePackWriter.PACK_FILE_NAME);
+    if (Files.isRegularFile(indexFile) && Files.isRegularFile(packFile)) {
+      pack = new SitePackReader(this.root.toFile());
+    } else {
+      pack = null;
+    }
+  }
+
+  // Starts listening on the given address. Requests are handled in the
+  // background from here on.
+  public void start(InetSocketAddress address) throws IOException {
+    server = ServerSocketChannel.open();
+    server.bind(address, 256);
+    final ExecutorService handlers =
+      GenUtils.newIOExecutor(CONNECTION_THREADS);
+    Thread acceptor = new Thread(() -> accept(handlers),
+                                 "chivegen-serve-accept");
+    acceptor.start();
+    // Closes connections that have been idle too long, which frees their
+    // threads for others
+    Thread reaper = new Thread(this::closeIdleConnections,
+                               "chivegen-serve-idle");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  // Gets the port the server is listening on.
+  public int getPort() throws IOException {
+    return ((InetSocketAddress)server.getLocalAddress()).getPort();
+  }
+
+  // Gets a description of what's being served.
+  public String getDescription() {
+    if (pack != null) {
+      return pack.size() + " page[s] from the site pack in " + root;
+    }
+    return "the files in " + root;
+  }
+
+  // Stops accepting connections and closes the open ones.
+  public void stop() {
+    running = false;
+    try {
+      server.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+    for (Connection connection : connections) {
+      closeQuietly(connection.channel);
+    }
+  }
+
+  // Gets a summary of everything served so far.
+  public String getSummary() {
+    return "Served " + requestCount.get() + " request[s] ("
+           + notModifiedCount.get() + " not modified), "
+           + (bytesSent.get() / 1024) + " KB.";
+  }
+
+  private void accept(ExecutorService handlers) {
+    while (running) {
+      try {
+        SocketChannel channel = server.accept();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        final Connection connection = new Connection(channel);
+        connections.add(connection);
+        handlers.execute(() -> serve(connection));
+      } catch (IOException e) {
+        if (running) {
+          System.out.println("Error: could not accept a connection ("
+                             + e.getMessage() + ").");
+        }
+      }
+    }
+    handlers.shutdown();
+  }
+
+  private void closeIdleConnections() {
+    while (running) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (Connection connection : connections) {
+        long idleSince = connection.idleSince;
+        if (idleSince != 0 && now - idleSince > IDLE_TIMEOUT_MS) {
+          // Any read waiting on it ends with an exception
+          closeQuietly(connection.channel);
+        }
+      }
+    }
+  }
+
+  // Handles every request on a connection until it's closed.
+  private void serve(Connection connection) {
+    SocketChannel channel = connection.channel;
+    ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    try {
+      while (running) {
+        Request request = readRequest(channel, in);
+        if (request == null) {
+          break;
+        }
+        connection.idleSince = 0;
+        requestCount.incrementAndGet();
+        respond(channel, request);
+        connection.idleSince = System.currentTimeMillis();
+        if (!request.keepAlive) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // The client went away, or the connection was closed for being idle
+    } catch (RuntimeException e) {
+      System.out.println("Error: something went wrong serving a request.");
+      e.printStackTrace();
+    } finally {
+      connections.remove(connection);
+      closeQuietly(channel);
+    }
+  }
+
+  // Reads the next request's line and headers. Returns null if the client
+  // closed the connection between requests. Anything after the headers
+  // (i.e. the next request, if the client sends them back to back) is left
+  // in the buffer.
+  private Request readRequest(SocketChannel channel, ByteBuffer in)
+    throws IOException {
+    int end;
+    while ((end = findHeaderEnd(in)) == -1) {
+      if (!in.hasRemaining()) {
+        sendStatus(channel, 431, "Request header fields too large", null);
+        return null;
+      }
+      if (channel.read(in) == -1) {
+        return null;
+      }
+    }
+    String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+    // Keep whatever came after the headers for the next request
+    int next = end + 4;
+    System.arraycopy(in.array(), next, in.array(), 0, in.position() - next);
+    in.position(in.position() - next);
+    String[] lines = head.split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+      sendStatus(channel, 400, "Bad request", null);
+      return null;
+    }
+    Request request = new Request();
+    request.method = requestLine[0];
+    request.head = request.method.equals("HEAD");
+    request.target = requestLine[1];
+    request.keepAlive = requestLine[2].equals("HTTP/1.1");
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon == -1) {
+        continue;
+      }
+      String name = lines[i].substring(0, colon).trim().toLowerCase();
+      String value = lines[i].substring(colon + 1).trim();
+      if (name.equals("connection")) {
+        if (value.equalsIgnoreCase("close")) {
+          request.keepAlive = false;
+        } else if (value.equalsIgnoreCase("keep-alive")) {
+          request.keepAlive = true;
+        }
+      } else if (name.equals("accept-encoding")) {
+        request.acceptsGzip = acceptsGzip(value);
+      } else if (name.equals("if-none-match")) {
+        request.ifNoneMatch = value;
+      } else if (name.equals("content-length")
+                 || name.equals("transfer-encoding")) {
+        // Request bodies aren't read, so the connection can't be reused
+        request.keepAlive = false;
+      }
+    }
+    return request;
+  }
+
+  // Finds the blank line ending the headers in the buffer, or -1.
+  private static int findHeaderEnd(ByteBuffer in) {
+    byte[] bytes = in.array();
+    for (int i = 3; i < in.position(); i++) {
+      if (bytes[i] == '\n' && bytes[i-1] == '\r' && bytes[i-2] == '\n'
+          && bytes[i-3] == '\r') {
+        return i - 3;
+      }
+    }
+    return -1;
+  }
+
+  // Returns true if an Accept-Encoding header allows gzip.
+  private static boolean acceptsGzip(String acceptEncoding) {
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (parts[0].trim().equalsIgnoreCase("gzip")) {
+        for (int i = 1; i < parts.length; i++) {
+          String parameter = parts[i].trim().replace(" ", "");
+          if (parameter.equals("q=0") || parameter.matches("q=0\\.0*")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Answers a request with a page or file, a redirect, or an error.
+  private void respond(SocketChannel channel, Request request)
+    throws IOException {
+    if (!request.head && !request.method.equals("GET")) {
+      sendStatus(channel, 405, "Method not allowed", request);
+      return;
+    }
+    String path;
+    try {
+      path = new URI(request.target).getPath();
+    } catch (URISyntaxException e) {
+      path = null;
+    }
+    if (path == null || !path.startsWith("/") || path.indexOf('\0') != -1) {
+      sendStatus(channel, 400, "Bad request", request);
+      return;
+    }
+    if (ChiveGenMain.verbosityInt() >= ChiveGenMain.VERBOSE) {
+      System.out.println(request.method + " " + path);
+    }
+    if (pack != null) {
+      respondFromPack(channel, request, path);
+    } else {
+      respondWithFile(channel, request, path);
+    }
+  }
+
+  // Sends a page from the site pack.
+  private void respondFromPack(SocketChannel channel, Request request,
+                               String path) throws IOException {
+    String page = SitePackReader.toIndexPath(path.substring(1));
+    long length = pack.getLength(page);
+    if (length == -1) {
+      if (!path.endsWith("/") && pack.contains(page + "/")) {
+        sendRedirect(channel, path + "/", request.keepAlive);
+      } else {
+        sendStatus(channel, 404, "Not found", request);
+      }
+      return;
+    }
+    String etag = "\"" + Integer.toHexString(pack.getHash(page)) + "-"
+                  + Long.toHexString(length) + "\"";
+    if (matches(request.ifNoneMatch, etag)) {
+      sendNotModified(channel, etag, request.keepAlive);
+      return;
+    }
+    ByteBuffer headers = buildHeaders(200, "OK", getContentType(page), length,
+                                      etag, null, false, request.keepAlive);
+    if (request.head) {
+      writeFully(channel, headers);
+    } else if (length <= SMALL_FILE_SIZE) {
+      // Already in memory, since the pack is mapped
+      writeFully(channel, headers, pack.getPage(page));
+    } else {
+      writeFully(channel, headers);
+      pack.transferPage(page, channel);
+    }
+    bytesSent.addAndGet(request.head ? 0 : length);
+  }
+
+  // Sends a file from the output folder, or its .gz copy.
+  private void respondWithFile(SocketChannel channel, Request request,
+                               String path) throws IOException {
+    Path file = root.resolve(path.substring(1)).normalize();
+    if (!file.startsWith(root)) {
+      sendStatus(channel, 404, "Not found", request);
+      return;
+    }
+    if (Files.isDirectory(file)) {
+      if (!path.endsWith("/")) {
+        sendRedirect(channel, path + "/", request.keepAlive);
+        return;
+      }
+      file = file.resolve("index.html");
+    }
+    BasicFileAttributes attributes = readAttributes(file);
+    if (attributes == null || !attributes.isRegularFile()) {
+      sendStatus(channel, 404, "Not found", request);
+      return;
+    }
+    // Use the compressed copy if there's one at least as new as the file
+    Path gzipFile = file.resolveSibling(file.getFileName() + ".gz");
+    BasicFileAttributes gzipAttributes = readAttributes(gzipFile);
+    boolean hasGzip = gzipAttributes != null
+                      && gzipAttributes.isRegularFile()
+                      && gzipAttributes.lastModifiedTime()
+                           .compareTo(attributes.lastModifiedTime()) >= 0;
+    boolean useGzip = hasGzip && request.acceptsGzip;
+    Path sendFile = useGzip ? gzipFile : file;
+    BasicFileAttributes sendAttributes = useGzip ? gzipAttributes : attributes;
+    long size = sendAttributes.size();
+    long modified = sendAttributes.lastModifiedTime().toMillis();
+    String etag = "\"" + Long.toHexString(size) + "-"
+                  + Long.toHexString(modified) + (useGzip ? "-gz" : "") + "\"";
+    if (matches(request.ifNoneMatch, etag)) {
+      sendNotModified(channel, etag, request.keepAlive);
+      return;
+    }
+    ByteBuffer headers =
+      buildHeaders(200, "OK", getContentType(file.getFileName().toString()),
+                   size, etag, useGzip ? "gzip" : null, hasGzip,
+                   request.keepAlive);
+    if (request.head) {
+      writeFully(channel, headers);
+      return;
+    }
+    if (size <= SMALL_FILE_SIZE) {
+      ByteBuffer body = getSmallFile(sendFile, size, modified);
+      if (body != null) {
+        writeFully(channel, headers, body);
+        bytesSent.addAndGet(size);
+        return;
+      }
+    }
+    try (FileChannel source = FileChannel.open(sendFile,
+                                               StandardOpenOption.READ)) {
+      writeFully(channel, headers);
+      long sent = 0;
+      // The file could be shorter by now, if it's being rebuilt
+      while (sent < size) {
+        long count = source.transferTo(sent, size - sent, channel);
+        if (count <= 0) {
+          throw new EOFException(sendFile + " got shorter while sending it");
+        }
+        sent += count;
+      }
+      bytesSent.addAndGet(sent);
+    }
+  }
+
+  // Gets a small file's contents from memory, reading it first if it isn't
+  // there or it changed. Returns null if it couldn't be read as expected.
+  private ByteBuffer getSmallFile(Path file, long size, long modified)
+    throws IOException {
+    String key = file.toString();
+    synchronized (cache) {
+      CachedFile cached = cache.get(key);
+      if (cached != null && cached.size == size
+          && cached.modified == modified) {
+        return cached.body.duplicate();
+      }
+    }
+    byte[] bytes = Files.readAllBytes(file);
+    if (bytes.length != size) {
+      return null;
+    }
+    CachedFile cached =
+      new CachedFile(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), size,
+                     modified);
+    synchronized (cache) {
+      CachedFile old = cache.put(key, cached);
+      cachedBytes += size - (old == null ? 0 : old.size);
+      Iterator<CachedFile> oldest = cache.values().iterator();
+      while (cachedBytes > CACHE_BYTES && oldest.hasNext()) {
+        cachedBytes -= oldest.next().size;
+        oldest.remove();
+      }
+    }
+    return cached.body.duplicate();
+  }
+
+  private static BasicFileAttributes readAttributes(Path file) {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  // Returns true if an If-None-Match header matches the ETag.
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Gets the Content-Type for a file name.
+  private String getContentType(String name) {
+    String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    switch (extension) {
+      case "html":
+      case "htm":
+        return "text/html; charset=" + charset;
+      case "css":
+        return "text/css; charset=" + charset;
+      case "js":
+        return "text/javascript; charset=" + charset;
+      case "txt":
+        return "text/plain; charset=" + charset;
+      case "json":
+        return "application/json";
+      case "xml":
+        return "application/xml";
+      case "svg":
+        return "image/svg+xml";
+      case "png":
+        return "image/png";
+      case "jpg":
+      case "jpeg":
+        return "image/jpeg";
+      case "gif":
+        return "image/gif";
+      case "webp":
+        return "image/webp";
+      case "ico":
+        return "image/x-icon";
+      case "woff":
+        return "font/woff";
+      case "woff2":
+        return "font/woff2";
+      case "ttf":
+        return "font/ttf";
+      case "pdf":
+        return "application/pdf";
+      default:
+        return "application/octet-stream";
+    }
+  }
+
+  // Builds a response's status line and headers. The Content-Length is left
+  // out if length is -1.
+  private static ByteBuffer buildHeaders(int status, String reason,
+                                         String contentType, long length,
+                                         String etag, String encoding,
+                                         boolean vary, boolean keepAlive) {
+    StringBuilder headers = new StringBuilder(256);
+    headers.append("HTTP/1.1 ").append(status).append(' ').append(reason)
+           .append("\r\nServer: ChiveGen/")
+           .append(ChiveGenMain.getVersionString()).append("\r\n");
+    if (contentType != null) {
+      headers.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    if (length != -1) {
+      headers.append("Content-Length: ").append(length).append("\r\n");
+    }
+    if (etag != null) {
+      // Clients check back each time, which is cheap with the ETag
+      headers.append("ETag: ").append(etag)
+             .append("\r\nCache-Control: no-cache\r\n");
+    }
+    if (encoding != null) {
+      headers.append("Content-Encoding: ").append(encoding).append("\r\n");
+    }
+    if (vary) {
+      headers.append("Vary: Accept-Encoding\r\n");
+    }
+    if (!keepAlive) {
+      headers.append("Connection: close\r\n");
+    }
+    headers.append("\r\n");
+    return ByteBuffer.wrap(headers.toString()
+                                  .getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private void sendNotModified(SocketChannel channel, String etag,
+                               boolean keepAlive) throws IOException {
+    notModifiedCount.incrementAndGet();
+    ByteBuffer headers = buildHeaders(304, "Not Modified", null, -1, etag,
+                                      null, false, keepAlive);
+    writeFully(channel, headers);
+  }
+
+  private static void sendRedirect(SocketChannel channel, String location,
+                                   boolean keepAlive) throws IOException {
+    String headers = "HTTP/1.1 301 Moved Permanently\r\nLocation: "
+                     + location + "\r\nContent-Length: 0\r\n"
+                     + (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+    writeFully(channel, ByteBuffer.wrap(
+      headers.getBytes(StandardCharsets.ISO_8859_1)));
+  }
+
+  // Sends a status with a short message. The connection is closed after it
+  // if request is null (i.e. it couldn't be read.)
+  private static void sendStatus(SocketChannel channel, int status,
+                                 String reason, Request request)
+    throws IOException {
+    byte[] body = (reason + "\n").getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer headers =
+      buildHeaders(status, reason, "text/plain; charset=ISO-8859-1",
+                   body.length, null, null, false,
+                   request != null && request.keepAlive);
+    if (request != null && request.head) {
+      writeFully(channel, headers);
+    } else {
+      writeFully(channel, headers, ByteBuffer.wrap(body));
+    }
+  }
+
+  // Writes the buffers to the channel in as few writes as it takes.
+  private static void writeFully(SocketChannel channel, ByteBuffer... buffers)
+    throws IOException {
+    ByteBuffer last = buffers[buffers.length - 1];
+    while (last.hasRemaining()) {
+      channel.write(buffers);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing else to do
+    }
+  }
+
+  // Serves the folder at the given address until the program is stopped.
+  // The address is "PORT" (every address on this computer) or
+  // "HOST:PORT". Returns false if the server couldn't start.
+  public static boolean serve(Path folder, String address) {
+    if (!Files.isDirectory(folder)) {
+      System.out.println("Error: " + folder + " is not a folder.");
+      return false;
+    }
+    InetSocketAddress socketAddress = parseAddress(address);
+    if (socketAddress == null) {
+      return false;
+    }
+    try {
+      final SiteServer siteServer = new SiteServer(folder);
+      siteServer.start(socketAddress);
+      ChiveGenMain.printStatus("Serving " + siteServer.getDescription()
+                               + " at http://"
+                               + (address.contains(":")
+                                  ? address : "localhost:" + address)
+                               + "/", Verbosity.BRIEF);
+      Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        ChiveGenMain.printStatus(siteServer.getSummary(), Verbosity.NORMAL)));
+      return true;
+    } catch (IOException e) {
+      System.out.println("Error: could not serve " + folder + " on "
+                         + address + " (" + e.getMessage() + ").");
+      return false;
+    }
+  }
+
+  // Parses "PORT" or "HOST:PORT". Returns null (having said why) if it
+  // isn't either.
+  private static InetSocketAddress parseAddress(String address) {
+    int colon = address.lastIndexOf(':');
+    try {
+      int port = Integer.parseInt(address.substring(colon + 1));
+      if (port < 0 || port > 65535) {
+        throw new NumberFormatException();
+      }
+      if (colon == -1) {
+        return new InetSocketAddress(port);
+      }
+      return new InetSocketAddress(address.substring(0, colon), port);
+    } catch (NumberFormatException e) {
+      System.out.println("Error: '" + address + "' is not a port number or "
+                         + "HOST:PORT.");
+      return null;
+    }
+  }
+
+
+  /*** BENCHMARK ***/
+
+  // Requests every page and file in the folder over and over, from the
+  // given number of keep-alive connections for the given number of seconds
+  // (after one second of warming up), and prints how it went. The requests
+  // go to a server started on the loopback address, or to target
+  // ("HOST:PORT") if it isn't null, e.g. another web server serving the same
+  // folder to compare with.
+  public static boolean benchmark(Path folder, int connections, int seconds,
+                                  String target) {
+    SiteServer siteServer = null;
+    try {
+      final SiteServer localServer = new SiteServer(folder);
+      String[] paths = localServer.getBenchmarkPaths();
+      if (paths.length == 0) {
+        System.out.println("Error: nothing to request in " + folder + ".");
+        return false;
+      }
+      InetSocketAddress address;
+      if (target == null) {
+        siteServer = localServer;
+        siteServer.start(new InetSocketAddress("127.0.0.1", 0));
+        address = new InetSocketAddress("127.0.0.1", siteServer.getPort());
+      } else {
+        address = parseAddress(target);
+        if (address == null) {
+          return false;
+        }
+      }
+      ChiveGenMain.printStatus("Benchmarking " + (target == null
+                                 ? localServer.getDescription() : target)
+                               + ": " + paths.length + " path[s], "
+                               + connections + " connection[s], " + seconds
+                               + " s...", Verbosity.BRIEF);
+      BenchmarkClient[] clients = new BenchmarkClient[connections];
+      long warmupEnd = System.nanoTime() + 1000000000L;
+      long end = warmupEnd + seconds * 1000000000L;
+      Thread[] threads = new Thread[connections];
+      for (int i = 0; i < connections; i++) {
+        clients[i] = new BenchmarkClient(address, paths, i, warmupEnd, end);
+        threads[i] = new Thread(clients[i], "chivegen-bench-" + (i + 1));
+        threads[i].start();
+      }
+      long requests = 0;
+      long bytes = 0;
+      long errors = 0;
+      long[] allTimes = new long[0];
+      for (int i = 0; i < connections; i++) {
+        threads[i].join();
+        requests += clients[i].requests;
+        bytes += clients[i].bytes;
+        errors += clients[i].errors;
+        long[] times = Arrays.copyOf(clients[i].times, clients[i].timeCount);
+        long[] merged = Arrays.copyOf(allTimes, allTimes.length + times.length);
+        System.arraycopy(times, 0, merged, allTimes.length, times.length);
+        allTimes = merged;
+      }
+      Arrays.sort(allTimes);
+      System.out.println(String.format(
+        "%d request[s] in %d s: %.0f requests/s, %.1f MB/s, %d error[s].",
+        requests, seconds, requests / (double)seconds,
+        bytes / (double)seconds / (1024 * 1024), errors));
+      if (allTimes.length > 0) {
+        System.out.println(String.format(
+          "Response time: median %.2f ms, 99th percentile %.2f ms, "
+          + "slowest %.2f ms.",
+          allTimes[allTimes.length / 2] / 1e6,
+          allTimes[(int)(allTimes.length * 0.99)] / 1e6,
+          allTimes[allTimes.length - 1] / 1e6));
+      }
+      return errors == 0;
+    } catch (IOException e) {
+      System.out.println("Error: the benchmark couldn't run ("
+                         + e.getMessage() + ").");
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      if (siteServer != null) {
+        siteServer.stop();
+      }
+    }
+  }
+
+  // Gets the URL path of every page and file this server would send, for
+  // the benchmark.
+  private String[] getBenchmarkPaths() throws IOException {
+    ArrayList<String> paths = new ArrayList<String>();
+    if (pack != null) {
+      for (String page : pack.getPaths()) {
+        paths.add("/" + page);
+      }
+    } else {
+      try (java.util.stream.Stream<Path> files = Files.walk(root)) {
+        files.filter(Files::isRegularFile)
+             .filter(file -> !file.toString().endsWith(".gz"))
+             .forEach(file -> paths.add("/" + SitePackWriter.normalizePath(
+               root.relativize(file).toString())));
+      }
+    }
+    String[] encoded = new String[paths.size()];
+    for (int i = 0; i < encoded.length; i++) {
+      try {
+        encoded[i] = new URI(null, null, paths.get(i), null).toASCIIString();
+      } catch (URISyntaxException e) {
+        throw new IOException("can't request " + paths.get(i));
+      }
+    }
+    return encoded;
+  }
+
+  // One benchmark connection: sends requests one after another, each as
+  // soon as the last response has been read, and times them.
+  private static class BenchmarkClient implements Runnable {
+    final InetSocketAddress address;
+    final String[] paths;
+    final int first;
+    final long warmupEnd;
+    final long end;
+    long requests = 0;
+    long bytes = 0;
+    long errors = 0;
+    long[] times = new long[4096];
+    int timeCount = 0;
+
+    BenchmarkClient(InetSocketAddress address, String[] paths, int first,
+                    long warmupEnd, long end) {
+      this.address = address;
+      this.paths = paths;
+      this.first = first;
+      this.warmupEnd = warmupEnd;
+      this.end = end;
+    }
+
+    public void run() {
+      ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+      int next = first % paths.length;
+      SocketChannel channel = null;
+      try {
+        long now = System.nanoTime();
+        while (now < end) {
+          if (channel == null) {
+            channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            in.clear();
+          }
+          String request = "GET " + paths[next] + " HTTP/1.1\r\nHost: "
+                           + address.getHostString()
+                           + "\r\nAccept-Encoding: gzip\r\n\r\n";
+          next = (next + 1) % paths.length;
+          writeFully(channel, ByteBuffer.wrap(
+            request.getBytes(StandardCharsets.ISO_8859_1)));
+          long length = readResponse(channel, in);
+          long done = System.nanoTime();
+          if (length < 0) {
+            errors++;
+            closeQuietly(channel);
+            channel = null;
+          } else if (now >= warmupEnd && done <= end) {
+            requests++;
+            bytes += length;
+            if (timeCount == times.length) {
+              times = Arrays.copyOf(times, times.length * 2);
+            }
+            times[timeCount++] = done - now;
+          }
+          now = done;
+        }
+      } catch (IOException e) {
+        errors++;
+      } finally {
+        if (channel != null) {
+          closeQuietly(channel);
+        }
+      }
+    }
+
+    // Reads one response and returns its body length, or -1 if it wasn't a
+    // 200 or 304.
+    private static long readResponse(SocketChannel channel, ByteBuffer in)
+      throws IOException {
+      int end;
+      while ((end = findHeaderEnd(in)) == -1) {
+        if (!in.hasRemaining() || channel.read(in) == -1) {
+          throw new EOFException("response ended early");
+        }
+      }
+      String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+      long length = 0;
+      for (String line : head.split("\r\n")) {
+        if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+          length = Long.parseLong(line.substring(15).trim());
+        }
+      }
+      // Skip the body, whether or not it's all arrived yet
+      long toSkip = length;
+      int buffered = in.position() - (end + 4);
+      int skipped = (int)Math.min(toSkip, buffered);
+      int leftover = buffered - skipped;
+      System.arraycopy(in.array(), end + 4 + skipped, in.array(), 0, leftover);
+      in.position(leftover);
+      toSkip -= skipped;
+      while (toSkip > 0) {
+        in.clear();
+        if (toSkip < in.capacity()) {
+          in.limit((int)toSkip);
+        }
+        int count = channel.read(in);
+        if (count == -1) {
+          throw new EOFException("response ended early");
+        }
+        toSkip -= count;
+        in.clear();
+      }
+      boolean ok = head.startsWith("HTTP/1.1 200")
+                   || head.startsWith("HTTP/1.1 304");
+      return ok ? length : -1;
+    }
+  }
+}
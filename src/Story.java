@@ -13,12 +13,22 @@ import java.time.*;
 import java.time.format.*;
 
 public class Story {
+  // The build this story is part of, and the settings it's built with
+  private BuildContext context;
+  private FicArchiveBuilder config;
   // The folder the story files will be written to
   private File storyOutputFolder;
   // Title
   private String storyTitle = "";
   // An array of input files for chapters
-  private File[] chapters;
+  private Path[] chapters;
+  // What was in the input folder when the story was read
+  private StoryFolderSnapshot inputSnapshot;
+  // The story's single-file HTML download, if it has one instead of chapter
+  // files (see HtmlStoryFile)
+  private HtmlStoryFile htmlStory;
+  // Output file names of the chapter pages, e.g. "ch001.html"
+  private String[] chapterPageNames;
   // Read from toc.txt, or else autofilled
   private String[] chapterTitles;
   // Tags associated with the work. The array is for displaying the tags in
@@ -48,7 +58,7 @@ public class Story {
   private boolean isComplete = false;
   // Rating (enum). Initialized to no rating in case none is given.
   private Rating storyRating = Rating.UNRATED;
-  // In case no storyinfo.txt file is found
+  // In case no storyinfo.txt file (or catalog entry) is found
   private boolean hasStoryDataFile = false;
   // In case fields in storyinfo.txt are missing, incorrectly formatted
   // or otherwise can't be used
@@ -59,57 +69,117 @@ public class Story {
   private boolean hasAuthor = false;
   // If there are no tags...
   private boolean hasTags = false;
-  // The story infoboxes, so we don't have to constantly generate them for new pages.
-  private String storyInfo = "";
-  private String indexStoryInfo = "";
+  // Number of fields in a story infobox (see storyInfoKeywords)
+  private static final int INFOBOX_FIELD_COUNT = 11;
+  // Page components. Each one is built the first time a page uses it (so
+  // e.g. the index infobox is never built if every index is skipped), and
+  // then reused for every other page. See buildInfoboxes().
+  private LazyFragment storyInfo = LazyFragment.of("");
+  private LazyFragment indexStoryInfo = LazyFragment.of("");
+  private LazyFragment formattedTags = new LazyFragment(this::buildFormattedTags);
+  private LazyFragment formattedFandoms = new LazyFragment(this::buildSkippableFandom);
+  private LazyFragment formattedAuthors = new LazyFragment(this::buildSkippableAuthor);
+  private LazyFragment formattedStoryNotes = new LazyFragment(this::buildFormattedStoryNotes);
+  private LazyFragment formattedEndNotes = new LazyFragment(this::buildFormattedEndNotes);
 
   // Build a new story from an input folder and output folder
-  public Story(File inputFolder, File outputFolder) {
-    // First, check if inputFolder is actually a folder, or an HTML file.
-    // (Might change how this works later.)
-    if (!inputFolder.isDirectory()) {
-      System.out.println("Error: " + inputFolder.getPath() + " is not a directory.");
-    }
-    // Set output folder with same name as input, but in output path
-    storyOutputFolder = new File(outputFolder, inputFolder.getName());
+  public Story(BuildContext context, File inputFolder, File outputFolder)
+    throws IOException {
+    this(context, StoryFolderSnapshot.take(inputFolder.toPath()), outputFolder);
+  }
+
+  // Build a new story from a snapshot of its input folder, and an output
+  // folder. All checks for chapter files, toc.txt, etc. are answered from
+  // the snapshot.
+  public Story(BuildContext context, StoryFolderSnapshot inputSnapshot,
+               File outputFolder) {
+    this.context = context;
+    config = context.getConfig();
+    this.inputSnapshot = inputSnapshot;
+    Path inputFolder = inputSnapshot.getPath();
+    String folderName = inputSnapshot.getName();
+    // Set output folder with same name as input, but in output path (inside
+    // a hash fan-out folder, if the layout uses them)
+    storyOutputFolder =
+      new File(outputFolder,
+               context.getOutputLayout().getFanOutPath(folderName));
     // Accept all files following the pattern of "ch[...].txt" as chapters
-    chapters = inputFolder.listFiles(new FilenameFilter() {
-    public boolean accept(File dir, String name) {
-      return (name.toLowerCase().startsWith("ch") && name.toLowerCase().endsWith(".txt"));
-    }
-    });
+    // (already sorted by name)
+    chapters = inputSnapshot.getChapterFiles();
     if (chapters.length < 1) {
-      File storyHTMLFile = new File(inputFolder + "/story.html");
-      if (storyHTMLFile.exists() && !storyHTMLFile.isDirectory()) {
-        //TODO
-        // parse as an ao3 story file...
+      if (inputSnapshot.hasFile(HtmlStoryFile.FILE_NAME)) {
+        // Parse as a single-file (AO3 style) HTML download
+        try {
+          htmlStory = HtmlStoryFile.read(inputFolder.resolve(HtmlStoryFile.FILE_NAME));
+        } catch (IOException e) {
+          System.out.println("Error: could not read " + HtmlStoryFile.FILE_NAME
+                             + " in folder " + inputFolder);
+          e.printStackTrace();
+        }
       }
       else {
-        System.out.println("Warning: no chapter files found in folder " + inputFolder.getPath());
+        System.out.println("Warning: no chapter files found in folder " + inputFolder);
       }
     }
-    Arrays.sort(chapters);
-    if (FicArchiveBuilder.isVerbose()) {
-      System.out.println("Creating story from folder " + inputFolder.getPath());
-      System.out.println("Chapter files found: " + Arrays.toString(chapters));
+    if (htmlStory != null) {
+      chapterPageNames = new String[htmlStory.getChapterCount()];
+      for (int i = 0; i < chapterPageNames.length; i++) {
+        chapterPageNames[i] = String.format("ch%03d.html", i + 1);
+      }
     }
-    chapterTitles = new String[chapters.length];
-    // Check if table of contents file exists, and fill out toc with
-    // generic chapter names if it does not
-    File tocFile = new File(inputFolder, "toc.txt");
-    if (!tocFile.exists()) {
-      if (FicArchiveBuilder.isVerbose()) {
-        System.out.println("toc.txt was not found for story " + inputFolder.getName() +
+    else {
+      chapterPageNames = new String[chapters.length];
+      for (int i = 0; i < chapters.length; i++) {
+        chapterPageNames[i] = chapters[i].getFileName().toString().replace(".txt", ".html");
+      }
+    }
+    if (config.isVerbose()) {
+      System.out.println("Creating story from folder " + inputFolder);
+      if (htmlStory != null) {
+        System.out.println(chapterPageNames.length + " chapters found in "
+                           + HtmlStoryFile.FILE_NAME);
+      }
+      else {
+        System.out.println("Chapter files found: " + Arrays.toString(chapters));
+      }
+    }
+    // Catalog entry for this story, if the archive has a catalog
+    ArchiveCatalog.Record catalogRecord = null;
+    if (context.getArchiveCatalog() != null) {
+      catalogRecord =
+        context.getArchiveCatalog().getRecord(folderName);
+    }
+    chapterTitles = new String[chapterPageNames.length];
+    // Check if table of contents file exists. If not, use the chapter
+    // headings from story.html, or the catalog's chapter titles, or else fill
+    // out toc with generic chapter names.
+    Path tocFile = inputFolder.resolve("toc.txt");
+    if (!inputSnapshot.hasFile("toc.txt")) {
+      String[] catalogTitles = null;
+      if (catalogRecord != null) {
+        catalogTitles = catalogRecord.getChapterTitles();
+      }
+      if (catalogTitles == null && htmlStory == null
+          && config.isVerbose()) {
+        System.out.println("toc.txt was not found for story " + folderName +
         ". Autofilling chapter titles...");
       }
-      for (int i = 0; i < chapters.length; i++) {
-        chapterTitles[i] = ("Chapter " + (i+1));
+      for (int i = 0; i < chapterTitles.length; i++) {
+        if (htmlStory != null && htmlStory.getChapterTitle(i) != null) {
+          chapterTitles[i] = htmlStory.getChapterTitle(i);
+        }
+        else if (catalogTitles != null && i < catalogTitles.length) {
+          chapterTitles[i] = catalogTitles[i];
+        }
+        else {
+          chapterTitles[i] = ("Chapter " + (i+1));
+        }
       }
     }
     else {
       try {
-        Scanner tocReader = new Scanner(tocFile);
-        for (int i = 0; i < chapters.length; i++) {
+        Scanner tocReader = FileToStringUtils.openScanner(tocFile);
+        for (int i = 0; i < chapterTitles.length; i++) {
           if (tocReader.hasNextLine()) {
             chapterTitles[i] = tocReader.nextLine();
           }
@@ -118,7 +188,7 @@ public class Story {
           }
         }
         tocReader.close();
-      } catch (FileNotFoundException e) {
+      } catch (IOException e) {
         System.out.println("Warning: toc.txt was not found.");
       }
     }
@@ -127,16 +197,17 @@ public class Story {
     // Second Field Name: Content
     // ...
     // etc
-    File storyDataFile = new File(inputFolder, "storyinfo.txt");
-    if (storyDataFile.exists()) {
-      //read config file
-      // for each line: use a hashset to check that the label is valid,
-      // then switch statement using 1st char and disambig from there
+    // Each entry is read as a [field name, content, line number] triple, so
+    // that fields given here can override the same fields in story.html or
+    // the catalog.
+    ArrayList<String[]> storyData = new ArrayList<String[]>();
+    Path storyDataFile = inputFolder.resolve("storyinfo.txt");
+    if (inputSnapshot.hasFile("storyinfo.txt")) {
       hasStoryDataFile = true;
       try {
-        Scanner storyDataReader = new Scanner(storyDataFile);
+        Scanner storyDataReader = FileToStringUtils.openScanner(storyDataFile);
         int i = 0; // track current line for error reporting
-        if (FicArchiveBuilder.isVerbose()) {
+        if (config.isVerbose()) {
           System.out.println("Getting story metadata from storyinfo.txt...");
         }
         while (storyDataReader.hasNextLine()){
@@ -144,117 +215,51 @@ public class Story {
           // Split only after the first colon, so summaries, titles, etc can still contain extra colons.
           String[] currentLineData = storyDataReader.nextLine().split(": ", 2);
           if (currentLineData.length > 1) {
-            try {
-              // Puts data from storyData.txt into the key-value hashset
-              // Using the text before the colon as the key
-              // The key is converted to lowercase before adding, to avoid case issues
-              currentLineData[0] = currentLineData[0].toLowerCase();
-              // Check if our metadata's field name is valid, and if so
-              // figure out which field it is.
-              if (FicArchiveBuilder.getValidStoryMetadataSet().contains(currentLineData[0])) {
-                // Since we know it's only a few possibilities
-                // we can just check a few chars instead of the
-                // whole string
-                switch (currentLineData[0].charAt(0)) {
-                  case 'a':
-                    parseAsAuthor(currentLineData[1]);
-                    break;
-                  case 'c':
-                    // creator
-                    if (currentLineData[0].charAt(1) == 'r') {
-                      parseAsAuthor(currentLineData[1]);
-                    }
-                    else if (currentLineData[0].charAt(1) == 'o') {
-                      // completion status is dealt with later
-                      break;
-                    }
-                    // characters
-                    else {
-                      parseAsTags(currentLineData[1]);
-                    }
-                    break;
-                  case 'd':
-                    // date ...
-                    if (currentLineData[0].charAt(5) == 'u') {
-                      // updated
-                      parseAsDateUpdated(currentLineData[1]);
-                    }
-                    else { // published, posted
-                      parseAsDatePublished(currentLineData[1]);
-                    }
-                    break;
-                  case 'e': // end notes
-                    storyEndNotes = currentLineData[1];
-                    break;
-                  case 'f':
-                    parseAsFandom(currentLineData[1]);
-                    break;
-                  case 'l': // length
-                    wordcount = parseAsWordcount(currentLineData[1], inputFolder.getName());
-                    break;
-                  case 'n':
-                    storyNotes = currentLineData[1];
-                    break;
-                  case 'p': // published, posted
-                    parseAsDatePublished(currentLineData[1]);
-                    break;
-                  case 'r': //rating, rated
-                    storyRating = parseAsRating(currentLineData[1]);
-                    break;
-                  case 's':
-                    summary = currentLineData[1];
-                    break;
-                  case 't':
-                    // tags
-                    if (currentLineData[0].charAt(1) == 'a') {
-                      parseAsTags(currentLineData[1]);
-                    }
-                    else { // title
-                      storyTitle = currentLineData[1];
-                    }
-                    break;
-                  case 'u': // updated
-                    parseAsDateUpdated(currentLineData[1]);
-                    break;
-                  case 'w': //words, wordcount
-                    wordcount = parseAsWordcount(currentLineData[1], inputFolder.getName());
-                    break;
-                  default:
-                    // do nothing
-                }
-              }
-              if (currentLineData[0].equals("complete")) {
-                if (currentLineData.length == 1) { // if the line is just "complete", treat it like "complete: true"
-                  isComplete = true;
-                }
-                else {
-                  currentLineData[1] = currentLineData[1].toLowerCase();
-                  if (currentLineData[1].equals("1") || currentLineData[1].equals("yes") || currentLineData[1].equals("true")) {
-                    isComplete = true;
-                  }
-                  else { // default to incomplete if no status given
-                    isComplete = false;
-                  }
-                }
-                hasCompletionStatus = true;
-              }
-            } catch (IndexOutOfBoundsException e) {
-              System.out.println("Error: badly formatted metadata entry in line " + i + " of " + storyDataFile.getPath() + "");
-            }
+            // The key is converted to lowercase, to avoid case issues
+            storyData.add(new String[] {currentLineData[0].toLowerCase(),
+                                        currentLineData[1],
+                                        Integer.toString(i)});
           }
         }
         storyDataReader.close();
-      } catch (FileNotFoundException e) {
+      } catch (IOException e) {
         System.out.println("Error: story data file was unexpectedly missing.");
         e.printStackTrace();
       }
     }
-    else {
-      System.out.println("Warning: storyinfo.txt not found for story folder " + inputFolder.getPath());
+    else if (catalogRecord == null && htmlStory == null) {
+      System.out.println("Warning: storyinfo.txt not found for story folder " + inputFolder);
+    }
+    // Apply fields from the lowest priority source up: the catalog, then
+    // story.html, then storyinfo.txt. Each field is skipped if a higher
+    // priority source also gives it.
+    HashSet<String> inStoryData = getCanonicalFieldNames(storyData);
+    List<String[]> htmlData = Collections.<String[]>emptyList();
+    if (htmlStory != null) {
+      htmlData = htmlStory.getFields();
+    }
+    if (catalogRecord != null) {
+      hasStoryDataFile = true;
+      HashSet<String> overridden = getCanonicalFieldNames(htmlData);
+      overridden.addAll(inStoryData);
+      applyMetadataFields(catalogRecord.getFields(), overridden,
+                          "catalog entry", folderName);
+    }
+    if (!htmlData.isEmpty()) {
+      hasStoryDataFile = true;
+      applyMetadataFields(htmlData, inStoryData, HtmlStoryFile.FILE_NAME,
+                          folderName);
+    }
+    for (String[] field : storyData) {
+      try {
+        applyMetadataField(field[0], field[1], folderName);
+      } catch (IndexOutOfBoundsException e) {
+        System.out.println("Error: badly formatted metadata entry in line " + field[2] + " of " + storyDataFile + "");
+      }
     }
     // Fill out story data with default values if missing
     if (!hasStoryDataFile || storyTitle.equals("")) {
-      storyTitle = inputFolder.getName();
+      storyTitle = folderName;
     }
     // Summary and notes are acceptable to skip by default.
     if (!hasStoryDataFile || summary.equals("")) {
@@ -265,14 +270,14 @@ public class Story {
     }
     // Placeholders are used in these fields for sorting purposes
     if (!hasFandom) {
-      if (FicArchiveBuilder.isVerbose()) {
+      if (config.isVerbose()) {
         System.out.println("Autofilling fandom...");
       }
       fandoms = new String[] {"No Fandom Given"};
       fandomHashSet.add("no fandom given");
     }
     if (!hasAuthor) {
-      if (FicArchiveBuilder.isVerbose()) {
+      if (config.isVerbose()) {
         System.out.println("Autofilling author...");
       }
       authors = new String[] {"Unknown Author"};
@@ -283,14 +288,14 @@ public class Story {
     }
     // If any date info is missing, fill it in
     if (!hasDateUpdated || !hasDatePublished) {
-      if (FicArchiveBuilder.isVerbose()) {
+      if (config.isVerbose()) {
         System.out.println("Autofilling dates...");
       }
-      if (FicArchiveBuilder.defaultToEpochDate()) {
+      if (config.defaultToEpochDate()) {
         if (!hasDatePublished) {
           published = LocalDate.EPOCH;
         }
-        if (!hasDateUpdated && chapters.length > 1) {
+        if (!hasDateUpdated && chapterPageNames.length > 1) {
           // Get update date if it's not a oneshot
           updated = LocalDate.EPOCH;
         }
@@ -310,6 +315,239 @@ public class Story {
     }
   }
 
+  // Build a story from its saved state in the archive snapshot, without
+  // reading anything in its input folder (see ArchiveSnapshot.)
+  public Story(BuildContext context, StoryFolderSnapshot inputSnapshot,
+               File outputFolder, ArchiveSnapshot.StoryState state) {
+    this.context = context;
+    config = context.getConfig();
+    this.inputSnapshot = inputSnapshot;
+    storyOutputFolder =
+      new File(outputFolder,
+               context.getOutputLayout().getFanOutPath(inputSnapshot.getName()));
+    chapters = inputSnapshot.getChapterFiles();
+    if (state.htmlChapterRanges != null) {
+      htmlStory = HtmlStoryFile.fromChapterRanges(
+        inputSnapshot.getPath().resolve(HtmlStoryFile.FILE_NAME),
+        state.htmlChapterRanges);
+    }
+    chapterPageNames = state.chapterPageNames;
+    chapterTitles = state.chapterTitles;
+    storyTitle = state.title;
+    summary = state.summary;
+    storyNotes = state.notes;
+    storyEndNotes = state.endNotes;
+    storyTags = state.tags;
+    fandoms = state.fandoms;
+    authors = state.authors;
+    storyTagSet.addAll(Arrays.asList(state.tagSet));
+    fandomHashSet.addAll(Arrays.asList(state.fandomSet));
+    authorHashSet.addAll(Arrays.asList(state.authorSet));
+    published = state.published;
+    updated = state.updated;
+    wordcount = state.wordcount;
+    isComplete = state.isComplete;
+    storyRating = state.rating;
+    hasStoryDataFile = state.hasStoryDataFile;
+    hasDateUpdated = state.hasDateUpdated;
+    hasDatePublished = state.hasDatePublished;
+    hasFandom = state.hasFandom;
+    hasCompletionStatus = state.hasCompletionStatus;
+    hasAuthor = state.hasAuthor;
+    hasTags = state.hasTags;
+    // tell main about authors and tags, as parsing them would have
+    if (hasAuthor) {
+      context.setHasAuthors(true);
+    }
+    if (hasTags) {
+      context.setHasTags(true);
+    }
+    if (config.isVerbose()) {
+      System.out.println("Restoring story " + inputSnapshot.getName()
+                         + " from the archive snapshot");
+    }
+  }
+
+  // Gets everything the story was built from, for the archive snapshot.
+  public ArchiveSnapshot.StoryState getState() {
+    ArchiveSnapshot.StoryState state = new ArchiveSnapshot.StoryState();
+    state.title = storyTitle;
+    state.summary = summary;
+    state.notes = storyNotes;
+    state.endNotes = storyEndNotes;
+    state.tags = storyTags;
+    state.fandoms = fandoms;
+    state.authors = authors;
+    state.tagSet = storyTagSet.toArray(new String[0]);
+    state.fandomSet = fandomHashSet.toArray(new String[0]);
+    state.authorSet = authorHashSet.toArray(new String[0]);
+    state.chapterPageNames = chapterPageNames;
+    state.chapterTitles = chapterTitles;
+    state.published = published;
+    state.updated = updated;
+    state.wordcount = wordcount;
+    state.isComplete = isComplete;
+    state.rating = storyRating;
+    state.hasStoryDataFile = hasStoryDataFile;
+    state.hasDateUpdated = hasDateUpdated;
+    state.hasDatePublished = hasDatePublished;
+    state.hasFandom = hasFandom;
+    state.hasCompletionStatus = hasCompletionStatus;
+    state.hasAuthor = hasAuthor;
+    state.hasTags = hasTags;
+    if (htmlStory != null) {
+      state.htmlChapterRanges = new long[htmlStory.getChapterCount()][];
+      for (int i = 0; i < state.htmlChapterRanges.length; i++) {
+        state.htmlChapterRanges[i] = htmlStory.getChapterRange(i);
+      }
+    }
+    return state;
+  }
+
+  // Sets a single metadata field from storyinfo.txt or the archive catalog.
+  // The field name must already be lowercase. Unknown fields are ignored.
+  private void applyMetadataField(String field, String value,
+                                  String folderName) {
+    // Check if our metadata's field name is valid, and if so
+    // figure out which field it is.
+    if (FicArchiveBuilder.getValidStoryMetadataSet().contains(field)) {
+      // Since we know it's only a few possibilities
+      // we can just check a few chars instead of the
+      // whole string
+      switch (field.charAt(0)) {
+        case 'a':
+          parseAsAuthor(value);
+          break;
+        case 'c':
+          // creator
+          if (field.charAt(1) == 'r') {
+            parseAsAuthor(value);
+          }
+          else if (field.charAt(1) == 'o') {
+            // completion status is dealt with later
+            break;
+          }
+          // characters
+          else {
+            parseAsTags(value);
+          }
+          break;
+        case 'd':
+          // date ...
+          if (field.charAt(5) == 'u') {
+            // updated
+            parseAsDateUpdated(value);
+          }
+          else { // published, posted
+            parseAsDatePublished(value);
+          }
+          break;
+        case 'e': // end notes
+          storyEndNotes = value;
+          break;
+        case 'f':
+          parseAsFandom(value);
+          break;
+        case 'l': // length
+          wordcount = parseAsWordcount(value, folderName);
+          break;
+        case 'n':
+          storyNotes = value;
+          break;
+        case 'p': // published, posted
+          parseAsDatePublished(value);
+          break;
+        case 'r': //rating, rated
+          storyRating = parseAsRating(value);
+          break;
+        case 's':
+          summary = value;
+          break;
+        case 't':
+          // tags
+          if (field.charAt(1) == 'a') {
+            parseAsTags(value);
+          }
+          else { // title
+            storyTitle = value;
+          }
+          break;
+        case 'u': // updated
+          parseAsDateUpdated(value);
+          break;
+        case 'w': //words, wordcount
+          wordcount = parseAsWordcount(value, folderName);
+          break;
+        default:
+          // do nothing
+      }
+    }
+    if (field.equals("complete")) {
+      value = value.toLowerCase();
+      if (value.equals("1") || value.equals("yes") || value.equals("true")) {
+        isComplete = true;
+      }
+      else { // default to incomplete if no status given
+        isComplete = false;
+      }
+      hasCompletionStatus = true;
+    }
+  }
+
+  // Applies a list of [field name, value] metadata pairs, skipping any field
+  // whose canonical name is in overridden. source is used in error messages.
+  private void applyMetadataFields(List<String[]> fields,
+                                   Set<String> overridden, String source,
+                                   String folderName) {
+    for (String[] field : fields) {
+      if (!overridden.contains(getCanonicalFieldName(field[0]))) {
+        try {
+          applyMetadataField(field[0], field[1], folderName);
+        } catch (IndexOutOfBoundsException e) {
+          System.out.println("Error: badly formatted " + source + " field '"
+                             + field[0] + "' for story folder " + folderName);
+        }
+      }
+    }
+  }
+
+  // Gets the canonical names of every field in a list of metadata pairs.
+  private static HashSet<String> getCanonicalFieldNames(List<String[]> fields) {
+    HashSet<String> names = new HashSet<String>();
+    for (String[] field : fields) {
+      names.add(getCanonicalFieldName(field[0]));
+    }
+    return names;
+  }
+
+  // Gets the name shared by all the spellings of a metadata field (e.g.
+  // "creator" for "author"), so a field in storyinfo.txt can override the
+  // same field from story.html or the catalog even if they're spelled
+  // differently.
+  private static String getCanonicalFieldName(String field) {
+    switch (field) {
+      case "fandoms":
+        return "fandom";
+      case "creator":
+        return "author";
+      case "characters":
+        return "tags";
+      case "length":
+      case "wordcount":
+        return "words";
+      case "rated":
+        return "rating";
+      case "date updated":
+        return "updated";
+      case "date published":
+      case "date posted":
+      case "posted":
+        return "published";
+      default:
+        return field;
+    }
+  }
+
   // Parses fandom data
   public void parseAsFandom(String f) {
     fandoms = f.split(", ");
@@ -327,12 +565,17 @@ public class Story {
     }
     hasAuthor = true;
     // tell main we have at least 1 author
-    FicArchiveBuilder.setHasAuthors(true);
+    context.setHasAuthors(true);
   }
 
   // Parse a string as a rating and return it
   public Rating parseAsRating(String r) {
-    // Interpret the rating as a Rating enum value
+    return ratingFromString(r);
+  }
+
+  // Interprets a rating as written in storyinfo.txt (e.g. "T", "Teen" or
+  // "K+") as a Rating enum value. Anything else counts as unrated.
+  public static Rating ratingFromString(String r) {
     r = r.toLowerCase();
     if (r.equals("g") || r.equals("k") || r.equals("generalaudiences")) {
       return Rating.G;
@@ -375,7 +618,7 @@ public class Story {
     }
     hasTags = true;
     // tell ficarchivebuilder we have at least 1 tag
-    FicArchiveBuilder.setHasTags(true);
+    context.setHasTags(true);
   }
 
   // Parse string as update date
@@ -402,11 +645,11 @@ public class Story {
   // Gets the date string. If defaultDate is true, the date was autofilled
   // from metadata or another default like 1970-01-01.
   public String getDateString(LocalDate date, boolean notDefaultDate) {
-    if (notDefaultDate || ((FicArchiveBuilder.showDefaultDates() &&
-                           !FicArchiveBuilder.skipEmptyFields()))) {
+    if (notDefaultDate || ((config.showDefaultDates() &&
+                           !config.skipEmptyFields()))) {
       return date.toString();
     }
-    if (FicArchiveBuilder.skipEmptyFields()) {
+    if (config.skipEmptyFields()) {
       return "";
     }
     if (hasDatePublished) {
@@ -448,25 +691,29 @@ public class Story {
 
   // Reads through all chapter files to get a total story wordcount.
   public int countWords() {
-    if (FicArchiveBuilder.isVerbose()) {
+    if (htmlStory != null) {
+      // Already counted while parsing story.html
+      return htmlStory.getWordCount();
+    }
+    if (config.isVerbose()) {
       System.out.println("Getting wordcount manually for story " + storyTitle + " using files: " + Arrays.toString(chapters));
     }
     int totalWords = 0;
-    for (int i = 0; i < chapters.length; i++) {
+    for (int i = 0; i < chapterPageNames.length; i++) {
       try {
-        if (FicArchiveBuilder.isVerbose()) {
+        if (config.isVerbose()) {
           System.out.println("Getting wordcount for chapter " + i);
         }
-        Scanner wordCounter = new Scanner(chapters[i]);
+        Scanner wordCounter = FileToStringUtils.openScanner(chapters[i]);
         wordCounter.useDelimiter(" ");
         while (wordCounter.hasNext()) {
           totalWords++;
           wordCounter.next();
         }
         wordCounter.close();
-      } catch (FileNotFoundException e) {
+      } catch (IOException e) {
         System.out.println("Error: while getting wordcount for chapter " + i +
-        ", file '" + chapters[i].getName() + "' was not found.");
+        ", file '" + chapters[i].getFileName() + "' was not found.");
         e.printStackTrace();
       }
     }
@@ -476,211 +723,501 @@ public class Story {
   // Calls buildChapter to get full chapter page strings, writes them to file,
   // and creates a corresponding table of contents
   public void buildStory() {
-    if (chapters.length < 1) {
-      return; // do nothing for an empty story
+    for (PagePipeline.PageJob page : getPageJobs()) {
+      PagePipeline.buildNow(context, page);
     }
-    if (FicArchiveBuilder.isVerbose()) {
+  }
+
+  // Gets a job for each page of the story (every chapter, then the table of
+  // contents), for building the story in a PagePipeline.
+  public List<PagePipeline.PageJob> getPageJobs() {
+    ArrayList<PagePipeline.PageJob> pages = new ArrayList<PagePipeline.PageJob>();
+    if (chapterPageNames.length < 1) {
+      return pages; // do nothing for an empty story
+    }
+    if (config.isVerbose()) {
       System.out.println("Writing story " + storyTitle + " to output folder...");
     }
-    // Create the story output folder if it doesn't exist yet
-    if (!storyOutputFolder.exists()) {
-      storyOutputFolder.mkdirs();
+    // The story output folder was already created by the output layout
+    for (int i = 0; i < chapterPageNames.length; i++) {
+      // File path of storyOutputFolder + the name of the input file as .html
+      pages.add(new ChapterPage(i, new File(storyOutputFolder, chapterPageNames[i])));
+    }
+    pages.add(new TableOfContentsPage());
+    return pages;
+  }
+
+  // A chapter page. The chapter's text is read in read(), and casual HTML
+  // and everything else happen in render().
+  private class ChapterPage implements PagePipeline.PageJob {
+    private int chapterNumber;
+    private File outputFile;
+    // The chapter text as read, if the page needs it
+    private String text;
+    // Whether text is a finished body from the shared input
+    private boolean shared;
+
+    ChapterPage(int chapterNumber, File outputFile) {
+      this.chapterNumber = chapterNumber;
+      this.outputFile = outputFile;
+    }
+
+    public void read() {
+      // The page model needs the chapter text, in case the template changes
+      if (config.getChapterTemplate().usesKeyword(
+            FicArchiveBuilder.CHAPTER_BODY)
+          || context.getPageModel() != null) {
+        text = getSharedChapterBody(chapterNumber);
+        shared = text != null;
+        if (!shared) {
+          text = readChapterSource(chapterNumber);
+        }
+      }
     }
-    // Create table of contents string to write to file later
-    StringBuilder toc = new StringBuilder("<ol>\n");
-    // Iterate through chapters
-    for (int i = 0; i < chapters.length; i++) {
-      if (FicArchiveBuilder.isVerbose()) {
-        System.out.println("Building page for chapter " + (i+1) + "  of " + chapters.length);
+
+    public String render() {
+      if (config.isVerbose()) {
+        System.out.println("Building page for chapter " + (chapterNumber+1) + "  of " + chapterPageNames.length);
+      }
+      String body = text;
+      text = null;
+      if (body != null && !shared) {
+        if (needsCasualHTML()) {
+          body = HtmlUtils.convertToHtml(body);
+        }
+        shareChapterBody(chapterNumber, body);
       }
-      // Create the page from the string output of buildChapter()
-      // with file path of storyOutputFolder + the name of the input file as .html
-      FicArchiveBuilder.buildPage(this.buildChapter(i), new File(storyOutputFolder, chapters[i].getName().replace(".txt", ".html")));
-      toc.append("<li><a href=\"" + chapters[i].getName().replace(".txt", ".html") + "\">" + chapterTitles[i] + "</a></li>\n");
+      return buildChapter(chapterNumber, context.getPageModel(),
+                          outputFile, body);
     }
-    toc.append("</ol>\n");
-    // Build the table of contents
-    if (FicArchiveBuilder.isVerbose()) {
-      System.out.println("Building table of contents...");
+
+    public File getOutputFile() {
+      return outputFile;
     }
-    // CREATE TABLE OF CONTENTS PAGE
-    FicArchiveBuilder.buildPage(FicArchiveBuilder.buildStandardPageString(toc.toString(),
-    FicArchiveBuilder.buildPageTitle("Table of Contents", storyTitle)), new File(storyOutputFolder, "toc.html"));
   }
 
-  // Build the story infoboxes
-  public void buildInfoboxes() {
-    if (chapters.length > 0) {
-      storyInfo = buildStoryInfoBox();
-      indexStoryInfo = buildIndexStoryInfoBox();
+  // The story's table of contents page.
+  private class TableOfContentsPage implements PagePipeline.PageJob {
+    private File outputFile = new File(storyOutputFolder, "toc.html");
+
+    public void read() {
+      // Everything on the page is already known
+    }
+
+    public String render() {
+      // Build the table of contents
+      if (config.isVerbose()) {
+        System.out.println("Building table of contents...");
+      }
+      StringBuilder toc = new StringBuilder("<ol>\n");
+      for (int i = 0; i < chapterPageNames.length; i++) {
+        toc.append("<li><a href=\"" + chapterPageNames[i] + "\">" + chapterTitles[i] + "</a></li>\n");
+      }
+      toc.append("</ol>\n");
+      String tocTitle = config.buildPageTitle("Table of Contents", storyTitle);
+      PageModel model = context.getPageModel();
+      if (model != null) {
+        model.addPage(outputFile, tocTitle, toc.toString());
+      }
+      return config.buildStandardPageString(toc.toString(), tocTitle);
+    }
+
+    public File getOutputFile() {
+      return outputFile;
     }
   }
 
+  // Sets up the story infoboxes and the other components they share, now
+  // that the story's information is final. Nothing is built until a page
+  // actually asks for it.
+  public void buildInfoboxes() {
+    if (chapterPageNames.length > 0) {
+      storyInfo = new LazyFragment(this::buildStoryInfoBox);
+      indexStoryInfo = new LazyFragment(this::buildIndexStoryInfoBox);
+    }
+    formattedTags = new LazyFragment(this::buildFormattedTags);
+    formattedFandoms = new LazyFragment(this::buildSkippableFandom);
+    formattedAuthors = new LazyFragment(this::buildSkippableAuthor);
+    formattedStoryNotes = new LazyFragment(this::buildFormattedStoryNotes);
+    formattedEndNotes = new LazyFragment(this::buildFormattedEndNotes);
+  }
+
   // Builds a string containing the content of the chapter, notes, infobox, etc.
   public String buildChapter(int chapterNumber) {
-    if (FicArchiveBuilder.isVerbose()) {
+    return buildChapter(chapterNumber, null, null, null);
+  }
+
+  // Builds a chapter page, and saves what went into it to the page model
+  // (as the given output file) if there is one. body is the chapter's text,
+  // or null to read it here if it's needed.
+  private String buildChapter(int chapterNumber, PageModel model,
+                              File outputFile, String body) {
+    if (config.isVerbose()) {
       System.out.println("Creating string for chapter " + chapterNumber + "...");
     }
     // Read the entire chapter's file to the string chapterContent
-    if (FicArchiveBuilder.isVerbose()) {
+    if (config.isVerbose()) {
       System.out.println("Inserting chapter content into chapter template...");
     }
     // Get the full chapter string for writing into a page
     //String chapterString = FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getChapterTemplate(), createChapterContentArray(chapterNumber));
-    String chapterString = FicArchiveBuilder.getChapterTemplate().assemble(createChapterContentArray(chapterNumber));
+    // The page model needs every field, in case the template changes
+    String[] chapterContent = createChapterContentArray(chapterNumber, model != null, body);
+    String chapterString = config.getChapterTemplate().assemble(chapterContent);
     String pageTitle = "";
-    if (chapters.length > 1) { // Skip chapter title if only 1 chapter exists
+    if (chapterPageNames.length > 1) { // Skip chapter title if only 1 chapter exists
       pageTitle = getFormattedChapterTitle(chapterNumber);
     }
+    pageTitle = config.buildPageTitle(pageTitle, storyTitle);
+    if (model != null) {
+      model.addChapterPage(outputFile, pageTitle, this, chapterContent,
+                           getChapterPaginationFields(chapterNumber),
+                           getChapterBodyKey(chapterNumber));
+    }
     // Get the full string for the output webpage
-    return FicArchiveBuilder.buildStandardPageString(chapterString,
-    FicArchiveBuilder.buildPageTitle(pageTitle, storyTitle));
+    return config.buildStandardPageString(chapterString, pageTitle);
   }
 
-  // Gets the prebuilt story info box for chapter pages.
+  // Gets the story info box for chapter pages.
   public String getStoryInfo() {
-    return storyInfo;
+    return storyInfo.get();
   }
 
-  // Gets the prebuilt story infobox for index listings, complete with link.
+  // Gets the story infobox for index listings, complete with link.
   public String getInfoboxForIndex() {
-    return indexStoryInfo;
+    return indexStoryInfo.get();
   }
 
   // Builds a string for the story infobox.
   public String buildStoryInfoBox() {
     // Create infobox from template
     //return FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getInfoBoxTemplate(), createInfoBoxContentArray(false));
-    return FicArchiveBuilder.getInfoBoxTemplate().assemble(createInfoBoxContentArray(false));
+    return config.getInfoBoxTemplate().assemble(
+      createInfoBoxContentArray(config.getInfoBoxTemplate(), false));
   }
 
   // Builds a string for the index version of the story infobox.
   public String buildIndexStoryInfoBox() {
     // Create infobox from template
     //return FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getIndexInfoBoxTemplate(), createInfoBoxContentArray(true));
-    return FicArchiveBuilder.getIndexInfoBoxTemplate().assemble(createInfoBoxContentArray(true));
+    return config.getIndexInfoBoxTemplate().assemble(
+      createInfoBoxContentArray(config.getIndexInfoBoxTemplate(), true));
   }
 
   // Gets the local URL of any arbitrary chapter.
   public String getChapterURL(int chapterNumber) {
-    return chapters[chapterNumber].getName().replace(".txt", ".html");
+    return chapterPageNames[chapterNumber];
   }
 
   // Creates HashMap of fields and content for a story infobox.
   public String[] createInfoBoxContentArray(boolean hasLink) {
-    // Get the URL for linking to this story
-    String url = (FicArchiveBuilder.getSitePath() + "stories/" + storyOutputFolder.getName() + "/" + chapters[0].getName().replace(".txt", ".html"));
-    String titleLink = storyTitle;
-    if (hasLink) { // only needs the link for the index version
-      titleLink = "<a href=\"" + url + "\">" + storyTitle + "</a>";
-    }
-    // Put Yes/No for Completion Status based on isComplete
-    String completionStatus = "No";
-    if (isComplete) {
-      completionStatus = "Yes";
-    }
-    // Fields: title (link), fandom, wordcount, chapter #, published, updated, summary, completion status, author, tags, rating
-    //String[] storyPageData;
-    if (FicArchiveBuilder.generateInfoBoxTemplateFields()) {
-      return new String[] {titleLink, buildField(FicArchiveBuilder.getFandomLabel(), getSkippableFandom()),
-      buildField(FicArchiveBuilder.getWordcountLabel(), HtmlUtils.numberWithCommas(wordcount)),
-      buildField(FicArchiveBuilder.getChapterCountLabel(), Integer.toString(chapters.length)),
-      buildField(FicArchiveBuilder.getDatePublishedLabel(), getDateString(published, hasDatePublished)),
-      buildField(FicArchiveBuilder.getDateUpdatedLabel(), getDateString(getDateUpdated(), hasDateUpdated)),
-      buildField(FicArchiveBuilder.getSummaryTemplate(), FicArchiveBuilder.getSummaryLabel(), summary),
-      buildField(FicArchiveBuilder.getCompletionLabel(), getSkippableCompletionStatus()),
-      buildField(FicArchiveBuilder.getByLineTemplate(), FicArchiveBuilder.getAuthorLabel(), getSkippableAuthor()),
-      buildField(FicArchiveBuilder.getTagsLabel(), getFormattedTags()),
-      buildField(FicArchiveBuilder.getRatingLabel(), FicArchiveBuilder.getRatingString(storyRating))};
-    }
-    return new String[] {titleLink, getSkippableFandom(),
-                         Integer.toString(wordcount),
-                         Integer.toString(chapters.length),
-                         getDateString(published, hasDatePublished),
-                         getDateString(updated, hasDateUpdated), summary,
-                         getSkippableCompletionStatus(), getSkippableAuthor(),
-                         getFormattedTags(),
-                         FicArchiveBuilder.getRatingString(storyRating)};
-  }
-
-  // Creates content arrays for chapter pages
+    ContentTemplate template = config.getInfoBoxTemplate();
+    if (hasLink) {
+      template = config.getIndexInfoBoxTemplate();
+    }
+    return createInfoBoxContentArray(template, hasLink);
+  }
+
+  // Creates the infobox fields for the given template. Fields the template
+  // doesn't use are left blank instead of being built.
+  // Fields: title (link), fandom, wordcount, chapter #, published, updated, summary, completion status, author, tags, rating
+  private String[] createInfoBoxContentArray(ContentTemplate template,
+                                             boolean hasLink) {
+    String[] fields = new String[INFOBOX_FIELD_COUNT];
+    for (int i = 0; i < fields.length; i++) {
+      if (template.usesKeyword(i)) {
+        fields[i] = buildInfoBoxField(i, hasLink,
+                      config.generateInfoBoxTemplateFields());
+      } else {
+        fields[i] = "";
+      }
+    }
+    return fields;
+  }
+
+  // Gets every infobox field, whether the templates use it or not, for the
+  // page model. The index version of the title (with its link) goes last.
+  public String[] getPageModelFields() {
+    boolean withLabels = config.generateInfoBoxTemplateFields();
+    String[] fields = new String[INFOBOX_FIELD_COUNT + 1];
+    for (int i = 0; i < INFOBOX_FIELD_COUNT; i++) {
+      fields[i] = buildInfoBoxField(i, false, withLabels);
+    }
+    fields[INFOBOX_FIELD_COUNT] = "";
+    if (chapterPageNames.length > 0) {
+      fields[INFOBOX_FIELD_COUNT] = buildInfoBoxField(0, true, withLabels);
+    }
+    return fields;
+  }
+
+  // Builds one infobox field, by its position in the infobox keywords:
+  // either with its label and field template, or as bare content.
+  private String buildInfoBoxField(int field, boolean hasLink,
+                                   boolean withLabels) {
+    switch (field) {
+      case 0:
+        if (hasLink) { // only needs the link for the index version
+          // Get the URL for linking to this story
+          String url = (config.getSitePath() + context.getOutputLayout().getStoryPath(storyOutputFolder.getName()) + "/" + chapterPageNames[0]);
+          return "<a href=\"" + url + "\">" + storyTitle + "</a>";
+        }
+        return storyTitle;
+      case 1:
+        if (withLabels) {
+          return buildField(config.getFandomLabel(), getSkippableFandom());
+        }
+        return getSkippableFandom();
+      case 2:
+        if (withLabels) {
+          return buildField(config.getWordcountLabel(), HtmlUtils.numberWithCommas(wordcount));
+        }
+        return Integer.toString(wordcount);
+      case 3:
+        if (withLabels) {
+          return buildField(config.getChapterCountLabel(), Integer.toString(chapterPageNames.length));
+        }
+        return Integer.toString(chapterPageNames.length);
+      case 4:
+        if (withLabels) {
+          return buildField(config.getDatePublishedLabel(), getDateString(published, hasDatePublished));
+        }
+        return getDateString(published, hasDatePublished);
+      case 5:
+        if (withLabels) {
+          return buildField(config.getDateUpdatedLabel(), getDateString(getDateUpdated(), hasDateUpdated));
+        }
+        return getDateString(updated, hasDateUpdated);
+      case 6:
+        if (withLabels) {
+          return buildField(config.getSummaryFormatter(), config.getSummaryLabel(), summary);
+        }
+        return summary;
+      case 7:
+        if (withLabels) {
+          return buildField(config.getCompletionLabel(), getSkippableCompletionStatus());
+        }
+        return getSkippableCompletionStatus();
+      case 8:
+        if (withLabels) {
+          return buildField(config.getByLineTemplate(), config.getAuthorLabel(), getSkippableAuthor());
+        }
+        return getSkippableAuthor();
+      case 9:
+        if (withLabels) {
+          return buildField(config.getTagsLabel(), getFormattedTags());
+        }
+        return getFormattedTags();
+      default:
+        if (withLabels) {
+          return buildField(config.getRatingLabel(), config.getRatingString(storyRating));
+        }
+        return config.getRatingString(storyRating);
+    }
+  }
+
+  // Creates content arrays for chapter pages. Content the chapter template
+  // doesn't use is left blank instead of being built (or read.)
   public String[] createChapterContentArray(int chapterNumber) {
+    return createChapterContentArray(chapterNumber, false, null);
+  }
+
+  // Creates content arrays for chapter pages, with every field built if
+  // allFields is set (other than the infobox and pagination, which the page
+  // model saves separately.) body is the chapter's text if it's already
+  // been read.
+  private String[] createChapterContentArray(int chapterNumber,
+                                             boolean allFields, String body) {
     // Fields: infobox, chapter title, chapter body, pagination (top and bottom)
-    if (FicArchiveBuilder.isVerbose()) {
+    if (config.isVerbose()) {
       System.out.println("Creating array of chapter content...");
     }
+    ContentTemplate template = config.getChapterTemplate();
     // Don't bother showing chapter title for a single-chapter work
     String chapterTitle = "";
-    if (FicArchiveBuilder.showChapterNumbers() && chapters.length > 1) {
+    if (config.showChapterNumbers() && chapterPageNames.length > 1) {
       chapterTitle = getFormattedChapterTitle(chapterNumber);
     }
-    else if (chapters.length != 1) {
+    else if (chapterPageNames.length != 1) {
       chapterTitle = chapterTitles[chapterNumber];
     }
     // Story infobox, chapter title, story notes, chapter file input, end notes, pagination
-    return new String[] {getStoryInfo(), chapterTitle, getFormattedStoryNotes(chapterNumber), "",
-    FileToStringUtils.readFileToString(chapters[chapterNumber], FicArchiveBuilder.useCasualHTML()), "",
-    getFormattedEndNotes(chapterNumber), getChapterPagination(chapterNumber)};
+    return new String[] {
+      template.usesKeyword(FicArchiveBuilder.CHAPTER_STORY_INFO)
+        ? getStoryInfo() : "", chapterTitle,
+      template.usesKeyword(2) || allFields ? getFormattedStoryNotes(chapterNumber) : "", "",
+      body != null ? body
+        : template.usesKeyword(FicArchiveBuilder.CHAPTER_BODY) || allFields
+          ? readChapterText(chapterNumber) : "", "",
+      template.usesKeyword(6) || allFields ? getFormattedEndNotes(chapterNumber) : "",
+      template.usesKeyword(FicArchiveBuilder.CHAPTER_PAGINATION)
+        ? getChapterPagination(chapterNumber) : ""};
+  }
+
+  // Reads a chapter's body text, from its chapter file or from story.html.
+  // Chapters from story.html are already HTML, so casual HTML isn't applied.
+  private String readChapterText(int chapterNumber) {
+    String text = getSharedChapterBody(chapterNumber);
+    if (text != null) {
+      return text;
+    }
+    text = readChapterSource(chapterNumber);
+    if (needsCasualHTML()) {
+      text = HtmlUtils.convertToHtml(text);
+    }
+    shareChapterBody(chapterNumber, text);
+    return text;
+  }
+
+  // Gets a chapter's body from the input shared with other builds of this
+  // archive, or null if it isn't there (or nothing is shared.)
+  private String getSharedChapterBody(int chapterNumber) {
+    SharedInput shared = config.getSharedInput();
+    if (shared == null) {
+      return null;
+    }
+    return shared.getChapterBody(getChapterSourceName(chapterNumber),
+                                 config.useCasualHTML());
+  }
+
+  // Keeps a converted chapter body for other builds of this archive, if
+  // input is being shared.
+  private void shareChapterBody(int chapterNumber, String body) {
+    SharedInput shared = config.getSharedInput();
+    if (shared != null) {
+      shared.putChapterBody(getChapterSourceName(chapterNumber),
+                            config.useCasualHTML(), body);
+    }
+  }
+
+  // Gets where a chapter's text comes from, as a unique name that changes
+  // when the file's size or modified time does.
+  private String getChapterSourceName(int chapterNumber) {
+    Path file = htmlStory != null ? htmlStory.getFile() : chapters[chapterNumber];
+    String name = file.toAbsolutePath().toString();
+    if (htmlStory != null) {
+      name += "#" + chapterNumber;
+    }
+    BasicFileAttributes attributes =
+      inputSnapshot.getAttributes(file.getFileName().toString());
+    if (attributes != null) {
+      name += "\0" + attributes.size() + "\0"
+              + attributes.lastModifiedTime().toMillis();
+    }
+    return name;
+  }
+
+  // Gets the key a chapter's body is saved under in the chapter cache, or
+  // null if it isn't in the cache.
+  private String getChapterBodyKey(int chapterNumber) {
+    ChapterBodyCache cache = context.getChapterBodyCache();
+    if (htmlStory != null || cache == null) {
+      return null;
+    }
+    return cache.getSavedKey(getFolderName() + "/"
+                             + chapters[chapterNumber].getFileName(),
+                             0, config.useCasualHTML());
+  }
+
+  // Checks whether chapter text from readChapterSource() still needs casual
+  // HTML applied. (Text from the chapter cache is already converted.)
+  private boolean needsCasualHTML() {
+    return htmlStory == null && config.useCasualHTML()
+           && context.getChapterBodyCache() == null;
+  }
+
+  // Reads a chapter's text as it is in its input file or the chapter cache,
+  // without applying casual HTML itself (see needsCasualHTML().)
+  private String readChapterSource(int chapterNumber) {
+    if (htmlStory != null) {
+      try {
+        return htmlStory.readChapterText(chapterNumber);
+      } catch (IOException e) {
+        System.out.println("Error: could not read chapter " + (chapterNumber + 1)
+                           + " of " + HtmlStoryFile.FILE_NAME + " for story "
+                           + storyTitle);
+        e.printStackTrace();
+        return "";
+      }
+    }
+    ChapterBodyCache cache = context.getChapterBodyCache();
+    if (cache != null) {
+      return cache.getBody(getFolderName() + "/" + chapters[chapterNumber].getFileName(),
+                           chapters[chapterNumber], 0, config.useCasualHTML());
+    }
+    return FileToStringUtils.readFileToString(chapters[chapterNumber], false);
   }
 
   // Gets story notes, but only for the first chapter
   public String getFormattedStoryNotes(int n) {
     if (n == 0) {
-      //return FicArchiveBuilder.getSummaryContentTemplate().assemble(new String[]
-      //  {FicArchiveBuilder.getNotesLabel(), storyNotes});
-      return buildField(FicArchiveBuilder.getSummaryTemplate(),
-                        FicArchiveBuilder.getNotesLabel(), storyNotes);
+      return formattedStoryNotes.get();
     }
     return "";
   }
 
   // Gets story end notes, but only for the last chapter
   public String getFormattedEndNotes(int n) {
-    if (n == chapters.length - 1) {
-      //return FicArchiveBuilder.getSummaryContentTemplate().assemble(new String[]
-      //  {FicArchiveBuilder.getEndNotesLabel(), storyEndNotes});
-      return buildField(FicArchiveBuilder.getSummaryTemplate(),
-                        FicArchiveBuilder.getEndNotesLabel(), storyEndNotes);
+    if (n == chapterPageNames.length - 1) {
+      return formattedEndNotes.get();
     }
     return "";
   }
 
+  private String buildFormattedStoryNotes() {
+    //return FicArchiveBuilder.getSummaryContentTemplate().assemble(new String[]
+    //  {FicArchiveBuilder.getNotesLabel(), storyNotes});
+    return buildField(config.getSummaryFormatter(),
+                      config.getNotesLabel(), storyNotes);
+  }
+
+  private String buildFormattedEndNotes() {
+    //return FicArchiveBuilder.getSummaryContentTemplate().assemble(new String[]
+    //  {FicArchiveBuilder.getEndNotesLabel(), storyEndNotes});
+    return buildField(config.getSummaryFormatter(),
+                      config.getEndNotesLabel(), storyEndNotes);
+  }
+
   // Get the formatted chapter title
   public String getFormattedChapterTitle(int chapterNumber) {
-    return FicArchiveBuilder.getChapterTitleTemplate().replace("{{C}}",
-    chapterTitles[chapterNumber]).replace("{{L}}", Integer.toString(chapterNumber + 1));
+    return config.getChapterTitleFormatter().format(
+    chapterTitles[chapterNumber], Integer.toString(chapterNumber + 1));
   }
 
   // Gets the pagination links for a given chapter.
   public String getChapterPagination(int chapterNumber) {
-    if (chapters.length == 1) { // don't bother with paginating oneshots
+    String[] fields = getChapterPaginationFields(chapterNumber);
+    if (fields == null) {
       return "";
     }
+    //return FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getChapterPaginationContentTemplate(), new String[] {previous, next});
+    return config.getChapterPaginationContentTemplate().assemble(fields);
+  }
+
+  // Gets the previous and next links for a given chapter's pagination, or
+  // null if the story only has one chapter.
+  public String[] getChapterPaginationFields(int chapterNumber) {
+    if (chapterPageNames.length == 1) { // don't bother with paginating oneshots
+      return null;
+    }
     String previous = "";
     String next = "";
     // If previous/next chapters exist, have the {Previous} and {Next} be replaced with links.
     // Otherwise, replace them with a blank string.
     if (chapterNumber > 0) {
-      previous = "<a href=\"" + getChapterURL(chapterNumber-1) + "\">" + FicArchiveBuilder.getPrevChapterLabel() + "</a>";
+      previous = "<a href=\"" + getChapterURL(chapterNumber-1) + "\">" + config.getPrevChapterLabel() + "</a>";
     }
-    if (chapterNumber < chapters.length - 1) {
-      next = "<a href=\"" + getChapterURL(chapterNumber+1) + "\">" + FicArchiveBuilder.getNextChapterLabel() + "</a>";
+    if (chapterNumber < chapterPageNames.length - 1) {
+      next = "<a href=\"" + getChapterURL(chapterNumber+1) + "\">" + config.getNextChapterLabel() + "</a>";
     }
-    //return FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getChapterPaginationContentTemplate(), new String[] {previous, next});
-    return FicArchiveBuilder.getChapterPaginationContentTemplate().assemble(new String[] {previous, next});
+    return new String[] {previous, next};
   }
 
 
-  // Use replace() to quickly insert data into certain short templated fields
-  // This uses the replace() method, because it's currently simpler for a short
-  // template
-  // This might be replaced with a normal templating method, but
-  // for now the time difference is negligible.
-  public String buildField(String field, String label, String content) {
+  // Quickly insert data into certain short templated fields, using a
+  // template that was compiled when it was loaded
+  public String buildField(TextFormatter field, String label, String content) {
     if (!content.equals("")) {
-      // Replace {C} first since it's typically later in the string
-      // so searching for {L} won't take as long
-      return field.replace("{{C}}", content).replace("{{L}}", label);
+      return field.format(content, label);
     }
     return content; // if content is blank, don't create a formatted field
   }
@@ -694,7 +1231,7 @@ public class Story {
       return content;
     }
     //return FicArchiveBuilder.writeIntoTemplate(FicArchiveBuilder.getFieldContentTemplate(), new String[] {label, content});
-    return FicArchiveBuilder.getFieldContentTemplate().assemble(new String[] {label, content});
+    return config.getFieldContentTemplate().assemble(new String[] {label, content});
 
   }
 
@@ -703,7 +1240,7 @@ public class Story {
     if (content.equals("")) {
       return "";
     }
-    else if (label.equals("") && !field.equals(FicArchiveBuilder.getByLineTemplate())) {
+    else if (label.equals("") && !field.equals(config.getByLineTemplate())) {
       return content;
     }
     //return FicArchiveBuilder.writeIntoTemplate(field, new String[] {label, content});
@@ -712,23 +1249,24 @@ public class Story {
 
 
   public String getFormattedTags() {
-    return buildFormattedArrayField(storyTags, "tags", FicArchiveBuilder.skipTagPages());
+    return formattedTags.get();
+  }
+
+  private String buildFormattedTags() {
+    return buildFormattedArrayField(storyTags, "tags", config.skipTagPages());
   }
 
   // Build a formatted tagset-style string for fields with multiple contents
   // like authors/fandoms/tags
   public String buildFormattedArrayField(String[] arrayField, String URLCategory, boolean skipCategoryPages) {
-    StringBuilder field = new StringBuilder();
-    String linkURL = "#";
+    StringBuilder field = TextBuffers.acquire();
     for (int i = 0; i < arrayField.length; i++) {
-      if (!skipCategoryPages) {
-        linkURL = FicArchiveBuilder.getSitePath() + URLCategory + "/" +
-        HtmlUtils.toSafeUrl(arrayField[i].toLowerCase()) +
-        FicArchiveBuilder.getPaginationDivider() + "1.html";
-      }
-      field.append(buildField(FicArchiveBuilder.getTagTemplate(), arrayField[i], linkURL));
+      // Each distinct tag's link is only rendered once per build
+      field.append(context.getFragmentCache().tagLink(URLCategory,
+                                                      arrayField[i],
+                                                      skipCategoryPages));
     }
-    return field.toString();
+    return TextBuffers.finish(field);
   }
 
   // Gets the tags array
@@ -800,9 +1338,14 @@ public class Story {
     return wordcount;
   }
 
+  // Gets the name of the story's output folder (same as its input folder)
+  public String getFolderName() {
+    return storyOutputFolder.getName();
+  }
+
   // Gets chapter count
   public int getChapterCount() {
-    return chapters.length;
+    return chapterPageNames.length;
   }
 
   // Gets the rating enum
@@ -810,6 +1353,21 @@ public class Story {
     return storyRating;
   }
 
+  // Returns true if the story is marked complete
+  public boolean isComplete() {
+    return isComplete;
+  }
+
+  // Returns true if the story has at least one author given
+  public boolean hasAuthor() {
+    return hasAuthor;
+  }
+
+  // Returns true if the story has tags
+  public boolean hasTags() {
+    return hasTags;
+  }
+
   // Basic toString() method.
   public String toString() {
     if (storyTitle.equals("")) {
@@ -821,27 +1379,35 @@ public class Story {
   // Gets either the formatted list of fandoms, or (if none was given and we're
   // skipping blank fields) a blank string.
   private String getSkippableFandom() {
-    if (!hasFandom && FicArchiveBuilder.skipEmptyFields()) {
+    return formattedFandoms.get();
+  }
+
+  private String buildSkippableFandom() {
+    if (!hasFandom && config.skipEmptyFields()) {
       return "";
     }
-    return buildFormattedArrayField(fandoms, "fandoms", FicArchiveBuilder.skipFandomIndex());
+    return buildFormattedArrayField(fandoms, "fandoms", config.skipFandomIndex());
   }
 
   // Same as getSkippableFandom(), but for the author field.
   private String getSkippableAuthor() {
-    if (!hasAuthor && FicArchiveBuilder.skipEmptyFields()) {
+    return formattedAuthors.get();
+  }
+
+  private String buildSkippableAuthor() {
+    if (!hasAuthor && config.skipEmptyFields()) {
       return "";
     }
-    return buildFormattedArrayField(authors, "authors", FicArchiveBuilder.skipAuthorIndex());
+    return buildFormattedArrayField(authors, "authors", config.skipAuthorIndex());
   }
 
   // Same as getSkippableFandom(), but with completion status field.
   private String getSkippableCompletionStatus() {
-    if (!hasCompletionStatus && FicArchiveBuilder.skipEmptyFields()) {
+    if (!hasCompletionStatus && config.skipEmptyFields()) {
       return "";
     }
     // Get completion statuses from FicArchiveBuilder's settings
-    return FicArchiveBuilder.getCompletionStatusString(isComplete);
+    return config.getCompletionStatusString(isComplete);
   }
 
   // For printing a warning when a date in storyinfo.txt is invalid.
@@ -849,7 +1415,7 @@ public class Story {
     System.out.println("Warning: invalid date " + dateField + " for story '" +
     storyTitle + "' (date input must be in ISO format (YYYY-MM-DD).)");
     System.out.print("Default fallback (" );
-    if (FicArchiveBuilder.defaultToEpochDate()) {
+    if (config.defaultToEpochDate()) {
       System.out.print("1970-01-01");
     }
     else {
@@ -0,0 +1,105 @@
+/***
+
+  Decides which stories go into an archive, by rating, completion status
+  and fandom (--only-rating, --only-status and --only-fandom). Stories that
+  don't pass are read as usual but left out of every page, index and count,
+  e.g. to build a mirror of an archive with only some ratings in it. With
+  nothing set, every story passes.
+
+***/
+
+import java.util.*;
+
+public class StoryFilter {
+  // Ratings to keep, or null for any
+  private EnumSet<Rating> ratings;
+  // Completion status to keep (true for complete), or null for either
+  private Boolean complete;
+  // Fandoms to keep, in lowercase, or null for any
+  private HashSet<String> fandoms;
+
+  // Keeps only stories with one of a comma-separated list of ratings, as
+  // they'd be written in storyinfo.txt (e.g. "G,PG,T"). "NR" means unrated.
+  // Returns false if any of them isn't a rating.
+  public boolean setRatings(String list) {
+    EnumSet<Rating> newRatings = EnumSet.noneOf(Rating.class);
+    for (String name : list.split(",")) {
+      name = name.trim();
+      Rating rating = Story.ratingFromString(name);
+      if (rating == Rating.UNRATED && !isUnratedName(name)) {
+        System.out.println("Error: '" + name + "' is not a rating. Use G, PG,"
+                           + " T, M, E or NR.");
+        return false;
+      }
+      newRatings.add(rating);
+    }
+    ratings = newRatings;
+    return true;
+  }
+
+  private static boolean isUnratedName(String name) {
+    name = name.toLowerCase();
+    return name.equals("nr") || name.equals("unrated")
+           || name.equals("not rated");
+  }
+
+  // Keeps only complete or only incomplete stories. Returns false if the
+  // status is neither "complete" nor "incomplete".
+  public boolean setStatus(String status) {
+    status = status.trim().toLowerCase();
+    if (status.equals("complete")) {
+      complete = true;
+    } else if (status.equals("incomplete")) {
+      complete = false;
+    } else {
+      System.out.println("Error: story status must be 'complete' or "
+                         + "'incomplete', not '" + status + "'.");
+      return false;
+    }
+    return true;
+  }
+
+  // Keeps only stories in at least one of a comma-separated list of fandoms.
+  // Fandom names are matched ignoring case.
+  public void setFandoms(String list) {
+    HashSet<String> newFandoms = new HashSet<String>();
+    for (String fandom : list.split(",")) {
+      if (!fandom.trim().isEmpty()) {
+        newFandoms.add(fandom.trim().toLowerCase());
+      }
+    }
+    fandoms = newFandoms;
+  }
+
+  // Returns true if every story passes.
+  public boolean isEmpty() {
+    return ratings == null && complete == null && fandoms == null;
+  }
+
+  // Returns true if the story should be in the archive.
+  public boolean accepts(Story story) {
+    if (ratings != null && !ratings.contains(story.getRating())) {
+      return false;
+    }
+    if (complete != null && complete != story.isComplete()) {
+      return false;
+    }
+    if (fandoms != null
+        && Collections.disjoint(fandoms, story.getFandomHashSet())) {
+      return false;
+    }
+    return true;
+  }
+
+  // Describes the filter, for the settings saved with the archive snapshot
+  // and page model.
+  public String toString() {
+    ArrayList<String> fandomList = new ArrayList<String>();
+    if (fandoms != null) {
+      fandomList.addAll(fandoms);
+      Collections.sort(fandomList);
+    }
+    return "ratings=" + ratings + " complete=" + complete + " fandoms="
+           + (fandoms == null ? "null" : fandomList.toString());
+  }
+}
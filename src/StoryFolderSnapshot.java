@@ -0,0 +1,156 @@
+/***
+
+  A snapshot of a story's input folder: the name and attributes of every
+  file in it, read in a single directory listing. Story uses this to find
+  its chapters and check for toc.txt, storyinfo.txt and story.html without
+  going back to the filesystem for each one, which matters a lot when the
+  input lives on a network filesystem.
+
+  takeAll() snapshots every story folder in the input directory at once,
+  spread across an executor so the round trips for different stories
+  overlap instead of happening one after another.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+public class StoryFolderSnapshot {
+  // The story's input folder
+  private Path folder;
+  private BasicFileAttributes folderAttributes;
+  // Everything in the folder, by file name (sorted)
+  private TreeMap<String, BasicFileAttributes> entries =
+    new TreeMap<String, BasicFileAttributes>();
+
+  private StoryFolderSnapshot(Path folder,
+                              BasicFileAttributes folderAttributes) {
+    this.folder = folder;
+    this.folderAttributes = folderAttributes;
+  }
+
+  // Takes a snapshot of a single folder.
+  public static StoryFolderSnapshot take(Path folder) throws IOException {
+    return take(folder, Files.readAttributes(folder,
+                                             BasicFileAttributes.class));
+  }
+
+  // Takes a snapshot of a folder whose own attributes were already read.
+  private static StoryFolderSnapshot take(Path folder,
+                                          BasicFileAttributes attributes)
+                                          throws IOException {
+    StoryFolderSnapshot snapshot = new StoryFolderSnapshot(folder, attributes);
+    try (DirectoryStream<Path> contents = Files.newDirectoryStream(folder)) {
+      for (Path entry : contents) {
+        try {
+          snapshot.entries.put(entry.getFileName().toString(),
+                               Files.readAttributes(entry,
+                                                    BasicFileAttributes.class,
+                                                    LinkOption.NOFOLLOW_LINKS));
+        } catch (NoSuchFileException e) {
+          // Deleted while we were listing; just leave it out
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  // Snapshots every subfolder of the input folder (except the one named
+  // excludedName, if any), with one task per entry on the given executor.
+  // Folders are returned in the order the input directory listed them, so
+  // the result is the same as listing them one by one.
+  public static StoryFolderSnapshot[] takeAll(Path inputFolder,
+                                              final String excludedName,
+                                              ExecutorService executor)
+                                              throws IOException {
+    ArrayList<Future<StoryFolderSnapshot>> pending =
+      new ArrayList<Future<StoryFolderSnapshot>>();
+    try (DirectoryStream<Path> contents =
+           Files.newDirectoryStream(inputFolder)) {
+      for (final Path entry : contents) {
+        if (entry.getFileName().toString().equals(excludedName)) {
+          continue;
+        }
+        pending.add(executor.submit(new Callable<StoryFolderSnapshot>() {
+          public StoryFolderSnapshot call() throws IOException {
+            BasicFileAttributes attributes =
+              Files.readAttributes(entry, BasicFileAttributes.class);
+            if (!attributes.isDirectory()) {
+              return null;
+            }
+            return take(entry, attributes);
+          }
+        }));
+      }
+    }
+    ArrayList<StoryFolderSnapshot> snapshots =
+      new ArrayList<StoryFolderSnapshot>(pending.size());
+    for (Future<StoryFolderSnapshot> result : pending) {
+      StoryFolderSnapshot snapshot = GenUtils.getResult(result);
+      if (snapshot != null) {
+        snapshots.add(snapshot);
+      }
+    }
+    return snapshots.toArray(new StoryFolderSnapshot[0]);
+  }
+
+  // Gets the folder's name.
+  public String getName() {
+    return folder.getFileName().toString();
+  }
+
+  // Gets the folder's path.
+  public Path getPath() {
+    return folder;
+  }
+
+  // Gets the folder's own attributes.
+  public BasicFileAttributes getFolderAttributes() {
+    return folderAttributes;
+  }
+
+  // Returns true if the folder contains a file (not a folder) with the given
+  // name.
+  public boolean hasFile(String name) {
+    BasicFileAttributes attributes = entries.get(name);
+    return attributes != null && !attributes.isDirectory();
+  }
+
+  // Gets the attributes of a file in the folder, or null if there isn't one.
+  public BasicFileAttributes getAttributes(String name) {
+    return entries.get(name);
+  }
+
+  // Gets the chapter files: anything named "ch[...].txt" (ignoring case),
+  // sorted by name.
+  public Path[] getChapterFiles() {
+    ArrayList<Path> chapters = new ArrayList<Path>();
+    for (Map.Entry<String, BasicFileAttributes> entry : entries.entrySet()) {
+      String name = entry.getKey().toLowerCase();
+      if (name.startsWith("ch") && name.endsWith(".txt")
+          && !entry.getValue().isDirectory()) {
+        chapters.add(folder.resolve(entry.getKey()));
+      }
+    }
+    return chapters.toArray(new Path[0]);
+  }
+
+  // Gets the combined size of every file in the folder, in bytes.
+  public long getTotalSize() {
+    long total = 0;
+    for (BasicFileAttributes attributes : entries.values()) {
+      if (!attributes.isDirectory()) {
+        total += attributes.size();
+      }
+    }
+    return total;
+  }
+
+  // Gets the names of everything in the folder, sorted.
+  public Set<String> getFileNames() {
+    return Collections.unmodifiableSet(entries.keySet());
+  }
+}
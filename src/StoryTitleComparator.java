@@ -1,10 +1,17 @@
 import java.util.*;
 
 public class StoryTitleComparator implements Comparator<Story> {
+  // Ignore a leading "The" in titles
+  private boolean skipThe;
+
+  public StoryTitleComparator(boolean skipThe) {
+    this.skipThe = skipThe;
+  }
+
   // The basic comparator
   public int compare(Story a, Story b) {
     // Ignore leading "the"s if specified
-    if (FicArchiveBuilder.skipThe()) {
+    if (skipThe) {
       String title1 = HtmlUtils.stripLeadingThe(a.getStoryTitle());
       String title2 = HtmlUtils.stripLeadingThe(b.getStoryTitle());
       return title1.compareTo(title2);
@@ -0,0 +1,882 @@
+/***
+
+  A minimal read-only FileSystem over an uncompressed .tar file, so an input
+  archive can be read in place the same way the JDK's zip filesystem reads a
+  .zip. The tar's headers are read once when it's opened to build an index of
+  entries; after that, files are read straight out of the tar with
+  positioned reads, and nothing is ever extracted to disk.
+
+  Only what ChiveGen needs is supported: listing folders, reading file
+  attributes, and reading files. Regular files and folders are indexed
+  (including GNU long names and pax "path" headers); links and other special
+  entries are skipped.
+
+***/
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.io.*;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.file.spi.FileSystemProvider;
+
+public class TarFileSystem extends FileSystem {
+  private final static int BLOCK_SIZE = 512;
+  // Shared provider for every open tar
+  private final static Provider PROVIDER = new Provider();
+
+  // The tar file itself, read with positioned reads (safe across threads)
+  private Path tarFile;
+  private FileChannel tarChannel;
+  private volatile boolean open = true;
+  // Every entry by absolute path ("/" is the root)
+  private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+  private TarPath root;
+
+  // A file or folder in the tar.
+  private static class Entry implements BasicFileAttributes {
+    private String path;
+    private boolean isDirectory;
+    // Offset of the file's contents in the tar, and its length
+    private long offset;
+    private long size;
+    private FileTime modifiedTime;
+    // Child names (folders only), sorted
+    private TreeSet<String> children;
+
+    Entry(String path, boolean isDirectory, long offset, long size,
+          FileTime modifiedTime) {
+      this.path = path;
+      this.isDirectory = isDirectory;
+      this.offset = offset;
+      this.size = size;
+      this.modifiedTime = modifiedTime;
+      if (isDirectory) {
+        children = new TreeSet<String>();
+      }
+    }
+
+    public FileTime lastModifiedTime() { return modifiedTime; }
+    public FileTime lastAccessTime() { return modifiedTime; }
+    public FileTime creationTime() { return modifiedTime; }
+    public boolean isRegularFile() { return !isDirectory; }
+    public boolean isDirectory() { return isDirectory; }
+    public boolean isSymbolicLink() { return false; }
+    public boolean isOther() { return false; }
+    public long size() { return size; }
+    public Object fileKey() { return null; }
+  }
+
+  private TarFileSystem(Path tarFile) throws IOException {
+    this.tarFile = tarFile;
+    tarChannel = FileChannel.open(tarFile, StandardOpenOption.READ);
+    root = new TarPath(this, "/");
+    entries.put("/", new Entry("/", true, 0, 0,
+                               Files.getLastModifiedTime(tarFile)));
+    try {
+      readIndex();
+    } catch (IOException e) {
+      tarChannel.close();
+      throw e;
+    }
+  }
+
+  // Opens a tar file and returns its filesystem.
+  public static TarFileSystem open(Path tarFile) throws IOException {
+    return new TarFileSystem(tarFile);
+  }
+
+  // Returns true if the file name looks like an (uncompressed) tar.
+  public static boolean isTarName(String fileName) {
+    return fileName.toLowerCase().endsWith(".tar");
+  }
+
+  // Gets the root folder of the tar.
+  public TarPath getRoot() {
+    return root;
+  }
+
+  /*** READING THE INDEX ***/
+
+  // Reads every header in the tar, one after another, and records where
+  // each file's contents are.
+  private void readIndex() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+    long position = 0;
+    long tarSize = tarChannel.size();
+    // Names from GNU long name / pax headers apply to the next entry
+    String nextName = null;
+    long nextSize = -1;
+    while (position + BLOCK_SIZE <= tarSize) {
+      header.clear();
+      readFully(header, position);
+      byte[] block = header.array();
+      if (isZeroBlock(block)) {
+        break;  // end of archive
+      }
+      String name = readString(block, 0, 100);
+      String prefix = readString(block, 345, 155);
+      if (isUstar(block) && !prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+      long size = readNumber(block, 124, 12);
+      long mtime = readNumber(block, 136, 12);
+      char type = (char)block[156];
+      long dataStart = position + BLOCK_SIZE;
+      if (nextSize >= 0) {
+        size = nextSize;
+      }
+      position = dataStart + ((size + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+      switch (type) {
+        case 'L':  // GNU long name: the data is the next entry's name
+          nextName = readString(readData(dataStart, size), 0, (int)size);
+          continue;
+        case 'x':  // pax extended header for the next entry
+          Map<String, String> pax = parsePax(readData(dataStart, size));
+          if (pax.containsKey("path")) {
+            nextName = pax.get("path");
+          }
+          if (pax.containsKey("size")) {
+            nextSize = Long.parseLong(pax.get("size"));
+          }
+          continue;
+        case 'g':  // pax global header; nothing we need
+        case 'K':  // GNU long link name; links are skipped anyway
+          continue;
+        default:
+      }
+      if (nextName != null) {
+        name = nextName;
+      }
+      nextName = null;
+      nextSize = -1;
+      FileTime modified = FileTime.from(mtime, TimeUnit.SECONDS);
+      if (type == '5' || (type == '\0' && name.endsWith("/"))) {
+        addEntry(normalize(name), true, 0, 0, modified);
+      } else if (type == '0' || type == '\0' || type == '7') {
+        addEntry(normalize(name), false, dataStart, size, modified);
+      }
+      // Links, devices, etc are skipped
+    }
+  }
+
+  // Adds an entry, and any parent folders the tar didn't list itself.
+  private void addEntry(String path, boolean isDirectory, long offset,
+                        long size, FileTime modified) {
+    if (path.equals("/")) {
+      return;
+    }
+    Entry existing = entries.get(path);
+    if (existing != null && existing.isDirectory && isDirectory) {
+      existing.modifiedTime = modified;
+      return;
+    }
+    Entry entry = new Entry(path, isDirectory, offset, size, modified);
+    if (existing != null && existing.isDirectory) {
+      entry.children = existing.children;
+    }
+    entries.put(path, entry);
+    int lastSlash = path.lastIndexOf('/');
+    String parentPath = lastSlash == 0 ? "/" : path.substring(0, lastSlash);
+    Entry parent = entries.get(parentPath);
+    if (parent == null || !parent.isDirectory) {
+      addEntry(parentPath, true, 0, 0, modified);
+      parent = entries.get(parentPath);
+    }
+    parent.children.add(path.substring(lastSlash + 1));
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = tarChannel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of tar file " + tarFile);
+      }
+      position += read;
+    }
+  }
+
+  private byte[] readData(long position, long size) throws IOException {
+    ByteBuffer data = ByteBuffer.allocate((int)size);
+    readFully(data, position);
+    return data.array();
+  }
+
+  private static boolean isZeroBlock(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isUstar(byte[] block) {
+    return block[257] == 'u' && block[258] == 's' && block[259] == 't'
+           && block[260] == 'a' && block[261] == 'r';
+  }
+
+  // Reads a NUL-terminated UTF-8 string from a header field.
+  private static String readString(byte[] block, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && block[end] != 0) {
+      end++;
+    }
+    return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  // Reads an octal number field, or a base-256 one (used for very large
+  // files) if the high bit of the first byte is set.
+  private static long readNumber(byte[] block, int offset, int length) {
+    long value = 0;
+    if ((block[offset] & 0x80) != 0) {
+      for (int i = offset + 1; i < offset + length; i++) {
+        value = (value << 8) | (block[i] & 0xff);
+      }
+      return value;
+    }
+    boolean seenDigit = false;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = block[i];
+      if (b >= '0' && b <= '7') {
+        value = value * 8 + (b - '0');
+        seenDigit = true;
+      } else if (seenDigit || b == 0) {
+        break;  // terminated by a space or NUL
+      }
+      // otherwise skip leading spaces
+    }
+    return value;
+  }
+
+  // Parses pax records ("LENGTH key=value\n").
+  private static Map<String, String> parsePax(byte[] data) {
+    HashMap<String, String> records = new HashMap<String, String>();
+    int position = 0;
+    while (position < data.length) {
+      int space = position;
+      while (space < data.length && data[space] != ' ') {
+        space++;
+      }
+      if (space >= data.length) {
+        break;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(new String(data, position, space - position,
+                                             StandardCharsets.US_ASCII));
+      } catch (NumberFormatException e) {
+        break;
+      }
+      if (length <= 0 || position + length > data.length) {
+        break;
+      }
+      String record = new String(data, space + 1, position + length - space - 2,
+                                 StandardCharsets.UTF_8);
+      int equals = record.indexOf('=');
+      if (equals != -1) {
+        records.put(record.substring(0, equals), record.substring(equals + 1));
+      }
+      position += length;
+    }
+    return records;
+  }
+
+  // Converts a path to the form used as an entry key: absolute, no "." or
+  // ".." parts, no doubled or trailing slashes.
+  private static String normalize(String path) {
+    ArrayDeque<String> parts = new ArrayDeque<String>();
+    for (String part : path.split("/")) {
+      if (part.isEmpty() || part.equals(".")) {
+        continue;
+      }
+      if (part.equals("..")) {
+        parts.pollLast();
+      } else {
+        parts.addLast(part);
+      }
+    }
+    return "/" + String.join("/", parts);
+  }
+
+  private Entry getEntry(Path path) throws IOException {
+    if (!open) {
+      throw new ClosedFileSystemException();
+    }
+    Entry entry = entries.get(normalize(toTarPath(path).toAbsolutePath().toString()));
+    if (entry == null) {
+      throw new NoSuchFileException(path.toString());
+    }
+    return entry;
+  }
+
+  private static TarPath toTarPath(Path path) {
+    if (!(path instanceof TarPath)) {
+      throw new ProviderMismatchException();
+    }
+    return (TarPath)path;
+  }
+
+  /*** FILESYSTEM ***/
+
+  @Override
+  public FileSystemProvider provider() {
+    return PROVIDER;
+  }
+
+  @Override
+  public void close() throws IOException {
+    open = false;
+    tarChannel.close();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public String getSeparator() {
+    return "/";
+  }
+
+  @Override
+  public Iterable<Path> getRootDirectories() {
+    return Collections.<Path>singletonList(root);
+  }
+
+  @Override
+  public Iterable<FileStore> getFileStores() {
+    return Collections.<FileStore>emptyList();
+  }
+
+  @Override
+  public Set<String> supportedFileAttributeViews() {
+    return Collections.singleton("basic");
+  }
+
+  @Override
+  public Path getPath(String first, String... more) {
+    StringBuilder path = new StringBuilder(first);
+    for (String part : more) {
+      if (!part.isEmpty()) {
+        if (path.length() > 0) {
+          path.append('/');
+        }
+        path.append(part);
+      }
+    }
+    return new TarPath(this, path.toString());
+  }
+
+  @Override
+  public PathMatcher getPathMatcher(String syntaxAndPattern) {
+    final PathMatcher matcher =
+      FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+    return new PathMatcher() {
+      public boolean matches(Path path) {
+        return matcher.matches(Paths.get(path.toString()));
+      }
+    };
+  }
+
+  @Override
+  public UserPrincipalLookupService getUserPrincipalLookupService() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public WatchService newWatchService() {
+    throw new UnsupportedOperationException();
+  }
+
+  /*** PATHS ***/
+
+  // A path inside a tar. Stored as a string with "/" separators; absolute
+  // paths start with "/".
+  public static class TarPath implements Path {
+    private TarFileSystem fileSystem;
+    private String path;
+    private String[] names;
+
+    TarPath(TarFileSystem fileSystem, String path) {
+      this.fileSystem = fileSystem;
+      // Collapse doubled slashes and drop any trailing slash
+      path = path.replaceAll("/+", "/");
+      if (path.length() > 1 && path.endsWith("/")) {
+        path = path.substring(0, path.length() - 1);
+      }
+      this.path = path;
+    }
+
+    private String[] getNames() {
+      if (names == null) {
+        String stripped = path.startsWith("/") ? path.substring(1) : path;
+        names = stripped.isEmpty() ? new String[0] : stripped.split("/");
+      }
+      return names;
+    }
+
+    @Override
+    public FileSystem getFileSystem() {
+      return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+      return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+      return isAbsolute() ? fileSystem.root : null;
+    }
+
+    @Override
+    public Path getFileName() {
+      String[] parts = getNames();
+      if (parts.length == 0) {
+        return path.isEmpty() ? this : null;
+      }
+      return new TarPath(fileSystem, parts[parts.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+      String[] parts = getNames();
+      if (parts.length == 0 || (parts.length == 1 && !isAbsolute())) {
+        return null;
+      }
+      if (parts.length == 1) {
+        return fileSystem.root;
+      }
+      return new TarPath(fileSystem, path.substring(0, path.lastIndexOf('/')));
+    }
+
+    @Override
+    public int getNameCount() {
+      return getNames().length;
+    }
+
+    @Override
+    public Path getName(int index) {
+      return new TarPath(fileSystem, getNames()[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+      return new TarPath(fileSystem,
+                         String.join("/", Arrays.copyOfRange(getNames(),
+                                                             beginIndex,
+                                                             endIndex)));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+      if (!(other instanceof TarPath)
+          || ((TarPath)other).isAbsolute() != isAbsolute()) {
+        return false;
+      }
+      String[] mine = getNames();
+      String[] theirs = ((TarPath)other).getNames();
+      if (theirs.length > mine.length) {
+        return false;
+      }
+      for (int i = 0; i < theirs.length; i++) {
+        if (!mine[i].equals(theirs[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+      if (!(other instanceof TarPath)) {
+        return false;
+      }
+      TarPath otherPath = (TarPath)other;
+      if (otherPath.isAbsolute()) {
+        return equals(otherPath);
+      }
+      String[] mine = getNames();
+      String[] theirs = otherPath.getNames();
+      if (theirs.length > mine.length) {
+        return false;
+      }
+      for (int i = 0; i < theirs.length; i++) {
+        if (!mine[mine.length - theirs.length + i].equals(theirs[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Path normalize() {
+      String normalized = TarFileSystem.normalize(path);
+      return new TarPath(fileSystem,
+                         isAbsolute() ? normalized : normalized.substring(1));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+      TarPath otherPath = toTarPath(other);
+      if (otherPath.isAbsolute()) {
+        return otherPath;
+      }
+      if (otherPath.path.isEmpty()) {
+        return this;
+      }
+      if (path.isEmpty()) {
+        return otherPath;
+      }
+      return new TarPath(fileSystem, path + "/" + otherPath.path);
+    }
+
+    @Override
+    public Path resolve(String other) {
+      return resolve(new TarPath(fileSystem, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+      TarPath otherPath = toTarPath(other);
+      if (otherPath.isAbsolute() != isAbsolute()) {
+        throw new IllegalArgumentException("'other' is different type of Path");
+      }
+      String[] mine = getNames();
+      String[] theirs = otherPath.getNames();
+      int common = 0;
+      while (common < mine.length && common < theirs.length
+             && mine[common].equals(theirs[common])) {
+        common++;
+      }
+      ArrayList<String> parts = new ArrayList<String>();
+      for (int i = common; i < mine.length; i++) {
+        parts.add("..");
+      }
+      for (int i = common; i < theirs.length; i++) {
+        parts.add(theirs[i]);
+      }
+      return new TarPath(fileSystem, String.join("/", parts));
+    }
+
+    @Override
+    public URI toUri() {
+      return URI.create("tar:" + fileSystem.tarFile.toUri() + "!"
+                        + toAbsolutePath().toString().replace(" ", "%20"));
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+      return isAbsolute() ? this : new TarPath(fileSystem, "/" + path);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+      Path real = toAbsolutePath().normalize();
+      fileSystem.getEntry(real);
+      return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+                             WatchEvent.Modifier... modifiers) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+      return path.compareTo(((TarPath)other).path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof TarPath
+             && ((TarPath)other).fileSystem == fileSystem
+             && ((TarPath)other).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+      return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return path;
+    }
+  }
+
+  /*** READING FILES ***/
+
+  // A read-only channel over one file's bytes inside the tar.
+  private static class EntryChannel implements SeekableByteChannel {
+    private FileChannel tarChannel;
+    private long start;
+    private long size;
+    private long position = 0;
+    private boolean open = true;
+
+    EntryChannel(FileChannel tarChannel, long start, long size) {
+      this.tarChannel = tarChannel;
+      this.start = start;
+      this.size = size;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      if (position >= size) {
+        return -1;
+      }
+      int limit = destination.limit();
+      long remaining = size - position;
+      if (destination.remaining() > remaining) {
+        destination.limit(destination.position() + (int)remaining);
+      }
+      try {
+        int read = tarChannel.read(destination, start + position);
+        if (read > 0) {
+          position += read;
+        }
+        return read;
+      } finally {
+        destination.limit(limit);
+      }
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+      position = newPosition;
+      return this;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  /*** PROVIDER ***/
+
+  private static class Provider extends FileSystemProvider {
+    @Override
+    public String getScheme() {
+      return "tar";
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+      throw new UnsupportedOperationException("Use TarFileSystem.open()");
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env)
+                                    throws IOException {
+      return TarFileSystem.open(path);
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+      throw new UnsupportedOperationException("Use TarFileSystem.open()");
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+      throw new UnsupportedOperationException("Use TarFileSystem.open()");
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path,
+                                              Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs)
+                                              throws IOException {
+      for (OpenOption option : options) {
+        if (option != StandardOpenOption.READ
+            && option != LinkOption.NOFOLLOW_LINKS) {
+          throw new ReadOnlyFileSystemException();
+        }
+      }
+      TarFileSystem fileSystem = (TarFileSystem)path.getFileSystem();
+      Entry entry = fileSystem.getEntry(path);
+      if (entry.isDirectory) {
+        throw new FileSystemException(path.toString(), null, "Is a directory");
+      }
+      return new EntryChannel(fileSystem.tarChannel, entry.offset, entry.size);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(final Path dir,
+        final DirectoryStream.Filter<? super Path> filter) throws IOException {
+      TarFileSystem fileSystem = (TarFileSystem)dir.getFileSystem();
+      Entry entry = fileSystem.getEntry(dir);
+      if (!entry.isDirectory) {
+        throw new NotDirectoryException(dir.toString());
+      }
+      final ArrayList<Path> contents = new ArrayList<Path>();
+      for (String child : entry.children) {
+        Path childPath = dir.resolve(child);
+        if (filter == null || filter.accept(childPath)) {
+          contents.add(childPath);
+        }
+      }
+      return new DirectoryStream<Path>() {
+        public Iterator<Path> iterator() {
+          return contents.iterator();
+        }
+        public void close() {
+        }
+      };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+      throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+      throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+      throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+      throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+      return path.toAbsolutePath().normalize()
+                 .equals(path2.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+      return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+      ((TarFileSystem)path.getFileSystem()).getEntry(path);
+      for (AccessMode mode : modes) {
+        if (mode == AccessMode.WRITE) {
+          throw new AccessDeniedException(path.toString());
+        }
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(final Path path,
+        Class<V> type, LinkOption... options) {
+      if (type != BasicFileAttributeView.class) {
+        return null;
+      }
+      return (V)new BasicFileAttributeView() {
+        public String name() {
+          return "basic";
+        }
+        public BasicFileAttributes readAttributes() throws IOException {
+          return ((TarFileSystem)path.getFileSystem()).getEntry(path);
+        }
+        public void setTimes(FileTime lastModifiedTime,
+                             FileTime lastAccessTime, FileTime createTime) {
+          throw new ReadOnlyFileSystemException();
+        }
+      };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path,
+        Class<A> type, LinkOption... options) throws IOException {
+      if (!type.isAssignableFrom(BasicFileAttributes.class)) {
+        throw new UnsupportedOperationException();
+      }
+      return (A)((TarFileSystem)path.getFileSystem()).getEntry(path);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes,
+                                              LinkOption... options)
+                                              throws IOException {
+      Entry entry = ((TarFileSystem)path.getFileSystem()).getEntry(path);
+      HashMap<String, Object> values = new HashMap<String, Object>();
+      values.put("size", entry.size());
+      values.put("lastModifiedTime", entry.lastModifiedTime());
+      values.put("lastAccessTime", entry.lastAccessTime());
+      values.put("creationTime", entry.creationTime());
+      values.put("isRegularFile", entry.isRegularFile());
+      values.put("isDirectory", entry.isDirectory());
+      values.put("isSymbolicLink", false);
+      values.put("isOther", false);
+      values.put("fileKey", null);
+      String names = attributes.startsWith("basic:")
+                     ? attributes.substring(6) : attributes;
+      if (names.equals("*")) {
+        return values;
+      }
+      HashMap<String, Object> selected = new HashMap<String, Object>();
+      for (String name : names.split(",")) {
+        if (values.containsKey(name)) {
+          selected.put(name, values.get(name));
+        }
+      }
+      return selected;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value,
+                             LinkOption... options) {
+      throw new ReadOnlyFileSystemException();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/***
+
+  Reusable per-thread StringBuilders for the page-building hot paths, so
+  that building a page doesn't leave a trail of temporary builders behind.
+
+  Each thread keeps a small stack of buffers, since building one string
+  often means building others inside it (e.g. a category page assembles
+  its pagination, which assembles a template.) acquire() takes the next
+  free buffer on this thread's stack, and finish() or release() gives it
+  back. Buffers grow to fit the biggest page they've built and keep that
+  size, except that unusually big ones are dropped instead of being kept
+  around for the rest of the build.
+
+***/
+
+public class TextBuffers {
+  // Starting size of a new buffer
+  private static final int INITIAL_CAPACITY = 1024;
+  // Buffers bigger than this (in chars) aren't kept for reuse
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+  // How deeply buffer use can nest before we just hand out new builders
+  private static final int MAX_DEPTH = 8;
+
+  private static final ThreadLocal<TextBuffers> buffers =
+    ThreadLocal.withInitial(TextBuffers::new);
+
+  private final StringBuilder[] stack = new StringBuilder[MAX_DEPTH];
+  // Number of buffers on this thread currently in use
+  private int depth = 0;
+
+  private TextBuffers() {
+  }
+
+  // Gets an empty buffer for this thread to build a string in.
+  public static StringBuilder acquire() {
+    TextBuffers local = buffers.get();
+    if (local.depth == MAX_DEPTH) {
+      return new StringBuilder(INITIAL_CAPACITY);
+    }
+    StringBuilder buffer = local.stack[local.depth];
+    if (buffer == null) {
+      buffer = new StringBuilder(INITIAL_CAPACITY);
+      local.stack[local.depth] = buffer;
+    }
+    local.depth++;
+    buffer.setLength(0);
+    return buffer;
+  }
+
+  // Gives a buffer back for reuse. Any buffers acquired after it that were
+  // never released (e.g. because of an exception) are given back too.
+  public static void release(StringBuilder buffer) {
+    TextBuffers local = buffers.get();
+    for (int i = local.depth - 1; i >= 0; i--) {
+      if (local.stack[i] == buffer) {
+        local.depth = i;
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+          local.stack[i] = null;
+        }
+        return;
+      }
+    }
+    // Not one of ours (handed out past MAX_DEPTH), so nothing to do
+  }
+
+  // Gets the contents of a buffer as a String, and gives the buffer back.
+  public static String finish(StringBuilder buffer) {
+    String result = buffer.toString();
+    release(buffer);
+    return result;
+  }
+}
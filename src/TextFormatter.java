@@ -0,0 +1,87 @@
+/***
+
+  A compiled formatter for the short one-line templates (page titles, chapter
+  titles, footers, summary fields, etc) that use fixed placeholders like
+  "{T}" or "{{C}}". The template is split at its placeholders once, when it's
+  loaded, and formatting just appends the pieces and values in order.
+
+  Placeholders are matched in a single scan of the template, trying each
+  placeholder in the order given. Values are inserted as they are, and are
+  never searched for placeholders themselves.
+
+***/
+
+import java.util.*;
+
+public class TextFormatter {
+  // ops[i] >= 0 appends the value at that index, and ops[i] < 0 appends
+  // literals[-ops[i] - 1]
+  private int[] ops;
+  private String[] literals;
+  // Total length of all the literals, for sizing the output
+  private int literalLength;
+
+  // Compiles a template with the given placeholders. The values passed to
+  // format() or appendTo() go in the same order as the placeholders.
+  public TextFormatter(String template, String... placeholders) {
+    ArrayList<String> literalList = new ArrayList<String>();
+    int[] opList = new int[template.length() + 1];
+    int opCount = 0;
+    int literalStart = 0;
+    int i = 0;
+    while (i < template.length()) {
+      int match = -1;
+      for (int p = 0; p < placeholders.length; p++) {
+        if (template.startsWith(placeholders[p], i)) {
+          match = p;
+          break;
+        }
+      }
+      if (match == -1) {
+        i++;
+        continue;
+      }
+      if (i > literalStart) {
+        literalList.add(template.substring(literalStart, i));
+        opList[opCount++] = -literalList.size();
+        literalLength += i - literalStart;
+      }
+      opList[opCount++] = match;
+      i += placeholders[match].length();
+      literalStart = i;
+    }
+    if (template.length() > literalStart) {
+      literalList.add(template.substring(literalStart));
+      opList[opCount++] = -literalList.size();
+      literalLength += template.length() - literalStart;
+    }
+    ops = Arrays.copyOf(opList, opCount);
+    literals = literalList.toArray(new String[0]);
+  }
+
+  // Appends the formatted template to the given buffer, and returns it.
+  public StringBuilder appendTo(StringBuilder out, String... values) {
+    for (int i = 0; i < ops.length; i++) {
+      int op = ops[i];
+      if (op >= 0) {
+        out.append(values[op]);
+      } else {
+        out.append(literals[-op - 1]);
+      }
+    }
+    return out;
+  }
+
+  // Formats the template with the given values.
+  public String format(String... values) {
+    int size = literalLength;
+    for (int i = 0; i < ops.length; i++) {
+      if (ops[i] >= 0 && values[ops[i]] != null) {
+        size += values[ops[i]].length();
+      }
+    }
+    StringBuilder out = TextBuffers.acquire();
+    out.ensureCapacity(size);
+    return TextBuffers.finish(appendTo(out, values));
+  }
+}